@@ -0,0 +1,114 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of concurrent client connections, in total and per
+ * remote address, so that a single host cannot exhaust the server's sockets
+ * and threads. Limits are configured with the {@code chat.maxConnections} and
+ * {@code chat.maxConnectionsPerAddress} system properties.
+ */
+public class AdmissionController {
+
+    /**
+     * The outcome of an admission check.
+     */
+    public enum Decision {
+        ADMITTED(null),
+        SERVER_FULL("server_full"),
+        ADDRESS_FULL("address_full");
+
+        private final String reason;
+
+        Decision(String reason) {
+            this.reason = reason;
+        }
+
+        /**
+         * Get the reason of a rejection, as used in metrics.
+         *
+         * @return The reason, or null if the connection was admitted
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final AtomicInteger connections;
+    private final ConcurrentMap<InetAddress, Integer> connectionsPerAddress;
+
+    /**
+     * Create an admission controller with the limits from the system
+     * properties.
+     */
+    public AdmissionController() {
+        this(Integer.getInteger("chat.maxConnections", 10000),
+                Integer.getInteger("chat.maxConnectionsPerAddress", 1000));
+    }
+
+    /**
+     * Create an admission controller.
+     *
+     * @param maxConnections The maximum number of open connections
+     * @param maxConnectionsPerAddress The maximum number of open connections
+     *                                 from one remote address
+     */
+    public AdmissionController(int maxConnections, int maxConnectionsPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.connections = new AtomicInteger();
+        this.connectionsPerAddress = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Admit a connection if it is within the limits. An admitted connection
+     * must be given back with {@link #release(InetAddress)} when it closes.
+     *
+     * @param address The remote address of the connection
+     * @return The decision
+     */
+    public Decision tryAdmit(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            return Decision.SERVER_FULL;
+        }
+
+        boolean[] admitted = new boolean[1];
+        connectionsPerAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxConnectionsPerAddress) {
+                return count;
+            }
+            admitted[0] = true;
+            return current + 1;
+        });
+
+        if (!admitted[0]) {
+            connections.decrementAndGet();
+            return Decision.ADDRESS_FULL;
+        }
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Give back an admitted connection.
+     *
+     * @param address The remote address of the connection
+     */
+    public void release(InetAddress address) {
+        connectionsPerAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Get the number of admitted connections.
+     *
+     * @return The number of connections
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+}
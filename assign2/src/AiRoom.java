@@ -28,7 +28,18 @@ public class AiRoom extends Room {
      * @param prompt The initial prompt/instructions for the AI
      */
     public AiRoom(String name, String prompt) {
-        super(name);
+        this(name, prompt, null);
+    }
+
+    /**
+     * Create an AI room backed by a message log.
+     *
+     * @param name The name of the room
+     * @param prompt The initial prompt/instructions for the AI
+     * @param log The message log, or null to keep messages in memory only
+     */
+    public AiRoom(String name, String prompt, MessageLog log) {
+        super(name, log);
         this.prompt = prompt;
         this.model = "llama3";
         this.httpClient = HttpClient.newBuilder()
@@ -36,12 +47,23 @@ public class AiRoom extends Room {
                 .connectTimeout(Duration.ofSeconds(60))
                 .build();
 
-        super.addMessage(new Message("SYSTEM", "AI room created with prompt: " + prompt));
-        super.addMessage(new Message("SYSTEM", "Bot is ready to respond to your messages."));
+        if (getMessageCount() == 0) {
+            super.addMessage(new Message("SYSTEM", "AI room created with prompt: " + prompt));
+            super.addMessage(new Message("SYSTEM", "Bot is ready to respond to your messages."));
+        }
 
         testOllamaConnection();
     }
 
+    /**
+     * Get the prompt the room was created with.
+     *
+     * @return The AI prompt
+     */
+    public String getPrompt() {
+        return prompt;
+    }
+
     /**
      * Test the connection to Ollama and log the result.
      */
@@ -90,12 +112,15 @@ public class AiRoom extends Room {
                 String userMessage = message.getContent();
 
                 String response = null;
+                long start = System.nanoTime();
                 try {
                     response = queryOllama(userMessage);
                 } catch (Exception e) {
+                    Metrics.AI_REQUEST_FAILURES.increment();
                     response = "I'm sorry, I couldn't process your request right now. The AI service might be temporarily unavailable.";
                 }
 
+                Metrics.AI_REQUEST_DURATION.recordSince(start);
                 removeMessage(thinkingMessage);
 
                 if (response != null && !response.trim().isEmpty()) {
@@ -129,7 +154,22 @@ public class AiRoom extends Room {
                 .timeout(Duration.ofMinutes(5))
                 .build();
 
-        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        ChatEvents.AiRequest event = new ChatEvents.AiRequest();
+        event.begin();
+        int status = 0;
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            status = response.statusCode();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.model = model;
+                event.promptBytes = jsonBody.getBytes(StandardCharsets.UTF_8).length;
+                event.status = status;
+                event.commit();
+            }
+        }
 
         if (response.statusCode() != 200) {
             throw new IOException("HTTP error: " + response.statusCode());
@@ -1,36 +1,73 @@
 
 import java.io.*;
 import java.nio.file.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 /**
- * Service for handling user authentication and registration. Uses a file to
- * persist user credentials and implements thread-safe operations.
+ * Service for handling user authentication and registration. Users are kept
+ * in a {@link UserDirectory}, either in memory or in an on-disk index. The
+ * users file only seeds an empty directory.
+ *
+ * Passwords are hashed by a {@link PasswordHasher} on its own bounded pool.
+ * Users whose stored hash is from an older version get a new one the next
+ * time they log in.
+ *
+ * Two checks run before the password is hashed. A {@link BloomFilter} over
+ * every known username rejects logins for users that do not exist without
+ * looking them up, and a {@link CredentialCache} accepts a password that was
+ * verified against the same stored hash in the last minute. The filter is
+ * only kept for directories held in memory: filling it reads every user,
+ * which an on-disk directory would have to scan at every startup, and such
+ * a directory answers a lookup for an unknown user with one page read.
  */
 public class AuthenticationService {
 
     private static final String USERS_FILE = "users.txt";
-    private final Map<String, String> users; 
-    private final ReentrantReadWriteLock lock;
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final UserDirectory users;
+    private final PasswordHasher passwordHasher;
+    private final CredentialCache credentialCache;
+    private final ReentrantLock filterLock;
+    private volatile BloomFilter knownUsers;
+    private volatile BiConsumer<String, String> registrationListener;
 
     /**
-     * Create a new authentication service. Loads users from file if available.
+     * Create a new authentication service that keeps users in memory only,
+     * starting with the users in the users file.
      */
     public AuthenticationService() {
-        this.users = new HashMap<>();
-        this.lock = new ReentrantReadWriteLock();
+        this(new MemoryUserDirectory());
+    }
+
+    /**
+     * Create a new authentication service that keeps users in the given
+     * directory. An empty directory is seeded from the users file.
+     *
+     * @param users The user directory
+     */
+    public AuthenticationService(UserDirectory users) {
+        this.users = users;
+        this.passwordHasher = new PasswordHasher();
+        this.credentialCache = new CredentialCache();
+        this.filterLock = new ReentrantLock();
+        this.knownUsers = users.isHeldInMemory()
+                ? new BloomFilter(MIN_FILTER_CAPACITY, FILTER_FALSE_POSITIVE_RATE) : null;
 
-        loadUsers();
+        if (users.getUserCount() == 0) {
+            loadUsersFile();
+        }
+        rebuildFilter();
     }
 
     /**
-     * Load users from the users file.
+     * Load the initial users from the users file, registering a default
+     * administrator if there is none.
      */
-    private void loadUsers() {
+    private void loadUsersFile() {
         Path path = Paths.get(USERS_FILE);
 
         if (!Files.exists(path)) {
@@ -43,37 +80,28 @@ public class AuthenticationService {
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split(":", 2);
                 if (parts.length == 2) {
-                    lock.writeLock().lock();
-                    try {
-                        users.put(parts[0], parts[1]);
-                    } finally {
-                        lock.writeLock().unlock();
-                    }
+                    addUser(parts[0], parts[1]);
                 }
             }
-            //System.out.println("Loaded " + users.size() + " users.");
         } catch (IOException e) {
-            System.err.println("Error loading users: " + e.getMessage());
+            ServerLog.error("Error loading users", "error", e);
         }
     }
 
     /**
-     * Save users to the users file.
+     * Add a user that does not exist yet and persist it.
+     *
+     * @param username The username
+     * @param passwordHash The password hash
+     * @return true if the user was added, false if it already exists
      */
-    private void saveUsers() {
-        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(USERS_FILE))) {
-            lock.readLock().lock();
-            try {
-                for (Map.Entry<String, String> entry : users.entrySet()) {
-                    writer.write(entry.getKey() + ":" + entry.getValue());
-                    writer.newLine();
-                }
-            } finally {
-                lock.readLock().unlock();
-            }
-        } catch (IOException e) {
-            System.err.println("Error saving users: " + e.getMessage());
+    private boolean addUser(String username, String passwordHash) {
+        if (!users.addUser(username, passwordHash)) {
+            return false;
         }
+        addKnownUser(username);
+        credentialCache.invalidate(username);
+        return true;
     }
 
     /**
@@ -82,24 +110,58 @@ public class AuthenticationService {
      * @param username The username
      * @param password The password
      * @return true if registration successful, false if username already exists
+     * @throws RejectedExecutionException If the server is too busy hashing
+     * passwords
      */
     public boolean registerUser(String username, String password) {
         if (username == null || password == null || username.isEmpty() || password.isEmpty()) {
             return false;
         }
+        if (users.getPasswordHash(username) != null) {
+            return false;
+        }
 
-        lock.writeLock().lock();
-        try {
-            if (users.containsKey(username)) {
-                return false;
-            }
+        String hash = passwordHasher.hash(password);
+        if (!addUser(username, hash)) {
+            return false;
+        }
 
-            users.put(username, hashPassword(password));
-            saveUsers();
-            return true;
-        } finally {
-            lock.writeLock().unlock();
+        BiConsumer<String, String> listener = registrationListener;
+        if (listener != null) {
+            listener.accept(username, hash);
         }
+        return true;
+    }
+
+    /**
+     * Set a listener called with the username and password hash of every
+     * new registration, used to pass accounts on to other cluster nodes.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setRegistrationListener(BiConsumer<String, String> listener) {
+        this.registrationListener = listener;
+    }
+
+    /**
+     * Add a user registered on another cluster node and persist it like a
+     * local registration. Existing users are left as they are.
+     *
+     * @param username The username
+     * @param passwordHash The password hash
+     * @return true if the user was added
+     */
+    public boolean addReplicatedUser(String username, String passwordHash) {
+        return addUser(username, passwordHash);
+    }
+
+    /**
+     * Write every user to a visitor, used to catch up cluster peers.
+     *
+     * @param visitor The visitor
+     */
+    public void writeSnapshot(StateVisitor visitor) {
+        users.forEachUser(visitor::user);
     }
 
     /**
@@ -108,49 +170,150 @@ public class AuthenticationService {
      * @param username The username
      * @param password The password
      * @return true if authentication successful, false otherwise
+     * @throws RejectedExecutionException If the server is too busy hashing
+     * passwords
      */
     public boolean authenticateUser(String username, String password) {
+        ChatEvents.Authentication event = new ChatEvents.Authentication();
+        event.begin();
+        boolean authenticated = checkCredentials(username, password);
+        event.end();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.success = authenticated;
+            event.commit();
+        }
+        return authenticated;
+    }
+
+    /**
+     * Check a username and password against the stored hash, replacing a
+     * hash from an older version once the password is known to be right.
+     * Unknown users and recently verified passwords are answered without
+     * hashing.
+     *
+     * @param username The username
+     * @param password The password
+     * @return true if the password matches, false otherwise
+     */
+    private boolean checkCredentials(String username, String password) {
         if (username == null || password == null) {
             return false;
         }
+        BloomFilter filter = knownUsers;
+        if (filter != null && !filter.mightContain(username)) {
+            Metrics.AUTH_UNKNOWN_USERS.increment();
+            return false;
+        }
 
-        lock.readLock().lock();
-        try {
-            String storedHash = users.get(username);
-            if (storedHash == null) {
-                return false;
-            }
+        String storedHash = users.getPasswordHash(username);
+        if (storedHash == null) {
+            return false;
+        }
+        if (credentialCache.matches(username, password, storedHash)) {
+            Metrics.AUTH_CACHE_HITS.increment();
+            return true;
+        }
+        if (!passwordHasher.verify(password, storedHash)) {
+            return false;
+        }
 
-            return storedHash.equals(hashPassword(password));
-        } finally {
-            lock.readLock().unlock();
+        if (passwordHasher.needsRehash(storedHash)) {
+            storedHash = rehash(username, password, storedHash);
         }
+        credentialCache.put(username, password, storedHash);
+        return true;
     }
 
     /**
-     * Hash a password using SHA-256.
+     * Replace a user's stored hash with one in the current format. The login
+     * goes ahead with the old hash if the hashing queue is full.
      *
-     * @param password The password to hash
-     * @return The hashed password
+     * @param username The username
+     * @param password The verified password
+     * @param storedHash The hash being replaced
+     * @return The user's stored hash afterwards
      */
-    private String hashPassword(String password) {
+    private String rehash(String username, String password, String storedHash) {
+        String hash;
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(password.getBytes());
-
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
+            hash = passwordHasher.hash(password);
+        } catch (RejectedExecutionException e) {
+            return storedHash;
+        }
+        if (!users.replacePasswordHash(username, storedHash, hash)) {
+            return storedHash;
+        }
+        credentialCache.invalidate(username);
+        ServerLog.debug("Upgraded password hash", "user", username);
+        return hash;
+    }
+
+    /**
+     * Add a user that is already in the user directory to the filter of known
+     * users, rebuilding the filter twice as large once it holds as many
+     * users as it was sized for. Does nothing if no filter is kept.
+     *
+     * @param username The username
+     */
+    private void addKnownUser(String username) {
+        if (knownUsers == null) {
+            return;
+        }
+        filterLock.lock();
+        try {
+            if (users.getUserCount() > knownUsers.getCapacity()) {
+                rebuildFilter();
+            } else {
+                knownUsers.add(username);
             }
+        } finally {
+            filterLock.unlock();
+        }
+    }
 
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            System.err.println("Warning: Password hashing not available. Using plaintext.");
-            return password;
+    /**
+     * Build the filter of known users from the user directory, sized for
+     * twice the current number of users. Does nothing if no filter is kept.
+     */
+    private void rebuildFilter() {
+        if (knownUsers == null) {
+            return;
         }
+        filterLock.lock();
+        try {
+            int capacity = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_FILTER_CAPACITY, users.getUserCount() * 2));
+            BloomFilter filter = new BloomFilter(capacity, FILTER_FALSE_POSITIVE_RATE);
+            users.forEachUser((username, hash) -> filter.add(username));
+            knownUsers = filter;
+        } finally {
+            filterLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of recently verified passwords in the credential cache.
+     *
+     * @return The number of cached passwords
+     */
+    public int getCredentialCacheSize() {
+        return credentialCache.size();
+    }
+
+    /**
+     * Get the number of password hashing requests waiting for a thread.
+     *
+     * @return The queue length
+     */
+    public int getHashQueueLength() {
+        return passwordHasher.getQueueLength();
+    }
+
+    /**
+     * Stop the password hashing threads and close the user directory.
+     */
+    public void close() {
+        passwordHasher.close();
+        users.close();
     }
 }
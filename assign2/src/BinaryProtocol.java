@@ -0,0 +1,506 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compact binary alternative to the text protocol. A client opts in by
+ * sending {@link #MAGIC} followed by {@link #VERSION} as the very first bytes
+ * of the connection; the server answers with the same two bytes and both
+ * sides switch to frames. Clients that start with a text command are served
+ * with the text protocol as before.
+ *
+ * Every frame is {@code [int length][byte opcode][payload]}, where the length
+ * covers the opcode and the payload. Opcodes mirror the text commands and
+ * responses, and most payloads are a sequence of {@code [short length][UTF-8]}
+ * fields. Rooms are referred to by an interned integer id on the hot path:
+ * <ul>
+ * <li>{@code JOINED}: {@code [int roomId][roomName]}</li>
+ * <li>{@code MESSAGE} from the client: {@code [int roomId][UTF-8 content]}</li>
+ * <li>{@code MESSAGE} from the server:
+ * {@code [int roomId][long seq][sender][UTF-8 content]}</li>
+ * </ul>
+ * Frames are read into and written from reused buffers, so parsing a frame
+ * allocates nothing beyond the strings it yields.
+ */
+public final class BinaryProtocol {
+
+    public static final int MAGIC = 0xB1;
+    public static final int VERSION = 2;
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    public static final byte REGISTER = 1;
+    public static final byte LOGIN = 2;
+    public static final byte RECONNECT = 3;
+    public static final byte LOGOUT = 4;
+    public static final byte LIST_ROOMS = 5;
+    public static final byte CREATE_ROOM = 6;
+    public static final byte CREATE_AI_ROOM = 7;
+    public static final byte JOIN_ROOM = 8;
+    public static final byte LEAVE_ROOM = 9;
+    public static final byte MESSAGE = 10;
+    public static final byte HISTORY = 11;
+    public static final byte WHO = 12;
+    public static final byte ONLINE = 13;
+
+    public static final byte REGISTER_SUCCESS = 32;
+    public static final byte REGISTER_FAILURE = 33;
+    public static final byte LOGIN_SUCCESS = 34;
+    public static final byte LOGIN_FAILURE = 35;
+    public static final byte RECONNECT_SUCCESS = 36;
+    public static final byte RECONNECT_FAILURE = 37;
+    public static final byte LOGOUT_SUCCESS = 38;
+    public static final byte ROOMS = 39;
+    public static final byte ROOM_CREATED = 40;
+    public static final byte ROOM_EXISTS = 41;
+    public static final byte JOINED = 42;
+    public static final byte ROOM_NOT_FOUND = 43;
+    public static final byte LEFT_ROOM = 44;
+    public static final byte NOT_IN_ROOM = 45;
+    public static final byte HISTORY_END = 46;
+    public static final byte INVALID_COMMAND = 47;
+    public static final byte UNAUTHENTICATED = 48;
+    public static final byte UNKNOWN_COMMAND = 49;
+    public static final byte RATE_LIMITED = 50;
+    public static final byte SERVER_BUSY = 51;
+    public static final byte PRESENCE = 52;
+
+    private static final String[] KEYWORDS = new String[64];
+    private static final Map<String, Byte> OPCODES = new HashMap<>();
+
+    static {
+        define(REGISTER, "REGISTER");
+        define(LOGIN, "LOGIN");
+        define(RECONNECT, "RECONNECT");
+        define(LOGOUT, "LOGOUT");
+        define(LIST_ROOMS, "LIST_ROOMS");
+        define(CREATE_ROOM, "CREATE_ROOM");
+        define(CREATE_AI_ROOM, "CREATE_AI_ROOM");
+        define(JOIN_ROOM, "JOIN_ROOM");
+        define(LEAVE_ROOM, "LEAVE_ROOM");
+        define(MESSAGE, "MESSAGE");
+        define(HISTORY, "HISTORY");
+        define(WHO, "WHO");
+        define(ONLINE, "ONLINE");
+        define(REGISTER_SUCCESS, "REGISTER_SUCCESS");
+        define(REGISTER_FAILURE, "REGISTER_FAILURE");
+        define(LOGIN_SUCCESS, "LOGIN_SUCCESS");
+        define(LOGIN_FAILURE, "LOGIN_FAILURE");
+        define(RECONNECT_SUCCESS, "RECONNECT_SUCCESS");
+        define(RECONNECT_FAILURE, "RECONNECT_FAILURE");
+        define(LOGOUT_SUCCESS, "LOGOUT_SUCCESS");
+        define(ROOMS, "ROOMS");
+        define(ROOM_CREATED, "ROOM_CREATED");
+        define(ROOM_EXISTS, "ROOM_EXISTS");
+        define(JOINED, "JOINED");
+        define(ROOM_NOT_FOUND, "ROOM_NOT_FOUND");
+        define(LEFT_ROOM, "LEFT_ROOM");
+        define(NOT_IN_ROOM, "NOT_IN_ROOM");
+        define(HISTORY_END, "HISTORY_END");
+        define(INVALID_COMMAND, "INVALID_COMMAND");
+        define(UNAUTHENTICATED, "UNAUTHENTICATED");
+        define(UNKNOWN_COMMAND, "UNKNOWN_COMMAND");
+        define(RATE_LIMITED, "RATE_LIMITED");
+        define(SERVER_BUSY, "SERVER_BUSY");
+        define(PRESENCE, "PRESENCE");
+    }
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Register the text keyword of an opcode.
+     */
+    private static void define(byte opcode, String keyword) {
+        KEYWORDS[opcode] = keyword;
+        OPCODES.put(keyword, opcode);
+    }
+
+    /**
+     * Get the text keyword of an opcode.
+     *
+     * @param opcode The opcode
+     * @return The keyword, or null if the opcode is unknown
+     */
+    public static String keyword(int opcode) {
+        return opcode >= 0 && opcode < KEYWORDS.length ? KEYWORDS[opcode] : null;
+    }
+
+    /**
+     * Get the opcode of a text keyword.
+     *
+     * @param keyword The keyword
+     * @return The opcode, or -1 if the keyword has no opcode
+     */
+    public static byte opcode(String keyword) {
+        Byte opcode = OPCODES.get(keyword);
+        return opcode != null ? opcode : -1;
+    }
+
+    /**
+     * Reads frames from a stream into a reused buffer.
+     */
+    public static class FrameReader {
+        private final InputStream in;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        /**
+         * Create a frame reader.
+         *
+         * @param in The stream to read from, ideally buffered
+         */
+        public FrameReader(InputStream in) {
+            this.in = in;
+            this.buffer = new byte[4096];
+        }
+
+        /**
+         * Read the next frame and position the reader at its payload.
+         *
+         * @return The opcode, or -1 at the end of the stream
+         * @throws IOException If the frame cannot be read or is malformed
+         */
+        public int readFrame() throws IOException {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return -1;
+            }
+            int length = (b0 << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (length < 1 || length > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid frame length " + length);
+            }
+
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            if (in.readNBytes(buffer, 0, length) < length) {
+                throw new EOFException("Truncated frame");
+            }
+
+            position = 1;
+            limit = length;
+            return buffer[0] & 0xff;
+        }
+
+        /**
+         * Read a 32-bit integer from the payload.
+         *
+         * @return The integer
+         * @throws IOException If the payload is too short
+         */
+        public int getInt() throws IOException {
+            require(4);
+            int value = ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16)
+                    | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+            position += 4;
+            return value;
+        }
+
+        /**
+         * Read a 64-bit integer from the payload.
+         *
+         * @return The integer
+         * @throws IOException If the payload is too short
+         */
+        public long getLong() throws IOException {
+            long high = getInt() & 0xffffffffL;
+            return (high << 32) | (getInt() & 0xffffffffL);
+        }
+
+        /**
+         * Read a length-prefixed string field from the payload.
+         *
+         * @return The string
+         * @throws IOException If the payload is too short
+         */
+        public String getString() throws IOException {
+            require(2);
+            int length = ((buffer[position] & 0xff) << 8) | (buffer[position + 1] & 0xff);
+            position += 2;
+            require(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        /**
+         * Read the rest of the payload as a string.
+         *
+         * @return The string
+         */
+        public String getRemaining() {
+            String value = new String(buffer, position, limit - position, StandardCharsets.UTF_8);
+            position = limit;
+            return value;
+        }
+
+        /**
+         * Check whether the payload has unread bytes.
+         *
+         * @return true if there is more to read
+         */
+        public boolean hasRemaining() {
+            return position < limit;
+        }
+
+        /**
+         * Read every remaining string field into a text-protocol style array
+         * whose first element is the keyword.
+         *
+         * @param keyword The keyword to put first
+         * @param maxParts The maximum number of elements
+         * @return The parts
+         * @throws IOException If a field is malformed
+         */
+        public String[] getParts(String keyword, int maxParts) throws IOException {
+            String[] parts = new String[Math.min(maxParts, 4)];
+            parts[0] = keyword;
+            int count = 1;
+            while (hasRemaining() && count < maxParts) {
+                if (count == parts.length) {
+                    parts = Arrays.copyOf(parts, Math.min(maxParts, parts.length * 2));
+                }
+                parts[count++] = getString();
+            }
+            return count == parts.length ? parts : Arrays.copyOf(parts, count);
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated frame header");
+            }
+            return b;
+        }
+
+        private void require(int bytes) throws IOException {
+            if (limit - position < bytes) {
+                throw new IOException("Truncated frame payload");
+            }
+        }
+    }
+
+    /**
+     * Writes frames to a stream through a reused buffer. Writers are shared
+     * between the connection thread and broadcasting threads, so every frame
+     * is written under the writer's lock. The lock is a {@link ReentrantLock}
+     * rather than a monitor, so a virtual thread blocked on a slow socket or
+     * a TLS handshake while holding it does not pin its carrier thread.
+     */
+    public static class FrameWriter {
+        private final OutputStream out;
+        private final ReentrantLock lock;
+        private byte[] buffer;
+        private int position;
+
+        /**
+         * Create a frame writer.
+         *
+         * @param out The stream to write to, ideally buffered
+         */
+        public FrameWriter(OutputStream out) {
+            this.out = out;
+            this.lock = new ReentrantLock();
+            this.buffer = new byte[4096];
+        }
+
+        /**
+         * Write a frame whose payload is a sequence of string fields.
+         *
+         * @param opcode The opcode
+         * @param fields The fields
+         * @throws IOException If the frame cannot be written
+         */
+        public void writeFields(byte opcode, String... fields) throws IOException {
+            lock.lock();
+            try {
+                begin(opcode);
+                for (String field : fields) {
+                    putString(field);
+                }
+                end(true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write a {@code JOINED} frame.
+         *
+         * @param roomId The interned room id
+         * @param roomName The room name
+         * @param flush Whether to flush the stream after the frame
+         * @throws IOException If the frame cannot be written
+         */
+        public void writeJoined(int roomId, String roomName, boolean flush) throws IOException {
+            lock.lock();
+            try {
+                begin(JOINED);
+                putInt(roomId);
+                putString(roomName);
+                end(flush);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write a client {@code MESSAGE} frame.
+         *
+         * @param roomId The interned room id
+         * @param content The message content
+         * @throws IOException If the frame cannot be written
+         */
+        public void writeClientMessage(int roomId, String content) throws IOException {
+            lock.lock();
+            try {
+                begin(MESSAGE);
+                putInt(roomId);
+                putUtf8(content);
+                end(true);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write a server {@code MESSAGE} frame.
+         *
+         * @param roomId The interned room id
+         * @param seq The sequence number of the message in its room
+         * @param sender The sender of the message
+         * @param content The message content
+         * @param flush Whether to flush the stream after the frame
+         * @throws IOException If the frame cannot be written
+         */
+        public void writeServerMessage(int roomId, long seq, String sender, String content, boolean flush)
+                throws IOException {
+            lock.lock();
+            try {
+                begin(MESSAGE);
+                putInt(roomId);
+                putLong(seq);
+                putString(sender);
+                putUtf8(content);
+                end(flush);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Flush frames written without flushing.
+         *
+         * @throws IOException If the stream cannot be flushed
+         */
+        public void flush() throws IOException {
+            lock.lock();
+            try {
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Write the frame header placeholder and the opcode.
+         */
+        private void begin(byte opcode) {
+            position = 4;
+            ensure(1);
+            buffer[position++] = opcode;
+        }
+
+        /**
+         * Fill in the frame length and write the frame.
+         */
+        private void end(boolean flush) throws IOException {
+            int length = position - 4;
+            if (length > MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large: " + length);
+            }
+            buffer[0] = (byte) (length >>> 24);
+            buffer[1] = (byte) (length >>> 16);
+            buffer[2] = (byte) (length >>> 8);
+            buffer[3] = (byte) length;
+            out.write(buffer, 0, position);
+            if (flush) {
+                out.flush();
+            }
+        }
+
+        private void putInt(int value) {
+            ensure(4);
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+
+        private void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        /**
+         * Write a string as a length-prefixed field.
+         */
+        private void putString(String value) {
+            ensure(2);
+            int lengthPosition = position;
+            position += 2;
+            int length = putUtf8(value);
+            if (length > 0xffff) {
+                throw new IllegalArgumentException("Field too long: " + length + " bytes");
+            }
+            buffer[lengthPosition] = (byte) (length >>> 8);
+            buffer[lengthPosition + 1] = (byte) length;
+        }
+
+        /**
+         * Encode a string as UTF-8 straight into the buffer.
+         *
+         * @return The number of bytes written
+         */
+        private int putUtf8(String value) {
+            int start = position;
+            ensure(value.length() * 3);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[position++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | (c >> 6));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    buffer[position++] = (byte) '?';
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (c >> 12));
+                    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return position - start;
+        }
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(position + bytes, buffer.length * 2));
+            }
+        }
+    }
+}
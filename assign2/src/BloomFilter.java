@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over strings. {@link #mightContain(String)} never misses a
+ * string that was added, and wrongly reports a string that was not at
+ * roughly the false positive rate the filter was sized for, as long as no
+ * more than the expected number of strings are added.
+ *
+ * Bits are set with a compare-and-set, so adding and checking need no lock.
+ * The bit positions come from two 64-bit hashes of the string combined as
+ * {@code h1 + i * h2}, which behaves like independent hash functions.
+ */
+public class BloomFilter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final int capacity;
+
+    /**
+     * Create an empty filter.
+     *
+     * @param capacity The number of strings expected to be added
+     * @param falsePositiveRate The rate of false positives at that number
+     */
+    public BloomFilter(int capacity, double falsePositiveRate) {
+        int expected = Math.max(1, capacity);
+        long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (optimalBits + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+        this.capacity = expected;
+    }
+
+    /**
+     * Get the number of strings the filter was sized for.
+     *
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Add a string.
+     *
+     * @param value The string
+     */
+    public void add(String value) {
+        long h1 = hash(value, FNV_OFFSET);
+        long h2 = hash(value, h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0) {
+                long witness = bits.compareAndExchange(word, current, current | mask);
+                if (witness == current) {
+                    break;
+                }
+                current = witness;
+            }
+        }
+    }
+
+    /**
+     * Check whether a string may have been added.
+     *
+     * @param value The string
+     * @return false if the string was certainly never added
+     */
+    public boolean mightContain(String value) {
+        long h1 = hash(value, FNV_OFFSET);
+        long h2 = hash(value, h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash a string with FNV-1a over its characters, finished with the
+     * MurmurHash3 mixer so every output bit depends on every input bit.
+     *
+     * @param value The string
+     * @param seed The initial hash value
+     * @return The hash
+     */
+    private static long hash(String value, long seed) {
+        long h = seed;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
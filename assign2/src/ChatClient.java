@@ -1,8 +1,13 @@
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -13,22 +18,34 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * Client for the chat application. Handles connection to the server and
  * provides methods for authentication and messaging. Supports automatic
- * reconnection with token-based authentication.
+ * reconnection with token-based authentication, moving on to the next
+ * known server when the current one cannot be reached, so a client of a
+ * cluster resumes its session on another node. The client remembers the
+ * sequence number of the last message it received in its room, so the
+ * server sends it the messages it missed when it reconnects. Can use either
+ * the text protocol or the compact {@link BinaryProtocol}.
  */
 public class ChatClient {
 
     private String host;
     private int port;
+    private final List<InetSocketAddress> servers;
+    private int serverIndex;
     private SSLSocket socket;
     private SSLSocketFactory sslSocketFactory;
     private PrintWriter out;
     private BufferedReader in;
+    private final boolean binaryProtocol;
+    private BinaryProtocol.FrameWriter frameWriter;
+    private String[] roomNamesById;
+    private int currentRoomId;
     private MessageListener listener;
     private Thread listenerThread;
     private boolean connected;
     private boolean authenticated;
     private String username;
     private String currentRoom;
+    private volatile long lastSeq;
     private final ReentrantLock lock;
 
     private final List<ChatClientListener> listeners;
@@ -45,16 +62,57 @@ public class ChatClient {
      * @param port The server port
      */
     public ChatClient(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * Create a new chat client.
+     *
+     * @param host The server host
+     * @param port The server port
+     * @param binaryProtocol Whether to negotiate the binary protocol
+     */
+    public ChatClient(String host, int port, boolean binaryProtocol) {
         this.host = host;
         this.port = port;
+        this.servers = new ArrayList<>();
+        this.servers.add(InetSocketAddress.createUnresolved(host, port));
+        this.binaryProtocol = binaryProtocol;
+        this.roomNamesById = new String[16];
+        this.currentRoomId = -1;
         this.connected = false;
         this.authenticated = false;
         this.currentRoom = null;
+        this.lastSeq = -1;
         this.authToken = null;
         this.lock = new ReentrantLock();
         this.listeners = new ArrayList<>();
     }
 
+    /**
+     * Add a server to fall back to when the current one cannot be reached,
+     * such as another node of the same cluster.
+     *
+     * @param host The server host
+     * @param port The server port
+     */
+    public void addFallbackServer(String host, int port) {
+        servers.add(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    /**
+     * Move on to the next known server, if there is more than one.
+     */
+    private void switchServer() {
+        if (servers.size() < 2) {
+            return;
+        }
+        serverIndex = (serverIndex + 1) % servers.size();
+        host = servers.get(serverIndex).getHostString();
+        port = servers.get(serverIndex).getPort();
+        System.out.println("Trying server " + host + ":" + port);
+    }
+
     /**
      * Connect to the server.
      *
@@ -62,20 +120,7 @@ public class ChatClient {
      */
     public boolean connect() {
         try {
-            System.setProperty("javax.net.ssl.trustStore", "truststore.jks");
-            System.setProperty("javax.net.ssl.trustStorePassword", "password");
-
-            sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Start message listener
-            listener = new MessageListener(this, in);
-            listenerThread = Thread.startVirtualThread(listener);
-
-            connected = true;
+            openConnection();
 
             if (authToken != null) {
                 attemptReconnection();
@@ -155,6 +200,7 @@ public class ChatClient {
                     return;
                 }
 
+                switchServer();
                 delay = Math.min(delay * 2, 30000);
                 delay += (int) (Math.random() * 1000);
 
@@ -178,20 +224,7 @@ public class ChatClient {
         try {
             closeResources();
 
-            System.setProperty("javax.net.ssl.trustStore", "truststore.jks");
-            System.setProperty("javax.net.ssl.trustStorePassword", "password");
-
-            sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
-
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Start new message listener
-            listener = new MessageListener(this, in);
-            listenerThread = Thread.startVirtualThread(listener);
-
-            connected = true;
+            openConnection();
 
             if (authToken != null) {
                 return attemptReconnection();
@@ -205,6 +238,65 @@ public class ChatClient {
         }
     }
 
+    /**
+     * Open the socket, negotiate the binary protocol if requested and start
+     * the message listener. Connections share the client TLS context, so a
+     * reconnect resumes the previous TLS session instead of doing a full
+     * handshake.
+     *
+     * @throws IOException If the connection or the handshake fails
+     */
+    private void openConnection() throws IOException {
+        if (sslSocketFactory == null) {
+            sslSocketFactory = TlsContexts.clientContext().getSocketFactory();
+        }
+        socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
+
+        if (binaryProtocol) {
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            output.write(new byte[]{(byte) BinaryProtocol.MAGIC, (byte) BinaryProtocol.VERSION});
+            output.flush();
+
+            if (input.read() != BinaryProtocol.MAGIC || input.read() != BinaryProtocol.VERSION) {
+                socket.close();
+                throw new IOException("Server does not support the binary protocol");
+            }
+
+            frameWriter = new BinaryProtocol.FrameWriter(output);
+            listener = new MessageListener(this, new BinaryProtocol.FrameReader(input));
+        } else {
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            listener = new MessageListener(this, in);
+        }
+
+        // Start message listener
+        listenerThread = Thread.startVirtualThread(listener);
+
+        connected = true;
+    }
+
+    /**
+     * Send a command to the server.
+     *
+     * @param command The command keyword
+     * @param arguments The command arguments
+     */
+    private void sendCommand(String command, String... arguments) {
+        if (binaryProtocol) {
+            try {
+                frameWriter.writeFields(BinaryProtocol.opcode(command), arguments);
+            } catch (IOException e) {
+                System.err.println("Error sending command: " + e.getMessage());
+            }
+        } else if (arguments.length == 0) {
+            out.println(command);
+        } else {
+            out.println(command + " " + String.join(" ", arguments));
+        }
+    }
+
     /**
      * Attempt to restore session using authentication token.
      *
@@ -215,7 +307,11 @@ public class ChatClient {
             return false;
         }
 
-        out.println("RECONNECT " + authToken);
+        if (currentRoom != null && lastSeq >= 0) {
+            sendCommand("RECONNECT", authToken, Long.toString(lastSeq));
+        } else {
+            sendCommand("RECONNECT", authToken);
+        }
 
         long startTime = System.currentTimeMillis();
         long timeout = 5000;
@@ -284,7 +380,7 @@ public class ChatClient {
         if (!connected) {
             return false;
         }
-        out.println("REGISTER " + username + " " + password);
+        sendCommand("REGISTER", username, password);
 
         return true;
     }
@@ -302,7 +398,7 @@ public class ChatClient {
         }
 
         this.username = username;
-        out.println("LOGIN " + username + " " + password);
+        sendCommand("LOGIN", username, password);
 
         return true;
     }
@@ -312,7 +408,7 @@ public class ChatClient {
      */
     public void logout() {
         if (connected && authenticated) {
-            out.println("LOGOUT");
+            sendCommand("LOGOUT");
         }
     }
 
@@ -321,7 +417,7 @@ public class ChatClient {
      */
     public void requestRoomList() {
         if (connected && authenticated) {
-            out.println("LIST_ROOMS");
+            sendCommand("LIST_ROOMS");
         }
     }
 
@@ -332,7 +428,7 @@ public class ChatClient {
      */
     public void createRoom(String roomName) {
         if (connected && authenticated) {
-            out.println("CREATE_ROOM " + roomName);
+            sendCommand("CREATE_ROOM", roomName);
         }
     }
 
@@ -344,7 +440,7 @@ public class ChatClient {
      */
     public void createAiRoom(String roomName, String prompt) {
         if (connected && authenticated) {
-            out.println("CREATE_AI_ROOM " + roomName + " " + prompt);
+            sendCommand("CREATE_AI_ROOM", roomName, prompt);
         }
     }
 
@@ -355,7 +451,7 @@ public class ChatClient {
      */
     public void joinRoom(String roomName) {
         if (connected && authenticated) {
-            out.println("JOIN_ROOM " + roomName);
+            sendCommand("JOIN_ROOM", roomName);
         }
     }
 
@@ -364,7 +460,7 @@ public class ChatClient {
      */
     public void leaveRoom() {
         if (connected && authenticated && currentRoom != null) {
-            out.println("LEAVE_ROOM");
+            sendCommand("LEAVE_ROOM");
         }
     }
 
@@ -376,12 +472,95 @@ public class ChatClient {
      */
     public boolean sendMessage(String message) {
         if (connected && authenticated && currentRoom != null) {
-            out.println("MESSAGE " + currentRoom + " " + message);
+            if (binaryProtocol) {
+                try {
+                    frameWriter.writeClientMessage(currentRoomId, message);
+                } catch (IOException e) {
+                    System.err.println("Error sending message: " + e.getMessage());
+                    return false;
+                }
+            } else {
+                out.println("MESSAGE " + currentRoom + " " + message);
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Request the most recent messages of the current room. They are
+     * delivered as regular room messages.
+     *
+     * @param count The maximum number of messages to fetch
+     */
+    public void requestHistory(int count) {
+        if (connected && authenticated && currentRoom != null) {
+            sendCommand("HISTORY", currentRoom, Integer.toString(count));
+        }
+    }
+
+    /**
+     * Handle a binary frame from the server. Messages are decoded straight
+     * from the frame; other responses are mapped onto their text form.
+     *
+     * @param opcode The frame opcode
+     * @param reader The reader, positioned at the frame payload
+     * @throws IOException If the frame is malformed
+     */
+    void handleServerFrame(int opcode, BinaryProtocol.FrameReader reader) throws IOException {
+        if (opcode == BinaryProtocol.MESSAGE) {
+            int roomId = reader.getInt();
+            String roomName = roomId >= 0 && roomId < roomNamesById.length ? roomNamesById[roomId] : null;
+            long seq = reader.getLong();
+            String messageSender = reader.getString();
+            String messageContent = reader.getRemaining();
+            if (roomName != null) {
+                updateLastSeq(roomName, seq);
+                if (!messageSender.equals("SYSTEM")) {
+                    messageContent = messageSender + ": " + messageContent;
+                }
+                notifyListeners(ClientEvent.MESSAGE_RECEIVED, new String[]{roomName, messageContent});
+            }
+            return;
+        }
+
+        if (opcode == BinaryProtocol.JOINED) {
+            int roomId = reader.getInt();
+            String roomName = reader.getString();
+            if (roomId >= roomNamesById.length) {
+                roomNamesById = Arrays.copyOf(roomNamesById, Math.max(roomId + 1, roomNamesById.length * 2));
+            }
+            roomNamesById[roomId] = roomName;
+            currentRoomId = roomId;
+            handleServerMessage("JOINED " + roomName);
+            return;
+        }
+
+        String keyword = BinaryProtocol.keyword(opcode);
+        if (keyword != null) {
+            String[] parts = reader.getParts(keyword, Integer.MAX_VALUE);
+            handleServerMessage(String.join(" ", parts));
+        }
+    }
+
+    /**
+     * Remember the sequence number of a message received in the current
+     * room, to report it when reconnecting.
+     *
+     * @param roomName The room the message is from
+     * @param seq The sequence number of the message
+     */
+    private void updateLastSeq(String roomName, long seq) {
+        lock.lock();
+        try {
+            if (roomName.equals(currentRoom) && seq > lastSeq) {
+                lastSeq = seq;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Handle a message from the server.
      *
@@ -476,6 +655,9 @@ public class ChatClient {
                 if (parts.length > 1) {
                     lock.lock();
                     try {
+                        if (!parts[1].equals(currentRoom)) {
+                            lastSeq = -1;
+                        }
                         currentRoom = parts[1];
                     } finally {
                         lock.unlock();
@@ -502,12 +684,25 @@ public class ChatClient {
                 }
                 break;
 
+            case "RATE_LIMITED":
+                notifyListeners(ClientEvent.RATE_LIMITED, parts.length > 1 ? parts[1] : null);
+                break;
+
+            case "SERVER_BUSY":
+                notifyListeners(ClientEvent.SERVER_BUSY, null);
+                break;
+
             case "MESSAGE":
-                if (parts.length > 3) {
-                    String[] messageParts = message.split(" ", 4);
+                if (parts.length > 4) {
+                    String[] messageParts = message.split(" ", 5);
                     String roomName = messageParts[1];
-                    String messageSender = messageParts[2];
-                    String messageContent = messageParts[3];
+                    String messageSender = messageParts[3];
+                    String messageContent = messageParts[4];
+                    try {
+                        updateLastSeq(roomName, Long.parseLong(messageParts[2]));
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
                     if (!messageSender.equals("SYSTEM")) {
                         messageContent = messageSender + ": " + messageContent;
                     }
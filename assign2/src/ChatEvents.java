@@ -0,0 +1,111 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for the hot paths of the server. They show up
+ * under the "Chat" category of a recording started with
+ * {@code -XX:StartFlightRecording} or {@code jcmd <pid> JFR.start}.
+ *
+ * Callers follow the usual pattern: create the event, {@code begin()}, do the
+ * work, {@code end()}, and only fill in the fields and {@code commit()} if
+ * {@code shouldCommit()} says the event is enabled and over its threshold.
+ * When recording is off the JIT removes the event entirely. Thresholds can be
+ * changed per recording, for example
+ * {@code jfr configure chat.Command#threshold=0ms}.
+ */
+public final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    /**
+     * A message fanned out to the members of a room.
+     */
+    @Name("chat.Broadcast")
+    @Label("Room Broadcast")
+    @Category("Chat")
+    @Description("A message delivered to every member of a room")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Broadcast extends Event {
+        @Label("Room")
+        public String room;
+
+        @Label("Fan-out")
+        @Description("Number of members the message was sent to")
+        public int fanOut;
+    }
+
+    /**
+     * A client command handled by a connection.
+     */
+    @Name("chat.Command")
+    @Label("Client Command")
+    @Category("Chat")
+    @Description("A command received from a client and handled by the server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Command extends Event {
+        @Label("Command")
+        public String command;
+    }
+
+    /**
+     * A password check.
+     */
+    @Name("chat.Authentication")
+    @Label("Authentication")
+    @Category("Chat")
+    @Description("A username and password checked against the stored hash")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class Authentication extends Event {
+        @Label("Username")
+        public String username;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    /**
+     * A session token lookup.
+     */
+    @Name("chat.TokenValidation")
+    @Label("Token Validation")
+    @Category("Chat")
+    @Description("A session token looked up on reconnect")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static final class TokenValidation extends Event {
+        @Label("Username")
+        @Description("The owner of the token, or null if the token was invalid")
+        public String username;
+    }
+
+    /**
+     * A request to the AI model of an AI room.
+     */
+    @Name("chat.AiRequest")
+    @Label("AI Request")
+    @Category("Chat")
+    @Description("A prompt sent to the AI model and its response")
+    @Threshold("0 ms")
+    public static final class AiRequest extends Event {
+        @Label("Model")
+        public String model;
+
+        @Label("Prompt Size")
+        @DataAmount
+        public long promptBytes;
+
+        @Label("Status")
+        @Description("HTTP status of the response, or 0 if the request failed")
+        public int status;
+    }
+}
@@ -1,5 +1,10 @@
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -11,13 +16,26 @@ import javax.net.ssl.*;
  */
 public class ChatServer {
 
+    private static final long ROOM_IDLE_TTL_MINUTES = Long.getLong("chat.roomIdleTtlMinutes", 30);
+    private static final int METRICS_PORT = Integer.getInteger("chat.metricsPort", 9464);
+    private static final String TOKEN_MODE = System.getProperty("chat.tokenMode", "stored");
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 1024);
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
     private boolean running;
     private final int port;
     private final AuthenticationService authService;
     private final RoomManager roomManager;
+    private final TimingWheel timingWheel;
     private final TokenService tokenService;
     private final SessionManager sessionManager;
+    private final ServerStateStore stateStore;
+    private final SessionStore sessionStore;
+    private final Cluster cluster;
+    private final AdmissionController admissionController;
+    private final RateLimiter rateLimiter;
     private final ScheduledExecutorService scheduler;
+    private volatile MetricsServer metricsServer;
 
     /**
      * Create a new chat server listening on the specified port.
@@ -26,20 +44,272 @@ public class ChatServer {
      */
     public ChatServer(int port) {
         this.port = port;
-        this.authService = new AuthenticationService();
-        this.roomManager = new RoomManager();
-        this.tokenService = new TokenService();
-        this.sessionManager = new SessionManager();
+        this.stateStore = openStateStore();
+        this.sessionStore = openSessionStore();
+        this.cluster = Cluster.fromProperties();
+        this.authService = new AuthenticationService(openUserDirectory());
+        this.roomManager = cluster != null ? new ClusterRoomManager(new MessageStore(), stateStore, cluster)
+                : new RoomManager(new MessageStore(), stateStore);
+        this.roomManager.open();
+        this.timingWheel = new TimingWheel();
+        this.tokenService = createTokenService(sessionStore, timingWheel);
+        this.sessionManager = new SessionManager(sessionStore, timingWheel);
+        this.admissionController = new AdmissionController();
+        this.rateLimiter = new RateLimiter();
         this.scheduler = Executors.newScheduledThreadPool(1);
         this.running = false;
 
+        recoverState();
+
         this.roomManager.createRoom("library");
         this.roomManager.createRoom("cpd");
         this.roomManager.createRoom("ia");
         this.roomManager.createRoom("cg");
         this.roomManager.createRoom("compiladores");
 
-        this.scheduler.scheduleAtFixedRate(this.tokenService::cleanupExpiredTokens, 1, 1, TimeUnit.HOURS);
+        this.scheduler.scheduleWithFixedDelay(this.timingWheel::advance, timingWheel.getTickMillis(),
+                timingWheel.getTickMillis(), TimeUnit.MILLISECONDS);
+        this.sessionManager.setExpiryListener(this::sessionExpired);
+        PresenceService presence = this.sessionManager.getPresence();
+        presence.setChangeListener(this.roomManager::announcePresence);
+        this.scheduler.scheduleWithFixedDelay(presence::flush, presence.getFlushMillis(), presence.getFlushMillis(),
+                TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::evictIdleRooms, 1, 1, TimeUnit.MINUTES);
+        this.scheduler.scheduleWithFixedDelay(this.rateLimiter::evictIdle, 1, 1, TimeUnit.MINUTES);
+        if (this.tokenService instanceof SignedTokenService signedTokens) {
+            this.scheduler.scheduleWithFixedDelay(signedTokens::reloadKeys, 1, 1, TimeUnit.MINUTES);
+        }
+
+        registerMetrics();
+    }
+
+    /**
+     * Add gauges for the state owned by the server's components to the
+     * metrics registry.
+     */
+    private void registerMetrics() {
+        Metrics.REGISTRY.gauge("chat_sessions", "User sessions, including disconnected ones that can be resumed",
+                sessionManager::getSessionCount);
+        PresenceService presence = sessionManager.getPresence();
+        Metrics.REGISTRY.gauge("chat_users_online", "Connected users that sent a command recently",
+                () -> presence.getCount(PresenceService.Status.ONLINE));
+        Metrics.REGISTRY.gauge("chat_users_idle", "Connected users that have been quiet for the idle time",
+                () -> presence.getCount(PresenceService.Status.IDLE));
+        Metrics.REGISTRY.gauge("chat_users_away", "Disconnected users whose sessions can still be resumed",
+                () -> presence.getCount(PresenceService.Status.AWAY));
+        Metrics.REGISTRY.gauge("chat_rooms_loaded", "Rooms held in memory", roomManager::getLoadedRoomCount);
+        Metrics.REGISTRY.gauge("chat_rooms", "Rooms, including evicted ones", roomManager::getRoomCount);
+        if (tokenService instanceof SignedTokenService signedTokens) {
+            Metrics.REGISTRY.gauge("chat_tokens_revoked", "Revoked signed tokens that have not expired",
+                    signedTokens::getDeniedCount);
+        }
+        Metrics.REGISTRY.gauge("chat_timeouts", "Scheduled token and session expiries", timingWheel::size);
+        Metrics.REGISTRY.gauge("chat_password_hash_queue", "Password hashing requests waiting for a thread",
+                authService::getHashQueueLength);
+        Metrics.REGISTRY.gauge("chat_auth_cache_entries", "Recently verified passwords in the credential cache",
+                authService::getCredentialCacheSize);
+        if (cluster != null) {
+            Metrics.REGISTRY.gauge("chat_cluster_peers_connected", "Cluster nodes this node is connected to",
+                    cluster::getConnectedPeerCount);
+        }
+        Metrics.REGISTRY.register(out -> {
+            MetricsRegistry.writeHeader(out, "chat_commands_total", "counter", "Commands handled");
+            for (CommandRegistry.Command<ClientHandler> command : ClientHandler.getCommands()) {
+                MetricsRegistry.writeSample(out, "chat_commands_total", "command", command.getName(),
+                        command.getInvocations());
+            }
+            MetricsRegistry.writeHeader(out, "chat_command_duration_seconds_total", "counter",
+                    "Time spent handling commands");
+            for (CommandRegistry.Command<ClientHandler> command : ClientHandler.getCommands()) {
+                MetricsRegistry.writeSample(out, "chat_command_duration_seconds_total", "command", command.getName(),
+                        command.getTotalNanos() / 1e9);
+            }
+        });
+    }
+
+    /**
+     * Start the local metrics endpoint, unless it is disabled with a
+     * negative port.
+     */
+    private void startMetricsServer() {
+        if (METRICS_PORT < 0) {
+            return;
+        }
+        try {
+            metricsServer = new MetricsServer(Metrics.REGISTRY, METRICS_PORT);
+            metricsServer.start();
+            ServerLog.info("Metrics endpoint started", "url", "http://localhost:" + metricsServer.getPort() + "/metrics");
+        } catch (IOException e) {
+            ServerLog.error("Could not start metrics endpoint", "port", METRICS_PORT, "error", e);
+        }
+    }
+
+    /**
+     * Join the cluster, if one is configured, and share new registrations,
+     * tokens and sessions with the other nodes.
+     */
+    private void startCluster() {
+        if (cluster == null) {
+            return;
+        }
+        try {
+            cluster.start((ClusterRoomManager) roomManager, authService, tokenService, sessionManager);
+            authService.setRegistrationListener(cluster::broadcastUser);
+            tokenService.setChangeListener(cluster.getStateBroadcaster());
+            sessionManager.setChangeListener(cluster.getStateBroadcaster());
+        } catch (IOException e) {
+            ServerLog.error("Could not start cluster node", "node", cluster.getNodeId(), "error", e);
+        }
+    }
+
+    /**
+     * Open the state store.
+     *
+     * @return The state store, or null if state cannot be persisted
+     */
+    private static ServerStateStore openStateStore() {
+        try {
+            return new ServerStateStore();
+        } catch (IOException e) {
+            ServerLog.error("Could not open state store, state will not be persisted", "error", e);
+            return null;
+        }
+    }
+
+    /**
+     * Open the session store.
+     *
+     * @return The session store, or null if tokens and sessions cannot be
+     * persisted
+     */
+    private static SessionStore openSessionStore() {
+        try {
+            return new SessionStore();
+        } catch (IOException e) {
+            ServerLog.error("Could not open session store, sessions will not be persisted", "error", e);
+            return null;
+        }
+    }
+
+    /**
+     * Create the token service for the configured token mode:
+     * {@code stored} (the default) or {@code signed}.
+     *
+     * @param sessionStore The session store, or null
+     * @param timingWheel The timing wheel expiring tokens
+     * @return The token service
+     */
+    private static TokenService createTokenService(SessionStore sessionStore, TimingWheel timingWheel) {
+        if ("signed".equals(TOKEN_MODE)) {
+            try {
+                return new SignedTokenService(sessionStore, timingWheel);
+            } catch (IOException e) {
+                ServerLog.error("Could not load token keyring, using stored tokens", "error", e);
+            }
+        }
+        return new StoredTokenService(sessionStore, timingWheel);
+    }
+
+    /**
+     * Open the user directory chosen by {@code chat.userDirectory}: the
+     * in-memory directory ({@code memory}, the default) or the on-disk
+     * index ({@code indexed}). An empty index is seeded with the users of
+     * the in-memory directory's store.
+     *
+     * @return The user directory, kept in memory only if it cannot be opened
+     */
+    private static UserDirectory openUserDirectory() {
+        String backend = System.getProperty("chat.userDirectory", "memory");
+        try {
+            if (backend.equals("indexed")) {
+                IndexedUserDirectory directory = IndexedUserDirectory.open();
+                if (directory.getUserCount() == 0) {
+                    importUserStore(directory);
+                }
+                return directory;
+            }
+            if (!backend.equals("memory")) {
+                ServerLog.warn("Unknown user directory, using memory", "userDirectory", backend);
+            }
+            return MemoryUserDirectory.open(new UserStore());
+        } catch (IOException e) {
+            ServerLog.error("Could not open user directory, users will not be persisted", "error", e);
+            return new MemoryUserDirectory();
+        }
+    }
+
+    /**
+     * Import the users of an existing user store into a new user directory.
+     *
+     * @param directory The user directory
+     * @throws IOException If the user store cannot be read
+     */
+    private static void importUserStore(UserDirectory directory) throws IOException {
+        Path storeDirectory = Paths.get(System.getProperty("chat.dataDir", "data"), "users");
+        if (!Files.isDirectory(storeDirectory)) {
+            return;
+        }
+        Map<String, String> users = new HashMap<>();
+        UserStore userStore = new UserStore(storeDirectory);
+        try {
+            userStore.open(users::put, consumer -> users.forEach(consumer));
+        } finally {
+            userStore.close();
+        }
+        if (!users.isEmpty()) {
+            directory.importUsers(users);
+            ServerLog.info("Imported users from user store", "users", users.size());
+        }
+    }
+
+    /**
+     * Replay the persisted rooms, tokens and sessions into the services, then
+     * start recording new changes.
+     */
+    private void recoverState() {
+        if (stateStore != null) {
+            try {
+                stateStore.open(new Recovery(), roomManager::writeSnapshot);
+            } catch (IOException e) {
+                ServerLog.error("Error recovering server state", "error", e);
+            }
+        }
+
+        if (sessionStore != null) {
+            try {
+                sessionStore.open(new Recovery(), visitor -> {
+                    tokenService.writeSnapshot(visitor);
+                    sessionManager.writeSnapshot(visitor);
+                });
+            } catch (IOException e) {
+                ServerLog.error("Error recovering sessions", "error", e);
+            }
+        }
+    }
+
+    /**
+     * Take the user of an expired session out of the room it was left in.
+     *
+     * @param session The expired session
+     */
+    private void sessionExpired(SessionManager.UserSession session) {
+        String room = session.getCurrentRoom();
+        ClientHandler handler = session.getClientHandler();
+        if (room != null && handler != null) {
+            roomManager.removeUserFromRoom(room, handler);
+        }
+        ServerLog.info("Session expired", "user", session.getUsername());
+    }
+
+    /**
+     * Evict rooms that have been empty and idle for longer than the
+     * configured TTL.
+     */
+    private void evictIdleRooms() {
+        int evicted = roomManager.evictIdleRooms(TimeUnit.MINUTES.toMillis(ROOM_IDLE_TTL_MINUTES));
+        if (evicted > 0) {
+            ServerLog.info("Evicted idle rooms", "count", evicted);
+        }
     }
 
     /**
@@ -47,29 +317,36 @@ public class ChatServer {
      */
     public void start() {
         running = true;
-        System.setProperty("javax.net.ssl.keyStore", "keystore.jks");
-        System.setProperty("javax.net.ssl.keyStorePassword", "password");
 
-        SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+        SSLServerSocketFactory sslServerSocketFactory;
+        try {
+            sslServerSocketFactory = TlsContexts.serverContext().getServerSocketFactory();
+        } catch (IOException e) {
+            ServerLog.error("Could not load server key store", "error", e);
+            scheduler.shutdown();
+            return;
+        }
 
-        try (SSLServerSocket serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(port)) {
-            System.out.println("Server started on port " + port);
+        try (SSLServerSocket serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(port,
+                ACCEPT_BACKLOG)) {
+            ServerLog.info("Server started", "port", port);
+            startMetricsServer();
+            startCluster();
 
             while (running) {
                 try {
                     SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                    System.out.println("New client connected: "
-                            + clientSocket.getInetAddress().getHostAddress()
-                            + ":" + clientSocket.getPort());
+                    ServerLog.info("New client connected", "address", clientSocket.getInetAddress().getHostAddress(),
+                            "port", clientSocket.getPort());
 
                     Thread.startVirtualThread(() -> handleClient(clientSocket));
 
                 } catch (IOException e) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
+                    ServerLog.error("Error accepting client connection", "error", e);
                 }
             }
         } catch (IOException e) {
-            System.err.println("Could not start server: " + e.getMessage());
+            ServerLog.error("Could not start server", "error", e);
         } finally {
             scheduler.shutdown();
         }
@@ -81,15 +358,36 @@ public class ChatServer {
      * @param clientSocket The socket for the client connection
      */
     private void handleClient(SSLSocket clientSocket) {
+        AdmissionController.Decision decision = admissionController.tryAdmit(clientSocket.getInetAddress());
+        if (decision != AdmissionController.Decision.ADMITTED) {
+            Metrics.CONNECTIONS_REJECTED.labels(decision.getReason()).increment();
+            ServerLog.warn("Rejected client connection", "address", clientSocket.getInetAddress().getHostAddress(),
+                    "reason", decision.getReason());
+            ClientHandler.rejectBusy(clientSocket);
+            return;
+        }
+
+        Metrics.CONNECTIONS_TOTAL.increment();
+        Metrics.CONNECTIONS_ACTIVE.increment();
         try {
-            ClientHandler handler = new ClientHandler(clientSocket, authService, roomManager, tokenService, sessionManager);
+            long handshakeStart = System.nanoTime();
+            clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            clientSocket.startHandshake();
+            clientSocket.setSoTimeout(0);
+            Metrics.TLS_HANDSHAKE_DURATION.recordSince(handshakeStart);
+
+            ClientHandler handler = new ClientHandler(clientSocket, authService, roomManager, tokenService, sessionManager,
+                    rateLimiter);
             handler.handle();
         } catch (Exception e) {
-            System.err.println("Error handling client: " + e.getMessage());
+            ServerLog.error("Error handling client", "error", e);
             try {
                 clientSocket.close();
             } catch (IOException ex) {
             }
+        } finally {
+            Metrics.CONNECTIONS_ACTIVE.decrement();
+            admissionController.release(clientSocket.getInetAddress());
         }
     }
 
@@ -99,6 +397,35 @@ public class ChatServer {
     public void stop() {
         running = false;
         scheduler.shutdownNow();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        roomManager.close();
+        if (stateStore != null) {
+            stateStore.close();
+        }
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
+        authService.close();
+        logCommandStats();
+        ServerLog.shutdown();
+    }
+
+    /**
+     * Log the invocation count and latency of every command that has run.
+     */
+    private static void logCommandStats() {
+        for (CommandRegistry.Command<ClientHandler> command : ClientHandler.getCommands()) {
+            long count = command.getInvocations();
+            if (count > 0) {
+                ServerLog.info("Command latency", "command", command.getName(), "count", count,
+                        "avgMicros", command.getTotalNanos() / 1000 / count, "maxMicros", command.getMaxNanos() / 1000);
+            }
+        }
     }
 
     /**
@@ -122,10 +449,57 @@ public class ChatServer {
         ChatServer server = new ChatServer(port);
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutting down server...");
+            ServerLog.info("Shutting down server");
             server.stop();
         }));
 
         server.start();
     }
+
+    /**
+     * Visitor applying the rooms replayed from the state store and the
+     * tokens and sessions replayed from the session store to the services.
+     */
+    private class Recovery implements StateVisitor {
+
+        @Override
+        public void user(String username, String passwordHash) {
+            // Neither store holds users
+        }
+
+        @Override
+        public void room(String name, String prompt) {
+            roomManager.restoreRoom(name, prompt);
+        }
+
+        @Override
+        public void roomRemoved(String name) {
+            roomManager.restoreRoomRemoval(name);
+        }
+
+        @Override
+        public void token(String tokenHash, String username, long expiryMillis) {
+            tokenService.restoreToken(tokenHash, username, expiryMillis);
+        }
+
+        @Override
+        public void tokenRevoked(String tokenHash) {
+            tokenService.restoreRevocation(tokenHash);
+        }
+
+        @Override
+        public void tokenIdRevoked(long tokenId, long expiryMillis) {
+            tokenService.restoreRevocation(tokenId, expiryMillis);
+        }
+
+        @Override
+        public void session(String sessionId, String username, String currentRoom) {
+            sessionManager.restoreSession(sessionId, username, currentRoom);
+        }
+
+        @Override
+        public void sessionRemoved(String sessionId) {
+            sessionManager.restoreSessionRemoval(sessionId);
+        }
+    }
 }
@@ -1,4 +1,6 @@
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -30,9 +32,31 @@ public class ClientConsoleUI implements ChatClientListener {
      *
      * @param host The server host
      * @param port The server port
+     * @param binaryProtocol Whether to use the binary protocol
      */
-    public ClientConsoleUI(String host, int port) {
-        this.client = new ChatClient(host, port);
+    public ClientConsoleUI(String host, int port, boolean binaryProtocol) {
+        this(host, port, binaryProtocol, List.of());
+    }
+
+    /**
+     * Create a new console UI that falls back to other servers, such as the
+     * other nodes of a cluster, when the connection is lost.
+     *
+     * @param host The server host
+     * @param port The server port
+     * @param binaryProtocol Whether to use the binary protocol
+     * @param fallbackServers The other servers, as {@code <host>:<port>}
+     */
+    public ClientConsoleUI(String host, int port, boolean binaryProtocol, List<String> fallbackServers) {
+        this.client = new ChatClient(host, port, binaryProtocol);
+        for (String server : fallbackServers) {
+            int colon = server.lastIndexOf(':');
+            try {
+                this.client.addFallbackServer(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                System.err.println("Invalid server " + server + ", expected <host>:<port>. Ignoring it.");
+            }
+        }
         this.scanner = new Scanner(System.in);
         this.client.addListener(this);
         this.running = false;
@@ -388,6 +412,14 @@ public class ClientConsoleUI implements ChatClientListener {
                 System.out.println("Room not found: " + data);
                 break;
 
+            case RATE_LIMITED:
+                System.out.println("Slow down, request dropped: " + data);
+                break;
+
+            case SERVER_BUSY:
+                System.out.println("Server is busy, try again later.");
+                break;
+
             case ROOM_JOINED:
                 System.out.println("Joined room: " + data);
                 if (joinRoomLatch != null) {
@@ -423,7 +455,7 @@ public class ClientConsoleUI implements ChatClientListener {
      * @param args Command line arguments
      */
     public static void main(String[] args) {
-        // java ClientConsoleUI [<host>] [<port>]
+        // java ClientConsoleUI [<host>] [<port>] [binary] [<host>:<port> ...]
 
         String host = "localhost";
         int port = 1234;
@@ -440,7 +472,17 @@ public class ClientConsoleUI implements ChatClientListener {
             }
         }
 
-        ClientConsoleUI ui = new ClientConsoleUI(host, port);
+        boolean binaryProtocol = false;
+        List<String> fallbackServers = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("binary")) {
+                binaryProtocol = true;
+            } else {
+                fallbackServers.add(args[i]);
+            }
+        }
+
+        ClientConsoleUI ui = new ClientConsoleUI(host, port, binaryProtocol, fallbackServers);
         ui.start();
     }
 
@@ -14,6 +14,8 @@ public enum ClientEvent {
     ROOM_JOINED,
     ROOM_LEFT,
     ROOM_NOT_FOUND,
+    RATE_LIMITED,
+    SERVER_BUSY,
     MESSAGE_RECEIVED,
     CONNECTION_LOST,
     CONNECTION_RESTORED,
@@ -1,29 +1,66 @@
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.*;
 
 /**
  * Handles a client connection. Manages authentication, room operations, and
  * message processing. Supports fault tolerance through token-based
- * reconnection.
+ * reconnection. Speaks either the text protocol or, if the client opens with
+ * the {@link BinaryProtocol} handshake, the binary one.
  */
 public class ClientHandler {
 
+    private static final int DEFAULT_HISTORY_SIZE = 50;
+    private static final int MAX_HISTORY_SIZE = 500;
+    private static final int MAX_REPLAY_SIZE = 1000;
+    private static final int REJECT_TIMEOUT_MILLIS = 1000;
+    private static final ServerLog.Sampler MESSAGE_LOG_SAMPLER = new ServerLog.Sampler(ServerLog.SAMPLE_RATE);
+
+    private static final CommandRegistry<ClientHandler> COMMANDS = new CommandRegistry<ClientHandler>()
+            .register("REGISTER", 2, false, ClientHandler::register)
+            .register("LOGIN", 2, false, ClientHandler::login)
+            .register("RECONNECT", 1, false, ClientHandler::reconnect)
+            .register("LIST_ROOMS", 0, true, ClientHandler::listRooms)
+            .register("CREATE_ROOM", 1, true, ClientHandler::createRoom)
+            .register("CREATE_AI_ROOM", 2, true, ClientHandler::createAiRoom)
+            .register("JOIN_ROOM", 1, true, ClientHandler::joinRoom)
+            .register("LEAVE_ROOM", 0, true, ClientHandler::leaveRoom)
+            .register("MESSAGE", 2, true, ClientHandler::message)
+            .register("HISTORY", 1, true, ClientHandler::history)
+            .register("WHO", 1, true, ClientHandler::who)
+            .register("ONLINE", 0, true, ClientHandler::online)
+            .register("LOGOUT", 0, true, ClientHandler::logout);
+    private static final CommandRegistry.Command<ClientHandler> MESSAGE_COMMAND = COMMANDS.lookup("MESSAGE");
+
     private final SSLSocket socket;
     private final AuthenticationService authService;
     private final RoomManager roomManager;
     private final TokenService tokenService;
     private final SessionManager sessionManager;
+    private final RateLimiter rateLimiter;
+    private final CommandRegistry.CommandLine commandLine;
     private BufferedReader in;
     private PrintWriter out;
+    private BinaryProtocol.FrameWriter frameWriter;
     private String username;
     private String currentRoom;
     private boolean authenticated;
-    private boolean running;
+    private volatile boolean running;
     private String authToken;
+    private String sessionId;
+    private volatile String replayedRoom;
+    private volatile long replayedThrough;
 
     /**
      * Create a new client handler.
@@ -33,18 +70,21 @@ public class ClientHandler {
      * @param roomManager The room manager
      * @param tokenService The token service
      * @param sessionManager The session manager
+     * @param rateLimiter The rate limits for messages and room creation
      */
     public ClientHandler(SSLSocket socket, AuthenticationService authService, RoomManager roomManager, TokenService tokenService,
-            SessionManager sessionManager) {
+            SessionManager sessionManager, RateLimiter rateLimiter) {
         this.socket = socket;
         this.authService = authService;
         this.roomManager = roomManager;
         this.tokenService = tokenService;
         this.sessionManager = sessionManager;
+        this.rateLimiter = rateLimiter;
         this.authenticated = false;
         this.currentRoom = null;
         this.running = false;
         this.authToken = null;
+        this.commandLine = new CommandRegistry.CommandLine();
     }
 
     /**
@@ -57,17 +97,61 @@ public class ClientHandler {
     }
 
     /**
-     * Send a message to the client.
+     * Check whether the client's connection is still open.
+     *
+     * @return true until the connection is closed
+     */
+    public boolean isConnected() {
+        return this.running;
+    }
+
+    /**
+     * Send a message to the client. Messages already sent to a resumed
+     * client as missed messages are skipped.
      *
      * @param message The message to send
      * @param roomName The room the message is from
      */
     public void sendMessage(Message message, String roomName) {
-        if (this.out != null) {
+        if (message.getSeq() <= this.replayedThrough && roomName.equals(this.replayedRoom)) {
+            return;
+        }
+        if (this.frameWriter != null) {
+            try {
+                this.frameWriter.writeServerMessage(roomManager.getRoomId(roomName), message.getSeq(),
+                        message.getSender(), message.getContent(), true);
+            } catch (IOException e) {
+                ServerLog.warn("Error sending message to client", "port", socket.getPort(), "error", e);
+            }
+        } else if (this.out != null) {
             this.out.println("MESSAGE " + roomName + " " + message.toProtocolString());
         }
     }
 
+    /**
+     * Tell the client about status changes of users in a room, as
+     * {@code PRESENCE <roomName> <username>:<status>...}.
+     *
+     * @param roomName The room the users are in
+     * @param entries The changed users, each as {@code <username>:<status>}
+     */
+    public void sendPresence(String roomName, List<String> entries) {
+        if (this.frameWriter != null) {
+            String[] fields = new String[entries.size() + 1];
+            fields[0] = roomName;
+            for (int i = 0; i < entries.size(); i++) {
+                fields[i + 1] = entries.get(i);
+            }
+            try {
+                this.frameWriter.writeFields(BinaryProtocol.PRESENCE, fields);
+            } catch (IOException e) {
+                ServerLog.warn("Error sending presence to client", "port", socket.getPort(), "error", e);
+            }
+        } else if (this.out != null) {
+            this.out.println("PRESENCE " + roomName + " " + String.join(" ", entries));
+        }
+    }
+
     /**
      * Handle the client connection.
      *
@@ -75,253 +159,640 @@ public class ClientHandler {
      */
     public void handle() throws IOException {
         try {
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream(), true);
-
+            BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
             this.running = true;
 
+            // Binary clients open with the handshake magic byte
+            input.mark(1);
+            if (input.read() == BinaryProtocol.MAGIC) {
+                handleBinary(input);
+                return;
+            }
+            input.reset();
+
+            this.in = new BufferedReader(new InputStreamReader(input));
+            this.out = new PrintWriter(
+                    new MetricsRegistry.CountingOutputStream(socket.getOutputStream(), Metrics.OUTBOUND_BYTES), true);
+
             // Handle client messages
             while (this.running) {
-                String input = in.readLine();
-                if (input == null) {
+                String line = in.readLine();
+                if (line == null) {
                     break;
                 }
 
-                processInput(input);
+                processInput(line);
             }
         } finally {
             cleanup();
         }
     }
 
+    /**
+     * Tell a client that the server is not accepting its connection and
+     * close it. The rejection is sent in the protocol the client speaks: a
+     * binary client opens with the handshake right away, while a text client
+     * stays silent until its user types, so the first byte is awaited only
+     * briefly.
+     *
+     * @param socket The client socket
+     */
+    public static void rejectBusy(SSLSocket socket) {
+        try (socket) {
+            socket.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+            int first;
+            try {
+                first = socket.getInputStream().read();
+            } catch (SocketTimeoutException e) {
+                first = -1;
+            }
+
+            if (first == BinaryProtocol.MAGIC) {
+                BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream());
+                output.write(new byte[]{(byte) BinaryProtocol.MAGIC, (byte) BinaryProtocol.VERSION});
+                new BinaryProtocol.FrameWriter(output).writeFields(BinaryProtocol.SERVER_BUSY);
+            } else {
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                writer.println("SERVER_BUSY");
+            }
+        } catch (IOException e) {
+            ServerLog.debug("Error rejecting client", "port", socket.getPort(), "error", e);
+        }
+    }
+
+    /**
+     * Complete the binary handshake and process frames until the client
+     * disconnects.
+     *
+     * @param input The socket input, positioned after the magic byte
+     * @throws IOException If an I/O error occurs
+     */
+    private void handleBinary(BufferedInputStream input) throws IOException {
+        int version = input.read();
+        BufferedOutputStream output = new BufferedOutputStream(
+                new MetricsRegistry.CountingOutputStream(socket.getOutputStream(), Metrics.OUTBOUND_BYTES));
+        if (version != BinaryProtocol.VERSION) {
+            output.write(new byte[]{(byte) BinaryProtocol.MAGIC, 0});
+            output.flush();
+            return;
+        }
+
+        output.write(new byte[]{(byte) BinaryProtocol.MAGIC, (byte) BinaryProtocol.VERSION});
+        output.flush();
+        this.frameWriter = new BinaryProtocol.FrameWriter(output);
+
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(input);
+        while (this.running) {
+            int opcode = reader.readFrame();
+            if (opcode < 0) {
+                break;
+            }
+
+            processFrame(opcode, reader);
+        }
+    }
+
+    /**
+     * Process a binary frame. Messages are decoded straight from the frame,
+     * with the room looked up by interned id, and run as the MESSAGE
+     * command; every other command is mapped onto the text command handlers.
+     * Either way the command is counted, timed and checked like a text one.
+     *
+     * @param opcode The frame opcode
+     * @param reader The reader, positioned at the frame payload
+     * @throws IOException If the frame is malformed
+     */
+    private void processFrame(int opcode, BinaryProtocol.FrameReader reader) throws IOException {
+        if (opcode == BinaryProtocol.MESSAGE) {
+            // An unknown room id leaves the room argument null
+            String roomName = roomManager.getRoomName(reader.getInt());
+            commandLine.set(roomName, reader.getRemaining());
+            dispatch(MESSAGE_COMMAND);
+            return;
+        }
+
+        String keyword = BinaryProtocol.keyword(opcode);
+        String[] parts = keyword != null ? reader.getParts(keyword, CommandRegistry.CommandLine.MAX_ARGUMENTS + 1) : null;
+        if (parts != null) {
+            commandLine.set(Arrays.copyOfRange(parts, 1, parts.length));
+        }
+        dispatch(keyword != null ? COMMANDS.lookup(keyword) : null);
+    }
+
+    /**
+     * Send a response to the client.
+     *
+     * @param response The response keyword
+     */
+    private void reply(String response) {
+        reply(response, null);
+    }
+
+    /**
+     * Send a response with one argument to the client.
+     *
+     * @param response The response keyword
+     * @param argument The argument, or null for none
+     */
+    private void reply(String response, String argument) {
+        if (this.frameWriter != null) {
+            try {
+                if (argument != null) {
+                    this.frameWriter.writeFields(BinaryProtocol.opcode(response), argument);
+                } else {
+                    this.frameWriter.writeFields(BinaryProtocol.opcode(response));
+                }
+            } catch (IOException e) {
+                ServerLog.warn("Error sending response to client", "port", socket.getPort(), "error", e);
+            }
+        } else {
+            out.println(argument != null ? response + " " + argument : response);
+        }
+    }
+
+    /**
+     * Send a response with a list of arguments to the client.
+     *
+     * @param response The response keyword
+     * @param arguments The arguments
+     */
+    private void replyList(String response, List<String> arguments) {
+        if (this.frameWriter != null) {
+            try {
+                this.frameWriter.writeFields(BinaryProtocol.opcode(response), arguments.toArray(new String[0]));
+            } catch (IOException e) {
+                ServerLog.warn("Error sending response to client", "port", socket.getPort(), "error", e);
+            }
+        } else {
+            out.println(response + " " + String.join(" ", arguments));
+        }
+    }
+
+    /**
+     * Tell the client it is in a room. Binary clients also receive the
+     * interned room id used in messages.
+     *
+     * @param roomName The name of the room
+     */
+    private void replyJoined(String roomName) {
+        if (this.frameWriter != null) {
+            try {
+                this.frameWriter.writeJoined(roomManager.getRoomId(roomName), roomName, true);
+            } catch (IOException e) {
+                ServerLog.warn("Error sending response to client", "port", socket.getPort(), "error", e);
+            }
+        } else {
+            out.println("JOINED " + roomName);
+        }
+    }
+
     /**
      * Process client input.
      *
      * @param input The client input
      */
     private void processInput(String input) {
-        System.out.println("Received message from client (port " + socket.getPort() + "): " + input);
+        commandLine.parse(input);
+        dispatch(COMMANDS.lookup(input, 0, commandLine.getKeywordEnd()));
+    }
 
-        String[] parts = input.split(" ", 3);
-        String command = parts[0];
+    /**
+     * Run a command against the parsed {@link #commandLine}, checking that it
+     * is allowed in the current authentication state and has its arguments.
+     *
+     * @param command The command, or null if the keyword is unknown
+     */
+    private void dispatch(CommandRegistry.Command<ClientHandler> command) {
+        if (ServerLog.isEnabled(ServerLog.Level.DEBUG)
+                && (command == null || !command.getName().equals("MESSAGE") || MESSAGE_LOG_SAMPLER.sample())) {
+            ServerLog.debug("Received command", "command", command != null ? command.getName() : "unknown",
+                    "port", socket.getPort());
+        }
 
-        if (!this.authenticated) {
-            handleUnauthenticatedCommands(command, parts);
+        if (command == null || command.requiresAuth() != this.authenticated) {
+            reply(this.authenticated ? "UNKNOWN_COMMAND" : "UNAUTHENTICATED");
+        } else if (commandLine.getArgumentCount() < command.getArity()) {
+            reply("INVALID_COMMAND");
         } else {
-            handleAuthenticatedCommands(command, parts);
+            if (this.authenticated) {
+                sessionManager.recordActivity(this.username);
+            }
+            command.execute(this, commandLine);
         }
     }
 
     /**
-     * Handle commands from unauthenticated clients.
+     * Get the commands accepted from clients, with their latency counters.
      *
-     * @param command The command
-     * @param parts The command parts
+     * @return The commands
      */
-    private void handleUnauthenticatedCommands(String command, String[] parts) {
-        switch (command) {
-            case "REGISTER":
-                if (parts.length >= 3) {
-                    String user = parts[1];
-                    String pass = parts[2];
-                    if (authService.registerUser(user, pass)) {
-                        out.println("REGISTER_SUCCESS");
-                    } else {
-                        out.println("REGISTER_FAILURE");
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    public static List<CommandRegistry.Command<ClientHandler>> getCommands() {
+        return COMMANDS.getCommands();
+    }
 
-            case "LOGIN":
-                if (parts.length >= 3) {
-                    String user = parts[1];
-                    String pass = parts[2];
-                    if (authService.authenticateUser(user, pass)) {
-                        this.username = user;
-                        this.authenticated = true;
-                        this.authToken = tokenService.generateToken(user);
-                        sessionManager.createOrUpdateSession(user, null, this);
-                        out.println("LOGIN_SUCCESS " + authToken);
-                    } else {
-                        out.println("LOGIN_FAILURE");
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    /**
+     * Handle {@code REGISTER <username> <password>}. The client is told the
+     * server is busy if the password cannot be hashed now.
+     *
+     * @param line The command line
+     */
+    private void register(CommandRegistry.CommandLine line) {
+        boolean registered;
+        try {
+            registered = authService.registerUser(line.getArgument(0), line.getArgument(1));
+        } catch (RejectedExecutionException e) {
+            reply("SERVER_BUSY");
+            return;
+        }
+        reply(registered ? "REGISTER_SUCCESS" : "REGISTER_FAILURE");
+    }
 
-            case "RECONNECT":
-                if (parts.length >= 2) {
-                    String token = parts[1];
-                    String user = tokenService.validateToken(token);
-                    if (user != null) {
-                        restoreSession(user, token);
-                        out.println("RECONNECT_SUCCESS");
-                        if (this.currentRoom != null) {
-                            out.println("JOINED " + this.currentRoom);
-                        }
-                    } else {
-                        out.println("RECONNECT_FAILURE");
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    /**
+     * Handle {@code LOGIN <username> <password>}. The client is told the
+     * server is busy if the password cannot be checked now.
+     *
+     * @param line The command line
+     */
+    private void login(CommandRegistry.CommandLine line) {
+        String user = line.getArgument(0);
+        boolean valid;
+        try {
+            valid = authService.authenticateUser(user, line.getArgument(1));
+        } catch (RejectedExecutionException e) {
+            reply("SERVER_BUSY");
+            return;
+        }
+        if (valid) {
+            this.username = user;
+            this.authenticated = true;
+            this.authToken = tokenService.generateToken(user);
+            this.sessionId = TokenService.sessionId(authToken);
+            sessionManager.createOrUpdateSession(sessionId, user, null, this);
+            reply("LOGIN_SUCCESS", authToken);
+        } else {
+            reply("LOGIN_FAILURE");
+        }
+    }
 
-            default:
-                out.println("UNAUTHENTICATED");
-                break;
+    /**
+     * Handle {@code RECONNECT <token> [<lastSeq>]}. A client that gives the
+     * sequence number of the last message it saw is sent the messages of its
+     * room it missed while disconnected.
+     *
+     * @param line The command line
+     */
+    private void reconnect(CommandRegistry.CommandLine line) {
+        String token = line.getArgument(0);
+        String lastSeqArgument = line.getArgument(1);
+        long lastSeq = -1;
+        if (lastSeqArgument != null) {
+            try {
+                lastSeq = Long.parseLong(lastSeqArgument.trim());
+            } catch (NumberFormatException e) {
+                reply("INVALID_COMMAND");
+                return;
+            }
+        }
+
+        String user = tokenService.validateToken(token);
+        if (user != null) {
+            ClientHandler previous = restoreSession(user, token);
+            reply("RECONNECT_SUCCESS");
+            if (this.currentRoom != null) {
+                // A client that gives no lastSeq rejoins without missed messages
+                resumeRoom(previous, lastSeq, lastSeqArgument != null ? MAX_REPLAY_SIZE : 0);
+            }
+        } else {
+            reply("RECONNECT_FAILURE");
         }
     }
 
     /**
-     * Handle commands from authenticated clients.
+     * Handle {@code LIST_ROOMS}.
      *
-     * @param command The command
-     * @param parts The command parts
+     * @param line The command line
      */
-    private void handleAuthenticatedCommands(String command, String[] parts) {
-        switch (command) {
-            case "LIST_ROOMS":
-                out.println("ROOMS " + String.join(" ", roomManager.getRoomNames()));
-                break;
+    private void listRooms(CommandRegistry.CommandLine line) {
+        replyList("ROOMS", roomManager.getRoomNames());
+    }
 
-            case "CREATE_ROOM":
-                if (parts.length >= 2) {
-                    String roomName = parts[1];
-                    if (roomManager.createRoom(roomName)) {
-                        out.println("ROOM_CREATED " + roomName);
-                    } else {
-                        out.println("ROOM_EXISTS " + roomName);
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    /**
+     * Handle {@code CREATE_ROOM <roomName>}.
+     *
+     * @param line The command line
+     */
+    private void createRoom(CommandRegistry.CommandLine line) {
+        String roomName = line.getArgument(0);
+        if (!rateLimiter.tryAcquire(RateLimiter.Limit.ROOM_CREATE, this.username)) {
+            reply("RATE_LIMITED", roomName);
+        } else if (roomManager.createRoom(roomName)) {
+            reply("ROOM_CREATED", roomName);
+        } else {
+            reply("ROOM_EXISTS", roomName);
+        }
+    }
 
-            case "CREATE_AI_ROOM":
-                if (parts.length >= 3) {
-                    String roomName = parts[1];
-                    String prompt = parts[2];
-                    if (roomManager.createAiRoom(roomName, prompt)) {
-                        out.println("ROOM_CREATED " + roomName);
-                    } else {
-                        out.println("ROOM_EXISTS " + roomName);
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    /**
+     * Handle {@code CREATE_AI_ROOM <roomName> <prompt>}.
+     *
+     * @param line The command line
+     */
+    private void createAiRoom(CommandRegistry.CommandLine line) {
+        String roomName = line.getArgument(0);
+        if (!rateLimiter.tryAcquire(RateLimiter.Limit.ROOM_CREATE, this.username)) {
+            reply("RATE_LIMITED", roomName);
+        } else if (roomManager.createAiRoom(roomName, line.getArgument(1))) {
+            reply("ROOM_CREATED", roomName);
+        } else {
+            reply("ROOM_EXISTS", roomName);
+        }
+    }
 
-            case "JOIN_ROOM":
-                if (parts.length >= 2) {
-                    String roomName = parts[1];
-
-                    // Leave current room if any
-                    if (this.currentRoom != null) {
-                        roomManager.removeUserFromRoom(this.currentRoom, this);
-                    }
-
-                    // Join new room
-                    if (roomManager.addUserToRoom(roomName, this)) {
-                        this.currentRoom = roomName;
-                        // Update session
-                        sessionManager.createOrUpdateSession(username, currentRoom, this);
-                        out.println("JOINED " + roomName);
-                    } else {
-                        out.println("ROOM_NOT_FOUND " + roomName);
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+    /**
+     * Handle {@code JOIN_ROOM <roomName>}.
+     *
+     * @param line The command line
+     */
+    private void joinRoom(CommandRegistry.CommandLine line) {
+        String roomName = line.getArgument(0);
+
+        // Leave current room if any
+        if (this.currentRoom != null) {
+            roomManager.removeUserFromRoom(this.currentRoom, this);
+        }
 
-            case "LEAVE_ROOM":
-                if (this.currentRoom != null) {
-                    roomManager.removeUserFromRoom(this.currentRoom, this);
-                    String leftRoom = this.currentRoom;
-                    this.currentRoom = null;
+        // Join new room
+        this.replayedRoom = null;
+        if (roomManager.addUserToRoom(roomName, this)) {
+            this.currentRoom = roomName;
+            // Update session
+            sessionManager.createOrUpdateSession(sessionId, username, currentRoom, this);
+            replyJoined(roomName);
+        } else {
+            reply("ROOM_NOT_FOUND", roomName);
+        }
+    }
 
-                    // Update session
-                    sessionManager.createOrUpdateSession(username, null, this);
+    /**
+     * Handle {@code LEAVE_ROOM}.
+     *
+     * @param line The command line
+     */
+    private void leaveRoom(CommandRegistry.CommandLine line) {
+        if (this.currentRoom != null) {
+            roomManager.removeUserFromRoom(this.currentRoom, this);
+            String leftRoom = this.currentRoom;
+            this.currentRoom = null;
+            this.replayedRoom = null;
 
-                    out.println("LEFT_ROOM " + leftRoom);
-                } else {
-                    out.println("NOT_IN_ROOM");
-                }
-                break;
+            // Update session
+            sessionManager.createOrUpdateSession(sessionId, username, null, this);
 
-            case "MESSAGE":
-                if (parts.length >= 3 && this.currentRoom != null) {
-                    String roomName = parts[1];
-                    String messageContent = parts[2];
-
-                    if (roomName.equals(this.currentRoom)) {
-                        Message message = new Message(this.username, messageContent);
-                        roomManager.addMessageToRoom(roomName, message);
-                    } else {
-                        out.println("NOT_IN_ROOM " + roomName);
-                    }
-                } else {
-                    out.println("INVALID_COMMAND");
-                }
-                break;
+            reply("LEFT_ROOM", leftRoom);
+        } else {
+            reply("NOT_IN_ROOM");
+        }
+    }
 
-            case "LOGOUT":
-                if (this.currentRoom != null) {
-                    roomManager.removeUserFromRoom(this.currentRoom, this);
-                }
-                // Invalidate token and remove session
-                if (authToken != null) {
-                    tokenService.invalidateToken(authToken);
+    /**
+     * Handle {@code MESSAGE <roomName> <messageContent>}.
+     *
+     * @param line The command line
+     */
+    private void message(CommandRegistry.CommandLine line) {
+        if (this.currentRoom == null) {
+            reply("INVALID_COMMAND");
+            return;
+        }
+
+        String roomName = line.getArgument(0);
+        if (this.currentRoom.equals(roomName)) {
+            if (allowMessage(roomName)) {
+                Message message = new Message(this.username, line.getArgument(1));
+                roomManager.addMessageToRoom(roomName, message);
+            }
+        } else {
+            reply("NOT_IN_ROOM", roomName);
+        }
+    }
+
+    /**
+     * Check the per-user and per-room message rates, telling the client if
+     * its message is dropped.
+     *
+     * @param roomName The room the message is for
+     * @return true if the message may be posted
+     */
+    private boolean allowMessage(String roomName) {
+        if (rateLimiter.tryAcquire(RateLimiter.Limit.USER_MESSAGE, this.username)
+                && rateLimiter.tryAcquire(RateLimiter.Limit.ROOM_MESSAGE, roomName)) {
+            return true;
+        }
+        reply("RATE_LIMITED", roomName);
+        return false;
+    }
+
+    /**
+     * Handle {@code HISTORY <roomName> [<count>]}.
+     *
+     * @param line The command line
+     */
+    private void history(CommandRegistry.CommandLine line) {
+        sendHistory(line.getArgument(0), line.getArgument(1));
+    }
+
+    /**
+     * Handle {@code WHO <roomName>}, answered with
+     * {@code WHO <roomName> <username>:<status>...} listing the users in the
+     * room, on every node of a cluster.
+     *
+     * @param line The command line
+     */
+    private void who(CommandRegistry.CommandLine line) {
+        String roomName = line.getArgument(0);
+        Map<String, PresenceService.Status> members = roomManager.getRoomPresence(roomName,
+                sessionManager.getPresence());
+        if (members == null) {
+            reply("ROOM_NOT_FOUND", roomName);
+            return;
+        }
+
+        List<String> fields = new ArrayList<>(members.size() + 1);
+        fields.add(roomName);
+        members.forEach((member, status) -> fields.add(member + ":" + status.label()));
+        replyList("WHO", fields);
+    }
+
+    /**
+     * Handle {@code ONLINE}, answered with
+     * {@code ONLINE <online> <idle> <away>}, the number of users in each
+     * status. In a cluster the counts are per node: they cover only the
+     * users with a session on this node.
+     *
+     * @param line The command line
+     */
+    private void online(CommandRegistry.CommandLine line) {
+        PresenceService presence = sessionManager.getPresence();
+        replyList("ONLINE", List.of(
+                String.valueOf(presence.getCount(PresenceService.Status.ONLINE)),
+                String.valueOf(presence.getCount(PresenceService.Status.IDLE)),
+                String.valueOf(presence.getCount(PresenceService.Status.AWAY))));
+    }
+
+    /**
+     * Handle {@code LOGOUT}.
+     *
+     * @param line The command line
+     */
+    private void logout(CommandRegistry.CommandLine line) {
+        if (this.currentRoom != null) {
+            roomManager.removeUserFromRoom(this.currentRoom, this);
+        }
+        // Invalidate token and remove session
+        if (authToken != null) {
+            tokenService.invalidateToken(authToken);
+        }
+        sessionManager.removeSession(sessionId);
+        this.authenticated = false;
+        this.username = null;
+        this.currentRoom = null;
+        this.authToken = null;
+        this.sessionId = null;
+        reply("LOGOUT_SUCCESS");
+    }
+
+    /**
+     * Send the most recent messages of a room, followed by
+     * {@code HISTORY_END <roomName>}.
+     *
+     * @param roomName The name of the room
+     * @param countArgument The requested number of messages, or null for the
+     * default
+     */
+    private void sendHistory(String roomName, String countArgument) {
+        int count = DEFAULT_HISTORY_SIZE;
+        if (countArgument != null) {
+            try {
+                count = Math.min(Math.max(Integer.parseInt(countArgument.trim()), 0), MAX_HISTORY_SIZE);
+            } catch (NumberFormatException e) {
+                reply("INVALID_COMMAND");
+                return;
+            }
+        }
+
+        List<Message> history = roomManager.getRoomHistory(roomName, count);
+        if (history == null) {
+            reply("ROOM_NOT_FOUND", roomName);
+            return;
+        }
+
+        if (this.frameWriter != null) {
+            int roomId = roomManager.getRoomId(roomName);
+            try {
+                for (Message message : history) {
+                    this.frameWriter.writeServerMessage(roomId, message.getSeq(), message.getSender(),
+                            message.getContent(), false);
                 }
-                sessionManager.removeSession(username);
-                this.authenticated = false;
-                this.username = null;
-                this.currentRoom = null;
-                this.authToken = null;
-                out.println("LOGOUT_SUCCESS");
-                break;
+            } catch (IOException e) {
+                ServerLog.warn("Error sending history to client", "port", socket.getPort(), "error", e);
+            }
+            reply("HISTORY_END", roomName);
+            return;
+        }
 
-            default:
-                out.println("UNKNOWN_COMMAND");
-                break;
+        StringBuilder builder = new StringBuilder();
+        for (Message message : history) {
+            builder.append("MESSAGE ").append(roomName).append(' ').append(message.toProtocolString()).append('\n');
         }
+        builder.append("HISTORY_END ").append(roomName).append('\n');
+        out.print(builder);
+        out.flush();
     }
 
     /**
-     * Restore a user session from a token.
+     * Restore a user session from a token. The user is put back in its room
+     * by the caller.
      *
      * @param user The username
      * @param token The authentication token
+     * @return The client handler of the session's previous connection, or
+     * null
      */
-    private void restoreSession(String user, String token) {
+    private ClientHandler restoreSession(String user, String token) {
         this.username = user;
         this.authenticated = true;
         this.authToken = token;
+        this.sessionId = TokenService.sessionId(token);
 
         // Refresh token
         tokenService.refreshToken(token);
 
-        // Restore session state
-        SessionManager.UserSession session = sessionManager.getSession(user);
+        // Restore session state, moving it to this connection
+        SessionManager.UserSession session = sessionManager.attachHandler(sessionId, this);
         if (session != null) {
             this.currentRoom = session.getCurrentRoom();
+            return session.getClientHandler();
+        }
 
-            // Update client handler in session
-            session.setClientHandler(this);
+        // Create new session
+        sessionManager.createOrUpdateSession(sessionId, user, null, this);
+        return null;
+    }
 
-            // Re-join room if user was in one
-            if (this.currentRoom != null) {
-                // Remove from old handler and add to new one
-                roomManager.addUserToRoom(this.currentRoom, this);
+    /**
+     * Put a resumed user back in its room in place of its previous
+     * connection, sending the messages numbered after {@code lastSeq}. The
+     * client is told it joined only if the room still exists.
+     *
+     * @param previous The client handler of the previous connection, or null
+     * @param lastSeq The sequence number of the last message the client saw
+     * @param maxCount The maximum number of missed messages to send, or 0
+     * for none
+     */
+    private void resumeRoom(ClientHandler previous, long lastSeq, int maxCount) {
+        if (!roomManager.resumeUserInRoom(this.currentRoom, previous, this, lastSeq, maxCount)) {
+            reply("ROOM_NOT_FOUND", this.currentRoom);
+            this.currentRoom = null;
+            sessionManager.createOrUpdateSession(sessionId, username, null, this);
+        }
+    }
+
+    /**
+     * Tell a resumed client it is back in its room and send it the messages
+     * it missed, in one write. Called by the room while broadcasts to it are
+     * held off; broadcasts of the replayed messages that arrive afterwards
+     * are skipped.
+     *
+     * @param roomName The name of the room
+     * @param missed The missed messages, oldest first
+     * @param lastSeq The sequence number of the last message the client saw
+     */
+    public void replay(String roomName, List<Message> missed, long lastSeq) {
+        this.replayedThrough = missed.isEmpty() ? lastSeq : missed.get(missed.size() - 1).getSeq();
+        this.replayedRoom = roomName;
+
+        if (this.frameWriter != null) {
+            int roomId = roomManager.getRoomId(roomName);
+            try {
+                this.frameWriter.writeJoined(roomId, roomName, false);
+                for (Message message : missed) {
+                    this.frameWriter.writeServerMessage(roomId, message.getSeq(), message.getSender(),
+                            message.getContent(), false);
+                }
+                this.frameWriter.flush();
+            } catch (IOException e) {
+                ServerLog.warn("Error sending missed messages to client", "port", socket.getPort(), "error", e);
             }
-        } else {
-            // Create new session
-            sessionManager.createOrUpdateSession(user, null, this);
+            return;
         }
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("JOINED ").append(roomName).append('\n');
+        for (Message message : missed) {
+            builder.append("MESSAGE ").append(roomName).append(' ').append(message.toProtocolString()).append('\n');
+        }
+        out.print(builder);
+        out.flush();
     }
 
     /**
@@ -333,9 +804,11 @@ public class ClientHandler {
         // Note: We don't remove the user from rooms or invalidate tokens here
         // because the connection might be temporarily broken and the client
         // might reconnect. The session remains active.
-        System.out.println("Client disconnected: "
-                + (username != null ? username : "unauthenticated")
-                + " (port " + socket.getPort() + ")");
+        ServerLog.info("Client disconnected", "user", username != null ? username : "unauthenticated",
+                "port", socket.getPort());
+        if (this.sessionId != null) {
+            sessionManager.detachHandler(this.sessionId, this);
+        }
 
         // Close streams and socket
         try {
@@ -349,7 +822,7 @@ public class ClientHandler {
                 this.socket.close();
             }
         } catch (IOException e) {
-            System.err.println("Error closing resources: " + e.getMessage());
+            ServerLog.warn("Error closing resources", "port", socket.getPort(), "error", e);
         }
     }
 }
@@ -0,0 +1,1146 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Connects the nodes of a chat cluster. Nodes come from a static list, and
+ * every room is stored on a replica set of {@code chat.replicationFactor}
+ * nodes chosen by a {@link HashRing} over that list. The first replica that
+ * is up leads the room: it takes the room's messages, copies each one to the
+ * other replicas and waits for their acknowledgement before delivering it,
+ * without holding up the thread that added it. A message still unacknowledged
+ * after the request timeout is delivered anyway and counted as a replication
+ * failure, so it may be lost if the leader fails before a replica stores it.
+ * A node whose users join a room led elsewhere subscribes to it, forwards its
+ * users' messages to the leader and receives every message of the room back
+ * to fan out to its own users.
+ *
+ * When a leader fails, the next replica finds its connection gone and takes
+ * over with every acknowledged message. When a replica comes back, the nodes
+ * storing its rooms first copy it the messages it missed; a node only leads
+ * again once each other replica has caught it up or is down. Users, tokens
+ * and sessions are shared with every node, so a client can resume its
+ * session with {@code RECONNECT} on whichever node it reaches. Failures are
+ * assumed to be crashes: a network partition can leave two leaders for a
+ * room.
+ *
+ * Every node keeps one TLS connection to each peer for the frames it sends
+ * and accepts one from each peer for the frames it receives. Both ends
+ * present a certificate from the peer trust store of
+ * {@link TlsContexts#peerContext()}, so only cluster nodes can connect to
+ * the cluster port. The connections use the
+ * {@link BinaryProtocol} framing with the opcodes below. Requests that need
+ * an answer carry an id and are answered on the connection they came in on.
+ *
+ * Configure a node with {@code -Dchat.nodeId=<id>} and
+ * {@code -Dchat.peers=<id>=<host>:<port>,...}, listing every node including
+ * itself with its cluster port.
+ */
+public class Cluster implements Room.Replicator {
+
+    static final byte HELLO = 1;
+    static final byte ROOM = 2;
+    static final byte USER = 3;
+    static final byte SUBSCRIBE = 4;
+    static final byte UNSUBSCRIBE = 5;
+    static final byte FORWARD = 6;
+    static final byte DELIVER = 7;
+    static final byte CREATE_ROOM = 8;
+    static final byte HISTORY = 9;
+    static final byte RESPONSE = 10;
+    static final byte TOKEN = 11;
+    static final byte TOKEN_REVOKED = 12;
+    static final byte SESSION = 13;
+    static final byte SESSION_REMOVED = 14;
+    static final byte REPLICATE = 15;
+    static final byte SYNC = 16;
+    static final byte CAUGHT_UP = 17;
+    static final byte TOKEN_ID_REVOKED = 18;
+    static final byte HISTORY_AFTER = 19;
+    static final byte WHO = 20;
+
+    private static final long RECONNECT_DELAY_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final long REQUEST_TIMEOUT_MS = 5000;
+    private static final int SYNC_BATCH_SIZE = 256;
+    private static final int REPLICATION_FACTOR = Integer.getInteger("chat.replicationFactor", 2);
+
+    private final String nodeId;
+    private final Map<String, InetSocketAddress> nodes;
+    private final HashRing ring;
+    private final Map<String, PeerLink> links;
+    private final ConcurrentMap<String, Set<String>> subscribers;
+    private final Set<String> caughtUp;
+    private final ConcurrentMap<Long, PendingRequest> pending;
+    private final AtomicLong nextRequestId;
+    private final StateWriter stateBroadcaster;
+    private ClusterRoomManager roomManager;
+    private AuthenticationService authService;
+    private TokenService tokenService;
+    private SessionManager sessionManager;
+    private volatile SSLServerSocket serverSocket;
+    private volatile boolean running;
+
+    /**
+     * Create a cluster member.
+     *
+     * @param nodeId The id of this node
+     * @param nodes The cluster address of every node, including this one
+     */
+    public Cluster(String nodeId, Map<String, InetSocketAddress> nodes) {
+        if (!nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the peer list");
+        }
+        this.nodeId = nodeId;
+        this.nodes = new LinkedHashMap<>(nodes);
+        this.ring = new HashRing(nodes.keySet());
+        this.links = new LinkedHashMap<>();
+        this.subscribers = new ConcurrentHashMap<>();
+        this.caughtUp = ConcurrentHashMap.newKeySet();
+        this.pending = new ConcurrentHashMap<>();
+        this.nextRequestId = new AtomicLong();
+
+        for (Map.Entry<String, InetSocketAddress> node : nodes.entrySet()) {
+            if (!node.getKey().equals(nodeId)) {
+                links.put(node.getKey(), new PeerLink(node.getKey(), node.getValue()));
+            }
+        }
+        this.stateBroadcaster = new StateWriter(List.copyOf(links.keySet()));
+    }
+
+    /**
+     * Create a cluster member from the {@code chat.nodeId} and
+     * {@code chat.peers} system properties.
+     *
+     * @return The cluster member, or null if no peers are configured
+     * @throws IllegalArgumentException If the configuration is invalid
+     */
+    public static Cluster fromProperties() {
+        String peers = System.getProperty("chat.peers");
+        if (peers == null || peers.isBlank()) {
+            return null;
+        }
+        String nodeId = System.getProperty("chat.nodeId");
+        if (nodeId == null) {
+            throw new IllegalArgumentException("chat.nodeId must be set when chat.peers is");
+        }
+
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String peer : peers.split(",")) {
+            String[] idAndAddress = peer.trim().split("=", 2);
+            int colon = idAndAddress.length == 2 ? idAndAddress[1].lastIndexOf(':') : -1;
+            if (colon < 0) {
+                throw new IllegalArgumentException("Invalid peer " + peer + ", expected <id>=<host>:<port>");
+            }
+            nodes.put(idAndAddress[0], InetSocketAddress.createUnresolved(idAndAddress[1].substring(0, colon),
+                    Integer.parseInt(idAndAddress[1].substring(colon + 1))));
+        }
+        return new Cluster(nodeId, nodes);
+    }
+
+    /**
+     * Get the id of this node.
+     *
+     * @return The node id
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Get the nodes that store a room, in order of preference for leading
+     * it.
+     *
+     * @param roomName The name of the room
+     * @return The ids of the replica nodes
+     */
+    public List<String> replicasOf(String roomName) {
+        return ring.ownersOf(roomName, Math.max(REPLICATION_FACTOR, 1));
+    }
+
+    /**
+     * Check whether this node stores a room.
+     *
+     * @param roomName The name of the room
+     * @return true if this node is one of the room's replicas
+     */
+    public boolean isReplica(String roomName) {
+        return replicasOf(roomName).contains(nodeId);
+    }
+
+    /**
+     * Get the node that currently leads a room: the first replica, in order
+     * of preference, that is connected and caught up. This node only leads
+     * once every other replica has caught it up or is known to be down. If
+     * no replica qualifies, the first replica other than this node is
+     * returned, and requests to it fail until it is reachable.
+     *
+     * @param roomName The name of the room
+     * @return The id of the leading node
+     */
+    public String leaderOf(String roomName) {
+        List<String> replicas = replicasOf(roomName);
+        String fallback = null;
+        for (String node : replicas) {
+            if (node.equals(nodeId)) {
+                if (canLead(replicas)) {
+                    return node;
+                }
+            } else {
+                if (links.get(node).ready) {
+                    return node;
+                }
+                if (fallback == null) {
+                    fallback = node;
+                }
+            }
+        }
+        return fallback != null ? fallback : nodeId;
+    }
+
+    /**
+     * Check whether this node may lead a room with the given replicas.
+     *
+     * @param replicas The replicas of the room
+     * @return true if every other replica has caught this node up or is down
+     */
+    private boolean canLead(List<String> replicas) {
+        for (String node : replicas) {
+            if (!node.equals(nodeId) && !caughtUp.contains(node) && !links.get(node).down) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether this node leads a room. Used by the rooms this node
+     * stores to decide whether they take messages.
+     *
+     * @param roomName The name of the room
+     * @return true if this node leads the room
+     */
+    @Override
+    public boolean leads(String roomName) {
+        return leaderOf(roomName).equals(nodeId);
+    }
+
+    /**
+     * Copy a message appended here to the other replicas of its room that
+     * are connected. A replica that turns out to be missing earlier
+     * messages is sent those too.
+     *
+     * @param room The room
+     * @param index The index of the message in the room
+     * @param message The message
+     * @return Completed when every connected replica has stored the message,
+     * or null if no other replica is connected
+     */
+    @Override
+    public CompletableFuture<Void> replicate(Room room, int index, Message message) {
+        List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+        for (String node : replicasOf(room.getName())) {
+            if (!node.equals(nodeId) && links.get(node).ready) {
+                acknowledgements.add(copyTo(node, room, index, List.of(message), true));
+            }
+        }
+        if (acknowledgements.isEmpty()) {
+            return null;
+        }
+        return CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Send a range of a room's messages to a replica.
+     *
+     * @param node The replica
+     * @param room The room
+     * @param fromIndex The index of the first message
+     * @param messages The messages
+     * @param repair Whether to send the replica the messages it is missing
+     * before {@code fromIndex}, if any
+     * @return Completed when the replica has stored the messages
+     */
+    private CompletableFuture<Void> copyTo(String node, Room room, int fromIndex, List<Message> messages,
+            boolean repair) {
+        String[] fields = new String[2 + messages.size() * 2];
+        fields[0] = room.getName();
+        fields[1] = Integer.toString(fromIndex);
+        for (int i = 0; i < messages.size(); i++) {
+            fields[2 + i * 2] = messages.get(i).getSender();
+            fields[3 + i * 2] = messages.get(i).getContent();
+        }
+
+        CompletableFuture<String[]> response = sendRequest(node, REPLICATE, fields);
+        if (response == null) {
+            return CompletableFuture.failedFuture(new IOException("Replica " + node + " is not connected"));
+        }
+        int end = fromIndex + messages.size();
+        return response.thenCompose(reply -> {
+            int count = reply.length > 0 ? Integer.parseInt(reply[0]) : -1;
+            if (count >= end) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (repair && count >= 0 && count < fromIndex) {
+                return copyTo(node, room, count, room.getMessages(count, end - count), false);
+            }
+            return CompletableFuture.failedFuture(
+                    new IOException("Replica " + node + " has " + count + " messages, expected " + end));
+        });
+    }
+
+    /**
+     * Get the number of peers this node is currently connected to.
+     *
+     * @return The number of connected peers
+     */
+    public int getConnectedPeerCount() {
+        int count = 0;
+        for (PeerLink link : links.values()) {
+            if (link.writer != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Start accepting peer connections and connecting to the peers.
+     *
+     * @param roomManager The room manager serving the rooms of this node
+     * @param authService The authentication service whose users are shared
+     * @param tokenService The token service whose tokens are shared
+     * @param sessionManager The session manager whose sessions are shared
+     * @throws IOException If the cluster port cannot be bound
+     */
+    public void start(ClusterRoomManager roomManager, AuthenticationService authService, TokenService tokenService,
+            SessionManager sessionManager) throws IOException {
+        this.roomManager = roomManager;
+        this.authService = authService;
+        this.tokenService = tokenService;
+        this.sessionManager = sessionManager;
+        this.running = true;
+
+        InetSocketAddress address = nodes.get(nodeId);
+        serverSocket = (SSLServerSocket) TlsContexts.peerContext().getServerSocketFactory()
+                .createServerSocket(address.getPort(), 50, InetAddress.getByName(address.getHostString()));
+        serverSocket.setNeedClientAuth(true);
+        Thread.ofPlatform().name("cluster-acceptor").daemon().start(this::acceptPeers);
+
+        for (PeerLink link : links.values()) {
+            Thread.startVirtualThread(link::run);
+        }
+        ServerLog.info("Cluster node started", "node", nodeId, "port", address.getPort(), "nodes", nodes.keySet(),
+                "replicationFactor", REPLICATION_FACTOR);
+    }
+
+    /**
+     * Close every peer connection.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Get the listener that shares token and session changes with every
+     * peer.
+     *
+     * @return The listener
+     */
+    public StateVisitor getStateBroadcaster() {
+        return stateBroadcaster;
+    }
+
+    /**
+     * Tell every peer about a room created on this node.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     */
+    public void broadcastRoom(String name, String prompt) {
+        stateBroadcaster.room(name, prompt);
+    }
+
+    /**
+     * Tell every peer about a user registered on this node.
+     *
+     * @param username The username
+     * @param passwordHash The password hash
+     */
+    public void broadcastUser(String username, String passwordHash) {
+        stateBroadcaster.user(username, passwordHash);
+    }
+
+    /**
+     * Ask the leader of a room to send this node the room's messages.
+     *
+     * @param leader The leading node
+     * @param roomName The name of the room
+     */
+    public void subscribe(String leader, String roomName) {
+        send(leader, SUBSCRIBE, roomName);
+    }
+
+    /**
+     * Stop receiving the messages of a room.
+     *
+     * @param leader The leading node
+     * @param roomName The name of the room
+     */
+    public void unsubscribe(String leader, String roomName) {
+        send(leader, UNSUBSCRIBE, roomName);
+    }
+
+    /**
+     * Post a message to a room led by another node.
+     *
+     * @param leader The leading node
+     * @param roomName The name of the room
+     * @param message The message
+     * @return true if the message was sent to the leader
+     */
+    public boolean forward(String leader, String roomName, Message message) {
+        return send(leader, FORWARD, roomName, message.getSender(), message.getContent());
+    }
+
+    /**
+     * Pass a message of a room led by this node on to the subscribed nodes.
+     * Used as the {@link Room.Relay} of stored rooms.
+     *
+     * @param roomName The name of the room
+     * @param message The message
+     */
+    public void relay(String roomName, Message message) {
+        Set<String> nodes = subscribers.get(roomName);
+        if (nodes == null) {
+            return;
+        }
+        for (String node : nodes) {
+            send(node, DELIVER, roomName, Long.toString(message.getSeq()), message.getSender(), message.getContent());
+        }
+    }
+
+    /**
+     * Create a room on the node that leads it.
+     *
+     * @param leader The leading node
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return true if the room was created, false if it exists or the leader
+     * cannot be reached
+     */
+    public boolean createRoom(String leader, String name, String prompt) {
+        String[] response = request(leader, CREATE_ROOM, name, prompt != null ? prompt : "");
+        return response != null && response.length > 0 && response[0].equals("1");
+    }
+
+    /**
+     * Get the most recent messages of a room from the node that leads it.
+     *
+     * @param leader The leading node
+     * @param roomName The name of the room
+     * @param count The maximum number of messages
+     * @return The messages, oldest first, or null if the room does not exist
+     * or the leader cannot be reached
+     */
+    public List<Message> history(String leader, String roomName, int count) {
+        return parseMessages(request(leader, HISTORY, roomName, Integer.toString(count)));
+    }
+
+    /**
+     * Get the most recent messages of a room numbered after a sequence
+     * number from the node that leads it.
+     *
+     * @param leader The leading node
+     * @param roomName The name of the room
+     * @param seq The sequence number of the last message already seen, or -1
+     * for none
+     * @param count The maximum number of messages
+     * @return Up to the last {@code count} messages after {@code seq}, oldest
+     * first, or null if the room does not exist or the leader cannot be
+     * reached
+     */
+    public List<Message> historyAfter(String leader, String roomName, long seq, int count) {
+        return parseMessages(request(leader, HISTORY_AFTER, roomName, Long.toString(seq), Integer.toString(count)));
+    }
+
+    /**
+     * Ask every connected peer for the users in a room on that node, in
+     * parallel. Peers that do not answer in time are left out.
+     *
+     * @param roomName The name of the room
+     * @return The status of each user on the peers, the most present one for
+     * a user on several peers
+     */
+    public Map<String, PresenceService.Status> getRemoteMembers(String roomName) {
+        List<CompletableFuture<String[]>> responses = new ArrayList<>();
+        for (PeerLink link : links.values()) {
+            CompletableFuture<String[]> response = link.ready ? sendRequest(link.node, WHO, roomName) : null;
+            if (response != null) {
+                responses.add(response);
+            }
+        }
+
+        Map<String, PresenceService.Status> members = new HashMap<>();
+        for (CompletableFuture<String[]> response : responses) {
+            String[] entries;
+            try {
+                entries = response.get();
+            } catch (ExecutionException e) {
+                ServerLog.warn("Peer request failed", "opcode", WHO, "error", e.getCause());
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            for (String entry : entries) {
+                int colon = entry.lastIndexOf(':');
+                PresenceService.Status status = PresenceService.Status.valueOf(
+                        entry.substring(colon + 1).toUpperCase(Locale.ROOT));
+                members.merge(entry.substring(0, colon), status, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Read the messages of a history response.
+     *
+     * @param response The response fields: "1" followed by the sequence
+     * number, sender and content of each message, or "0"
+     * @return The messages, or null if the response is missing or "0"
+     */
+    private static List<Message> parseMessages(String[] response) {
+        if (response == null || response.length == 0 || !response[0].equals("1")) {
+            return null;
+        }
+        List<Message> messages = new ArrayList<>((response.length - 1) / 3);
+        for (int i = 1; i + 2 < response.length; i += 3) {
+            messages.add(new Message(response[i + 1], response[i + 2], Long.parseLong(response[i])));
+        }
+        return messages;
+    }
+
+    /**
+     * Send a frame to a peer over this node's connection to it.
+     *
+     * @param node The peer
+     * @param opcode The opcode
+     * @param fields The fields
+     * @return true if the frame was written, false if the peer is not
+     * connected or the write failed
+     */
+    private boolean send(String node, byte opcode, String... fields) {
+        PeerLink link = links.get(node);
+        BinaryProtocol.FrameWriter writer = link != null ? link.writer : null;
+        if (writer == null) {
+            return false;
+        }
+        try {
+            writer.writeFields(opcode, fields);
+            Metrics.CLUSTER_FRAMES_SENT.increment();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            ServerLog.warn("Error sending to peer", "node", node, "opcode", opcode, "error", e);
+            return false;
+        }
+    }
+
+    /**
+     * Send a request to a peer without waiting for the response.
+     *
+     * @param node The peer
+     * @param opcode The opcode
+     * @param fields The fields, after the request id
+     * @return Completed with the response fields, or failed if the peer does
+     * not answer in time or the connection is lost; null if the request
+     * could not be sent
+     */
+    private CompletableFuture<String[]> sendRequest(String node, byte opcode, String... fields) {
+        long id = nextRequestId.incrementAndGet();
+        PendingRequest request = new PendingRequest(node, new CompletableFuture<>());
+        pending.put(id, request);
+        String[] withId = new String[fields.length + 1];
+        withId[0] = Long.toString(id);
+        System.arraycopy(fields, 0, withId, 1, fields.length);
+        if (!send(node, opcode, withId)) {
+            pending.remove(id);
+            return null;
+        }
+        return request.response().orTimeout(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> pending.remove(id));
+    }
+
+    /**
+     * Send a request to a peer and wait for the response.
+     *
+     * @param node The peer
+     * @param opcode The opcode
+     * @param fields The fields, after the request id
+     * @return The response fields, or null if the peer is not connected or
+     * did not answer in time
+     */
+    private String[] request(String node, byte opcode, String... fields) {
+        CompletableFuture<String[]> response = sendRequest(node, opcode, fields);
+        if (response == null) {
+            return null;
+        }
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            ServerLog.warn("Peer request failed", "node", node, "opcode", opcode, "error", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Accept connections from peers until the cluster is stopped.
+     */
+    private void acceptPeers() {
+        while (running) {
+            try {
+                SSLSocket socket = (SSLSocket) serverSocket.accept();
+                Thread.startVirtualThread(() -> serveIncoming(socket));
+            } catch (IOException e) {
+                if (running) {
+                    ServerLog.error("Error accepting peer connection", "error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete the TLS handshake of a peer connection within a timeout, so
+     * that a peer which stops responding mid-handshake is retried instead of
+     * holding the connection forever.
+     *
+     * @param socket The connection
+     * @throws IOException If the handshake fails or times out
+     */
+    private static void handshake(SSLSocket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        socket.startHandshake();
+        socket.setSoTimeout(0);
+    }
+
+    /**
+     * Read the frames a peer sends over its connection to this node.
+     *
+     * @param socket The connection
+     */
+    private void serveIncoming(SSLSocket socket) {
+        String peer = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            try {
+                handshake(socket);
+            } catch (SSLException e) {
+                // Most likely a client without a trusted peer certificate
+                ServerLog.warn("Rejected peer connection", "address", socket.getInetAddress().getHostAddress(),
+                        "error", e.getMessage());
+                return;
+            }
+            BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(
+                    new BufferedInputStream(socket.getInputStream()));
+            BinaryProtocol.FrameWriter replies = new BinaryProtocol.FrameWriter(
+                    new BufferedOutputStream(socket.getOutputStream()));
+
+            if (reader.readFrame() != HELLO || !links.containsKey(peer = reader.getString())) {
+                ServerLog.warn("Rejected peer connection", "address", socket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            int opcode;
+            while ((opcode = reader.readFrame()) >= 0) {
+                handleFrame(peer, opcode, reader, replies);
+            }
+        } catch (IOException e) {
+            if (running) {
+                ServerLog.debug("Peer connection closed", "node", peer, "error", e);
+            }
+        } finally {
+            if (peer != null) {
+                for (Set<String> nodes : subscribers.values()) {
+                    nodes.remove(peer);
+                }
+                if (caughtUp.remove(peer) && running) {
+                    roomManager.rebalance();
+                }
+            }
+        }
+    }
+
+    /**
+     * Handle a frame received from a peer.
+     *
+     * @param peer The peer that sent the frame
+     * @param opcode The opcode
+     * @param reader The reader, positioned at the payload
+     * @param replies The writer for responses to the peer
+     * @throws IOException If the frame is malformed or a response cannot be
+     * written
+     */
+    private void handleFrame(String peer, int opcode, BinaryProtocol.FrameReader reader,
+            BinaryProtocol.FrameWriter replies) throws IOException {
+        switch (opcode) {
+            case ROOM -> {
+                String name = reader.getString();
+                String prompt = reader.getString();
+                roomManager.addRemoteRoom(name, prompt.isEmpty() ? null : prompt);
+            }
+            case USER -> authService.addReplicatedUser(reader.getString(), reader.getString());
+            case TOKEN -> tokenService.restoreToken(reader.getString(), reader.getString(),
+                    Long.parseLong(reader.getString()));
+            case TOKEN_REVOKED -> tokenService.restoreRevocation(reader.getString());
+            case TOKEN_ID_REVOKED -> tokenService.restoreRevocation(Long.parseLong(reader.getString()),
+                    Long.parseLong(reader.getString()));
+            case SESSION -> {
+                String sessionId = reader.getString();
+                String username = reader.getString();
+                String currentRoom = reader.getString();
+                sessionManager.restoreSession(sessionId, username, currentRoom.isEmpty() ? null : currentRoom);
+            }
+            case SESSION_REMOVED -> sessionManager.restoreSessionRemoval(reader.getString());
+            case SUBSCRIBE -> subscribers.computeIfAbsent(reader.getString(), r -> ConcurrentHashMap.newKeySet())
+                    .add(peer);
+            case UNSUBSCRIBE -> {
+                Set<String> nodes = subscribers.get(reader.getString());
+                if (nodes != null) {
+                    nodes.remove(peer);
+                }
+            }
+            case FORWARD -> {
+                String roomName = reader.getString();
+                Message message = new Message(reader.getString(), reader.getString());
+                // A node that no longer leads the room passes the message on
+                // to the leader it knows, unless that would send it back.
+                // Adding it does not wait for the replicas, so this reader
+                // is not held up.
+                if (leaderOf(roomName).equals(peer) || !roomManager.addMessageToRoom(roomName, message)) {
+                    ServerLog.warn("Dropped message for room not led here", "room", roomName, "from", peer);
+                }
+            }
+            case DELIVER -> {
+                String roomName = reader.getString();
+                long seq = Long.parseLong(reader.getString());
+                roomManager.deliver(roomName, new Message(reader.getString(), reader.getString(), seq));
+            }
+            case CREATE_ROOM -> {
+                String id = reader.getString();
+                String name = reader.getString();
+                String prompt = reader.getString();
+                boolean created = leads(name) && roomManager.createLocalRoom(name, prompt.isEmpty() ? null : prompt);
+                replies.writeFields(RESPONSE, id, created ? "1" : "0");
+            }
+            case HISTORY -> {
+                String id = reader.getString();
+                String roomName = reader.getString();
+                int count = Integer.parseInt(reader.getString());
+                writeMessages(replies, id, leads(roomName) ? roomManager.getRoomHistory(roomName, count) : null);
+            }
+            case HISTORY_AFTER -> {
+                String id = reader.getString();
+                String roomName = reader.getString();
+                long seq = Long.parseLong(reader.getString());
+                int count = Integer.parseInt(reader.getString());
+                writeMessages(replies, id,
+                        leads(roomName) ? roomManager.getRoomMessagesAfter(roomName, seq, count) : null);
+            }
+            case WHO -> {
+                String id = reader.getString();
+                List<String> members = roomManager.getRoomMembers(reader.getString());
+                String[] fields = new String[1 + (members != null ? members.size() : 0)];
+                fields[0] = id;
+                PresenceService presence = sessionManager.getPresence();
+                for (int i = 1; i < fields.length; i++) {
+                    String member = members.get(i - 1);
+                    fields[i] = member + ":" + presence.getStatus(member).label();
+                }
+                replies.writeFields(RESPONSE, fields);
+            }
+            case REPLICATE -> {
+                String[] parts = reader.getParts("", Integer.MAX_VALUE);
+                Room room = parts.length > 3 ? roomManager.getStoredRoom(parts[2]) : null;
+                int count = 0;
+                if (room != null) {
+                    List<Message> copies = new ArrayList<>((parts.length - 4) / 2);
+                    for (int i = 4; i + 1 < parts.length; i += 2) {
+                        copies.add(new Message(parts[i], parts[i + 1]));
+                    }
+                    count = room.appendReplicated(Integer.parseInt(parts[3]), copies);
+                }
+                replies.writeFields(RESPONSE, parts[1], Integer.toString(count));
+            }
+            case SYNC -> {
+                String[] parts = reader.getParts("", Integer.MAX_VALUE);
+                String[] fields = new String[parts.length - 1];
+                fields[0] = parts[1];
+                for (int i = 2; i < parts.length; i++) {
+                    Room room = roomManager.getStoredRoom(parts[i]);
+                    fields[i - 1] = Integer.toString(room != null ? room.getMessageCount() : 0);
+                }
+                replies.writeFields(RESPONSE, fields);
+            }
+            case CAUGHT_UP -> {
+                caughtUp.add(peer);
+                roomManager.rebalance();
+            }
+            default -> ServerLog.warn("Unknown peer frame", "node", peer, "opcode", opcode);
+        }
+    }
+
+    /**
+     * Answer a history request.
+     *
+     * @param replies The writer for responses to the peer
+     * @param id The id of the request
+     * @param messages The messages, or null if the room is not led here
+     * @throws IOException If the response cannot be written
+     */
+    private static void writeMessages(BinaryProtocol.FrameWriter replies, String id, List<Message> messages)
+            throws IOException {
+        if (messages == null) {
+            replies.writeFields(RESPONSE, id, "0");
+            return;
+        }
+        String[] fields = new String[2 + messages.size() * 3];
+        fields[0] = id;
+        fields[1] = "1";
+        for (int i = 0; i < messages.size(); i++) {
+            fields[2 + i * 3] = Long.toString(messages.get(i).getSeq());
+            fields[3 + i * 3] = messages.get(i).getSender();
+            fields[4 + i * 3] = messages.get(i).getContent();
+        }
+        replies.writeFields(RESPONSE, fields);
+    }
+
+    /**
+     * Complete a pending request with a response frame.
+     *
+     * @param reader The reader, positioned at the response payload
+     * @throws IOException If the frame is malformed
+     */
+    private void completeRequest(BinaryProtocol.FrameReader reader) throws IOException {
+        String[] parts = reader.getParts("", Integer.MAX_VALUE);
+        PendingRequest request = parts.length > 1 ? pending.get(Long.parseLong(parts[1])) : null;
+        if (request != null) {
+            request.response().complete(Arrays.copyOfRange(parts, 2, parts.length));
+        }
+    }
+
+    /**
+     * A request waiting for its response.
+     *
+     * @param node The peer the request was sent to
+     * @param response Completed with the response fields
+     */
+    private record PendingRequest(String node, CompletableFuture<String[]> response) {
+    }
+
+    /**
+     * Sends users, rooms, tokens and sessions to peers, reading them the
+     * same way a state snapshot does. Used both to catch a peer up and to
+     * share changes as they happen.
+     */
+    private class StateWriter implements StateVisitor {
+        private final List<String> targets;
+
+        /**
+         * @param targets The peers to send to
+         */
+        StateWriter(List<String> targets) {
+            this.targets = targets;
+        }
+
+        @Override
+        public void user(String username, String passwordHash) {
+            for (String node : targets) {
+                send(node, USER, username, passwordHash);
+            }
+        }
+
+        @Override
+        public void room(String name, String prompt) {
+            for (String node : targets) {
+                send(node, ROOM, name, prompt != null ? prompt : "");
+            }
+        }
+
+        @Override
+        public void token(String tokenHash, String username, long expiryMillis) {
+            for (String node : targets) {
+                send(node, TOKEN, tokenHash, username, Long.toString(expiryMillis));
+            }
+        }
+
+        @Override
+        public void tokenRevoked(String tokenHash) {
+            for (String node : targets) {
+                send(node, TOKEN_REVOKED, tokenHash);
+            }
+        }
+
+        @Override
+        public void tokenIdRevoked(long tokenId, long expiryMillis) {
+            for (String node : targets) {
+                send(node, TOKEN_ID_REVOKED, Long.toString(tokenId), Long.toString(expiryMillis));
+            }
+        }
+
+        @Override
+        public void session(String sessionId, String username, String currentRoom) {
+            for (String node : targets) {
+                send(node, SESSION, sessionId, username, currentRoom != null ? currentRoom : "");
+            }
+        }
+
+        @Override
+        public void sessionRemoved(String sessionId) {
+            for (String node : targets) {
+                send(node, SESSION_REMOVED, sessionId);
+            }
+        }
+    }
+
+    /**
+     * This node's connection to one peer, reconnected whenever it drops.
+     * The link is ready once this node has caught the peer up. A peer whose
+     * link is not ready does not lead rooms from this node's point of view,
+     * and one that could not be reached is known to be down.
+     */
+    private class PeerLink {
+        private final String node;
+        private final InetSocketAddress address;
+        private final ReentrantLock stateLock;
+        private volatile BinaryProtocol.FrameWriter writer;
+        private volatile SSLSocket socket;
+        private volatile boolean ready;
+        private volatile boolean down;
+
+        /**
+         * @param node The id of the peer
+         * @param address The cluster address of the peer
+         */
+        PeerLink(String node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+            this.stateLock = new ReentrantLock();
+        }
+
+        /**
+         * Keep the connection open until the cluster is stopped.
+         */
+        void run() {
+            boolean loggedFailure = false;
+            while (running) {
+                try {
+                    connect();
+                    loggedFailure = false;
+                } catch (IOException e) {
+                    if (running && !loggedFailure) {
+                        ServerLog.warn("Cannot reach peer", "node", node,
+                                "address", address.getHostString() + ":" + address.getPort(), "error", e);
+                        loggedFailure = true;
+                    }
+                } finally {
+                    disconnected();
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Connect, introduce this node, catch the peer up in the background
+         * and read responses until the connection drops.
+         *
+         * @throws IOException If the connection fails
+         */
+        private void connect() throws IOException {
+            SSLSocket connection = (SSLSocket) TlsContexts.peerContext().getSocketFactory()
+                    .createSocket(address.getHostString(), address.getPort());
+            this.socket = connection;
+            try (connection) {
+                connection.setTcpNoDelay(true);
+                handshake(connection);
+                BinaryProtocol.FrameWriter frames = new BinaryProtocol.FrameWriter(
+                        new BufferedOutputStream(connection.getOutputStream()));
+                frames.writeFields(HELLO, nodeId);
+                this.writer = frames;
+                ServerLog.info("Connected to peer", "node", node);
+
+                Thread.startVirtualThread(() -> catchUp(frames));
+
+                BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(
+                        new BufferedInputStream(connection.getInputStream()));
+                int opcode;
+                while ((opcode = reader.readFrame()) >= 0) {
+                    if (opcode == RESPONSE) {
+                        completeRequest(reader);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Send the peer this node's rooms, users, tokens and sessions, copy
+         * it the messages it is missing from the rooms both store, tell it
+         * it is caught up and mark the link ready.
+         *
+         * @param frames The writer of the connection being caught up
+         */
+        private void catchUp(BinaryProtocol.FrameWriter frames) {
+            StateWriter visitor = new StateWriter(List.of(node));
+            roomManager.writeSnapshot(visitor);
+            authService.writeSnapshot(visitor);
+            tokenService.writeSnapshot(visitor);
+            sessionManager.writeSnapshot(visitor);
+
+            try {
+                syncReplicas();
+            } catch (IOException e) {
+                ServerLog.warn("Could not catch peer up", "node", node, "error", e);
+                close();
+                return;
+            }
+            if (!send(node, CAUGHT_UP)) {
+                return;
+            }
+
+            stateLock.lock();
+            try {
+                if (writer != frames) {
+                    return;
+                }
+                ready = true;
+                down = false;
+            } finally {
+                stateLock.unlock();
+            }
+            roomManager.resubscribe(node);
+            roomManager.rebalance();
+        }
+
+        /**
+         * Copy the peer the messages it is missing from the rooms both nodes
+         * store.
+         *
+         * @throws IOException If the peer does not answer or store the
+         * messages
+         */
+        private void syncReplicas() throws IOException {
+            List<String> shared = new ArrayList<>();
+            for (String name : roomManager.getStoredRoomNames()) {
+                if (replicasOf(name).contains(node)) {
+                    shared.add(name);
+                }
+            }
+            if (shared.isEmpty()) {
+                return;
+            }
+
+            String[] counts = request(node, SYNC, shared.toArray(new String[0]));
+            if (counts == null || counts.length != shared.size()) {
+                throw new IOException("No message counts from " + node);
+            }
+            int copied = 0;
+            for (int i = 0; i < shared.size(); i++) {
+                Room room = roomManager.getStoredRoom(shared.get(i));
+                int theirs = Integer.parseInt(counts[i]);
+                while (room != null && theirs < room.getMessageCount()) {
+                    List<Message> batch = room.getMessages(theirs, SYNC_BATCH_SIZE);
+                    try {
+                        copyTo(node, room, theirs, batch, false).get();
+                    } catch (ExecutionException e) {
+                        throw new IOException("Could not copy " + room.getName() + " to " + node, e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while catching up " + node, e);
+                    }
+                    theirs += batch.size();
+                    copied += batch.size();
+                }
+            }
+            if (copied > 0) {
+                ServerLog.info("Caught up peer replica", "node", node, "rooms", shared.size(), "messages", copied);
+            }
+        }
+
+        /**
+         * Mark the peer as unreachable, fail the requests waiting on it and,
+         * if it was up, move the rooms it led to their next replica.
+         */
+        private void disconnected() {
+            boolean changed;
+            stateLock.lock();
+            try {
+                changed = ready || !down;
+                if (writer != null) {
+                    writer = null;
+                    ServerLog.warn("Lost connection to peer", "node", node);
+                }
+                ready = false;
+                down = true;
+            } finally {
+                stateLock.unlock();
+            }
+            for (PendingRequest request : pending.values()) {
+                if (request.node().equals(node)) {
+                    request.response().completeExceptionally(new IOException("Connection to " + node + " lost"));
+                }
+            }
+            if (changed && running) {
+                roomManager.rebalance();
+            }
+        }
+
+        /**
+         * Close the connection.
+         */
+        void close() {
+            SSLSocket connection = socket;
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Room manager of a cluster node. Every room is stored on the nodes of its
+ * replica set, chosen by the {@link Cluster}'s hash ring; one of them leads
+ * the room at any time. Rooms this node stores are served by the regular
+ * {@link RoomManager}: while this node leads them they take messages,
+ * replicate them and relay them to subscribed nodes, and otherwise they only
+ * receive copies from the leader. Rooms led by another node are represented
+ * by a {@link RemoteRoom} while local users use them.
+ */
+public class ClusterRoomManager extends RoomManager {
+
+    private final Cluster cluster;
+    private final ConcurrentMap<String, String> remoteRoomPrompts;
+    private final ConcurrentMap<String, RemoteRoom> remoteRooms;
+    private final ReentrantLock rebalanceLock;
+
+    /**
+     * Create the room manager of a cluster node.
+     *
+     * @param messageStore The message store for stored rooms, or null to keep
+     * messages in memory only
+     * @param stateStore The state store recording created rooms, or null
+     * @param cluster The cluster connection
+     */
+    public ClusterRoomManager(MessageStore messageStore, ServerStateStore stateStore, Cluster cluster) {
+        super(messageStore, stateStore);
+        this.cluster = cluster;
+        this.remoteRoomPrompts = new ConcurrentHashMap<>();
+        this.remoteRooms = new ConcurrentHashMap<>();
+        this.rebalanceLock = new ReentrantLock();
+    }
+
+    /**
+     * Create a room object for a stored room, replicating its messages and
+     * relaying them to the subscribed nodes while this node leads it.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return The new room
+     */
+    @Override
+    protected Room newRoom(String name, String prompt) {
+        Room room = super.newRoom(name, prompt);
+        room.setRelay(cluster::relay);
+        room.setReplicator(cluster);
+        return room;
+    }
+
+    /**
+     * Create a room on the node that leads it.
+     *
+     * @param name The name of the room
+     * @return true if the room was created
+     */
+    @Override
+    public boolean createRoom(String name) {
+        return createClusterRoom(name, null);
+    }
+
+    /**
+     * Create an AI room on the node that leads it.
+     *
+     * @param name The name of the room
+     * @param prompt The initial prompt/instructions for the AI
+     * @return true if the room was created
+     */
+    @Override
+    public boolean createAiRoom(String name, String prompt) {
+        return createClusterRoom(name, prompt);
+    }
+
+    /**
+     * Create a room here if this node leads it, or ask the leader otherwise.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return true if the room was created, false if it exists or its leader
+     * cannot be reached
+     */
+    private boolean createClusterRoom(String name, String prompt) {
+        String leader = cluster.leaderOf(name);
+        if (leader.equals(cluster.getNodeId())) {
+            return createLocalRoom(name, prompt);
+        }
+        if (cluster.createRoom(leader, name, prompt)) {
+            addRemoteRoom(name, prompt);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create a room led by this node and announce it to the peers.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return true if the room was created
+     */
+    public boolean createLocalRoom(String name, String prompt) {
+        boolean created = prompt != null ? super.createAiRoom(name, prompt) : super.createRoom(name);
+        if (created) {
+            cluster.broadcastRoom(name, prompt);
+        }
+        return created;
+    }
+
+    /**
+     * Record a room announced by a peer. Rooms this node is a replica of are
+     * created here to receive their messages.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     */
+    public void addRemoteRoom(String name, String prompt) {
+        if (!cluster.isReplica(name)) {
+            remoteRoomPrompts.put(name, prompt != null ? prompt : "");
+        } else if (!hasRoom(name)) {
+            if (prompt != null) {
+                super.createAiRoom(name, prompt);
+            } else {
+                super.createRoom(name);
+            }
+        }
+    }
+
+    /**
+     * Get a room by name: the stored room if this node leads it, or the
+     * local side of the room on its leader.
+     *
+     * @param name The name of the room
+     * @return The room, or null if no such room is known
+     */
+    @Override
+    public Room getRoom(String name) {
+        String leader = cluster.leaderOf(name);
+        if (leader.equals(cluster.getNodeId())) {
+            return super.getRoom(name);
+        }
+        RemoteRoom room = remoteRooms.get(name);
+        if (room == null && (remoteRoomPrompts.containsKey(name) || hasRoom(name))) {
+            room = remoteRooms.computeIfAbsent(name, n -> new RemoteRoom(n, cluster, leader));
+        }
+        return room;
+    }
+
+    /**
+     * Announce status changes in the loaded rooms and in the local sides of
+     * rooms led by other nodes.
+     *
+     * @param changes The new status of each user whose status changed
+     */
+    @Override
+    public void announcePresence(Map<String, PresenceService.Status> changes) {
+        super.announcePresence(changes);
+        for (RemoteRoom room : remoteRooms.values()) {
+            room.announcePresence(changes);
+        }
+    }
+
+    /**
+     * Get the usernames of the users in a room on this node, without
+     * creating the local side of a remote room that has no local users.
+     *
+     * @param roomName The name of the room
+     * @return The usernames, or null if the room doesn't exist
+     */
+    @Override
+    public List<String> getRoomMembers(String roomName) {
+        if (cluster.leaderOf(roomName).equals(cluster.getNodeId())) {
+            return super.getRoomMembers(roomName);
+        }
+        RemoteRoom room = remoteRooms.get(roomName);
+        if (room != null) {
+            return room.getMembers();
+        }
+        return remoteRoomPrompts.containsKey(roomName) || hasRoom(roomName) ? List.of() : null;
+    }
+
+    /**
+     * Get the users in a room on every connected node with their status.
+     * A user on several nodes is listed with its most present status.
+     *
+     * @param roomName The name of the room
+     * @param presence The presence service giving the status of this node's
+     * users
+     * @return The status of each user in the room, or null if the room
+     * doesn't exist
+     */
+    @Override
+    public Map<String, PresenceService.Status> getRoomPresence(String roomName, PresenceService presence) {
+        Map<String, PresenceService.Status> statuses = super.getRoomPresence(roomName, presence);
+        if (statuses != null) {
+            cluster.getRemoteMembers(roomName).forEach((member, status) ->
+                    statuses.merge(member, status, (a, b) -> a.compareTo(b) <= 0 ? a : b));
+        }
+        return statuses;
+    }
+
+    /**
+     * Get a room stored on this node, whether or not this node leads it.
+     *
+     * @param name The name of the room
+     * @return The room, or null if this node does not store it
+     */
+    public Room getStoredRoom(String name) {
+        return super.getRoom(name);
+    }
+
+    /**
+     * Get the names of the rooms stored on this node.
+     *
+     * @return A list of room names
+     */
+    public List<String> getStoredRoomNames() {
+        return super.getRoomNames();
+    }
+
+    /**
+     * Fan out a message delivered by the leader of a remote room.
+     *
+     * @param roomName The name of the room
+     * @param message The message
+     */
+    public void deliver(String roomName, Message message) {
+        RemoteRoom room = remoteRooms.get(roomName);
+        if (room != null) {
+            room.deliver(message);
+        }
+    }
+
+    /**
+     * Renew the subscriptions to the rooms a peer leads.
+     *
+     * @param node The id of the peer
+     */
+    public void resubscribe(String node) {
+        for (RemoteRoom room : remoteRooms.values()) {
+            if (room.getOwner().equals(node)) {
+                room.resubscribe();
+            }
+        }
+    }
+
+    /**
+     * Move local users to the current leader of their rooms, after a node
+     * failed or came back. Users of a remote room this node now leads move
+     * into the stored room, users of a stored room another node now leads
+     * move to a remote room, and remote rooms follow their new leader.
+     */
+    public void rebalance() {
+        rebalanceLock.lock();
+        try {
+            String self = cluster.getNodeId();
+            for (RemoteRoom room : remoteRooms.values()) {
+                String leader = cluster.leaderOf(room.getName());
+                if (leader.equals(self)) {
+                    remoteRooms.remove(room.getName(), room);
+                    moveUsers(room);
+                } else if (!leader.equals(room.getOwner())) {
+                    room.moveTo(leader);
+                }
+            }
+            for (Room room : getLoadedRooms()) {
+                if (room.getUserCount() > 0 && !cluster.leaderOf(room.getName()).equals(self)) {
+                    moveUsers(room);
+                }
+            }
+        } finally {
+            rebalanceLock.unlock();
+        }
+    }
+
+    /**
+     * Move the users of a room to whatever room object now serves its name,
+     * without announcing them again.
+     *
+     * @param from The room the users are in
+     */
+    private void moveUsers(Room from) {
+        List<ClientHandler> users = from.removeAllUsers();
+        if (users.isEmpty()) {
+            return;
+        }
+        Room to = getRoom(from.getName());
+        if (to == null || !to.adoptUsers(users)) {
+            ServerLog.warn("Could not move users to new room leader", "room", from.getName(), "users", users.size());
+            return;
+        }
+        ServerLog.info("Moved users to new room leader", "room", from.getName(),
+                "leader", cluster.leaderOf(from.getName()), "users", users.size());
+    }
+
+    /**
+     * Get the names of every room in the cluster.
+     *
+     * @return A list of room names
+     */
+    @Override
+    public List<String> getRoomNames() {
+        Set<String> names = new LinkedHashSet<>(super.getRoomNames());
+        names.addAll(remoteRoomPrompts.keySet());
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Get the number of rooms in the cluster.
+     *
+     * @return The number of rooms
+     */
+    @Override
+    public int getRoomCount() {
+        return super.getRoomCount() + remoteRoomPrompts.size();
+    }
+
+    /**
+     * Evict idle stored rooms, and drop the local side of remote rooms that
+     * no local user is in.
+     *
+     * @param idleTtlMillis How long a room must be idle to be evicted
+     * @return The number of stored rooms evicted
+     */
+    @Override
+    public int evictIdleRooms(long idleTtlMillis) {
+        long cutoff = System.currentTimeMillis() - idleTtlMillis;
+        for (String name : remoteRooms.keySet()) {
+            remoteRooms.computeIfPresent(name, (n, room) -> room.closeIfIdle(cutoff) ? null : room);
+        }
+        return super.evictIdleRooms(idleTtlMillis);
+    }
+}
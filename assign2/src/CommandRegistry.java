@@ -0,0 +1,361 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Table of the commands a connection accepts. Each command is a handler
+ * object with its keyword, the number of arguments it requires and whether it
+ * needs an authenticated client. Keywords are looked up straight from a
+ * region of the input line, so dispatching a command neither splits the line
+ * nor allocates a keyword string, and adding a command does not grow a switch.
+ *
+ * Every command keeps its own invocation count and latency totals, which can
+ * be read while the server runs.
+ *
+ * The registry is filled once and read concurrently afterwards.
+ *
+ * @param <T> The type of the object the handlers act on
+ */
+public class CommandRegistry<T> {
+
+    private final List<Command<T>> commands;
+    private Object[] table;
+
+    /**
+     * Create an empty registry.
+     */
+    public CommandRegistry() {
+        this.commands = new ArrayList<>();
+        this.table = new Object[16];
+    }
+
+    /**
+     * Register a command.
+     *
+     * @param name The keyword of the command
+     * @param arity The number of arguments the command requires
+     * @param requiresAuth Whether the command is only accepted from
+     * authenticated clients; other commands are only accepted before
+     * authentication
+     * @param handler The handler executing the command
+     * @return This registry
+     */
+    public CommandRegistry<T> register(String name, int arity, boolean requiresAuth, Handler<T> handler) {
+        if (lookup(name) != null) {
+            throw new IllegalArgumentException("Duplicate command " + name);
+        }
+
+        commands.add(new Command<>(name, arity, requiresAuth, handler));
+        if (commands.size() * 2 > table.length) {
+            table = new Object[table.length * 2];
+        }
+        rebuild();
+        return this;
+    }
+
+    /**
+     * Look up the command whose keyword is the given region of a line.
+     *
+     * @param line The line
+     * @param start The start of the keyword, inclusive
+     * @param end The end of the keyword, exclusive
+     * @return The command, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public Command<T> lookup(CharSequence line, int start, int end) {
+        int mask = table.length - 1;
+        for (int slot = hash(line, start, end) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            Command<T> command = (Command<T>) table[slot];
+            if (matches(command.name, line, start, end)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Look up a command by keyword.
+     *
+     * @param name The keyword
+     * @return The command, or null if there is none
+     */
+    public Command<T> lookup(String name) {
+        return lookup(name, 0, name.length());
+    }
+
+    /**
+     * Get every registered command.
+     *
+     * @return The commands, in registration order
+     */
+    public List<Command<T>> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * Place every command in the open-addressing table.
+     */
+    private void rebuild() {
+        int mask = table.length - 1;
+        Arrays.fill(table, null);
+        for (Command<T> command : commands) {
+            int slot = hash(command.name, 0, command.name.length()) & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = command;
+        }
+    }
+
+    /**
+     * Hash a region of a character sequence.
+     */
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Check whether a region of a character sequence equals a keyword.
+     */
+    private static boolean matches(String name, CharSequence text, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes a command on behalf of a target.
+     *
+     * @param <T> The type of the target
+     */
+    @FunctionalInterface
+    public interface Handler<T> {
+
+        void handle(T target, CommandLine line);
+    }
+
+    /**
+     * A registered command and its latency counters.
+     *
+     * @param <T> The type of the object the handler acts on
+     */
+    public static final class Command<T> {
+        private final String name;
+        private final int arity;
+        private final boolean requiresAuth;
+        private final Handler<T> handler;
+        private final LongAdder invocations;
+        private final LongAdder totalNanos;
+        private final LongAccumulator maxNanos;
+
+        private Command(String name, int arity, boolean requiresAuth, Handler<T> handler) {
+            this.name = name;
+            this.arity = arity;
+            this.requiresAuth = requiresAuth;
+            this.handler = handler;
+            this.invocations = new LongAdder();
+            this.totalNanos = new LongAdder();
+            this.maxNanos = new LongAccumulator(Math::max, 0);
+        }
+
+        /**
+         * Run the command and record how long it took, both in the counters
+         * and as a {@link ChatEvents.Command} flight recorder event.
+         *
+         * @param target The object the handler acts on
+         * @param line The parsed command line
+         */
+        public void execute(T target, CommandLine line) {
+            ChatEvents.Command event = new ChatEvents.Command();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                handler.handle(target, line);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                invocations.increment();
+                totalNanos.add(elapsed);
+                maxNanos.accumulate(elapsed);
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.command = name;
+                    event.commit();
+                }
+            }
+        }
+
+        /**
+         * Get the keyword of the command.
+         *
+         * @return The keyword
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the number of arguments the command requires.
+         *
+         * @return The arity
+         */
+        public int getArity() {
+            return arity;
+        }
+
+        /**
+         * Check whether the command is only accepted from authenticated
+         * clients.
+         *
+         * @return true if authentication is required
+         */
+        public boolean requiresAuth() {
+            return requiresAuth;
+        }
+
+        /**
+         * Get the number of times the command has run.
+         *
+         * @return The invocation count
+         */
+        public long getInvocations() {
+            return invocations.sum();
+        }
+
+        /**
+         * Get the total time spent running the command.
+         *
+         * @return The total time in nanoseconds
+         */
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * Get the longest time a single run of the command took.
+         *
+         * @return The maximum time in nanoseconds
+         */
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * A command line parsed into a keyword and up to
+     * {@value #MAX_ARGUMENTS} arguments, the last of which holds the rest of
+     * the line. Arguments are kept as offsets into the line and only turned
+     * into strings when a handler asks for them. An instance is meant to be
+     * reused by a single connection.
+     */
+    public static final class CommandLine {
+        public static final int MAX_ARGUMENTS = 2;
+
+        private final int[] starts;
+        private final int[] ends;
+        private final String[] values;
+        private CharSequence line;
+        private int keywordEnd;
+        private int count;
+
+        /**
+         * Create an empty command line.
+         */
+        public CommandLine() {
+            this.starts = new int[MAX_ARGUMENTS];
+            this.ends = new int[MAX_ARGUMENTS];
+            this.values = new String[MAX_ARGUMENTS];
+        }
+
+        /**
+         * Parse a text line. Fields are separated by single spaces.
+         *
+         * @param line The line
+         */
+        public void parse(CharSequence line) {
+            this.line = line;
+            this.count = 0;
+            this.keywordEnd = indexOfSpace(line, 0);
+
+            int position = keywordEnd;
+            while (position < line.length() && count < MAX_ARGUMENTS) {
+                int start = position + 1;
+                int end = count == MAX_ARGUMENTS - 1 ? line.length() : indexOfSpace(line, start);
+                starts[count] = start;
+                ends[count] = end;
+                values[count] = null;
+                count++;
+                position = end;
+            }
+        }
+
+        /**
+         * Use arguments that have already been decoded, such as the fields of
+         * a binary frame. A null argument reads back as null.
+         *
+         * @param arguments The arguments, without the keyword
+         */
+        public void set(String... arguments) {
+            this.line = null;
+            this.keywordEnd = 0;
+            this.count = Math.min(arguments.length, MAX_ARGUMENTS);
+            System.arraycopy(arguments, 0, values, 0, count);
+        }
+
+        /**
+         * Get the end of the keyword in the parsed line.
+         *
+         * @return The exclusive end offset of the keyword
+         */
+        public int getKeywordEnd() {
+            return keywordEnd;
+        }
+
+        /**
+         * Get the number of arguments after the keyword.
+         *
+         * @return The argument count
+         */
+        public int getArgumentCount() {
+            return count;
+        }
+
+        /**
+         * Get an argument.
+         *
+         * @param index The index of the argument, starting at 0
+         * @return The argument, or null if there are not that many
+         */
+        public String getArgument(int index) {
+            if (index >= count) {
+                return null;
+            }
+            if (values[index] == null && line != null) {
+                values[index] = line.subSequence(starts[index], ends[index]).toString();
+            }
+            return values[index];
+        }
+
+        private static int indexOfSpace(CharSequence text, int from) {
+            for (int i = from; i < text.length(); i++) {
+                if (text.charAt(i) == ' ') {
+                    return i;
+                }
+            }
+            return text.length();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Short-lived cache of recently verified passwords, so a user logging in
+ * again within a few seconds, as clients do after a dropped connection, is
+ * not charged another slow password hash.
+ *
+ * Passwords are not kept: each entry holds an HMAC-SHA256 of the password
+ * under a random key that only lives in this process, together with the
+ * stored hash the password was verified against. An entry is used only if
+ * that stored hash is still the user's current one, so a changed password
+ * invalidates it even if {@link #invalidate(String)} is not called. Entries
+ * expire after {@code chat.authCacheSeconds} and the least recently used
+ * ones are dropped beyond {@code chat.authCacheSize}.
+ */
+public class CredentialCache {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MAX_ENTRIES = Integer.getInteger("chat.authCacheSize", 10000);
+    private static final long TTL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.authCacheSeconds", 60));
+    private static final int KEY_BYTES = 32;
+
+    private final SecretKeySpec key;
+    private final Map<String, Entry> entries;
+    private final ReentrantLock lock;
+
+    /**
+     * Create an empty cache with a new random key.
+     */
+    public CredentialCache() {
+        byte[] keyBytes = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        this.lock = new ReentrantLock();
+    }
+
+    /**
+     * Check whether a password was verified recently against a user's
+     * current stored hash.
+     *
+     * @param username The username
+     * @param password The password
+     * @param storedHash The user's current stored hash
+     * @return true if the password is known to match
+     */
+    public boolean matches(String username, String password, String storedHash) {
+        if (MAX_ENTRIES <= 0) {
+            return false;
+        }
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(username);
+            if (entry != null && System.currentTimeMillis() >= entry.expiryMillis) {
+                entries.remove(username);
+                entry = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entry != null && entry.storedHash.equals(storedHash)
+                && MessageDigest.isEqual(entry.digest, digest(username, password));
+    }
+
+    /**
+     * Remember a password that has just been verified.
+     *
+     * @param username The username
+     * @param password The verified password
+     * @param storedHash The stored hash it was verified against
+     */
+    public void put(String username, String password, String storedHash) {
+        if (MAX_ENTRIES <= 0) {
+            return;
+        }
+        Entry entry = new Entry(digest(username, password), storedHash,
+                System.currentTimeMillis() + TTL_MILLIS);
+        lock.lock();
+        try {
+            entries.put(username, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget a user's cached password, after it is registered or its stored
+     * hash changes.
+     *
+     * @param username The username
+     */
+    public void invalidate(String username) {
+        lock.lock();
+        try {
+            entries.remove(username);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of cached passwords, including expired ones not yet
+     * dropped.
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Compute the keyed digest of a username and password.
+     *
+     * @param username The username
+     * @param password The password
+     * @return The digest
+     */
+    private byte[] digest(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 not available", e);
+        }
+    }
+
+    /**
+     * A verified password digest and the stored hash it matched.
+     */
+    private static final class Entry {
+        private final byte[] digest;
+        private final String storedHash;
+        private final long expiryMillis;
+
+        Entry(byte[] digest, String storedHash, long expiryMillis) {
+            this.digest = digest;
+            this.storedHash = storedHash;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Consistent hash ring mapping keys, such as room names, to cluster nodes.
+ * Every node is placed on the ring at {@value #VIRTUAL_NODES} points so keys
+ * spread evenly; a key belongs to the first node point at or after its hash.
+ * Adding or removing a node only moves the keys next to that node's points.
+ *
+ * The ring is immutable and every node computes the same ring from the same
+ * node list, so nodes agree on ownership without talking to each other.
+ */
+public class HashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+    private final String[] owners;
+    private final List<String> nodes;
+
+    /**
+     * Create a ring over the given nodes.
+     *
+     * @param nodes The node ids
+     */
+    public HashRing(Collection<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = List.copyOf(nodes);
+
+        int count = this.nodes.size() * VIRTUAL_NODES;
+        long[] hashes = new long[count];
+        String[] unsortedOwners = new String[count];
+        Integer[] order = new Integer[count];
+        int i = 0;
+        for (String node : this.nodes) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[i] = hash(node + "#" + v);
+                unsortedOwners[i] = node;
+                order[i] = i;
+                i++;
+            }
+        }
+
+        // Ties are broken by node id so every node builds the same ring
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compare(hashes[a], hashes[b])
+                : unsortedOwners[a].compareTo(unsortedOwners[b]));
+        this.points = new long[count];
+        this.owners = new String[count];
+        for (int j = 0; j < count; j++) {
+            points[j] = hashes[order[j]];
+            owners[j] = unsortedOwners[order[j]];
+        }
+    }
+
+    /**
+     * Get the node that owns a key.
+     *
+     * @param key The key
+     * @return The id of the owning node
+     */
+    public String ownerOf(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Get the preference list of a key: the distinct nodes met walking the
+     * ring clockwise from the key's hash. The first is the key's owner.
+     *
+     * @param key The key
+     * @param count The number of nodes wanted
+     * @return Up to {@code count} node ids, fewer if the ring has fewer nodes
+     */
+    public List<String> ownersOf(String key, int count) {
+        int wanted = Math.min(count, nodes.size());
+        List<String> result = new ArrayList<>(wanted);
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = 0; i < points.length && result.size() < wanted; i++) {
+            String owner = owners[(index + i) % points.length];
+            if (!result.contains(owner)) {
+                result.add(owner);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the nodes on the ring.
+     *
+     * @return The node ids
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Hash a string with 64-bit FNV-1a over its UTF-8 bytes, followed by a
+     * finalizer that spreads nearby inputs across the whole range.
+     *
+     * @param key The string
+     * @return The hash
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,676 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * User directory kept on disk in a hashed index file, so the heap and the
+ * startup time do not grow with the number of users.
+ *
+ * The index ({@code users.idx}) is split into {@value #PAGE_SIZE}-byte
+ * pages. Page 0 is the header, and pages 1 to N are the hash buckets, each
+ * followed by a chain of overflow pages when it fills up. The number of
+ * buckets is chosen when the index is built so that buckets are about
+ * {@value #LOAD_FACTOR} full, and overflow pages are then rare: a lookup
+ * hashes the username and reads the one page of its bucket. The file is
+ * mapped read-only, so lookups need no lock and no system call, and the
+ * operating system keeps only the pages in use in memory.
+ *
+ * Registrations and hash upgrades are appended to a {@link WriteAheadLog}
+ * and kept in an in-memory overlay that is checked before the index. A
+ * background compaction, due once the log has grown to a quarter of the
+ * index, freezes the overlay, rotates the log, builds a new index from the
+ * frozen overlay and the old index in one pass, and atomically renames it
+ * into place before dropping the frozen overlay and the log generations it
+ * covers. Startup maps the index and replays only the log written since it
+ * was built.
+ */
+public class IndexedUserDirectory implements UserDirectory {
+
+    private static final String DEFAULT_DIRECTORY = System.getProperty("chat.dataDir", "data") + "/users-index";
+    private static final String INDEX_FILE = "users.idx";
+    private static final int MAGIC = 0x55494458;
+    private static final int VERSION = 1;
+    private static final int PAGE_SIZE = 4096;
+    private static final int PAGE_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = PAGE_SIZE - PAGE_HEADER_SIZE;
+    private static final double LOAD_FACTOR = 0.75;
+    private static final int SEGMENT_PAGES = 16384;
+    private static final long SEGMENT_SIZE = (long) SEGMENT_PAGES * PAGE_SIZE;
+    private static final long COMPACTION_CHECK_SECONDS = 60;
+    private static final long MIN_COMPACTION_BYTES = 4 * 1024 * 1024;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final byte USER = 1;
+
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService scheduler;
+    private final ReentrantReadWriteLock overlayLock;
+    private final AtomicLong userCount;
+    private volatile ConcurrentMap<String, String> current;
+    private volatile ConcurrentMap<String, String> frozen;
+    private volatile Index index;
+    private volatile long replayedLogBytes;
+
+    /**
+     * Create a user directory over an index that has been mapped but whose
+     * log has not been replayed yet.
+     *
+     * @param directory The directory holding the index and the log
+     * @param index The mapped index
+     * @throws IOException If the log directory cannot be created
+     */
+    private IndexedUserDirectory(Path directory, Index index) throws IOException {
+        this.directory = directory;
+        this.wal = new WriteAheadLog(directory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-index-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.overlayLock = new ReentrantReadWriteLock();
+        this.current = new ConcurrentHashMap<>();
+        this.frozen = new ConcurrentHashMap<>();
+        this.index = index;
+        this.userCount = new AtomicLong(index.userCount);
+    }
+
+    /**
+     * Open the user directory in the default directory.
+     *
+     * @return The user directory
+     * @throws IOException If the index or the log cannot be read
+     */
+    public static IndexedUserDirectory open() throws IOException {
+        return open(Paths.get(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Open the user directory in the given directory, mapping the index and
+     * replaying the log written since it was built, then start compacting
+     * the log periodically.
+     *
+     * @param directory The directory holding the index and the log
+     * @return The user directory
+     * @throws IOException If the index or the log cannot be read
+     */
+    public static IndexedUserDirectory open(Path directory) throws IOException {
+        Path file = directory.resolve(INDEX_FILE);
+        IndexedUserDirectory users = new IndexedUserDirectory(directory,
+                Files.exists(file) ? Index.open(file) : Index.EMPTY);
+        users.replayLog();
+        users.wal.open();
+
+        users.scheduler.scheduleWithFixedDelay(users::compactIfDue, COMPACTION_CHECK_SECONDS,
+                COMPACTION_CHECK_SECONDS, TimeUnit.SECONDS);
+        ServerLog.info("Opened user index", "users", users.userCount.get(), "buckets", users.index.bucketCount,
+                "pages", users.index.pageCount, "logBytes", users.replayedLogBytes);
+        return users;
+    }
+
+    /**
+     * Load the changes logged since the index was built into the overlay.
+     *
+     * @throws IOException If the log cannot be read
+     */
+    private void replayLog() throws IOException {
+        long[] logBytes = {0};
+        wal.replay(index.generation, payload -> {
+            logBytes[0] += payload.length;
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte type = buffer.get();
+            if (type != USER) {
+                ServerLog.warn("Skipping unknown user record", "type", type);
+                return;
+            }
+            String username = getString(buffer);
+            if (current.put(username, getString(buffer)) == null && index.lookup(username) == null) {
+                userCount.incrementAndGet();
+            }
+        });
+        this.replayedLogBytes = logBytes[0];
+    }
+
+    @Override
+    public String getPasswordHash(String username) {
+        String hash = current.get(username);
+        if (hash == null) {
+            hash = frozen.get(username);
+        }
+        return hash != null ? hash : index.lookup(username);
+    }
+
+    /**
+     * Add a user and wait until its log record is durable. Users whose
+     * record would not fit in one index page are rejected.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     * @return true if the user was added
+     */
+    @Override
+    public boolean addUser(String username, String passwordHash) {
+        if (recordSize(username, passwordHash) > MAX_RECORD_SIZE) {
+            ServerLog.warn("Rejecting user too large for the user index", "user", username);
+            return false;
+        }
+        overlayLock.readLock().lock();
+        try {
+            if (getPasswordHash(username) != null || current.putIfAbsent(username, passwordHash) != null) {
+                return false;
+            }
+            userCount.incrementAndGet();
+            persist(username, passwordHash);
+            return true;
+        } finally {
+            overlayLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean replacePasswordHash(String username, String expectedHash, String passwordHash) {
+        if (recordSize(username, passwordHash) > MAX_RECORD_SIZE) {
+            return false;
+        }
+        boolean[] replaced = {false};
+        overlayLock.readLock().lock();
+        try {
+            current.compute(username, (name, hash) -> {
+                String existing = hash != null ? hash : getPersistedHash(name);
+                if (!expectedHash.equals(existing)) {
+                    return hash;
+                }
+                replaced[0] = true;
+                return passwordHash;
+            });
+            if (replaced[0]) {
+                persist(username, passwordHash);
+            }
+            return replaced[0];
+        } finally {
+            overlayLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add many users at once and write them into a new index rather than
+     * appending them to the log one by one.
+     *
+     * @param users The password hash of each username
+     */
+    @Override
+    public void importUsers(Map<String, String> users) {
+        boolean added = false;
+        overlayLock.readLock().lock();
+        try {
+            for (Map.Entry<String, String> entry : users.entrySet()) {
+                String username = entry.getKey();
+                if (recordSize(username, entry.getValue()) <= MAX_RECORD_SIZE
+                        && getPasswordHash(username) == null
+                        && current.putIfAbsent(username, entry.getValue()) == null) {
+                    userCount.incrementAndGet();
+                    added = true;
+                }
+            }
+        } finally {
+            overlayLock.readLock().unlock();
+        }
+        if (added) {
+            compact();
+        }
+    }
+
+    /**
+     * Pass every user to a consumer, reading the overlays and the index in
+     * the same order as a lookup so that a concurrent compaction neither
+     * hides nor repeats a user.
+     *
+     * @param consumer Receives the username and stored hash of each user
+     */
+    @Override
+    public void forEachUser(BiConsumer<String, String> consumer) {
+        Map<String, String> newest = current;
+        Map<String, String> older = frozen;
+        Index indexed = index;
+        newest.forEach(consumer);
+        older.forEach((username, hash) -> {
+            if (!newest.containsKey(username)) {
+                consumer.accept(username, hash);
+            }
+        });
+        indexed.forEach((username, hash) -> {
+            if (!newest.containsKey(username) && !older.containsKey(username)) {
+                consumer.accept(username, hash);
+            }
+        });
+    }
+
+    /**
+     * The users are on disk, and a lookup of an unknown user reads a single
+     * mapped page, so no filter is needed in front of the directory.
+     *
+     * @return false
+     */
+    @Override
+    public boolean isHeldInMemory() {
+        return false;
+    }
+
+    @Override
+    public long getUserCount() {
+        return userCount.get();
+    }
+
+    /**
+     * Build a new index holding every user and drop the log generations it
+     * covers. Changes made during the build go to a new overlay and a new
+     * log generation.
+     */
+    public synchronized void compact() {
+        long start = System.nanoTime();
+        long generation;
+        overlayLock.writeLock().lock();
+        ConcurrentMap<String, String> toIndex = current;
+        try {
+            frozen = toIndex;
+            current = new ConcurrentHashMap<>();
+            generation = wal.rotate();
+        } catch (IOException e) {
+            current = toIndex;
+            frozen = new ConcurrentHashMap<>();
+            ServerLog.error("Error compacting user index", "error", e);
+            return;
+        } finally {
+            overlayLock.writeLock().unlock();
+        }
+
+        Index previous = index;
+        Path file = directory.resolve(INDEX_FILE);
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        try {
+            long dataBytes = previous.dataBytes;
+            for (Map.Entry<String, String> entry : toIndex.entrySet()) {
+                dataBytes += recordSize(entry.getKey(), entry.getValue());
+            }
+            Index.build(temp, generation, dataBytes, sink -> {
+                toIndex.forEach(sink);
+                previous.forEach((username, hash) -> {
+                    if (!toIndex.containsKey(username)) {
+                        sink.accept(username, hash);
+                    }
+                });
+            });
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            index = Index.open(file);
+            frozen = new ConcurrentHashMap<>();
+            wal.deleteBefore(generation);
+            replayedLogBytes = 0;
+            ServerLog.info("Compacted user index", "users", index.userCount, "buckets", index.bucketCount,
+                    "pages", index.pageCount, "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException e) {
+            // The log generations are kept, so only the overlays need folding
+            // back together; newer hashes in the current overlay win.
+            toIndex.forEach(current::putIfAbsent);
+            frozen = new ConcurrentHashMap<>();
+            ServerLog.error("Error compacting user index", "error", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        wal.close();
+    }
+
+    /**
+     * Compact the index if the log, including what earlier runs left of it,
+     * has grown to a quarter of the size of the indexed records.
+     */
+    private void compactIfDue() {
+        if (replayedLogBytes + wal.getBytesWritten() >= Math.max(MIN_COMPACTION_BYTES, index.dataBytes / 4)) {
+            compact();
+        }
+    }
+
+    /**
+     * Look up a user in the frozen overlay and the index only.
+     *
+     * @param username The username
+     * @return The stored hash, or null if the user is not there
+     */
+    private String getPersistedHash(String username) {
+        String hash = frozen.get(username);
+        return hash != null ? hash : index.lookup(username);
+    }
+
+    /**
+     * Append a user's current hash to the log and wait until it is durable.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     */
+    private void persist(String username, String passwordHash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = passwordHash.getBytes(StandardCharsets.UTF_8);
+        byte[] record = ByteBuffer.allocate(5 + name.length + hash.length)
+                .put(USER)
+                .putShort((short) name.length).put(name)
+                .putShort((short) hash.length).put(hash)
+                .array();
+        if (!wal.append(record)) {
+            ServerLog.error("Error persisting user", "user", username);
+        }
+    }
+
+    /**
+     * Get the size of a user's record in an index page.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     * @return The record size in bytes
+     */
+    private static int recordSize(String username, String passwordHash) {
+        return 4 + username.getBytes(StandardCharsets.UTF_8).length
+                + passwordHash.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Read a length-prefixed string from a log record.
+     *
+     * @param buffer The record, positioned at the string
+     * @return The string
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Hash a username's UTF-8 bytes with FNV-1a, finished with the
+     * MurmurHash3 mixer so the bucket depends on every byte.
+     *
+     * @param name The UTF-8 bytes of the username
+     * @return The hash
+     */
+    private static long hash(byte[] name) {
+        long h = FNV_OFFSET;
+        for (byte b : name) {
+            h = (h ^ (b & 0xff)) * FNV_PRIME;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A read-only mapping of an index file. The header page holds
+     * {@code [int magic][int version][long generation][int bucket count]
+     * [int page count][long user count][long record bytes]}. Every other
+     * page starts with {@code [short record count][short unused][int next
+     * page]}, where a next page of 0 ends the chain, followed by records of
+     * {@code [short length][UTF-8 username][short length][UTF-8 hash]}.
+     */
+    private static final class Index {
+
+        private static final Index EMPTY = new Index(new ByteBuffer[0], 0, 0, 0, 0, 0);
+
+        private final ByteBuffer[] segments;
+        private final long generation;
+        private final int bucketCount;
+        private final int pageCount;
+        private final long userCount;
+        private final long dataBytes;
+
+        private Index(ByteBuffer[] segments, long generation, int bucketCount, int pageCount, long userCount,
+                long dataBytes) {
+            this.segments = segments;
+            this.generation = generation;
+            this.bucketCount = bucketCount;
+            this.pageCount = pageCount;
+            this.userCount = userCount;
+            this.dataBytes = dataBytes;
+        }
+
+        /**
+         * Map an index file. The channel is closed once the file is mapped;
+         * the mappings stay valid until they are garbage collected.
+         *
+         * @param file The index file
+         * @return The index
+         * @throws IOException If the file cannot be mapped or is not an index
+         */
+        static Index open(Path file) throws IOException {
+            ByteBuffer[] segments;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < PAGE_SIZE) {
+                    throw new IOException("User index is truncated: " + file);
+                }
+                segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(SEGMENT_SIZE, size - position));
+                }
+            }
+            ByteBuffer header = segments[0];
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a user index: " + file);
+            }
+            return new Index(segments, header.getLong(8), header.getInt(16), header.getInt(20),
+                    header.getLong(24), header.getLong(32));
+        }
+
+        /**
+         * Look up a username in its bucket.
+         *
+         * @param username The username
+         * @return The stored hash, or null if the user is not indexed
+         */
+        String lookup(String username) {
+            if (bucketCount == 0) {
+                return null;
+            }
+            byte[] name = username.getBytes(StandardCharsets.UTF_8);
+            int page = 1 + (int) Math.floorMod(hash(name), (long) bucketCount);
+            while (page != 0) {
+                ByteBuffer segment = segments[page / SEGMENT_PAGES];
+                int base = (page % SEGMENT_PAGES) * PAGE_SIZE;
+                int count = segment.getShort(base) & 0xffff;
+                int position = base + PAGE_HEADER_SIZE;
+                for (int i = 0; i < count; i++) {
+                    int nameLength = segment.getShort(position) & 0xffff;
+                    int hashPosition = position + 2 + nameLength;
+                    int hashLength = segment.getShort(hashPosition) & 0xffff;
+                    if (nameLength == name.length && matches(segment, position + 2, name)) {
+                        byte[] hash = new byte[hashLength];
+                        segment.get(hashPosition + 2, hash);
+                        return new String(hash, StandardCharsets.UTF_8);
+                    }
+                    position = hashPosition + 2 + hashLength;
+                }
+                page = segment.getInt(base + 4);
+            }
+            return null;
+        }
+
+        /**
+         * Pass every indexed user to a consumer, reading the pages in file
+         * order.
+         *
+         * @param consumer Receives the username and stored hash of each user
+         */
+        void forEach(BiConsumer<String, String> consumer) {
+            for (int page = 1; page < pageCount; page++) {
+                ByteBuffer segment = segments[page / SEGMENT_PAGES];
+                int base = (page % SEGMENT_PAGES) * PAGE_SIZE;
+                int count = segment.getShort(base) & 0xffff;
+                int position = base + PAGE_HEADER_SIZE;
+                for (int i = 0; i < count; i++) {
+                    int nameLength = segment.getShort(position) & 0xffff;
+                    byte[] name = new byte[nameLength];
+                    segment.get(position + 2, name);
+                    position += 2 + nameLength;
+                    int hashLength = segment.getShort(position) & 0xffff;
+                    byte[] hash = new byte[hashLength];
+                    segment.get(position + 2, hash);
+                    position += 2 + hashLength;
+                    consumer.accept(new String(name, StandardCharsets.UTF_8),
+                            new String(hash, StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        /**
+         * Compare the bytes at a position of a page with a username.
+         *
+         * @param segment The mapped segment
+         * @param position The position of the stored username
+         * @param name The UTF-8 bytes of the username
+         * @return true if they are equal
+         */
+        private static boolean matches(ByteBuffer segment, int position, byte[] name) {
+            for (int i = 0; i < name.length; i++) {
+                if (segment.get(position + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Write a new index file in one pass over the users, appending each
+         * record to the last page of its bucket's chain. The file is written
+         * through read-write mappings, forced, and cut to the pages used.
+         *
+         * @param file The file to write
+         * @param generation The first log generation not covered by the index
+         * @param dataBytes The total size of the records, used to choose the
+         * number of buckets
+         * @param source Passes every user to a consumer
+         * @throws IOException If the file cannot be written
+         */
+        static void build(Path file, long generation, long dataBytes, Consumer<BiConsumer<String, String>> source)
+                throws IOException {
+            int bucketCount = (int) Math.min(Integer.MAX_VALUE / 2,
+                    Math.max(1, (long) Math.ceil(dataBytes / (MAX_RECORD_SIZE * LOAD_FACTOR))));
+            int[] tailPage = new int[bucketCount];
+            int[] tailFill = new int[bucketCount];
+            for (int bucket = 0; bucket < bucketCount; bucket++) {
+                tailPage[bucket] = 1 + bucket;
+                tailFill[bucket] = PAGE_HEADER_SIZE;
+            }
+
+            List<MappedByteBuffer> segments = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                int[] pageCount = {1 + bucketCount};
+                long[] userCount = {0};
+                long[] recordBytes = {0};
+                IOException[] failure = {null};
+                source.accept((username, passwordHash) -> {
+                    if (failure[0] != null) {
+                        return;
+                    }
+                    byte[] name = username.getBytes(StandardCharsets.UTF_8);
+                    byte[] hash = passwordHash.getBytes(StandardCharsets.UTF_8);
+                    int size = 4 + name.length + hash.length;
+                    int bucket = (int) Math.floorMod(hash(name), (long) bucketCount);
+                    try {
+                        if (tailFill[bucket] + size > PAGE_SIZE) {
+                            int next = pageCount[0]++;
+                            segmentFor(channel, segments, tailPage[bucket])
+                                    .putInt(offsetOf(tailPage[bucket]) + 4, next);
+                            tailPage[bucket] = next;
+                            tailFill[bucket] = PAGE_HEADER_SIZE;
+                        }
+                        ByteBuffer segment = segmentFor(channel, segments, tailPage[bucket]);
+                        int base = offsetOf(tailPage[bucket]);
+                        segment.putShort(base, (short) (segment.getShort(base) + 1));
+                        segment.position(base + tailFill[bucket]);
+                        segment.putShort((short) name.length).put(name).putShort((short) hash.length).put(hash);
+                        tailFill[bucket] += size;
+                        userCount[0]++;
+                        recordBytes[0] += size;
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+
+                segmentFor(channel, segments, pageCount[0] - 1);
+                ByteBuffer header = segmentFor(channel, segments, 0);
+                header.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, generation).putInt(16, bucketCount)
+                        .putInt(20, pageCount[0]).putLong(24, userCount[0]).putLong(32, recordBytes[0]);
+                for (MappedByteBuffer segment : segments) {
+                    if (segment != null) {
+                        segment.force();
+                    }
+                }
+                channel.truncate((long) pageCount[0] * PAGE_SIZE);
+                channel.force(true);
+            }
+        }
+
+        /**
+         * Get the read-write mapping of the segment holding a page, mapping
+         * it and growing the file if needed.
+         *
+         * @param channel The index file
+         * @param segments The segments mapped so far
+         * @param page The page number
+         * @return The segment
+         * @throws IOException If the segment cannot be mapped
+         */
+        private static MappedByteBuffer segmentFor(FileChannel channel, List<MappedByteBuffer> segments, int page)
+                throws IOException {
+            int index = page / SEGMENT_PAGES;
+            while (segments.size() <= index) {
+                segments.add(null);
+            }
+            MappedByteBuffer segment = segments.get(index);
+            if (segment == null) {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, index * SEGMENT_SIZE, SEGMENT_SIZE);
+                segments.set(index, segment);
+            }
+            return segment;
+        }
+
+        /**
+         * Get the offset of a page within its segment.
+         *
+         * @param page The page number
+         * @return The offset in bytes
+         */
+        private static int offsetOf(int page) {
+            return (page % SEGMENT_PAGES) * PAGE_SIZE;
+        }
+    }
+}
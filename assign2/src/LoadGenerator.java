@@ -0,0 +1,453 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Headless load generator for the chat server. Starts many clients on
+ * virtual threads that register, log in, join a room and send messages at a
+ * fixed rate over the text protocol. Every message carries the
+ * {@link System#nanoTime()} at which it was sent, so when a client receives a
+ * broadcast it can compute the send-to-receive latency. Since the senders and
+ * receivers share one JVM, the clocks agree; the server must be local for the
+ * numbers to mean anything.
+ *
+ * Room sizes follow either a uniform or a Zipf distribution, so both evenly
+ * spread rooms and a few very crowded ones can be simulated.
+ */
+public class LoadGenerator {
+
+    private static final String TIMESTAMP_MARKER = "lt:";
+    private static final int MAX_CONCURRENT_CONNECTS = 100;
+
+    private final Options options;
+    private final SSLSocketFactory socketFactory;
+    private volatile MetricsRegistry.Histogram latency;
+    private final LongAdder sent;
+    private final LongAdder received;
+    private final LongAdder connected;
+    private final Map<String, LongAdder> errors;
+    private volatile boolean sending;
+    private volatile boolean running;
+
+    /**
+     * Create a load generator.
+     *
+     * @param options The options
+     * @param socketFactory The factory for client connections
+     */
+    public LoadGenerator(Options options, SSLSocketFactory socketFactory) {
+        this.options = options;
+        this.socketFactory = socketFactory;
+        this.latency = new MetricsRegistry().histogram("latency", "Send-to-receive latency");
+        this.sent = new LongAdder();
+        this.received = new LongAdder();
+        this.connected = new LongAdder();
+        this.errors = new ConcurrentHashMap<>();
+        this.sending = false;
+        this.running = true;
+    }
+
+    /**
+     * Main entry point for the load generator.
+     *
+     * @param args Command line arguments
+     * @throws InterruptedException If interrupted while waiting for clients
+     */
+    public static void main(String[] args) throws InterruptedException {
+        // java LoadGenerator [--host <host>] [--port <port>] [--clients <n>] [--rooms <n>]
+        //     [--rate <messages per second per client>] [--duration <seconds>] [--warmup <seconds>]
+        //     [--distribution uniform|zipf] [--zipf-exponent <s>] [--message-size <bytes>]
+
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        SSLSocketFactory socketFactory;
+        try {
+            socketFactory = TlsContexts.clientContext().getSocketFactory();
+        } catch (IOException e) {
+            System.err.println("Could not load trust store: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        new LoadGenerator(options, socketFactory).run();
+    }
+
+    /**
+     * Connect every client, send for the configured duration and print a
+     * report.
+     *
+     * @throws InterruptedException If interrupted while waiting for clients
+     */
+    public void run() throws InterruptedException {
+        int[] roomOfClient = assignRooms();
+        printRoomSizes(roomOfClient);
+
+        CountDownLatch ready = new CountDownLatch(options.clients);
+        CountDownLatch done = new CountDownLatch(options.clients);
+        Semaphore connects = new Semaphore(MAX_CONCURRENT_CONNECTS);
+
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < options.clients; i++) {
+            int id = i;
+            Thread.startVirtualThread(() -> {
+                try {
+                    runClient(id, "load-room-" + roomOfClient[id], connects, ready);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        ready.await();
+        System.out.printf("Connected %d/%d clients in %.1f s%n", connected.sum(), options.clients,
+                (System.nanoTime() - connectStart) / 1e9);
+
+        sending = true;
+        if (options.warmupSeconds > 0) {
+            TimeUnit.SECONDS.sleep(options.warmupSeconds);
+        }
+        // Start a fresh histogram so the warmup is not part of the measurement
+        MetricsRegistry.Histogram measured = new MetricsRegistry().histogram("latency", "Send-to-receive latency");
+        long sentBefore = sent.sum();
+        long receivedBefore = received.sum();
+        latency = measured;
+
+        long measureStart = System.nanoTime();
+        for (int second = 1; second <= options.durationSeconds; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            System.out.printf("[%3ds] sent %d, received %d, p99 %.2f ms%n", second, sent.sum() - sentBefore,
+                    received.sum() - receivedBefore, measured.getPercentile(99) / 1e6);
+        }
+        double elapsed = (System.nanoTime() - measureStart) / 1e9;
+        long sentCount = sent.sum() - sentBefore;
+        long receivedCount = received.sum() - receivedBefore;
+
+        // Let in-flight messages arrive before closing the connections
+        sending = false;
+        TimeUnit.MILLISECONDS.sleep(500);
+        running = false;
+        done.await(10, TimeUnit.SECONDS);
+
+        report(measured, sentCount, receivedCount, elapsed);
+    }
+
+    /**
+     * Run one client: connect, log in, join its room, then send until the
+     * run ends.
+     *
+     * @param id The client number
+     * @param room The room the client joins
+     * @param connects Limits the number of concurrent TLS handshakes
+     * @param ready Counted down once the client is in its room or has failed
+     */
+    private void runClient(int id, String room, Semaphore connects, CountDownLatch ready) {
+        boolean counted = false;
+        SSLSocket socket = null;
+        try {
+            connects.acquire();
+            try {
+                socket = (SSLSocket) socketFactory.createSocket(options.host, options.port);
+                socket.startHandshake();
+            } finally {
+                connects.release();
+            }
+
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            String user = "load" + id;
+            out.println("REGISTER " + user + " load");
+            expect(in, "REGISTER_");
+            out.println("LOGIN " + user + " load");
+            if (!expect(in, "LOGIN_SUCCESS")) {
+                return;
+            }
+            out.println("CREATE_ROOM " + room);
+            expect(in, "ROOM_");
+            out.println("JOIN_ROOM " + room);
+            if (!expect(in, "JOINED")) {
+                return;
+            }
+
+            connected.increment();
+            ready.countDown();
+            counted = true;
+
+            Thread receiver = Thread.startVirtualThread(() -> receive(in));
+            send(out, room);
+            receiver.join(1000);
+        } catch (IOException e) {
+            error("io: " + e.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!counted) {
+                ready.countDown();
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Send messages at the configured rate, starting at a random phase so
+     * clients do not send in lockstep.
+     *
+     * @param out The connection output
+     * @param room The room to send to
+     */
+    private void send(PrintWriter out, String room) {
+        long interval = (long) (1e9 / options.rate);
+        long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(Math.max(1, interval));
+        String padding = "x".repeat(Math.max(0, options.messageSize));
+
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            next += interval;
+            if (!sending) {
+                continue;
+            }
+
+            out.println("MESSAGE " + room + " " + TIMESTAMP_MARKER + System.nanoTime() + " " + padding);
+            if (out.checkError()) {
+                error("send failed");
+                return;
+            }
+            sent.increment();
+        }
+    }
+
+    /**
+     * Read broadcasts and record the latency of every timestamped message.
+     *
+     * @param in The connection input
+     */
+    private void receive(BufferedReader in) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                long now = System.nanoTime();
+                if (line.startsWith("MESSAGE ")) {
+                    int marker = line.indexOf(TIMESTAMP_MARKER);
+                    if (marker >= 0) {
+                        int end = line.indexOf(' ', marker);
+                        long sentAt = Long.parseLong(line.substring(marker + TIMESTAMP_MARKER.length(),
+                                end < 0 ? line.length() : end));
+                        latency.record(now - sentAt);
+                        received.increment();
+                    }
+                } else {
+                    error("response: " + line.split(" ", 2)[0]);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                error("io: " + e.getClass().getSimpleName());
+            }
+        }
+    }
+
+    /**
+     * Read a response and check its prefix.
+     *
+     * @param in The connection input
+     * @param prefix The expected prefix
+     * @return true if the response starts with the prefix
+     * @throws IOException If the connection fails
+     */
+    private boolean expect(BufferedReader in, String prefix) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null) {
+                error("disconnected");
+                return false;
+            }
+        } while (line.startsWith("MESSAGE "));
+
+        if (!line.startsWith(prefix)) {
+            error("response: " + line.split(" ", 2)[0]);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Count an error.
+     *
+     * @param kind The kind of error
+     */
+    private void error(String kind) {
+        errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Assign every client to a room following the configured distribution.
+     *
+     * @return The room number of each client
+     */
+    private int[] assignRooms() {
+        int[] rooms = new int[options.clients];
+        if (!options.distribution.equals("zipf")) {
+            for (int i = 0; i < rooms.length; i++) {
+                rooms[i] = i % options.rooms;
+            }
+            return rooms;
+        }
+
+        double[] cumulative = new double[options.rooms];
+        double total = 0;
+        for (int r = 0; r < options.rooms; r++) {
+            total += 1.0 / Math.pow(r + 1, options.zipfExponent);
+            cumulative[r] = total;
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < rooms.length; i++) {
+            double value = random.nextDouble() * total;
+            int room = 0;
+            while (room < options.rooms - 1 && cumulative[room] < value) {
+                room++;
+            }
+            rooms[i] = room;
+        }
+        return rooms;
+    }
+
+    /**
+     * Print how many clients are in the largest rooms.
+     *
+     * @param roomOfClient The room number of each client
+     */
+    private void printRoomSizes(int[] roomOfClient) {
+        int[] sizes = new int[options.rooms];
+        for (int room : roomOfClient) {
+            sizes[room]++;
+        }
+
+        List<Integer> sorted = new ArrayList<>();
+        for (int size : sizes) {
+            sorted.add(size);
+        }
+        sorted.sort((a, b) -> b - a);
+        System.out.printf("%d clients in %d rooms (%s), largest rooms: %s%n", options.clients, options.rooms,
+                options.distribution, sorted.subList(0, Math.min(5, sorted.size())));
+    }
+
+    /**
+     * Print the final report.
+     *
+     * @param histogram The measured latencies
+     * @param sentCount The messages sent during the measurement
+     * @param receivedCount The messages received during the measurement
+     * @param elapsed The length of the measurement in seconds
+     */
+    private void report(MetricsRegistry.Histogram histogram, long sentCount, long receivedCount, double elapsed) {
+        System.out.println();
+        System.out.printf("Sent:        %d messages (%.0f/s)%n", sentCount, sentCount / elapsed);
+        System.out.printf("Received:    %d deliveries (%.0f/s)%n", receivedCount, receivedCount / elapsed);
+        System.out.printf("Latency:     p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+                histogram.getPercentile(99) / 1e6, histogram.getPercentile(99.9) / 1e6,
+                histogram.getPercentile(100) / 1e6);
+
+        if (errors.isEmpty()) {
+            System.out.println("Errors:      none");
+        } else {
+            System.out.println("Errors:");
+            for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+                System.out.printf("  %-24s %d%n", entry.getKey(), entry.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * Command line options of the load generator.
+     */
+    public static class Options {
+        String host = "localhost";
+        int port = 1234;
+        int clients = 1000;
+        int rooms = 10;
+        double rate = 1.0;
+        int durationSeconds = 30;
+        int warmupSeconds = 5;
+        String distribution = "uniform";
+        double zipfExponent = 1.0;
+        int messageSize = 32;
+
+        /**
+         * Parse command line options.
+         *
+         * @param args The command line arguments
+         * @return The options
+         * @throws IllegalArgumentException If an option is unknown or invalid
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "--host" -> options.host = value;
+                        case "--port" -> options.port = Integer.parseInt(value);
+                        case "--clients" -> options.clients = Integer.parseInt(value);
+                        case "--rooms" -> options.rooms = Integer.parseInt(value);
+                        case "--rate" -> options.rate = Double.parseDouble(value);
+                        case "--duration" -> options.durationSeconds = Integer.parseInt(value);
+                        case "--warmup" -> options.warmupSeconds = Integer.parseInt(value);
+                        case "--distribution" -> options.distribution = value;
+                        case "--zipf-exponent" -> options.zipfExponent = Double.parseDouble(value);
+                        case "--message-size" -> options.messageSize = Integer.parseInt(value);
+                        default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+                }
+            }
+
+            if (options.clients < 1 || options.rooms < 1 || options.rate <= 0) {
+                throw new IllegalArgumentException("--clients, --rooms and --rate must be positive");
+            }
+            if (!options.distribution.equals("uniform") && !options.distribution.equals("zipf")) {
+                throw new IllegalArgumentException("--distribution must be uniform or zipf");
+            }
+            return options;
+        }
+    }
+}
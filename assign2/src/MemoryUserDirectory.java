@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * User directory holding every user in a concurrent map, so lookups never
+ * wait for registrations, and persisting them in an append-only
+ * {@link UserStore}. Memory and startup time grow with the number of users;
+ * {@link IndexedUserDirectory} avoids both.
+ */
+public class MemoryUserDirectory implements UserDirectory {
+
+    private final ConcurrentMap<String, String> users;
+    private final UserStore userStore;
+
+    /**
+     * Create a directory that keeps users in memory only.
+     */
+    public MemoryUserDirectory() {
+        this(null);
+    }
+
+    /**
+     * Create a directory persisted in the given store, without loading it.
+     *
+     * @param userStore The user store, or null to keep users in memory only
+     */
+    private MemoryUserDirectory(UserStore userStore) {
+        this.users = new ConcurrentHashMap<>();
+        this.userStore = userStore;
+    }
+
+    /**
+     * Open a directory persisted in the given store, loading every user
+     * stored in it.
+     *
+     * @param userStore The user store
+     * @return The user directory
+     * @throws IOException If the stored users cannot be read
+     */
+    public static MemoryUserDirectory open(UserStore userStore) throws IOException {
+        MemoryUserDirectory directory = new MemoryUserDirectory(userStore);
+        userStore.open(directory.users::put, directory::forEachUser);
+        return directory;
+    }
+
+    @Override
+    public String getPasswordHash(String username) {
+        return users.get(username);
+    }
+
+    @Override
+    public boolean addUser(String username, String passwordHash) {
+        if (users.putIfAbsent(username, passwordHash) != null) {
+            return false;
+        }
+        persist(username, passwordHash);
+        return true;
+    }
+
+    @Override
+    public boolean replacePasswordHash(String username, String expectedHash, String passwordHash) {
+        if (!users.replace(username, expectedHash, passwordHash)) {
+            return false;
+        }
+        persist(username, passwordHash);
+        return true;
+    }
+
+    /**
+     * Add many users at once and write them to the store as one compaction.
+     *
+     * @param imported The password hash of each username
+     */
+    @Override
+    public void importUsers(Map<String, String> imported) {
+        boolean added = false;
+        for (Map.Entry<String, String> entry : imported.entrySet()) {
+            added |= users.putIfAbsent(entry.getKey(), entry.getValue()) == null;
+        }
+        if (added && userStore != null) {
+            userStore.compact();
+        }
+    }
+
+    @Override
+    public void forEachUser(BiConsumer<String, String> consumer) {
+        users.forEach(consumer);
+    }
+
+    @Override
+    public boolean isHeldInMemory() {
+        return true;
+    }
+
+    @Override
+    public long getUserCount() {
+        return users.size();
+    }
+
+    @Override
+    public void close() {
+        if (userStore != null) {
+            userStore.close();
+        }
+    }
+
+    /**
+     * Append a user's current hash to the store.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     */
+    private void persist(String username, String passwordHash) {
+        if (userStore != null && !userStore.append(username, passwordHash)) {
+            ServerLog.error("Error persisting user", "user", username);
+        }
+    }
+}
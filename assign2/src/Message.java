@@ -1,21 +1,37 @@
 
 /**
- * Represents a chat message.
+ * Represents a chat message. A message gets its sequence number when it is
+ * added to a room: the number of messages the room had before it, so a
+ * room's messages are numbered 0, 1, 2 and so on without gaps.
  */
 public class Message {
 
     private final String sender;
     private final String content;
+    private final long seq;
 
     /**
-     * Create a new message.
+     * Create a new message that is not yet in a room.
      *
      * @param sender The username of the sender
      * @param content The message content
      */
     public Message(String sender, String content) {
+        this(sender, content, -1);
+    }
+
+    /**
+     * Create a message with a sequence number.
+     *
+     * @param sender The username of the sender
+     * @param content The message content
+     * @param seq The sequence number of the message in its room, or -1 if it
+     * is not in a room
+     */
+    public Message(String sender, String content, long seq) {
         this.sender = sender;
         this.content = content;
+        this.seq = seq;
     }
 
     /**
@@ -36,12 +52,31 @@ public class Message {
         return content;
     }
 
+    /**
+     * Get the sequence number of the message in its room.
+     *
+     * @return The sequence number, or -1 if the message is not in a room
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Get a copy of the message with the given sequence number.
+     *
+     * @param seq The sequence number
+     * @return The numbered message
+     */
+    public Message withSeq(long seq) {
+        return seq == this.seq ? this : new Message(sender, content, seq);
+    }
+
     /**
      * Format the message in the protocol format.
      *
      * @return The protocol-formatted message
      */
     public String toProtocolString() {
-        return sender + " " + content;
+        return seq + " " + sender + " " + content;
     }
 }
@@ -10,6 +10,7 @@ public class MessageListener implements Runnable {
 
     private final ChatClient client;
     private final BufferedReader in;
+    private final BinaryProtocol.FrameReader frameReader;
     private volatile boolean running;
 
     /**
@@ -21,6 +22,21 @@ public class MessageListener implements Runnable {
     public MessageListener(ChatClient client, BufferedReader in) {
         this.client = client;
         this.in = in;
+        this.frameReader = null;
+        this.running = true;
+    }
+
+    /**
+     * Create a new message listener for a connection using the binary
+     * protocol.
+     *
+     * @param client The chat client
+     * @param frameReader The frame reader of the connection
+     */
+    public MessageListener(ChatClient client, BinaryProtocol.FrameReader frameReader) {
+        this.client = client;
+        this.in = null;
+        this.frameReader = frameReader;
         this.running = true;
     }
 
@@ -34,14 +50,10 @@ public class MessageListener implements Runnable {
     @Override
     public void run() {
         try {
-            String message;
-            while (running && (message = in.readLine()) != null) {
-                if (!running) {
-                    break;
-                }
-
-                final String msg = message;
-                Thread.startVirtualThread(() -> client.handleServerMessage(msg));
+            if (frameReader != null) {
+                readFrames();
+            } else {
+                readLines();
             }
 
             // If we reach here and we were still running, the connection was lost
@@ -68,4 +80,34 @@ public class MessageListener implements Runnable {
             //System.out.println("Message listener stopped");
         }
     }
+
+    /**
+     * Read text responses until the stream ends or the listener stops.
+     *
+     * @throws IOException If reading from the server fails
+     */
+    private void readLines() throws IOException {
+        String message;
+        while (running && (message = in.readLine()) != null) {
+            if (!running) {
+                break;
+            }
+
+            final String msg = message;
+            Thread.startVirtualThread(() -> client.handleServerMessage(msg));
+        }
+    }
+
+    /**
+     * Read binary frames until the stream ends or the listener stops. Frames
+     * are handled on this thread because the reader reuses its buffer.
+     *
+     * @throws IOException If reading from the server fails
+     */
+    private void readFrames() throws IOException {
+        int opcode;
+        while (running && (opcode = frameReader.readFrame()) >= 0) {
+            client.handleServerFrame(opcode, frameReader);
+        }
+    }
 }
@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of the messages of a single room. The log is split
+ * into memory-mapped segment files named after the offset of their first
+ * record. Each record is stored as
+ * {@code [int length][int crc32][short senderLength][sender][content]}, and
+ * a zero length marks the end of the written data in a segment.
+ *
+ * Writes go straight into the mapped segment and are forced to disk in
+ * batches, either when enough bytes are pending or when the owning
+ * {@link MessageStore} runs its periodic flush. A sparse in-memory index maps
+ * every {@value #INDEX_INTERVAL}th offset to its position in the segment, so
+ * reading history only scans a small part of one segment.
+ */
+public class MessageLog {
+
+    static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+    static final int INDEX_INTERVAL = 64;
+    static final int FLUSH_BYTES = 64 * 1024;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final List<Segment> segments;
+    private final ReentrantReadWriteLock lock;
+    private Segment active;
+    private long nextOffset;
+    private int unflushedBytes;
+
+    /**
+     * Open the log stored in the given directory, recovering any existing
+     * segments.
+     *
+     * @param directory The directory holding the segment files
+     * @throws IOException If the segments cannot be opened
+     */
+    public MessageLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.segments = new ArrayList<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.nextOffset = 0;
+        this.unflushedBytes = 0;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Append a message to the log.
+     *
+     * @param message The message to append
+     * @return The offset assigned to the message
+     * @throws IOException If a new segment cannot be created
+     */
+    public long append(Message message) throws IOException {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        int length = 2 + sender.length + content.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(sender.length >>> 8);
+        crc.update(sender.length);
+        crc.update(sender);
+        crc.update(content);
+
+        lock.writeLock().lock();
+        try {
+            if (active == null) {
+                throw new IOException("Message log is closed");
+            }
+            if (active.buffer.remaining() < HEADER_SIZE + length + 4) {
+                roll(HEADER_SIZE + length + 4);
+            }
+
+            long offset = nextOffset++;
+            active.index(offset, active.buffer.position());
+            active.buffer.putInt(length);
+            active.buffer.putInt((int) crc.getValue());
+            active.buffer.putShort((short) sender.length);
+            active.buffer.put(sender);
+            active.buffer.put(content);
+            active.count++;
+
+            unflushedBytes += HEADER_SIZE + length;
+            if (unflushedBytes >= FLUSH_BYTES) {
+                flushActive();
+            }
+            return offset;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read up to {@code maxCount} messages starting at the given offset.
+     *
+     * @param fromOffset The offset of the first message to read
+     * @param maxCount The maximum number of messages to return
+     * @return The messages, in log order
+     */
+    public List<Message> read(long fromOffset, int maxCount) {
+        List<Message> result = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            long offset = Math.max(fromOffset, firstOffset());
+            int segmentIndex = findSegment(offset);
+
+            while (segmentIndex >= 0 && segmentIndex < segments.size() && result.size() < maxCount) {
+                Segment segment = segments.get(segmentIndex);
+                ByteBuffer view = segment.buffer.duplicate();
+                long current = segment.seek(offset, view);
+
+                while (current < segment.baseOffset + segment.count && result.size() < maxCount) {
+                    Message message = readRecord(view, current);
+                    if (current >= offset) {
+                        result.add(message);
+                    }
+                    current++;
+                }
+
+                offset = current;
+                segmentIndex++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the most recent messages in the log.
+     *
+     * @param count The maximum number of messages to return
+     * @return The last {@code count} messages, in log order
+     */
+    public List<Message> readLast(int count) {
+        lock.readLock().lock();
+        try {
+            return read(Math.max(firstOffset(), nextOffset - count), count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replay every message in the log, in order.
+     *
+     * @param consumer The consumer receiving each message
+     */
+    public void replay(Consumer<Message> consumer) {
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                ByteBuffer view = segment.buffer.duplicate();
+                view.position(0);
+                for (int i = 0; i < segment.count; i++) {
+                    consumer.accept(readRecord(view, segment.baseOffset + i));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the offset that the next appended message will receive.
+     *
+     * @return The next offset
+     */
+    public long getNextOffset() {
+        lock.readLock().lock();
+        try {
+            return nextOffset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force any pending writes to disk.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            if (unflushedBytes > 0) {
+                flushActive();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flush pending writes and release the segments.
+     */
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            flushActive();
+            segments.clear();
+            active = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open the existing segments, validate their records and position the
+     * log after the last valid record.
+     *
+     * @throws IOException If a segment cannot be opened
+     */
+    private void recover() throws IOException {
+        Path[] files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream
+                    .filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .toArray(Path[]::new);
+        }
+
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(file, baseOffset, Files.size(file));
+            segment.scan();
+            segments.add(segment);
+            nextOffset = baseOffset + segment.count;
+        }
+
+        if (segments.isEmpty()) {
+            roll(0);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * Seal the active segment and start a new one.
+     *
+     * @param minimumSize The minimum capacity of the new segment
+     * @throws IOException If the segment file cannot be created
+     */
+    private void roll(int minimumSize) throws IOException {
+        if (active != null) {
+            flushActive();
+        }
+
+        Path file = directory.resolve(String.format("%020d%s", nextOffset, SEGMENT_SUFFIX));
+        active = Segment.open(file, nextOffset, Math.max(SEGMENT_SIZE, minimumSize));
+        segments.add(active);
+    }
+
+    /**
+     * Force the active segment to disk.
+     */
+    private void flushActive() {
+        if (active != null) {
+            active.buffer.force();
+        }
+        unflushedBytes = 0;
+    }
+
+    /**
+     * Get the offset of the oldest message still in the log.
+     *
+     * @return The first offset
+     */
+    private long firstOffset() {
+        return segments.isEmpty() ? nextOffset : segments.get(0).baseOffset;
+    }
+
+    /**
+     * Find the segment holding the given offset.
+     *
+     * @param offset The offset to look up
+     * @return The segment index, or -1 if the log is empty
+     */
+    private int findSegment(long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).baseOffset <= offset) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Decode the record at the current position of the buffer.
+     *
+     * @param view The buffer, positioned at the start of a record
+     * @param offset The offset of the record, used as the message's sequence
+     * number
+     * @return The decoded message
+     */
+    private static Message readRecord(ByteBuffer view, long offset) {
+        int length = view.getInt();
+        view.getInt();
+        int senderLength = view.getShort() & 0xffff;
+
+        byte[] sender = new byte[senderLength];
+        byte[] content = new byte[length - 2 - senderLength];
+        view.get(sender);
+        view.get(content);
+
+        return new Message(new String(sender, StandardCharsets.UTF_8), new String(content, StandardCharsets.UTF_8),
+                offset);
+    }
+
+    /**
+     * A single memory-mapped segment file.
+     */
+    private static class Segment {
+        private final long baseOffset;
+        private final MappedByteBuffer buffer;
+        private int count;
+        private int[] indexPositions;
+        private int indexSize;
+
+        private Segment(long baseOffset, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.buffer = buffer;
+            this.count = 0;
+            this.indexPositions = new int[16];
+            this.indexSize = 0;
+        }
+
+        /**
+         * Map a segment file, creating it with the given size if needed.
+         */
+        static Segment open(Path file, long baseOffset, long size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(baseOffset, buffer);
+            }
+        }
+
+        /**
+         * Record the position of an offset if it falls on an index boundary.
+         */
+        void index(long offset, int position) {
+            if ((offset - baseOffset) % INDEX_INTERVAL != 0) {
+                return;
+            }
+            if (indexSize == indexPositions.length) {
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexPositions[indexSize++] = position;
+        }
+
+        /**
+         * Position the view at the closest indexed record at or before the
+         * offset.
+         *
+         * @return The offset of the record the view is positioned at
+         */
+        long seek(long offset, ByteBuffer view) {
+            long relative = Math.max(0, offset - baseOffset);
+            int slot = (int) Math.min(relative / INDEX_INTERVAL, indexSize - 1);
+            if (slot < 0) {
+                view.position(0);
+                return baseOffset;
+            }
+            view.position(indexPositions[slot]);
+            return baseOffset + (long) slot * INDEX_INTERVAL;
+        }
+
+        /**
+         * Walk the records of a recovered segment, stopping at the first
+         * empty or corrupt one, and leave the buffer positioned after the
+         * last valid record. Everything after a corrupt record is cleared,
+         * so that records written over it are not followed by stale ones.
+         */
+        void scan() {
+            ByteBuffer view = buffer.duplicate();
+            view.position(0);
+
+            boolean corrupt = false;
+            while (view.remaining() >= HEADER_SIZE) {
+                int position = view.position();
+                int length = view.getInt();
+                int expected = view.getInt();
+                if (length <= 2 || length > view.remaining()) {
+                    corrupt = length != 0 || expected != 0;
+                    view.position(position);
+                    break;
+                }
+
+                CRC32 crc = new CRC32();
+                ByteBuffer payload = view.slice(view.position(), length);
+                crc.update(payload);
+                if ((int) crc.getValue() != expected) {
+                    corrupt = true;
+                    view.position(position);
+                    break;
+                }
+
+                index(baseOffset + count, position);
+                view.position(view.position() + length);
+                count++;
+            }
+
+            buffer.position(view.position());
+            int end = corrupt ? buffer.limit() : Math.min(buffer.limit(), view.position() + HEADER_SIZE);
+            for (int i = view.position(); i < end; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+}
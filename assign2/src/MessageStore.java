@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Persistence layer for room messages. Every room gets its own directory
+ * holding a {@link MessageLog} and a small metadata file describing how to
+ * recreate the room after a restart. Once {@link #start()} is called,
+ * pending log writes are forced to disk every {@value #FLUSH_INTERVAL_MS}
+ * milliseconds.
+ */
+public class MessageStore {
+
+    private static final String DEFAULT_DIRECTORY = System.getProperty("chat.dataDir", "data") + "/rooms";
+    private static final String META_FILE = "room.meta";
+    private static final long FLUSH_INTERVAL_MS = 200;
+
+    private final Path root;
+    private final Map<String, MessageLog> logs;
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * Create a message store in the default directory.
+     */
+    public MessageStore() {
+        this(Paths.get(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Create a message store in the given directory.
+     *
+     * @param root The directory holding one subdirectory per room
+     */
+    public MessageStore(Path root) {
+        this.root = root;
+        this.logs = new ConcurrentHashMap<>();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start forcing pending log writes to disk in the background.
+     */
+    public void start() {
+        flusher.scheduleWithFixedDelay(this::flushAll, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open the log of a room, creating it and recording the room metadata if
+     * it does not exist yet.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return The room's message log, or null if it could not be opened
+     */
+    public MessageLog openLog(String name, String prompt) {
+        return logs.computeIfAbsent(name, n -> {
+            Path directory = roomDirectory(n);
+            try {
+                Files.createDirectories(directory);
+                Path meta = directory.resolve(META_FILE);
+                if (!Files.exists(meta)) {
+                    writeMeta(meta, n, prompt);
+                }
+                return new MessageLog(directory);
+            } catch (IOException e) {
+                ServerLog.error("Error opening message log", "room", n, "error", e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Flush and close the log of a room. The log is opened again on the next
+     * {@link #openLog} call.
+     *
+     * @param name The name of the room
+     */
+    public void closeLog(String name) {
+        MessageLog log = logs.remove(name);
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Close the log of a room and delete the room's directory, with its
+     * metadata file first so a partly deleted room is not restored.
+     *
+     * @param name The name of the room
+     */
+    public void deleteLog(String name) {
+        closeLog(name);
+        Path directory = roomDirectory(name);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(META_FILE));
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        } catch (IOException e) {
+            ServerLog.error("Error deleting message log", "room", name, "error", e);
+        }
+    }
+
+    /**
+     * List the rooms that have been persisted.
+     *
+     * @return The stored rooms
+     */
+    public List<StoredRoom> loadRooms() {
+        List<StoredRoom> rooms = new ArrayList<>();
+        if (!Files.isDirectory(root)) {
+            return rooms;
+        }
+
+        try (Stream<Path> directories = Files.list(root)) {
+            for (Path directory : (Iterable<Path>) directories::iterator) {
+                Path meta = directory.resolve(META_FILE);
+                if (!Files.exists(meta)) {
+                    continue;
+                }
+
+                Properties properties = new Properties();
+                try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+                rooms.add(new StoredRoom(properties.getProperty("name"), properties.getProperty("prompt")));
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error loading stored rooms", "error", e);
+        }
+
+        return rooms;
+    }
+
+    /**
+     * Force all pending writes to disk.
+     */
+    public void flushAll() {
+        for (MessageLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Flush and close every open log.
+     */
+    public void close() {
+        flusher.shutdownNow();
+        for (MessageLog log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+
+    /**
+     * Get the directory of a room. Names are hex-encoded so any room name
+     * maps to a safe directory name.
+     *
+     * @param name The name of the room
+     * @return The room directory
+     */
+    private Path roomDirectory(String name) {
+        return root.resolve(HexFormat.of().formatHex(name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Write the metadata file of a room.
+     *
+     * @param meta The metadata file
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @throws IOException If the file cannot be written
+     */
+    private static void writeMeta(Path meta, String name, String prompt) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("name", name);
+        if (prompt != null) {
+            properties.setProperty("prompt", prompt);
+        }
+
+        try (Writer writer = Files.newBufferedWriter(meta, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+    }
+
+    /**
+     * A room found on disk.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     */
+    public record StoredRoom(String name, String prompt) {
+
+        /**
+         * Check whether the stored room is an AI room.
+         *
+         * @return true if the room has an AI prompt
+         */
+        public boolean isAiRoom() {
+            return prompt != null;
+        }
+    }
+}
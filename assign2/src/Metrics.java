@@ -0,0 +1,53 @@
+/**
+ * The metrics of the chat server. Components update these directly;
+ * {@link ChatServer} adds gauges for the state it owns and serves the
+ * registry through a {@link MetricsServer}.
+ */
+public final class Metrics {
+
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final MetricsRegistry.Counter CONNECTIONS_TOTAL = REGISTRY.counter(
+            "chat_connections_total", "Client connections accepted");
+    public static final MetricsRegistry.Counter CONNECTIONS_ACTIVE = REGISTRY.gauge(
+            "chat_connections_active", "Client connections currently open");
+    public static final MetricsRegistry.LabeledCounter CONNECTIONS_REJECTED = REGISTRY.labeledCounter(
+            "chat_connections_rejected_total", "Client connections refused by admission control", "reason");
+    public static final MetricsRegistry.LabeledCounter RATE_LIMITED = REGISTRY.labeledCounter(
+            "chat_rate_limited_total", "Client actions rejected by a rate limit", "limit");
+    public static final MetricsRegistry.Histogram TLS_HANDSHAKE_DURATION = REGISTRY.histogram(
+            "chat_tls_handshake_duration_seconds", "Time to complete the TLS handshake of a client connection");
+    public static final MetricsRegistry.Histogram PASSWORD_HASH_DURATION = REGISTRY.histogram(
+            "chat_password_hash_duration_seconds", "Time to hash or verify a password, including the wait for a hashing thread");
+    public static final MetricsRegistry.Counter PASSWORD_HASH_REJECTED = REGISTRY.counter(
+            "chat_password_hash_rejected_total", "Logins and registrations rejected because the hashing queue was full");
+    public static final MetricsRegistry.Counter AUTH_UNKNOWN_USERS = REGISTRY.counter(
+            "chat_auth_unknown_users_total", "Logins for unknown users rejected by the username filter");
+    public static final MetricsRegistry.Counter AUTH_CACHE_HITS = REGISTRY.counter(
+            "chat_auth_cache_hits_total", "Logins accepted from the credential cache without hashing");
+    public static final MetricsRegistry.Counter PRESENCE_ANNOUNCED = REGISTRY.counter(
+            "chat_presence_announced_total", "User status changes announced to rooms");
+    public static final MetricsRegistry.Counter PRESENCE_COALESCED = REGISTRY.counter(
+            "chat_presence_coalesced_total", "User status changes dropped because the status changed back before a flush");
+    public static final MetricsRegistry.Counter CLUSTER_FRAMES_SENT = REGISTRY.counter(
+            "chat_cluster_frames_sent_total", "Frames sent to other cluster nodes");
+    public static final MetricsRegistry.Histogram REPLICATION_DURATION = REGISTRY.histogram(
+            "chat_replication_duration_seconds", "Time for the replicas of a room to acknowledge a message");
+    public static final MetricsRegistry.Counter REPLICATION_FAILURES = REGISTRY.counter(
+            "chat_replication_failures_total", "Messages delivered without an acknowledgement from every replica");
+    public static final MetricsRegistry.Counter OUTBOUND_BYTES = REGISTRY.counter(
+            "chat_outbound_bytes_total", "Protocol bytes written to clients, before TLS");
+    public static final MetricsRegistry.LabeledCounter MESSAGES_IN = REGISTRY.labeledCounter(
+            "chat_room_messages_received_total", "Messages posted to a room", "room");
+    public static final MetricsRegistry.LabeledCounter MESSAGES_OUT = REGISTRY.labeledCounter(
+            "chat_room_messages_sent_total", "Messages delivered to the members of a room", "room");
+    public static final MetricsRegistry.Histogram BROADCAST_DURATION = REGISTRY.histogram(
+            "chat_broadcast_duration_seconds", "Time to fan a message out to the members of a room");
+    public static final MetricsRegistry.Histogram AI_REQUEST_DURATION = REGISTRY.histogram(
+            "chat_ai_request_duration_seconds", "Latency of requests to the AI model");
+    public static final MetricsRegistry.Counter AI_REQUEST_FAILURES = REGISTRY.counter(
+            "chat_ai_request_failures_total", "Requests to the AI model that failed");
+
+    private Metrics() {
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of runtime metrics, exported in the Prometheus text format.
+ * Counters and gauges are striped {@link LongAdder}s, so updating them from
+ * many connection threads does not contend on a single cache line.
+ * Histograms use log-linear buckets in the style of HdrHistogram: every power
+ * of two is split into {@value Histogram#SUB_BUCKETS} linear buckets, which
+ * keeps the relative error of any recorded value under 12.5% with a fixed
+ * amount of memory.
+ */
+public class MetricsRegistry {
+
+    private final List<Collector> collectors;
+
+    /**
+     * Create an empty registry.
+     */
+    public MetricsRegistry() {
+        this.collectors = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Register a counter.
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @return The counter
+     */
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help, "counter"));
+    }
+
+    /**
+     * Register a gauge that is moved up and down by the caller.
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @return The gauge
+     */
+    public Counter gauge(String name, String help) {
+        return register(new Counter(name, help, "gauge"));
+    }
+
+    /**
+     * Register a gauge whose value is read when the metrics are exported.
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @param supplier Supplies the current value
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        register(out -> {
+            writeHeader(out, name, "gauge", help);
+            writeSample(out, name, null, null, supplier.getAsLong());
+        });
+    }
+
+    /**
+     * Register a counter with one label, such as a room name.
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @param label The label name
+     * @return The labeled counter
+     */
+    public LabeledCounter labeledCounter(String name, String help, String label) {
+        return register(new LabeledCounter(name, help, label));
+    }
+
+    /**
+     * Register a histogram of durations recorded in nanoseconds and exported
+     * in seconds.
+     *
+     * @param name The metric name
+     * @param help The description of the metric
+     * @return The histogram
+     */
+    public Histogram histogram(String name, String help) {
+        return register(new Histogram(name, help));
+    }
+
+    /**
+     * Register a custom collector.
+     *
+     * @param collector The collector
+     * @param <C> The type of the collector
+     * @return The collector
+     */
+    public <C extends Collector> C register(C collector) {
+        collectors.add(collector);
+        return collector;
+    }
+
+    /**
+     * Write every metric in the Prometheus text format.
+     *
+     * @param out The buffer to write to
+     */
+    public void write(StringBuilder out) {
+        for (Collector collector : collectors) {
+            collector.collect(out);
+        }
+    }
+
+    /**
+     * Write the {@code HELP} and {@code TYPE} lines of a metric.
+     *
+     * @param out The buffer to write to
+     * @param name The metric name
+     * @param type The metric type
+     * @param help The description of the metric
+     */
+    public static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write one sample line.
+     *
+     * @param out The buffer to write to
+     * @param name The sample name
+     * @param label The label name, or null for none
+     * @param labelValue The label value
+     * @param value The value
+     */
+    public static void writeSample(StringBuilder out, String name, String label, String labelValue, double value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            for (int i = 0; i < labelValue.length(); i++) {
+                char c = labelValue.charAt(i);
+                switch (c) {
+                    case '\\' -> out.append("\\\\");
+                    case '"' -> out.append("\\\"");
+                    case '\n' -> out.append("\\n");
+                    default -> out.append(c);
+                }
+            }
+            out.append("\"}");
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Writes samples when the metrics are exported.
+     */
+    @FunctionalInterface
+    public interface Collector {
+
+        void collect(StringBuilder out);
+    }
+
+    /**
+     * A counter, or a gauge moved up and down by the caller.
+     */
+    public static final class Counter implements Collector {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongAdder value;
+
+        private Counter(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = new LongAdder();
+        }
+
+        /**
+         * Add one.
+         */
+        public void increment() {
+            value.increment();
+        }
+
+        /**
+         * Subtract one. Only meaningful for gauges.
+         */
+        public void decrement() {
+            value.decrement();
+        }
+
+        /**
+         * Add an amount.
+         *
+         * @param amount The amount
+         */
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Get the current value.
+         *
+         * @return The value
+         */
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void collect(StringBuilder out) {
+            writeHeader(out, name, type, help);
+            writeSample(out, name, null, null, value.sum());
+        }
+    }
+
+    /**
+     * A counter split by the value of one label.
+     */
+    public static final class LabeledCounter implements Collector {
+        private final String name;
+        private final String help;
+        private final String label;
+        private final Map<String, LongAdder> values;
+
+        private LabeledCounter(String name, String help, String label) {
+            this.name = name;
+            this.help = help;
+            this.label = label;
+            this.values = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Get the counter for a label value.
+         *
+         * @param labelValue The label value
+         * @return The counter
+         */
+        public LongAdder labels(String labelValue) {
+            LongAdder value = values.get(labelValue);
+            return value != null ? value : values.computeIfAbsent(labelValue, v -> new LongAdder());
+        }
+
+        @Override
+        public void collect(StringBuilder out) {
+            writeHeader(out, name, "counter", help);
+            for (Map.Entry<String, LongAdder> entry : values.entrySet()) {
+                writeSample(out, name, label, entry.getKey(), entry.getValue().sum());
+            }
+        }
+    }
+
+    /**
+     * Histogram of durations with log-linear buckets. Exported with one
+     * cumulative bucket per power of two nanoseconds from about a microsecond
+     * to about a minute.
+     */
+    public static final class Histogram implements Collector {
+        static final int SUB_BUCKET_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int MIN_EXPORT_EXPONENT = 10;
+        private static final int MAX_EXPORT_EXPONENT = 36;
+
+        private final String name;
+        private final String help;
+        private final AtomicLongArray buckets;
+        private final LongAdder count;
+        private final LongAdder sum;
+
+        private Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            this.buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+            this.count = new LongAdder();
+            this.sum = new LongAdder();
+        }
+
+        /**
+         * Record a duration.
+         *
+         * @param nanos The duration in nanoseconds
+         */
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketIndex(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Record the time elapsed since a {@link System#nanoTime()} reading.
+         *
+         * @param startNanos The start time
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Get the number of recorded values.
+         *
+         * @return The count
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Estimate a percentile of the recorded values.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The upper bound of the bucket holding the percentile, in
+         * nanoseconds, or 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return upperBound(i) - 1;
+                }
+            }
+            return upperBound(snapshot.length - 1) - 1;
+        }
+
+        @Override
+        public void collect(StringBuilder out) {
+            writeHeader(out, name, "histogram", help);
+
+            long cumulative = 0;
+            int index = 0;
+            for (int exponent = MIN_EXPORT_EXPONENT; exponent <= MAX_EXPORT_EXPONENT; exponent++) {
+                int end = bucketIndex(1L << exponent);
+                while (index < end) {
+                    cumulative += buckets.get(index++);
+                }
+                writeSample(out, name + "_bucket", "le", Double.toString((1L << exponent) / 1e9), cumulative);
+            }
+            long total = count.sum();
+            writeSample(out, name + "_bucket", "le", "+Inf", total);
+            writeSample(out, name + "_sum", null, null, sum.sum() / 1e9);
+            writeSample(out, name + "_count", null, null, total);
+        }
+
+        /**
+         * Get the bucket of a value. Values below {@link #SUB_BUCKETS} get a
+         * bucket each; larger values are bucketed by their highest bits.
+         */
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Get the exclusive upper bound of a bucket.
+         */
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index + 1;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int shift = exponent - SUB_BUCKET_BITS;
+            long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            long upper = lower + (1L << shift);
+            return upper > 0 ? upper : Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Output stream that counts the bytes written through it.
+     */
+    public static final class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+
+        /**
+         * Wrap a stream.
+         *
+         * @param out The stream to write to
+         * @param counter The counter receiving the byte counts
+         */
+        public CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes and verifies passwords with PBKDF2-HMAC-SHA256 and a random salt
+ * per user, stored as {@code pbkdf2-sha256$<iterations>$<salt>$<hash>} with
+ * Base64 salt and hash.
+ *
+ * The key derivation is deliberately expensive, so it runs on a small pool
+ * of platform threads with a bounded queue rather than on the connection
+ * threads. A burst of logins can then use at most that many cores, leaving
+ * the rest for message traffic, and once the queue is full further requests
+ * are rejected at once instead of piling up.
+ *
+ * Hashes written by older versions, unsalted SHA-256 in hex, are still
+ * accepted; {@link #needsRehash(String)} tells the caller to replace them.
+ */
+public class PasswordHasher {
+
+    private static final String SCHEME = "pbkdf2-sha256";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = Integer.getInteger("chat.passwordIterations", 210000);
+    private static final int THREADS = Integer.getInteger("chat.passwordHashThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_SIZE = Integer.getInteger("chat.passwordHashQueue", 256);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final ThreadPoolExecutor executor;
+    private final SecureRandom random;
+
+    /**
+     * Create a password hasher with its own hashing threads.
+     */
+    public PasswordHasher() {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+                    Thread thread = new Thread(r, "password-hasher-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Hash a password with a new random salt.
+     *
+     * @param password The password
+     * @return The encoded hash
+     * @throws RejectedExecutionException If the hashing queue is full
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = run(() -> derive(password, salt, ITERATIONS));
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return SCHEME + "$" + ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    /**
+     * Check a password against a stored hash.
+     *
+     * @param password The password
+     * @param stored The stored hash, in the current or the legacy format
+     * @return true if the password matches
+     * @throws RejectedExecutionException If the hashing queue is full
+     */
+    public boolean verify(String password, String stored) {
+        if (!stored.startsWith(SCHEME + "$")) {
+            return MessageDigest.isEqual(legacyHash(password).getBytes(StandardCharsets.US_ASCII),
+                    stored.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        int iterations;
+        byte[] salt;
+        byte[] expected;
+        try {
+            iterations = Integer.parseInt(parts[1]);
+            salt = Base64.getDecoder().decode(parts[2]);
+            expected = Base64.getDecoder().decode(parts[3]);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        byte[] actual = run(() -> derive(password, salt, iterations));
+        return MessageDigest.isEqual(actual, expected);
+    }
+
+    /**
+     * Check whether a stored hash is weaker than the ones written now: a
+     * legacy hash, or one with fewer iterations.
+     *
+     * @param stored The stored hash
+     * @return true if the hash should be replaced on the next login
+     */
+    public boolean needsRehash(String stored) {
+        if (!stored.startsWith(SCHEME + "$")) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Get the number of hashing requests waiting for a thread.
+     *
+     * @return The queue length
+     */
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop the hashing threads.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run a hashing task on the pool and wait for its result.
+     *
+     * @param task The task
+     * @return The result of the task
+     * @throws RejectedExecutionException If the hashing queue is full or the
+     * caller is interrupted while waiting
+     */
+    private <T> T run(Callable<T> task) {
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            Metrics.PASSWORD_HASH_REJECTED.increment();
+            throw e;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while hashing a password", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        } finally {
+            Metrics.PASSWORD_HASH_DURATION.recordSince(start);
+        }
+    }
+
+    /**
+     * Derive a key from a password with PBKDF2-HMAC-SHA256.
+     *
+     * @param password The password
+     * @param salt The salt
+     * @param iterations The number of iterations
+     * @return The derived key
+     * @throws GeneralSecurityException If PBKDF2 is not available
+     */
+    private static byte[] derive(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    }
+
+    /**
+     * Hash a password the way older versions did: unsalted SHA-256 in hex.
+     *
+     * @param password The password
+     * @return The legacy hash
+     */
+    private static String legacyHash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(password.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * Tracks whether each user is online, idle or away, from the sessions and
+ * connections reported by the {@link SessionManager}. A user is online while
+ * one of its sessions is connected and it has sent a command in the last
+ * {@code chat.idleSeconds} (5 minutes by default), idle while connected but
+ * quiet for longer, away while it only has disconnected sessions that can
+ * still be resumed, and offline once it has no session.
+ *
+ * Each user's record changes inside a {@link ConcurrentMap#compute}, which
+ * also keeps a count of the users in each status, so the counts are read
+ * without a scan. Recording activity is a map lookup and a volatile write;
+ * the idle check runs on a {@link TimingWheel} timeout that is only moved
+ * when it fires early.
+ *
+ * Status changes are not announced one by one. Each user's first and latest
+ * status since the last flush are kept, and {@link #flush()} passes on the
+ * users whose status actually differs, so a client that disconnects and
+ * reconnects within a flush interval causes no announcement at all.
+ */
+public class PresenceService {
+
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.idleSeconds", 300));
+    private static final long FLUSH_MILLIS = Long.getLong("chat.presenceFlushMillis", 1000);
+
+    /**
+     * The presence of a user.
+     */
+    public enum Status {
+        ONLINE, IDLE, AWAY, OFFLINE;
+
+        /**
+         * Get the name of the status used in the protocol.
+         *
+         * @return The lower-case name
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final ConcurrentMap<String, UserPresence> users;
+    private final ConcurrentMap<String, Change> pending;
+    private final AtomicIntegerArray counts;
+    private final TimingWheel timingWheel;
+    private volatile Consumer<Map<String, Status>> changeListener;
+
+    /**
+     * Create a presence service with nobody present.
+     *
+     * @param timingWheel The timing wheel running the idle checks
+     */
+    public PresenceService(TimingWheel timingWheel) {
+        this.users = new ConcurrentHashMap<>();
+        this.pending = new ConcurrentHashMap<>();
+        this.counts = new AtomicIntegerArray(Status.values().length);
+        this.timingWheel = timingWheel;
+    }
+
+    /**
+     * Set a listener called by {@link #flush()} with the users whose status
+     * changed since the previous flush, used to announce them in their
+     * rooms.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setChangeListener(Consumer<Map<String, Status>> listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Get the interval at which {@link #flush()} should run.
+     *
+     * @return The flush interval in milliseconds
+     */
+    public long getFlushMillis() {
+        return FLUSH_MILLIS;
+    }
+
+    /**
+     * Record a new session of a user.
+     *
+     * @param username The username
+     * @param connected Whether the session has a connected client
+     */
+    public void sessionOpened(String username, boolean connected) {
+        users.compute(username, (user, presence) -> {
+            if (presence == null) {
+                presence = new UserPresence();
+            }
+            presence.sessions++;
+            if (connected) {
+                presence.connections++;
+                presence.lastActiveMillis = System.currentTimeMillis();
+            }
+            return update(user, presence);
+        });
+    }
+
+    /**
+     * Record the end of a session of a user.
+     *
+     * @param username The username
+     * @param connected Whether the session still had a connected client
+     */
+    public void sessionClosed(String username, boolean connected) {
+        users.computeIfPresent(username, (user, presence) -> {
+            presence.sessions--;
+            if (connected) {
+                presence.connections--;
+            }
+            return update(user, presence);
+        });
+    }
+
+    /**
+     * Record a client connecting to or disconnecting from one of a user's
+     * sessions.
+     *
+     * @param username The username
+     * @param connected true if a client connected, false if one disconnected
+     */
+    public void connectionChanged(String username, boolean connected) {
+        users.computeIfPresent(username, (user, presence) -> {
+            if (connected) {
+                presence.connections++;
+                presence.lastActiveMillis = System.currentTimeMillis();
+            } else {
+                presence.connections--;
+            }
+            return update(user, presence);
+        });
+    }
+
+    /**
+     * Record that a user sent a command, bringing an idle user back online.
+     *
+     * @param username The username
+     */
+    public void touch(String username) {
+        UserPresence presence = users.get(username);
+        if (presence == null) {
+            return;
+        }
+        presence.lastActiveMillis = System.currentTimeMillis();
+        if (presence.status == Status.IDLE) {
+            users.computeIfPresent(username, this::update);
+        }
+    }
+
+    /**
+     * Get the status of a user.
+     *
+     * @param username The username
+     * @return The status
+     */
+    public Status getStatus(String username) {
+        UserPresence presence = users.get(username);
+        return presence != null ? presence.status : Status.OFFLINE;
+    }
+
+    /**
+     * Get the number of users with a status.
+     *
+     * @param status The status, other than {@link Status#OFFLINE}
+     * @return The number of users
+     */
+    public int getCount(Status status) {
+        return counts.get(status.ordinal());
+    }
+
+    /**
+     * Pass the users whose status differs from the one last passed on to the
+     * change listener, each with its current status.
+     */
+    public void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, Status> changes = new HashMap<>();
+        for (String username : pending.keySet()) {
+            Change change = pending.remove(username);
+            if (change == null) {
+                continue;
+            }
+            if (change.from != change.to) {
+                changes.put(username, change.to);
+            } else {
+                Metrics.PRESENCE_COALESCED.increment();
+            }
+        }
+        Metrics.PRESENCE_ANNOUNCED.add(changes.size());
+        if (changes.isEmpty()) {
+            return;
+        }
+        Consumer<Map<String, Status>> listener = changeListener;
+        if (listener != null) {
+            listener.accept(changes);
+        }
+    }
+
+    /**
+     * Work out a user's status from its sessions and connections, updating
+     * the counts, the idle check and the pending changes if it changed.
+     * Called inside a compute on the user's entry.
+     *
+     * @param username The username
+     * @param presence The user's record
+     * @return The record, or null once the user is offline
+     */
+    private UserPresence update(String username, UserPresence presence) {
+        Status next;
+        if (presence.sessions <= 0) {
+            next = Status.OFFLINE;
+        } else if (presence.connections <= 0) {
+            next = Status.AWAY;
+        } else if (System.currentTimeMillis() - presence.lastActiveMillis >= IDLE_MILLIS) {
+            next = Status.IDLE;
+        } else {
+            next = Status.ONLINE;
+        }
+
+        Status previous = presence.status;
+        if (next != previous) {
+            if (previous != Status.OFFLINE) {
+                counts.decrementAndGet(previous.ordinal());
+            }
+            if (next != Status.OFFLINE) {
+                counts.incrementAndGet(next.ordinal());
+            }
+            presence.status = next;
+            pending.compute(username, (user, change) -> new Change(change != null ? change.from : previous, next));
+        }
+
+        if (next == Status.ONLINE) {
+            long deadline = presence.lastActiveMillis + IDLE_MILLIS;
+            if (presence.idleCheck == null) {
+                presence.idleCheck = timingWheel.schedule(deadline, () -> checkIdle(username));
+            } else if (next != previous) {
+                presence.idleCheck.reschedule(deadline);
+            }
+        } else if (presence.idleCheck != null) {
+            presence.idleCheck.cancel();
+        }
+        return next != Status.OFFLINE ? presence : null;
+    }
+
+    /**
+     * Mark a user idle if it has sent nothing since its idle check was
+     * scheduled, or move the check to the new deadline. Called by the
+     * user's idle timeout.
+     *
+     * @param username The username
+     */
+    private void checkIdle(String username) {
+        users.computeIfPresent(username, (user, presence) -> {
+            long deadline = presence.lastActiveMillis + IDLE_MILLIS;
+            if (presence.status == Status.ONLINE && System.currentTimeMillis() < deadline) {
+                presence.idleCheck.reschedule(deadline);
+                return presence;
+            }
+            return update(user, presence);
+        });
+    }
+
+    /**
+     * The sessions and connections of one user. Changed only inside a
+     * compute on the user's entry, except for the activity time.
+     */
+    private static final class UserPresence {
+        private int sessions;
+        private int connections;
+        private volatile long lastActiveMillis;
+        private volatile Status status = Status.OFFLINE;
+        private TimingWheel.Timeout idleCheck;
+    }
+
+    /**
+     * A user's status at the last flush and now.
+     */
+    private record Change(Status from, Status to) {
+    }
+}
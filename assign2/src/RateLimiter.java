@@ -0,0 +1,137 @@
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limits for client actions. Every {@link Limit} keeps one
+ * bucket per key, such as a username or a room name, which refills at a
+ * steady rate up to a burst size. Buckets are lock-free: each stores the time
+ * at which it will be full again and is updated with a compare-and-set, which
+ * is equivalent to counting tokens (the generic cell rate algorithm).
+ *
+ * Rates are configured with system properties named
+ * {@code chat.<limit>.rate} (per second) and {@code chat.<limit>.burst}, for
+ * example {@code -Dchat.userMessage.rate=10}. Buckets that have refilled are
+ * dropped by {@link #evictIdle()}.
+ */
+public class RateLimiter {
+
+    /**
+     * The actions that are rate limited.
+     */
+    public enum Limit {
+        USER_MESSAGE("userMessage", 10, 20),
+        ROOM_MESSAGE("roomMessage", 100, 200),
+        ROOM_CREATE("roomCreate", 0.2, 5);
+
+        private final String property;
+        private final double defaultRate;
+        private final double defaultBurst;
+
+        Limit(String property, double defaultRate, double defaultBurst) {
+            this.property = property;
+            this.defaultRate = defaultRate;
+            this.defaultBurst = defaultBurst;
+        }
+
+        /**
+         * Get the label of the limit in metrics.
+         *
+         * @return The label
+         */
+        public String getLabel() {
+            return property;
+        }
+    }
+
+    private final Map<Limit, Policy> policies;
+
+    /**
+     * Create a rate limiter with the rates from the system properties.
+     */
+    public RateLimiter() {
+        this.policies = new EnumMap<>(Limit.class);
+        for (Limit limit : Limit.values()) {
+            double rate = Double.parseDouble(System.getProperty("chat." + limit.property + ".rate",
+                    Double.toString(limit.defaultRate)));
+            double burst = Double.parseDouble(System.getProperty("chat." + limit.property + ".burst",
+                    Double.toString(limit.defaultBurst)));
+            policies.put(limit, new Policy(rate, burst));
+        }
+    }
+
+    /**
+     * Take a token from a bucket. Rejections are counted in
+     * {@link Metrics#RATE_LIMITED}.
+     *
+     * @param limit The limit to check
+     * @param key The key of the bucket, such as a username or room name
+     * @return true if the action is allowed
+     */
+    public boolean tryAcquire(Limit limit, String key) {
+        Policy policy = policies.get(limit);
+        if (policy.interval == 0) {
+            return true;
+        }
+
+        AtomicLong bucket = policy.buckets.get(key);
+        if (bucket == null) {
+            bucket = policy.buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+        }
+
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = bucket.get();
+            long base = fullAt == Long.MIN_VALUE || fullAt - now < 0 ? now : fullAt;
+            long next = base + policy.interval;
+            if (next - now > policy.capacity) {
+                Metrics.RATE_LIMITED.labels(limit.getLabel()).increment();
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the buckets that have refilled completely; they would behave the
+     * same as a new bucket.
+     *
+     * @return The number of buckets dropped
+     */
+    public int evictIdle() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Policy policy : policies.values()) {
+            for (Map.Entry<String, AtomicLong> entry : policy.buckets.entrySet()) {
+                long fullAt = entry.getValue().get();
+                if (fullAt - now <= 0 && policy.buckets.remove(entry.getKey(), entry.getValue())) {
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * The rate of one limit and its buckets.
+     */
+    private static class Policy {
+        private final long interval;
+        private final long capacity;
+        private final ConcurrentMap<String, AtomicLong> buckets;
+
+        /**
+         * @param rate Tokens added per second, or 0 for no limit
+         * @param burst The maximum number of tokens in a bucket
+         */
+        Policy(double rate, double burst) {
+            this.interval = rate > 0 ? (long) (1e9 / rate) : 0;
+            this.capacity = (long) (Math.max(1, burst) * interval);
+            this.buckets = new ConcurrentHashMap<>();
+        }
+    }
+}
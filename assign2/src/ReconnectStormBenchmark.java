@@ -0,0 +1,325 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Measures how quickly a crowd of clients recovers when all of them reconnect
+ * at once, as after a server restart or a network blip, with and without TLS
+ * session resumption.
+ *
+ * Every simulated client has its own TLS context, like a separate client
+ * process. The clients log in once, then run storms: all of them open a new
+ * connection at the same instant and send {@code RECONNECT <token>}. Storms
+ * alternate between resuming the previous TLS session and forcing a full
+ * handshake by invalidating it first. For each storm the benchmark reports
+ * the time until the last client was back, the handshake and reconnect
+ * latencies, and how many handshakes were resumptions.
+ */
+public class ReconnectStormBenchmark {
+
+    private static final int MAX_CONCURRENT_LOGINS = 100;
+
+    private final Options options;
+    private final StormClient[] clients;
+
+    /**
+     * Create a benchmark.
+     *
+     * @param options The options
+     */
+    public ReconnectStormBenchmark(Options options) {
+        this.options = options;
+        this.clients = new StormClient[options.clients];
+    }
+
+    /**
+     * Main entry point for the benchmark.
+     *
+     * @param args Command line arguments
+     * @throws Exception If the clients cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        // java ReconnectStormBenchmark [--host <host>] [--port <port>] [--clients <n>] [--rounds <n>]
+
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        new ReconnectStormBenchmark(options).run();
+    }
+
+    /**
+     * Log every client in, then run the storms and print a line for each.
+     *
+     * @throws Exception If the clients cannot be set up
+     */
+    public void run() throws Exception {
+        Path trustStore = Path.of(System.getProperty("chat.trustStore", "truststore.jks"));
+        char[] password = System.getProperty("chat.trustStorePassword", "password").toCharArray();
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new StormClient("storm" + i, TlsContexts.clientContext(trustStore, password));
+        }
+
+        long loginStart = System.nanoTime();
+        CountDownLatch loggedIn = new CountDownLatch(clients.length);
+        Semaphore logins = new Semaphore(MAX_CONCURRENT_LOGINS);
+        LongAdder failed = new LongAdder();
+        for (StormClient client : clients) {
+            Thread.startVirtualThread(() -> {
+                try {
+                    logins.acquire();
+                    try {
+                        client.login(options);
+                    } finally {
+                        logins.release();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    failed.increment();
+                } finally {
+                    loggedIn.countDown();
+                }
+            });
+        }
+        loggedIn.await();
+        if (failed.sum() > 0) {
+            System.err.println(failed.sum() + " clients could not log in; is the server running?");
+            System.exit(1);
+        }
+        System.out.printf("Logged in %d clients in %.1f s%n%n", clients.length,
+                (System.nanoTime() - loginStart) / 1e9);
+
+        System.out.printf("%-8s %10s %8s %22s %22s %7s%n", "storm", "recovery", "resumed",
+                "handshake p50/p99", "reconnect p50/p99", "errors");
+        for (int round = 1; round <= options.rounds; round++) {
+            storm(true);
+            storm(false);
+        }
+    }
+
+    /**
+     * Reconnect every client at once and print the result.
+     *
+     * @param resume Whether clients may resume their previous TLS session
+     * @throws InterruptedException If interrupted while waiting for clients
+     */
+    private void storm(boolean resume) throws InterruptedException {
+        if (!resume) {
+            for (StormClient client : clients) {
+                client.forgetSession();
+            }
+        }
+
+        MetricsRegistry registry = new MetricsRegistry();
+        MetricsRegistry.Histogram handshakes = registry.histogram("handshake", "TLS handshake time");
+        MetricsRegistry.Histogram reconnects = registry.histogram("reconnect", "Time until RECONNECT_SUCCESS");
+        LongAdder resumed = new LongAdder();
+        LongAdder errors = new LongAdder();
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients.length);
+        for (StormClient client : clients) {
+            Thread.startVirtualThread(() -> {
+                try {
+                    start.await();
+                    if (client.reconnect(options, handshakes, reconnects)) {
+                        resumed.increment();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    errors.increment();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long stormStart = System.nanoTime();
+        start.countDown();
+        done.await();
+        double recovery = (System.nanoTime() - stormStart) / 1e6;
+
+        System.out.printf("%-8s %8.0f ms %8d %10.1f/%6.1f ms %10.1f/%6.1f ms %7d%n", resume ? "resumed" : "full",
+                recovery, resumed.sum(), handshakes.getPercentile(50) / 1e6, handshakes.getPercentile(99) / 1e6,
+                reconnects.getPercentile(50) / 1e6, reconnects.getPercentile(99) / 1e6, errors.sum());
+    }
+
+    /**
+     * A simulated client with its own TLS context and session token.
+     */
+    private static class StormClient {
+        private final String username;
+        private final SSLContext context;
+        private String token;
+        private SSLSession lastSession;
+
+        /**
+         * @param username The username of the client
+         * @param context The TLS context of the client
+         */
+        StormClient(String username, SSLContext context) {
+            this.username = username;
+            this.context = context;
+        }
+
+        /**
+         * Register if needed, log in and keep the session token.
+         *
+         * @param options The options
+         * @throws IOException If the connection or the login fails
+         */
+        void login(Options options) throws IOException {
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(options.host, options.port)) {
+                PrintWriter out = writer(socket);
+                BufferedReader in = reader(socket);
+
+                out.println("REGISTER " + username + " storm");
+                expect(in, "REGISTER_");
+                out.println("LOGIN " + username + " storm");
+                String response = expect(in, "LOGIN_SUCCESS ");
+                token = response.substring("LOGIN_SUCCESS ".length());
+                lastSession = socket.getSession();
+            }
+        }
+
+        /**
+         * Drop the cached TLS session so the next handshake is a full one.
+         */
+        void forgetSession() {
+            if (lastSession != null) {
+                lastSession.invalidate();
+            }
+        }
+
+        /**
+         * Open a new connection and restore the chat session with the token.
+         *
+         * @param options The options
+         * @param handshakes Records the TLS handshake time
+         * @param reconnects Records the time until the session is restored
+         * @return true if the TLS session was resumed
+         * @throws IOException If the connection or the reconnect fails
+         */
+        boolean reconnect(Options options, MetricsRegistry.Histogram handshakes, MetricsRegistry.Histogram reconnects)
+                throws IOException {
+            long start = System.nanoTime();
+            long startMillis = System.currentTimeMillis();
+            try (SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(options.host, options.port)) {
+                socket.startHandshake();
+                handshakes.recordSince(start);
+
+                PrintWriter out = writer(socket);
+                BufferedReader in = reader(socket);
+                out.println("RECONNECT " + token);
+                expect(in, "RECONNECT_SUCCESS");
+                reconnects.recordSince(start);
+
+                lastSession = socket.getSession();
+                // A resumed session keeps the creation time of the session it resumes
+                return lastSession.getCreationTime() < startMillis;
+            }
+        }
+
+        /**
+         * Read responses until one that is not a room message and check its
+         * prefix.
+         *
+         * @param in The connection input
+         * @param prefix The expected prefix
+         * @return The response
+         * @throws IOException If the connection fails or the response is unexpected
+         */
+        private static String expect(BufferedReader in, String prefix) throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Disconnected");
+                }
+            } while (line.startsWith("MESSAGE ") || line.startsWith("JOINED "));
+
+            if (!line.startsWith(prefix)) {
+                throw new IOException("Unexpected response " + line);
+            }
+            return line;
+        }
+
+        /**
+         * Create a line writer for a connection.
+         *
+         * @param socket The connection
+         * @return The writer
+         * @throws IOException If the stream cannot be opened
+         */
+        private static PrintWriter writer(SSLSocket socket) throws IOException {
+            return new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        }
+
+        /**
+         * Create a line reader for a connection.
+         *
+         * @param socket The connection
+         * @return The reader
+         * @throws IOException If the stream cannot be opened
+         */
+        private static BufferedReader reader(SSLSocket socket) throws IOException {
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Command line options of the benchmark.
+     */
+    public static class Options {
+        String host = "localhost";
+        int port = 1234;
+        int clients = 500;
+        int rounds = 3;
+
+        /**
+         * Parse command line options.
+         *
+         * @param args The command line arguments
+         * @return The options
+         * @throws IllegalArgumentException If an option is unknown or invalid
+         */
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "--host" -> options.host = value;
+                        case "--port" -> options.port = Integer.parseInt(value);
+                        case "--clients" -> options.clients = Integer.parseInt(value);
+                        case "--rounds" -> options.rounds = Integer.parseInt(value);
+                        default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+                }
+            }
+
+            if (options.clients < 1 || options.rounds < 1) {
+                throw new IllegalArgumentException("--clients and --rounds must be positive");
+            }
+            return options;
+        }
+    }
+}
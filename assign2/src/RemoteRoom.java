@@ -0,0 +1,290 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The local side of a room led by another cluster node. It holds the users
+ * connected to this node who are in the room, but no history: messages are
+ * forwarded to the leader, and the leader's copy of every message comes back
+ * through {@link #deliver(Message)} to be fanned out to the local users.
+ *
+ * The room is subscribed to on the leader while it has local users. Joins
+ * and leaves are serialized on a lock, so the subscribe and unsubscribe
+ * frames reach the leader in the same order as the membership changes. When
+ * another node takes over the room, {@link #moveTo(String)} moves the
+ * subscription there.
+ *
+ * The last messages delivered by the leader are kept in a short buffer. A
+ * resuming user's missed messages are fetched from the leader before the
+ * users are locked, and the buffer fills the gap between the fetch and the
+ * lock, so broadcasts never wait for the leader.
+ */
+public class RemoteRoom extends Room {
+
+    private static final int RECENT_SIZE = 256;
+
+    private final Cluster cluster;
+    private final ReentrantLock membershipLock;
+    private final ArrayDeque<Message> recent;
+    private final ReentrantLock recentLock;
+    private volatile String owner;
+
+    /**
+     * Create the local side of a remote room.
+     *
+     * @param name The name of the room
+     * @param cluster The cluster connection
+     * @param owner The id of the node leading the room
+     */
+    public RemoteRoom(String name, Cluster cluster, String owner) {
+        super(name);
+        this.cluster = cluster;
+        this.owner = owner;
+        this.membershipLock = new ReentrantLock();
+        this.recent = new ArrayDeque<>(RECENT_SIZE);
+        this.recentLock = new ReentrantLock();
+    }
+
+    /**
+     * Get the node that leads the room.
+     *
+     * @return The id of the leading node
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Forward a message to the leader. It reaches the local users when the
+     * leader delivers it back.
+     *
+     * @param message The message to add
+     */
+    @Override
+    public void addMessage(Message message) {
+        String current = owner;
+        if (!cluster.forward(current, getName(), message)) {
+            ServerLog.warn("Dropped message for unreachable room leader", "room", getName(), "leader", current);
+        }
+    }
+
+    /**
+     * Fan out a message delivered by the leader to the local users.
+     *
+     * @param message The message
+     */
+    public void deliver(Message message) {
+        recentLock.lock();
+        try {
+            if (recent.size() == RECENT_SIZE) {
+                recent.removeFirst();
+            }
+            recent.addLast(message);
+        } finally {
+            recentLock.unlock();
+        }
+        broadcastMessage(message);
+    }
+
+    /**
+     * Get the most recent messages from the leader.
+     *
+     * @param count The maximum number of messages to return
+     * @return The last {@code count} messages, oldest first, or an empty list
+     * if the leader cannot be reached
+     */
+    @Override
+    public List<Message> getHistory(int count) {
+        List<Message> history = cluster.history(owner, getName(), count);
+        return history != null ? history : List.of();
+    }
+
+    /**
+     * Get the most recent messages numbered after a sequence number from
+     * the leader.
+     *
+     * @param seq The sequence number of the last message already seen, or -1
+     * for none
+     * @param maxCount The maximum number of messages to return
+     * @return Up to the last {@code maxCount} messages after {@code seq},
+     * oldest first, or an empty list if the leader cannot be reached
+     */
+    @Override
+    public List<Message> getMessagesAfter(long seq, int maxCount) {
+        List<Message> messages = cluster.historyAfter(owner, getName(), seq, maxCount);
+        return messages != null ? messages : List.of();
+    }
+
+    /**
+     * Add a user, subscribing to the room first so the user's own join
+     * message is delivered back.
+     *
+     * @param handler The client handler for the user
+     * @return true if the user is in the room, false if the room has been
+     * closed
+     */
+    @Override
+    public boolean addUser(ClientHandler handler) {
+        membershipLock.lock();
+        try {
+            cluster.subscribe(owner, getName());
+            boolean added = super.addUser(handler);
+            if (!added && getUserCount() == 0) {
+                cluster.unsubscribe(owner, getName());
+            }
+            return added;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Put a reconnected user back in the room, subscribing first so no
+     * message after the missed ones is lost. The missed messages are
+     * fetched from the leader before the users are locked, and completed
+     * with the messages delivered since.
+     *
+     * @param previous The user's previous client handler, or null
+     * @param handler The client handler of the new connection
+     * @param lastSeq The sequence number of the last message the client saw
+     * @param maxCount The maximum number of missed messages to send, or 0
+     * to send none
+     * @return true if the user is in the room, false if the room has been
+     * closed
+     */
+    @Override
+    public boolean resumeUser(ClientHandler previous, ClientHandler handler, long lastSeq, int maxCount) {
+        membershipLock.lock();
+        try {
+            cluster.subscribe(owner, getName());
+            List<Message> fetched = maxCount > 0 ? getMessagesAfter(lastSeq, maxCount) : List.of();
+            boolean added = super.resumeUser(previous, handler, lastSeq,
+                    () -> maxCount > 0 ? withRecent(fetched, lastSeq) : fetched);
+            if (!added && getUserCount() == 0) {
+                cluster.unsubscribe(owner, getName());
+            }
+            return added;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Remove a user, unsubscribing when the last local user leaves.
+     *
+     * @param handler The client handler for the user
+     */
+    @Override
+    public void removeUser(ClientHandler handler) {
+        membershipLock.lock();
+        try {
+            super.removeUser(handler);
+            if (getUserCount() == 0) {
+                cluster.unsubscribe(owner, getName());
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Add users moved from another room object, subscribing first.
+     *
+     * @param handlers The client handlers of the users
+     * @return true if the users are in the room, false if the room has been
+     * closed
+     */
+    @Override
+    public boolean adoptUsers(List<ClientHandler> handlers) {
+        membershipLock.lock();
+        try {
+            cluster.subscribe(owner, getName());
+            boolean added = super.adoptUsers(handlers);
+            if (!added && getUserCount() == 0) {
+                cluster.unsubscribe(owner, getName());
+            }
+            return added;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Remove every user without announcing it and drop the subscription.
+     *
+     * @return The users that were in the room
+     */
+    @Override
+    public List<ClientHandler> removeAllUsers() {
+        membershipLock.lock();
+        try {
+            List<ClientHandler> users = super.removeAllUsers();
+            if (!users.isEmpty()) {
+                cluster.unsubscribe(owner, getName());
+            }
+            return users;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Append the buffered messages delivered after the last one fetched.
+     * Called with the users locked, so every message delivered before is in
+     * the buffer and every later one is broadcast to the resumed user.
+     *
+     * @param fetched The missed messages fetched from the leader
+     * @param lastSeq The sequence number of the last message the client saw
+     * @return The missed messages up to the last one delivered
+     */
+    private List<Message> withRecent(List<Message> fetched, long lastSeq) {
+        long seq = fetched.isEmpty() ? lastSeq : fetched.get(fetched.size() - 1).getSeq();
+        List<Message> missed = new ArrayList<>(fetched);
+        recentLock.lock();
+        try {
+            for (Message message : recent) {
+                if (message.getSeq() > seq) {
+                    missed.add(message);
+                    seq = message.getSeq();
+                }
+            }
+        } finally {
+            recentLock.unlock();
+        }
+        return missed;
+    }
+
+    /**
+     * Renew the subscription if the room has local users, after the
+     * connection to the leader was re-established.
+     */
+    public void resubscribe() {
+        membershipLock.lock();
+        try {
+            if (getUserCount() > 0) {
+                cluster.subscribe(owner, getName());
+            }
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Follow a new leader, moving the subscription to it.
+     *
+     * @param newOwner The id of the node now leading the room
+     */
+    public void moveTo(String newOwner) {
+        membershipLock.lock();
+        try {
+            if (getUserCount() > 0) {
+                cluster.unsubscribe(owner, getName());
+                cluster.subscribe(newOwner, getName());
+            }
+            owner = newOwner;
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+}
@@ -1,18 +1,104 @@
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Represents a chat room in the system. Contains messages and connected users.
+ * Every message is numbered with its index in the room, which clients use to
+ * ask for the messages they missed while disconnected.
+ *
+ * A room backed by a {@link MessageLog} holds only its most recent
+ * {@code chat.roomTailSize} messages in memory (1000 by default) and reads
+ * older ones from the log, so loading a room with a long history does not
+ * read all of it. A room without a log holds every message.
+ *
+ * A user logged in on several devices is in the room once, with a delivery
+ * group holding each of the user's connections in the room. The user is
+ * announced when the first connection joins and when the last one leaves,
+ * and every message is written once to each connection.
+ *
+ * The usernames in the room are also kept in a concurrent set, updated
+ * together with the delivery groups, so the members can be counted and
+ * listed without taking the users lock.
+ *
+ * Messages are delivered through a chain of futures extended in sequence
+ * order with the messages locked, so each message is broadcast and relayed
+ * only after the one before it, whichever thread gets there first. In a
+ * replicated room a message also waits for its replicas to acknowledge it,
+ * on a virtual thread rather than the sender's, and is delivered even if
+ * they do not; see {@link Replicator}.
  */
 public class Room {
 
+    private static final int TAIL_SIZE = Integer.getInteger("chat.roomTailSize", 1000);
+
+    /**
+     * Receives every message of a room after it has been delivered to the
+     * room's own users, for example to pass it on to other cluster nodes.
+     */
+    public interface Relay {
+        /**
+         * Pass on a message.
+         *
+         * @param roomName The name of the room
+         * @param message The message
+         */
+        void relay(String roomName, Message message);
+    }
+
+    /**
+     * Copies the messages of a room to its replicas on other cluster nodes
+     * before they are delivered, so an acknowledged message survives the
+     * loss of this node. A message that is not acknowledged within the
+     * request timeout is still delivered, and counted as a replication
+     * failure: it is kept by the leader, but may be lost with it.
+     */
+    public interface Replicator {
+        /**
+         * Check whether this node leads the room, that is, whether messages
+         * may be appended to it here.
+         *
+         * @param roomName The name of the room
+         * @return true if this node leads the room
+         */
+        boolean leads(String roomName);
+
+        /**
+         * Start copying a message to the replicas. Called with the room's
+         * messages locked, so messages are sent in the order they are
+         * appended.
+         *
+         * @param room The room
+         * @param index The index of the message in the room
+         * @param message The message
+         * @return Completed when every reachable replica has stored the
+         * message, or null if there is no replica to wait for
+         */
+        CompletableFuture<Void> replicate(Room room, int index, Message message);
+    }
+
     private final String name;
     private final List<Message> messages;
-    private final List<ClientHandler> connectedUsers;
+    private final Map<String, DeliveryGroup> userGroups;
+    private final Set<String> members;
     private final ReentrantReadWriteLock messagesLock;
     private final ReentrantReadWriteLock usersLock;
+    private final MessageLog log;
+    private CompletableFuture<Void> delivered;
+    private int firstIndex;
+    private int connectionCount;
+    private boolean closed;
+    private volatile long lastActivity;
+    private volatile Relay relay;
+    private volatile Replicator replicator;
 
     /**
      * Create a new chat room with the given name.
@@ -20,11 +106,33 @@ public class Room {
      * @param name The name of the room
      */
     public Room(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Create a chat room backed by a message log. The most recent messages
+     * already in the log are read into the room.
+     *
+     * @param name The name of the room
+     * @param log The message log, or null to keep messages in memory only
+     */
+    public Room(String name, MessageLog log) {
         this.name = name;
         this.messages = new ArrayList<>();
-        this.connectedUsers = new ArrayList<>();
+        this.userGroups = new LinkedHashMap<>();
+        this.members = ConcurrentHashMap.newKeySet();
+        this.connectionCount = 0;
         this.messagesLock = new ReentrantReadWriteLock();
         this.usersLock = new ReentrantReadWriteLock();
+        this.log = log;
+        this.delivered = CompletableFuture.completedFuture(null);
+        this.closed = false;
+        this.lastActivity = System.currentTimeMillis();
+
+        if (log != null) {
+            messages.addAll(log.readLast(TAIL_SIZE));
+            this.firstIndex = (int) log.getNextOffset() - messages.size();
+        }
     }
 
     /**
@@ -37,23 +145,102 @@ public class Room {
     }
 
     /**
-     * Add a message to the room.
+     * Set the relay that receives every message after it is broadcast.
+     *
+     * @param relay The relay, or null for none
+     */
+    public void setRelay(Relay relay) {
+        this.relay = relay;
+    }
+
+    /**
+     * Set the replicator that copies every message to the room's replicas
+     * before it is broadcast.
+     *
+     * @param replicator The replicator, or null for none
+     */
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    /**
+     * Add a message to the room. A replicated room only takes messages on
+     * the node that leads it, and delivers a message once the replicas have
+     * acknowledged it or failed to. Returns without waiting for the
+     * replicas.
      *
-     * @param message The message to add
+     * @param message The message to add; the room numbers it
      */
     public void addMessage(Message message) {
+        Replicator currentReplicator = replicator;
+        if (currentReplicator != null && !currentReplicator.leads(name)) {
+            ServerLog.debug("Dropped message for room led by another node", "room", name);
+            return;
+        }
+
+        lastActivity = System.currentTimeMillis();
+        Metrics.MESSAGES_IN.labels(name).increment();
+
+        CompletableFuture<Void> replicated = null;
+        CompletableFuture<Void> ready = new CompletableFuture<>();
         messagesLock.writeLock().lock();
         try {
+            message = message.withSeq(firstIndex + messages.size());
+            if (log != null) {
+                try {
+                    log.append(message);
+                } catch (IOException e) {
+                    ServerLog.error("Error persisting message", "room", name, "error", e);
+                }
+            }
             messages.add(message);
+            trimTail();
+            if (currentReplicator != null) {
+                replicated = currentReplicator.replicate(this, (int) message.getSeq(), message);
+            }
+            Message numbered = message;
+            delivered = delivered.runAfterBoth(ready, () -> publish(numbered)).exceptionally(e -> {
+                ServerLog.error("Error delivering message", "room", name, "error", e);
+                return null;
+            });
         } finally {
             messagesLock.writeLock().unlock();
         }
 
+        if (replicated == null) {
+            ready.complete(null);
+            return;
+        }
+        long start = System.nanoTime();
+        replicated.whenCompleteAsync((result, e) -> {
+            if (e == null) {
+                Metrics.REPLICATION_DURATION.recordSince(start);
+            } else {
+                Metrics.REPLICATION_FAILURES.increment();
+                ServerLog.warn("Message not acknowledged by replica", "room", name, "error", e);
+            }
+            ready.complete(null);
+        }, Thread::startVirtualThread);
+    }
+
+    /**
+     * Broadcast a message and pass it on to the relay. Called in sequence
+     * order by the delivery chain.
+     *
+     * @param message The message
+     */
+    private void publish(Message message) {
         broadcastMessage(message);
+
+        Relay currentRelay = relay;
+        if (currentRelay != null) {
+            currentRelay.relay(name, message);
+        }
     }
 
     /**
-     * Get all messages in the room.
+     * Get the messages held in memory: every message of a room without a
+     * log, and the most recent ones of a room with one.
      *
      * @return A list of messages
      */
@@ -66,44 +253,327 @@ public class Room {
         }
     }
 
+    /**
+     * Get a range of messages in the room.
+     *
+     * @param fromIndex The index of the first message
+     * @param maxCount The maximum number of messages to return
+     * @return The messages from {@code fromIndex}, oldest first
+     */
+    public List<Message> getMessages(int fromIndex, int maxCount) {
+        messagesLock.readLock().lock();
+        try {
+            int count = firstIndex + messages.size();
+            int from = Math.min(Math.max(fromIndex, 0), count);
+            return range(from, (int) Math.min(count, (long) from + maxCount));
+        } finally {
+            messagesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the most recent messages numbered after a sequence number.
+     *
+     * @param seq The sequence number of the last message already seen, or -1
+     * for none
+     * @param maxCount The maximum number of messages to return
+     * @return Up to the last {@code maxCount} messages after {@code seq},
+     * oldest first
+     */
+    public List<Message> getMessagesAfter(long seq, int maxCount) {
+        messagesLock.readLock().lock();
+        try {
+            int count = firstIndex + messages.size();
+            int from = (int) Math.min(Math.max(seq + 1, count - maxCount), count);
+            return range(Math.max(from, 0), count);
+        } finally {
+            messagesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append messages copied from the node that leads the room. Messages
+     * the room already has are skipped, and nothing is appended if some
+     * messages before {@code fromIndex} are missing. Replicated messages
+     * are not broadcast: the room's users are served by the leader.
+     *
+     * @param fromIndex The index of the first message
+     * @param copies The messages
+     * @return The number of messages in the room afterwards
+     */
+    public int appendReplicated(int fromIndex, List<Message> copies) {
+        lastActivity = System.currentTimeMillis();
+        messagesLock.writeLock().lock();
+        try {
+            if (fromIndex > firstIndex + messages.size()) {
+                return firstIndex + messages.size();
+            }
+            for (int i = firstIndex + messages.size() - fromIndex; i < copies.size(); i++) {
+                Message message = copies.get(i);
+                if (log != null) {
+                    try {
+                        log.append(message);
+                    } catch (IOException e) {
+                        ServerLog.error("Error persisting replicated message", "room", name, "error", e);
+                        break;
+                    }
+                }
+                messages.add(message.withSeq(firstIndex + messages.size()));
+            }
+            trimTail();
+            return firstIndex + messages.size();
+        } finally {
+            messagesLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages in the room.
+     *
+     * @return The message count
+     */
+    public int getMessageCount() {
+        messagesLock.readLock().lock();
+        try {
+            return firstIndex + messages.size();
+        } finally {
+            messagesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the messages with indexes in a range, from memory or, for the
+     * part older than the tail held in memory, from the log. Called with
+     * the messages locked.
+     *
+     * @param from The index of the first message
+     * @param to The index after the last message
+     * @return The messages, oldest first
+     */
+    private List<Message> range(int from, int to) {
+        List<Message> result = new ArrayList<>(Math.max(to - from, 0));
+        if (from < firstIndex && log != null) {
+            result.addAll(log.read(from, Math.min(to, firstIndex) - from));
+        }
+        int start = Math.max(from, firstIndex) - firstIndex;
+        int end = to - firstIndex;
+        if (start < end) {
+            result.addAll(messages.subList(start, end));
+        }
+        return result;
+    }
+
+    /**
+     * Drop the oldest messages of a room with a log once twice the tail
+     * size is held, keeping the tail. Called with the messages write
+     * locked.
+     */
+    private void trimTail() {
+        if (log != null && messages.size() >= 2 * TAIL_SIZE) {
+            int dropped = messages.size() - TAIL_SIZE;
+            messages.subList(0, dropped).clear();
+            firstIndex += dropped;
+        }
+    }
+
+    /**
+     * Get the most recent messages in the room. Persistent rooms serve them
+     * from the message log.
+     *
+     * @param count The maximum number of messages to return
+     * @return The last {@code count} messages, oldest first
+     */
+    public List<Message> getHistory(int count) {
+        if (log != null) {
+            return log.readLast(count);
+        }
+
+        messagesLock.readLock().lock();
+        try {
+            return new ArrayList<>(messages.subList(Math.max(0, messages.size() - count), messages.size()));
+        } finally {
+            messagesLock.readLock().unlock();
+        }
+    }
+
     /**
      * Add a user to the room.
      *
      * @param handler The client handler for the user
+     * @return true if the user is in the room, false if the room has been
+     * closed
      */
-    public void addUser(ClientHandler handler) {
+    public boolean addUser(ClientHandler handler) {
+        boolean announce;
         usersLock.writeLock().lock();
         try {
-            if (!connectedUsers.contains(handler)) {
-                connectedUsers.add(handler);
+            if (closed) {
+                return false;
+            }
+            lastActivity = System.currentTimeMillis();
+            boolean firstConnection = !userGroups.containsKey(handler.getUsername());
+            announce = addConnection(handler) && firstConnection;
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+
+        // Announced outside the users lock, which broadcasts need
+        if (announce) {
+            Message enterMessage = new Message(
+                    "SYSTEM",
+                    "[" + handler.getUsername() + " enters the room]"
+            );
+            addMessage(enterMessage);
+        }
+        return true;
+    }
+
+    /**
+     * Put a reconnected user back in the room in place of its previous
+     * connection, without announcing it, and send the client the messages
+     * it missed. The user's other connections are left alone. Broadcasts
+     * wait until the missed messages are written, so the client receives
+     * the room's messages in order.
+     *
+     * @param previous The user's previous client handler, or null
+     * @param handler The client handler of the new connection
+     * @param lastSeq The sequence number of the last message the client saw
+     * @param maxCount The maximum number of missed messages to send, or 0
+     * to send none
+     * @return true if the user is in the room, false if the room has been
+     * closed
+     */
+    public boolean resumeUser(ClientHandler previous, ClientHandler handler, long lastSeq, int maxCount) {
+        return resumeUser(previous, handler, lastSeq,
+                () -> maxCount > 0 ? getMessagesAfter(lastSeq, maxCount) : List.of());
+    }
+
+    /**
+     * Put a reconnected user back in the room, sending the client the
+     * messages it missed with the users locked.
+     *
+     * @param previous The user's previous client handler, or null
+     * @param handler The client handler of the new connection
+     * @param lastSeq The sequence number of the last message the client saw
+     * @param missed Supplies the missed messages with the users locked, so
+     * it must not block
+     * @return true if the user is in the room, false if the room has been
+     * closed
+     */
+    protected boolean resumeUser(ClientHandler previous, ClientHandler handler, long lastSeq,
+            Supplier<List<Message>> missed) {
+        usersLock.writeLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (previous != null && previous != handler) {
+                removeConnection(previous);
+            }
+            handler.replay(name, missed.get(), lastSeq);
+            addConnection(handler);
+            return true;
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close the room if nobody is in it. A closed room rejects new users.
+     *
+     * @return true if the room was empty and is now closed
+     */
+    public boolean closeIfEmpty() {
+        return closeIfIdle(Long.MAX_VALUE);
+    }
 
-                Message enterMessage = new Message(
-                        "SYSTEM",
-                        "[" + handler.getUsername() + " enters the room]"
-                );
-                addMessage(enterMessage);
+    /**
+     * Close the room if nobody is in it and nothing has happened in it since
+     * the given time. A closed room rejects new users.
+     *
+     * @param cutoff The time, in epoch milliseconds, after which any activity
+     * keeps the room open
+     * @return true if the room was idle and is now closed
+     */
+    public boolean closeIfIdle(long cutoff) {
+        usersLock.writeLock().lock();
+        try {
+            if (userGroups.isEmpty() && lastActivity <= cutoff) {
+                closed = true;
             }
+            return closed;
         } finally {
             usersLock.writeLock().unlock();
         }
     }
 
     /**
-     * Remove a user from the room.
+     * Remove a connection of a user from the room, and the user once it has
+     * no connection left.
      *
      * @param handler The client handler for the user
      */
     public void removeUser(ClientHandler handler) {
+        boolean announce;
         usersLock.writeLock().lock();
         try {
-            if (connectedUsers.remove(handler)) {
-                // Add system message
-                Message leaveMessage = new Message(
-                        "SYSTEM",
-                        "[" + handler.getUsername() + " leaves the room]"
-                );
-                addMessage(leaveMessage);
+            announce = removeConnection(handler) && !userGroups.containsKey(handler.getUsername());
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+
+        if (announce) {
+            // Add system message
+            Message leaveMessage = new Message(
+                    "SYSTEM",
+                    "[" + handler.getUsername() + " leaves the room]"
+            );
+            addMessage(leaveMessage);
+        }
+    }
+
+    /**
+     * Add users moved from another node's copy of the room, without
+     * announcing them.
+     *
+     * @param handlers The client handlers of the users
+     * @return true if the users are in the room, false if the room has been
+     * closed
+     */
+    public boolean adoptUsers(List<ClientHandler> handlers) {
+        usersLock.writeLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            lastActivity = System.currentTimeMillis();
+            for (ClientHandler handler : handlers) {
+                addConnection(handler);
             }
+            return true;
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove every user without announcing it, so they can be moved to the
+     * node that now leads the room.
+     *
+     * @return The users that were in the room
+     */
+    public List<ClientHandler> removeAllUsers() {
+        usersLock.writeLock().lock();
+        try {
+            List<ClientHandler> users = new ArrayList<>(connectionCount);
+            for (DeliveryGroup group : userGroups.values()) {
+                users.addAll(group.connections);
+            }
+            userGroups.clear();
+            members.clear();
+            connectionCount = 0;
+            return users;
         } finally {
             usersLock.writeLock().unlock();
         }
@@ -112,30 +582,164 @@ public class Room {
     /**
      * Get the number of users in the room.
      *
-     * @return The number of connected users
+     * @return The number of connected users, counting each user once however
+     * many connections it has
      */
     public int getUserCount() {
+        return members.size();
+    }
+
+    /**
+     * Get the usernames of the users in the room.
+     *
+     * @return The usernames, in no particular order
+     */
+    public List<String> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /**
+     * Tell every connection in the room about the status changes of the
+     * room's users, in one line. Nothing is sent if none of the changed
+     * users is in the room.
+     *
+     * @param changes The new status of each user whose status changed
+     */
+    public void announcePresence(Map<String, PresenceService.Status> changes) {
+        List<String> entries = new ArrayList<>();
+        if (changes.size() <= members.size()) {
+            for (Map.Entry<String, PresenceService.Status> change : changes.entrySet()) {
+                if (members.contains(change.getKey())) {
+                    entries.add(change.getKey() + ":" + change.getValue().label());
+                }
+            }
+        } else {
+            for (String member : members) {
+                PresenceService.Status status = changes.get(member);
+                if (status != null) {
+                    entries.add(member + ":" + status.label());
+                }
+            }
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+
         usersLock.readLock().lock();
         try {
-            return connectedUsers.size();
+            for (DeliveryGroup group : userGroups.values()) {
+                for (ClientHandler handler : group.connections) {
+                    handler.sendPresence(name, entries);
+                }
+            }
         } finally {
             usersLock.readLock().unlock();
         }
     }
 
     /**
-     * Broadcast a message to all users in the room.
+     * Get the number of connections in the room.
+     *
+     * @return The number of connections of all users
+     */
+    public int getConnectionCount() {
+        usersLock.readLock().lock();
+        try {
+            return connectionCount;
+        } finally {
+            usersLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Broadcast a message to all users in the room, once to each of their
+     * connections.
      *
      * @param message The message to broadcast
      */
-    private void broadcastMessage(Message message) {
+    protected void broadcastMessage(Message message) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        long start = System.nanoTime();
+        int fanOut;
         usersLock.readLock().lock();
         try {
-            for (ClientHandler handler : connectedUsers) {
-                handler.sendMessage(message, this.name);
+            for (DeliveryGroup group : userGroups.values()) {
+                group.deliver(message, this.name);
             }
+            fanOut = connectionCount;
         } finally {
             usersLock.readLock().unlock();
         }
+        Metrics.MESSAGES_OUT.labels(name).add(fanOut);
+        Metrics.BROADCAST_DURATION.recordSince(start);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = name;
+            event.fanOut = fanOut;
+            event.commit();
+        }
+    }
+
+    /**
+     * Add a connection to its user's delivery group. Called with the users
+     * write lock held.
+     *
+     * @param handler The client handler of the connection
+     * @return true if the connection was added, false if it was already in
+     * the room
+     */
+    private boolean addConnection(ClientHandler handler) {
+        DeliveryGroup group = userGroups.computeIfAbsent(handler.getUsername(), u -> {
+            members.add(u);
+            return new DeliveryGroup();
+        });
+        if (group.connections.contains(handler)) {
+            return false;
+        }
+        group.connections.add(handler);
+        connectionCount++;
+        return true;
+    }
+
+    /**
+     * Remove a connection from its user's delivery group, and the group once
+     * it is empty. Called with the users write lock held.
+     *
+     * @param handler The client handler of the connection
+     * @return true if the connection was in the room
+     */
+    private boolean removeConnection(ClientHandler handler) {
+        DeliveryGroup group = userGroups.get(handler.getUsername());
+        if (group == null || !group.connections.remove(handler)) {
+            return false;
+        }
+        connectionCount--;
+        if (group.connections.isEmpty()) {
+            userGroups.remove(handler.getUsername());
+            members.remove(handler.getUsername());
+        }
+        return true;
+    }
+
+    /**
+     * The connections of one user in the room. Most users have one, so the
+     * list stays small.
+     */
+    private static final class DeliveryGroup {
+        private final List<ClientHandler> connections = new ArrayList<>(1);
+
+        /**
+         * Write a message to each connection of the user.
+         *
+         * @param message The message
+         * @param roomName The name of the room
+         */
+        void deliver(Message message, String roomName) {
+            for (ClientHandler handler : connections) {
+                handler.sendMessage(message, roomName);
+            }
+        }
     }
 }
@@ -1,25 +1,110 @@
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Manages chat rooms in the system. Handles room creation, deletion, and access
- * in a thread-safe manner.
+ * in a thread-safe manner. Rooms are kept in a concurrent map, so lookups on
+ * the message path never block, and creation is an atomic create-if-absent
+ * that only contends with operations on the same room name.
+ *
+ * When messages are persisted, rooms that are empty and idle can be evicted:
+ * their log is flushed and closed and only their name and prompt stay in
+ * memory. The room is reloaded from its log the next time it is looked up.
+ * Rooms found on disk at startup start out evicted, so memory scales with the
+ * rooms in use rather than with every room ever created.
  */
 public class RoomManager {
 
-    private final Map<String, Room> rooms;
-    private final ReentrantReadWriteLock lock;
+    private final ConcurrentMap<String, Room> rooms;
+    private final ConcurrentMap<String, MessageStore.StoredRoom> evictedRooms;
+    private final ConcurrentMap<String, Integer> roomIds;
+    private volatile String[] roomNamesById;
+    private int nextRoomId;
+    private final MessageStore messageStore;
+    private final ServerStateStore stateStore;
 
     /**
-     * Create a new room manager.
+     * Create a new room manager that keeps messages in memory only.
      */
     public RoomManager() {
-        this.rooms = new HashMap<>();
-        this.lock = new ReentrantReadWriteLock();
+        this(null, null);
+    }
+
+    /**
+     * Create a new room manager that persists messages in the given store.
+     * Rooms already in the store are restored by {@link #open()}.
+     *
+     * @param messageStore The message store, or null to keep messages in
+     * memory only
+     * @param stateStore The state store recording created rooms, or null
+     */
+    public RoomManager(MessageStore messageStore, ServerStateStore stateStore) {
+        this.rooms = new ConcurrentHashMap<>();
+        this.evictedRooms = new ConcurrentHashMap<>();
+        this.roomIds = new ConcurrentHashMap<>();
+        this.roomNamesById = new String[64];
+        this.nextRoomId = 0;
+        this.messageStore = messageStore;
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * Start the message store, if any, and recreate the rooms found in it.
+     * Called once, before the manager is used.
+     */
+    public void open() {
+        if (messageStore == null) {
+            return;
+        }
+        messageStore.start();
+        for (MessageStore.StoredRoom stored : messageStore.loadRooms()) {
+            restoreRoom(stored.name(), stored.prompt());
+        }
+    }
+
+    /**
+     * Recreate a room without recording it in the state store. Rooms with a
+     * message log are registered as evicted and loaded on first use.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     */
+    public void restoreRoom(String name, String prompt) {
+        if (messageStore == null) {
+            rooms.computeIfAbsent(name, n -> newRoom(n, prompt));
+        } else if (!rooms.containsKey(name)) {
+            evictedRooms.putIfAbsent(name, new MessageStore.StoredRoom(name, prompt));
+        }
+    }
+
+    /**
+     * Create a room object, backed by its message log if messages are
+     * persisted.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return The new room
+     */
+    protected Room newRoom(String name, String prompt) {
+        MessageLog log = openLog(name, prompt);
+        return prompt != null ? new AiRoom(name, prompt, log) : new Room(name, log);
+    }
+
+    /**
+     * Open the message log of a room, if messages are persisted.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return The message log, or null if messages are kept in memory only
+     */
+    private MessageLog openLog(String name, String prompt) {
+        return messageStore != null ? messageStore.openLog(name, prompt) : null;
     }
 
     /**
@@ -30,17 +115,7 @@ public class RoomManager {
      * already exists
      */
     public boolean createRoom(String name) {
-        lock.writeLock().lock();
-        try {
-            if (rooms.containsKey(name)) {
-                return false;
-            }
-
-            rooms.put(name, new Room(name));
-            return true;
-        } finally {
-            lock.writeLock().unlock();
-        }
+        return createRoom(name, null);
     }
 
     /**
@@ -52,16 +127,34 @@ public class RoomManager {
      * already exists
      */
     public boolean createAiRoom(String name, String prompt) {
-        lock.writeLock().lock();
-        try {
-            if (rooms.containsKey(name)) {
-                return false;
+        return createRoom(name, prompt);
+    }
+
+    /**
+     * Create a room and record it in the state store.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     * @return true if the room was created, false if a room with that name
+     * already exists
+     */
+    private boolean createRoom(String name, String prompt) {
+        boolean[] created = {false};
+        rooms.computeIfAbsent(name, n -> {
+            if (evictedRooms.containsKey(n)) {
+                return null;
             }
-            rooms.put(name, new AiRoom(name, prompt));
-            return true;
-        } finally {
-            lock.writeLock().unlock();
+            created[0] = true;
+            return newRoom(n, prompt);
+        });
+        if (!created[0]) {
+            return false;
         }
+
+        if (stateStore != null) {
+            stateStore.roomCreated(name, prompt);
+        }
+        return true;
     }
 
     /**
@@ -71,12 +164,63 @@ public class RoomManager {
      * @return The room, or null if no such room exists
      */
     public Room getRoom(String name) {
-        lock.readLock().lock();
-        try {
-            return rooms.get(name);
-        } finally {
-            lock.readLock().unlock();
+        Room room = rooms.get(name);
+        MessageStore.StoredRoom stored;
+        if (room == null && (stored = evictedRooms.get(name)) != null) {
+            // Checked again inside the compute, which a removal also runs in
+            room = rooms.computeIfAbsent(name, n -> evictedRooms.containsKey(n) ? newRoom(n, stored.prompt()) : null);
+            evictedRooms.remove(name, stored);
         }
+        return room;
+    }
+
+    /**
+     * Check whether a room exists, without loading it.
+     *
+     * @param name The name of the room
+     * @return true if the room exists, loaded or evicted
+     */
+    public boolean hasRoom(String name) {
+        return rooms.containsKey(name) || evictedRooms.containsKey(name);
+    }
+
+    /**
+     * Get the rooms currently loaded in memory.
+     *
+     * @return A list of the loaded rooms
+     */
+    protected List<Room> getLoadedRooms() {
+        return new ArrayList<>(rooms.values());
+    }
+
+    /**
+     * Evict every room that has had no users and no activity for the given
+     * time. Evicted rooms are reloaded from their message log when needed.
+     * Does nothing when messages are kept in memory only.
+     *
+     * @param idleTtlMillis How long a room must be idle to be evicted
+     * @return The number of rooms evicted
+     */
+    public int evictIdleRooms(long idleTtlMillis) {
+        if (messageStore == null) {
+            return 0;
+        }
+
+        long cutoff = System.currentTimeMillis() - idleTtlMillis;
+        int[] evicted = {0};
+        for (String name : rooms.keySet()) {
+            rooms.computeIfPresent(name, (n, current) -> {
+                if (!current.closeIfIdle(cutoff)) {
+                    return current;
+                }
+                String prompt = current instanceof AiRoom aiRoom ? aiRoom.getPrompt() : null;
+                evictedRooms.put(n, new MessageStore.StoredRoom(n, prompt));
+                messageStore.closeLog(n);
+                evicted[0]++;
+                return null;
+            });
+        }
+        return evicted[0];
     }
 
     /**
@@ -85,31 +229,128 @@ public class RoomManager {
      * @return A list of room names
      */
     public List<String> getRoomNames() {
-        lock.readLock().lock();
-        try {
-            return new ArrayList<>(rooms.keySet());
-        } finally {
-            lock.readLock().unlock();
+        List<String> names = new ArrayList<>(rooms.keySet());
+        for (String name : evictedRooms.keySet()) {
+            if (!rooms.containsKey(name)) {
+                names.add(name);
+            }
         }
+        return names;
     }
 
     /**
-     * Remove a room.
+     * Get the number of rooms, loaded or evicted. A room that is being
+     * reloaded may briefly be counted twice.
+     *
+     * @return The number of rooms
+     */
+    public int getRoomCount() {
+        return rooms.size() + evictedRooms.size();
+    }
+
+    /**
+     * Get the interned id of a room name, assigning one on first use. Ids
+     * are stable for the lifetime of the server and are used by the binary
+     * protocol instead of room names.
+     *
+     * @param name The name of the room
+     * @return The room id
+     */
+    public int getRoomId(String name) {
+        Integer id = roomIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        return roomIds.computeIfAbsent(name, this::assignRoomId);
+    }
+
+    /**
+     * Get the room name for an interned room id.
+     *
+     * @param id The room id
+     * @return The room name, or null if the id was never assigned
+     */
+    public String getRoomName(int id) {
+        String[] names = roomNamesById;
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+
+    /**
+     * Assign the next room id to a name.
+     *
+     * @param name The name of the room
+     * @return The new id
+     */
+    private synchronized Integer assignRoomId(String name) {
+        int id = nextRoomId++;
+        String[] names = roomNamesById;
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        roomNamesById = names;
+        return id;
+    }
+
+    /**
+     * Get the number of rooms currently loaded in memory.
+     *
+     * @return The number of loaded rooms
+     */
+    public int getLoadedRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Remove a room. Only empty rooms are removed; the room is closed first,
+     * so a user joining concurrently either gets in before the close (and
+     * the room stays) or sees the room as gone. The removal is recorded in
+     * the state store and the room's message log is deleted. In a cluster,
+     * only this node's copy of the room is removed.
      *
      * @param name The name of the room to remove
-     * @return true if the room was removed, false if no such room exists
+     * @return true if the room was removed, false if no such room exists or
+     * it still has users
      */
     public boolean removeRoom(String name) {
-        lock.writeLock().lock();
-        try {
-            Room room = rooms.get(name);
-            if (room != null && room.getUserCount() == 0) {
-                rooms.remove(name);
-                return true;
+        boolean[] removed = {false};
+        rooms.compute(name, (n, room) -> {
+            if (room == null) {
+                removed[0] = evictedRooms.remove(n) != null;
+                return null;
+            }
+            if (room.closeIfEmpty()) {
+                removed[0] = true;
+                return null;
             }
+            return room;
+        });
+        if (!removed[0]) {
             return false;
-        } finally {
-            lock.writeLock().unlock();
+        }
+
+        // Recorded before the log is deleted, so a crash in between is
+        // finished by restoreRoomRemoval rather than bringing the room back
+        if (stateStore != null) {
+            stateStore.roomRemoved(name);
+        }
+        if (messageStore != null) {
+            messageStore.deleteLog(name);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a room recovered as removed from the state store, deleting its
+     * message log if a crash left it behind.
+     *
+     * @param name The name of the room
+     */
+    public void restoreRoomRemoval(String name) {
+        evictedRooms.remove(name);
+        rooms.remove(name);
+        if (messageStore != null) {
+            messageStore.deleteLog(name);
         }
     }
 
@@ -121,12 +362,44 @@ public class RoomManager {
      * @return true if the user was added, false if the room doesn't exist
      */
     public boolean addUserToRoom(String roomName, ClientHandler handler) {
-        Room room = getRoom(roomName);
-        if (room != null) {
-            room.addUser(handler);
-            return true;
+        while (true) {
+            Room room = getRoom(roomName);
+            if (room == null) {
+                return false;
+            }
+            if (room.addUser(handler)) {
+                return true;
+            }
+            // The room was closed by a concurrent removal; it is either gone
+            // or has been replaced by a new room with the same name.
+            rooms.remove(roomName, room);
+        }
+    }
+
+    /**
+     * Put a reconnected user back in a room and send it the messages it
+     * missed.
+     *
+     * @param roomName The name of the room
+     * @param previous The user's previous client handler, or null
+     * @param handler The client handler of the new connection
+     * @param lastSeq The sequence number of the last message the client saw
+     * @param maxCount The maximum number of missed messages to send, or 0
+     * to send none
+     * @return true if the user was added, false if the room doesn't exist
+     */
+    public boolean resumeUserInRoom(String roomName, ClientHandler previous, ClientHandler handler, long lastSeq,
+            int maxCount) {
+        while (true) {
+            Room room = getRoom(roomName);
+            if (room == null) {
+                return false;
+            }
+            if (room.resumeUser(previous, handler, lastSeq, maxCount)) {
+                return true;
+            }
+            rooms.remove(roomName, room);
         }
-        return false;
     }
 
     /**
@@ -145,6 +418,53 @@ public class RoomManager {
         return false;
     }
 
+    /**
+     * Get the usernames of the users in a room on this node. An evicted room
+     * has no users, so it is not loaded.
+     *
+     * @param roomName The name of the room
+     * @return The usernames, or null if the room doesn't exist
+     */
+    public List<String> getRoomMembers(String roomName) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            return room.getMembers();
+        }
+        return evictedRooms.containsKey(roomName) ? List.of() : null;
+    }
+
+    /**
+     * Get the users in a room with their status, as listed by {@code WHO}.
+     *
+     * @param roomName The name of the room
+     * @param presence The presence service giving each user's status
+     * @return The status of each user in the room, or null if the room
+     * doesn't exist
+     */
+    public Map<String, PresenceService.Status> getRoomPresence(String roomName, PresenceService presence) {
+        List<String> members = getRoomMembers(roomName);
+        if (members == null) {
+            return null;
+        }
+        Map<String, PresenceService.Status> statuses = new LinkedHashMap<>();
+        for (String member : members) {
+            statuses.put(member, presence.getStatus(member));
+        }
+        return statuses;
+    }
+
+    /**
+     * Announce status changes in every loaded room with a changed user in
+     * it.
+     *
+     * @param changes The new status of each user whose status changed
+     */
+    public void announcePresence(Map<String, PresenceService.Status> changes) {
+        for (Room room : rooms.values()) {
+            room.announcePresence(changes);
+        }
+    }
+
     /**
      * Add a message to a room.
      *
@@ -160,4 +480,60 @@ public class RoomManager {
         }
         return false;
     }
+
+    /**
+     * Get the most recent messages of a room.
+     *
+     * @param roomName The name of the room
+     * @param count The maximum number of messages to return
+     * @return The messages, oldest first, or null if the room doesn't exist
+     */
+    public List<Message> getRoomHistory(String roomName, int count) {
+        Room room = getRoom(roomName);
+        if (room != null) {
+            return room.getHistory(count);
+        }
+        return null;
+    }
+
+    /**
+     * Get the most recent messages of a room numbered after a sequence
+     * number.
+     *
+     * @param roomName The name of the room
+     * @param seq The sequence number of the last message already seen, or -1
+     * for none
+     * @param maxCount The maximum number of messages to return
+     * @return The messages, oldest first, or null if the room doesn't exist
+     */
+    public List<Message> getRoomMessagesAfter(String roomName, long seq, int maxCount) {
+        Room room = getRoom(roomName);
+        if (room != null) {
+            return room.getMessagesAfter(seq, maxCount);
+        }
+        return null;
+    }
+
+    /**
+     * Write every room to a state snapshot.
+     *
+     * @param visitor The snapshot visitor
+     */
+    public void writeSnapshot(ServerStateStore.RoomVisitor visitor) {
+        for (Room room : rooms.values()) {
+            visitor.room(room.getName(), room instanceof AiRoom aiRoom ? aiRoom.getPrompt() : null);
+        }
+        for (MessageStore.StoredRoom stored : evictedRooms.values()) {
+            visitor.room(stored.name(), stored.prompt());
+        }
+    }
+
+    /**
+     * Flush and close the message store, if any.
+     */
+    public void close() {
+        if (messageStore != null) {
+            messageStore.close();
+        }
+    }
 }
@@ -0,0 +1,145 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Contention benchmark for the room registry. Several threads look up rooms
+ * in a tight loop while one thread keeps creating and removing rooms. The
+ * same workload runs against {@link RoomManager} and against a map guarded
+ * by a global read-write lock (the previous design), for an increasing number
+ * of lookup threads. Lookup throughput should scale with threads for the
+ * concurrent registry even while rooms churn.
+ */
+public class RoomManagerBenchmark {
+
+    private static final int ROOM_COUNT = 64;
+
+    /**
+     * Main entry point for the benchmark.
+     *
+     * @param args Command line arguments
+     * @throws InterruptedException If interrupted while waiting for threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        // java RoomManagerBenchmark [<seconds per run>] [<max threads>]
+
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String[] names = new String[ROOM_COUNT];
+        for (int i = 0; i < ROOM_COUNT; i++) {
+            names[i] = "room" + i;
+        }
+
+        System.out.printf("%-8s %20s %20s%n", "threads", "concurrent (ops/s)", "global lock (ops/s)");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            RoomManager manager = new RoomManager();
+            LockedRegistry locked = new LockedRegistry();
+            for (String name : names) {
+                manager.createRoom(name);
+                locked.create(name);
+            }
+
+            long concurrent = run(threads, seconds, names, manager::getRoom,
+                    name -> {
+                        manager.createRoom(name);
+                        manager.removeRoom(name);
+                    });
+            long global = run(threads, seconds, names, locked::get,
+                    name -> {
+                        locked.create(name);
+                        locked.remove(name);
+                    });
+
+            System.out.printf("%-8d %20d %20d%n", threads, concurrent, global);
+        }
+    }
+
+    /**
+     * Run lookups on several threads while one thread churns rooms.
+     *
+     * @param threads The number of lookup threads
+     * @param seconds The duration of the run
+     * @param names The names of the rooms to look up
+     * @param lookup The lookup under test
+     * @param churn Creates and removes a room with the given name
+     * @return The lookups per second
+     * @throws InterruptedException If interrupted while waiting for threads
+     */
+    private static long run(int threads, int seconds, String[] names, Function<String, Room> lookup,
+            Consumer<String> churn) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder lookups = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads + 1);
+
+        Thread churner = new Thread(() -> {
+            long i = 0;
+            while (running.get()) {
+                churn.accept("churn" + (i++ % 1024));
+            }
+            done.countDown();
+        });
+        churner.start();
+
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            new Thread(() -> {
+                long count = 0;
+                int i = seed;
+                while (running.get()) {
+                    if (lookup.apply(names[i++ & (ROOM_COUNT - 1)]) != null) {
+                        count++;
+                    }
+                }
+                lookups.add(count);
+                done.countDown();
+            }).start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+
+        return lookups.sum() / seconds;
+    }
+
+    /**
+     * Room registry guarded by one global read-write lock, for comparison.
+     */
+    private static class LockedRegistry {
+        private final Map<String, Room> rooms = new HashMap<>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        Room get(String name) {
+            lock.readLock().lock();
+            try {
+                return rooms.get(name);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void create(String name) {
+            lock.writeLock().lock();
+            try {
+                rooms.putIfAbsent(name, new Room(name));
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String name) {
+            lock.writeLock().lock();
+            try {
+                rooms.remove(name);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
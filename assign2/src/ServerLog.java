@@ -0,0 +1,418 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured log for the server. Callers never touch the console
+ * or the log file: an entry is copied into a slot of a lock-free ring buffer
+ * and a background writer thread formats it and writes it out. When the
+ * buffer is full the entry is dropped and counted rather than blocking the
+ * caller.
+ *
+ * Entries are a message followed by key-value fields, written as
+ * {@code <time> <LEVEL> [<thread>] <message> key=value ...}. They go to a
+ * rotating log file and, optionally, to standard output.
+ *
+ * Configuration, through system properties:
+ * <ul>
+ * <li>{@code chat.logLevel}: minimum level, {@code INFO} by default</li>
+ * <li>{@code chat.logFile}: log file, {@code logs/server.log} by default, or
+ * empty to disable the file</li>
+ * <li>{@code chat.logConsole}: also write to standard output, {@code true} by
+ * default</li>
+ * <li>{@code chat.logSampleRate}: log one in this many per-message entries,
+ * {@code 100} by default</li>
+ * </ul>
+ */
+public final class ServerLog {
+
+    private static final int CAPACITY = 8192;
+    private static final long MAX_FILE_BYTES = 10 * 1024 * 1024;
+    private static final int MAX_FILES = 5;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final Level LEVEL = parseLevel(System.getProperty("chat.logLevel", "INFO"));
+    private static final String FILE = System.getProperty("chat.logFile", "logs/server.log");
+    private static final boolean CONSOLE = Boolean.parseBoolean(System.getProperty("chat.logConsole", "true"));
+    public static final int SAMPLE_RATE = Math.max(1, Integer.getInteger("chat.logSampleRate", 100));
+
+    private static final Entry[] ENTRIES = new Entry[CAPACITY];
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static final LongAdder DROPPED = new LongAdder();
+    private static volatile long consumed;
+    private static volatile boolean running = true;
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ENTRIES[i] = new Entry(i - CAPACITY);
+        }
+        WRITER = new Thread(new LogWriter(), "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Log levels, in increasing order of severity.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Check whether entries of a level are written. Callers building
+     * expensive fields should check this first.
+     *
+     * @param level The level
+     * @return true if entries of the level are written
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    /**
+     * Parse a level name, falling back to {@link Level#INFO}.
+     *
+     * @param name The level name
+     * @return The level
+     */
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Log a debug entry.
+     *
+     * @param message The message
+     * @param fields Alternating field names and values
+     */
+    public static void debug(String message, Object... fields) {
+        log(Level.DEBUG, message, fields);
+    }
+
+    /**
+     * Log an informational entry.
+     *
+     * @param message The message
+     * @param fields Alternating field names and values
+     */
+    public static void info(String message, Object... fields) {
+        log(Level.INFO, message, fields);
+    }
+
+    /**
+     * Log a warning.
+     *
+     * @param message The message
+     * @param fields Alternating field names and values
+     */
+    public static void warn(String message, Object... fields) {
+        log(Level.WARN, message, fields);
+    }
+
+    /**
+     * Log an error.
+     *
+     * @param message The message
+     * @param fields Alternating field names and values
+     */
+    public static void error(String message, Object... fields) {
+        log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * Queue an entry for the writer thread. The fields are formatted on the
+     * writer thread, so they must not be mutated afterwards. Never blocks:
+     * if the buffer is full the entry is dropped.
+     *
+     * @param level The level
+     * @param message The message
+     * @param fields Alternating field names and values
+     */
+    public static void log(Level level, String message, Object... fields) {
+        if (!isEnabled(level) || !running) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - consumed >= CAPACITY) {
+                DROPPED.increment();
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = ENTRIES[(int) (sequence & (CAPACITY - 1))];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.thread = Thread.currentThread();
+        entry.message = message;
+        entry.fields = fields;
+        entry.sequence = sequence;
+    }
+
+    /**
+     * Write every queued entry and stop the writer thread.
+     */
+    public static void shutdown() {
+        running = false;
+        LockSupport.unpark(WRITER);
+        try {
+            WRITER.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decides which of a stream of frequent entries, such as one per
+     * message, are logged.
+     */
+    public static final class Sampler {
+        private final int rate;
+
+        /**
+         * Create a sampler.
+         *
+         * @param rate Log one in this many entries
+         */
+        public Sampler(int rate) {
+            this.rate = Math.max(1, rate);
+        }
+
+        /**
+         * Check whether the next entry should be logged.
+         *
+         * @return true for one in every {@code rate} calls on average
+         */
+        public boolean sample() {
+            return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+        }
+    }
+
+    /**
+     * A slot of the ring buffer. The volatile sequence is written last and
+     * publishes the other fields to the writer thread.
+     */
+    private static final class Entry {
+        private long time;
+        private Level level;
+        private Thread thread;
+        private String message;
+        private Object[] fields;
+        private volatile long sequence;
+
+        private Entry(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Background thread draining the ring buffer into the outputs.
+     */
+    private static final class LogWriter implements Runnable {
+        private final StringBuilder line = new StringBuilder(256);
+        private final PrintStream console = System.out;
+        private Path file;
+        private Writer output;
+        private long fileBytes;
+
+        @Override
+        public void run() {
+            openFile();
+
+            long next = 0;
+            while (true) {
+                Entry entry = ENTRIES[(int) (next & (CAPACITY - 1))];
+                if (entry.sequence == next) {
+                    write(entry);
+                    entry.fields = null;
+                    entry.message = null;
+                    entry.thread = null;
+                    consumed = ++next;
+                    continue;
+                }
+
+                reportDropped();
+                flush();
+                if (!running && CLAIMED.get() == next) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+
+            closeFile();
+        }
+
+        /**
+         * Format an entry and write it to the outputs.
+         */
+        private void write(Entry entry) {
+            line.setLength(0);
+            TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), line);
+            line.append(' ').append(entry.level).append(" [");
+            appendThread(entry.thread);
+            line.append("] ").append(entry.message);
+
+            Object[] fields = entry.fields;
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                line.append(' ').append(fields[i]).append('=');
+                Object value = fields[i + 1];
+                if (value instanceof Throwable) {
+                    Throwable throwable = (Throwable) value;
+                    value = throwable.getMessage() != null ? throwable.getMessage() : throwable.getClass().getSimpleName();
+                }
+                appendValue(String.valueOf(value));
+            }
+            line.append('\n');
+
+            if (CONSOLE) {
+                console.print(line);
+            }
+            if (output != null) {
+                try {
+                    output.append(line);
+                    fileBytes += line.length();
+                    if (fileBytes >= MAX_FILE_BYTES) {
+                        rotate();
+                    }
+                } catch (IOException e) {
+                    console.println("Error writing log file: " + e.getMessage());
+                    closeFile();
+                }
+            }
+        }
+
+        /**
+         * Append the name of a thread, or its id for unnamed virtual threads.
+         */
+        private void appendThread(Thread thread) {
+            String name = thread.getName();
+            if (name.isEmpty()) {
+                line.append('#').append(thread.threadId());
+            } else {
+                line.append(name);
+            }
+        }
+
+        /**
+         * Append a field value, quoting it if it contains spaces.
+         */
+        private void appendValue(String value) {
+            if (value.indexOf(' ') < 0 && value.indexOf('"') < 0 && !value.isEmpty()) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    line.append('\\');
+                }
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        /**
+         * Log how many entries were dropped since the last report.
+         */
+        private void reportDropped() {
+            long dropped = DROPPED.sumThenReset();
+            if (dropped > 0) {
+                Entry report = new Entry(0);
+                report.time = System.currentTimeMillis();
+                report.level = Level.WARN;
+                report.thread = Thread.currentThread();
+                report.message = "Log buffer full";
+                report.fields = new Object[]{"dropped", dropped};
+                write(report);
+            }
+        }
+
+        private void openFile() {
+            if (FILE.isEmpty()) {
+                return;
+            }
+            try {
+                file = Paths.get(FILE);
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                fileBytes = Files.exists(file) ? Files.size(file) : 0;
+                output = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+            } catch (IOException e) {
+                console.println("Error opening log file " + FILE + ": " + e.getMessage());
+                output = null;
+            }
+        }
+
+        /**
+         * Shift {@code server.log.N} to {@code server.log.N+1}, dropping the
+         * oldest, and start a new file.
+         */
+        private void rotate() throws IOException {
+            output.close();
+            for (int i = MAX_FILES - 1; i >= 1; i--) {
+                Path source = Paths.get(FILE + "." + i);
+                if (Files.exists(source)) {
+                    Files.move(source, Paths.get(FILE + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, Paths.get(FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            openFile();
+        }
+
+        private void flush() {
+            if (CONSOLE) {
+                console.flush();
+            }
+            if (output != null) {
+                try {
+                    output.flush();
+                } catch (IOException e) {
+                    console.println("Error writing log file: " + e.getMessage());
+                    closeFile();
+                }
+            }
+        }
+
+        private void closeFile() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    console.println("Error closing log file: " + e.getMessage());
+                }
+                output = null;
+            }
+        }
+    }
+}
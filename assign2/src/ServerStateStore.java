@@ -0,0 +1,305 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Durable store for the created rooms. Every creation and removal is
+ * appended to a {@link WriteAheadLog}, so concurrent changes share one write
+ * and one fsync per commit window.
+ *
+ * The rooms have this log to themselves. Users and sessions each keep their
+ * own {@link WriteAheadLog} with a durability suited to them: a registration
+ * waits for its commit in the user directory, which then compacts the log
+ * into its own file or index, while tokens and sessions, which change on
+ * every login and join, are written behind by the {@link SessionStore} and
+ * may lose the last flush interval in a crash. Sharing one log would tie
+ * the three to one snapshot format and one durability level.
+ *
+ * A snapshot of the whole state is written periodically. The log is rotated
+ * first, the snapshot is written to a temporary file and atomically renamed,
+ * and the generations it covers are deleted, so restart only replays the
+ * records written since the last snapshot. Components apply their change in
+ * memory before logging it, which guarantees that a snapshot taken after a
+ * rotation contains every record of the older generations. Replaying a record
+ * twice is harmless.
+ */
+public class ServerStateStore {
+
+    private static final String DEFAULT_DIRECTORY = System.getProperty("chat.dataDir", "data") + "/state";
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    private static final long SNAPSHOT_CHECK_SECONDS = 30;
+    private static final long SNAPSHOT_BYTES = 4 * 1024 * 1024;
+    private static final long SNAPSHOT_MAX_AGE_MS = 10 * 60 * 1000;
+
+    private static final byte ROOM = 1;
+    private static final byte SNAPSHOT_HEADER = 2;
+    private static final byte ROOM_REMOVED = 3;
+
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService scheduler;
+    private Consumer<RoomVisitor> snapshotSource;
+    private long lastSnapshotTime;
+
+    /**
+     * Create a state store in the default directory.
+     *
+     * @throws IOException If the directory cannot be created
+     */
+    public ServerStateStore() throws IOException {
+        this(Paths.get(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Create a state store in the given directory.
+     *
+     * @param directory The directory holding the snapshot and the log
+     * @throws IOException If the directory cannot be created
+     */
+    public ServerStateStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.wal = new WriteAheadLog(directory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "state-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lastSnapshotTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Replay the latest snapshot and the log written after it, then open the
+     * log for appends and start taking periodic snapshots.
+     *
+     * @param visitor The visitor applying each recovered room
+     * @param snapshotSource Writes every current room to a visitor when a
+     * snapshot is taken
+     * @throws IOException If the snapshot or the log cannot be read
+     */
+    public void open(RoomVisitor visitor, Consumer<RoomVisitor> snapshotSource) throws IOException {
+        this.snapshotSource = snapshotSource;
+
+        long fromGeneration = 0;
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            long[] header = {0};
+            WriteAheadLog.readRecords(ByteBuffer.wrap(Files.readAllBytes(snapshot)), payload -> {
+                if (payload[0] == SNAPSHOT_HEADER) {
+                    header[0] = Long.parseLong(decode(payload)[0]);
+                } else {
+                    apply(payload, visitor);
+                }
+            });
+            fromGeneration = header[0];
+        }
+
+        wal.replay(fromGeneration, payload -> apply(payload, visitor));
+        wal.open();
+
+        scheduler.scheduleWithFixedDelay(this::snapshotIfDue, SNAPSHOT_CHECK_SECONDS, SNAPSHOT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Record a created room.
+     *
+     * @param name The name of the room
+     * @param prompt The AI prompt, or null for a regular room
+     */
+    public void roomCreated(String name, String prompt) {
+        wal.append(encode(ROOM, name, prompt));
+    }
+
+    /**
+     * Record a removed room.
+     *
+     * @param name The name of the room
+     */
+    public void roomRemoved(String name) {
+        wal.append(encode(ROOM_REMOVED, name));
+    }
+
+    /**
+     * Write a snapshot of the current state and drop the log generations it
+     * covers.
+     */
+    public synchronized void snapshot() {
+        if (snapshotSource == null) {
+            return;
+        }
+
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try {
+            long generation = wal.rotate();
+
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    OutputStream out = Channels.newOutputStream(channel)) {
+                SnapshotWriter writer = new SnapshotWriter(out);
+                writer.write(encode(SNAPSHOT_HEADER, Long.toString(generation)));
+                snapshotSource.accept(writer);
+                writer.flush();
+                channel.force(true);
+            }
+
+            Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE);
+            wal.deleteBefore(generation);
+            lastSnapshotTime = System.currentTimeMillis();
+        } catch (IOException | UncheckedIOException e) {
+            ServerLog.error("Error writing state snapshot", "error", e);
+        }
+    }
+
+    /**
+     * Take a final snapshot and close the log.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        snapshot();
+        wal.close();
+    }
+
+    /**
+     * Take a snapshot if the log has grown too large or the last snapshot is
+     * too old.
+     */
+    private void snapshotIfDue() {
+        long written = wal.getBytesWritten();
+        if (written >= SNAPSHOT_BYTES
+                || (written > 0 && System.currentTimeMillis() - lastSnapshotTime >= SNAPSHOT_MAX_AGE_MS)) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Decode a record and hand it to a visitor.
+     *
+     * @param payload The encoded record
+     * @param visitor The visitor
+     */
+    private static void apply(byte[] payload, RoomVisitor visitor) {
+        String[] fields = decode(payload);
+        switch (payload[0]) {
+            case ROOM -> visitor.room(fields[0], fields[1]);
+            case ROOM_REMOVED -> visitor.roomRemoved(fields[0]);
+            default -> ServerLog.warn("Skipping unknown state record", "type", payload[0]);
+        }
+    }
+
+    /**
+     * Encode a record as its type followed by nullable string fields.
+     *
+     * @param type The record type
+     * @param fields The fields
+     * @return The encoded record
+     */
+    private static byte[] encode(byte type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            out.writeByte(fields.length);
+            for (String field : fields) {
+                out.writeBoolean(field != null);
+                if (field != null) {
+                    out.writeUTF(field);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode the fields of a record.
+     *
+     * @param payload The encoded record
+     * @return The fields, without the type
+     */
+    private static String[] decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            in.readByte();
+            String[] fields = new String[in.readByte()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = in.readBoolean() ? in.readUTF() : null;
+            }
+            return fields;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Receives rooms, either while recovering or while a snapshot is being
+     * written.
+     */
+    public interface RoomVisitor {
+
+        /**
+         * Receive a room.
+         *
+         * @param name The name of the room
+         * @param prompt The AI prompt, or null for a regular room
+         */
+        void room(String name, String prompt);
+
+        /**
+         * Receive the removal of a room. Snapshots only hold the current
+         * rooms, so visitors writing them ignore removals.
+         *
+         * @param name The name of the room
+         */
+        default void roomRemoved(String name) {
+        }
+    }
+
+    /**
+     * Visitor that writes each room to a snapshot file.
+     */
+    private static class SnapshotWriter implements RoomVisitor {
+        private final OutputStream out;
+        private final ByteBuffer header;
+
+        SnapshotWriter(OutputStream out) {
+            this.out = new BufferedOutputStream(out, 64 * 1024);
+            this.header = ByteBuffer.allocate(8);
+        }
+
+        void write(byte[] payload) {
+            try {
+                header.clear();
+                header.putInt(payload.length);
+                header.putInt(WriteAheadLog.checksum(payload));
+                out.write(header.array());
+                out.write(payload);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void room(String name, String prompt) {
+            write(encode(ROOM, name, prompt));
+        }
+    }
+}
@@ -1,144 +1,394 @@
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
- * Manages user sessions, allowing reconnection to existing sessions.
+ * Manages user sessions, allowing reconnection to existing sessions. Each
+ * login starts its own session, identified by {@link TokenService#sessionId}
+ * of its token, so a user logged in on several devices has one session, and
+ * one current room, per device.
+ *
+ * Sessions are immutable records in a concurrent map. Reads are plain map
+ * lookups, and an update builds a new record and swaps it in with a
+ * compare-and-set, retrying if another update got there first, so no lock
+ * is taken on either path.
+ *
+ * A session expires once it has not been updated for the session TTL, 24
+ * hours by default, while its user is disconnected. Each session has a
+ * timeout on a shared {@link TimingWheel} that is moved on every update, so
+ * expiry needs no scan over the sessions.
+ *
+ * Every session also records whether a client is connected to it. Sessions
+ * opening and closing and clients connecting and disconnecting are reported
+ * to a {@link PresenceService}, which works out who is online from them.
  */
 public class SessionManager {
-    
-    private final Map<String, UserSession> userSessions; 
-    private final ReentrantReadWriteLock lock;
-    
+
+    private static final long SESSION_TTL_MILLIS =
+            TimeUnit.MINUTES.toMillis(Long.getLong("chat.sessionTtlMinutes", 24 * 60));
+
+    private final ConcurrentMap<String, UserSession> userSessions;
+    private final SessionStore sessionStore;
+    private final TimingWheel timingWheel;
+    private final PresenceService presence;
+    private volatile StateVisitor changeListener;
+    private volatile Consumer<UserSession> expiryListener;
+
     /**
      * Create a new session manager.
+     *
+     * @param timingWheel The timing wheel expiring sessions
+     */
+    public SessionManager(TimingWheel timingWheel) {
+        this(null, timingWheel);
+    }
+
+    /**
+     * Create a new session manager that records session changes in the given
+     * session store.
+     *
+     * @param sessionStore The session store, or null to keep sessions in memory only
+     * @param timingWheel The timing wheel expiring sessions
      */
-    public SessionManager() {
-        this.userSessions = new HashMap<>();
-        this.lock = new ReentrantReadWriteLock();
+    public SessionManager(SessionStore sessionStore, TimingWheel timingWheel) {
+        this.userSessions = new ConcurrentHashMap<>();
+        this.sessionStore = sessionStore;
+        this.timingWheel = timingWheel;
+        this.presence = new PresenceService(timingWheel);
     }
-    
+
+    /**
+     * Get the presence service told about every session and connection.
+     *
+     * @return The presence service
+     */
+    public PresenceService getPresence() {
+        return presence;
+    }
+
     /**
      * Create or update a user session.
-     * 
+     *
+     * @param sessionId The session id
      * @param username The username
      * @param currentRoom The current room (can be null)
      * @param handler The client handler
      */
-    public void createOrUpdateSession(String username, String currentRoom, ClientHandler handler) {
-        lock.writeLock().lock();
-        try {
-            UserSession session = userSessions.get(username);
-            if (session == null) {
-                session = new UserSession(username);
-                userSessions.put(username, session);
-            }
-            
-            session.setCurrentRoom(currentRoom);
-            session.setClientHandler(handler);
-        } finally {
-            lock.writeLock().unlock();
+    public void createOrUpdateSession(String sessionId, String username, String currentRoom, ClientHandler handler) {
+        update(sessionId, username, currentRoom, handler, false);
+
+        if (sessionStore != null) {
+            sessionStore.sessionUpdated(sessionId, username, currentRoom);
+        }
+        StateVisitor listener = changeListener;
+        if (listener != null) {
+            listener.session(sessionId, username, currentRoom);
         }
     }
-    
+
     /**
-     * Get a user session.
-     * 
+     * Set a listener told about every session created, updated or removed
+     * here, used to pass sessions on to other cluster nodes. Restored
+     * sessions are not passed on.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setChangeListener(StateVisitor listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Set a listener called with every session that expires, after it has
+     * been removed, used to take the user out of its room.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setExpiryListener(Consumer<UserSession> listener) {
+        this.expiryListener = listener;
+    }
+
+    /**
+     * Restore a session recovered from the session store. The session has no
+     * client handler until the user reconnects.
+     *
+     * @param sessionId The session id
      * @param username The username
+     * @param currentRoom The current room (can be null)
+     */
+    public void restoreSession(String sessionId, String username, String currentRoom) {
+        update(sessionId, username, currentRoom, null, true);
+    }
+
+    /**
+     * Restore a session removal recovered from the session store.
+     *
+     * @param sessionId The session id
+     */
+    public void restoreSessionRemoval(String sessionId) {
+        UserSession removed = userSessions.remove(sessionId);
+        if (removed != null) {
+            cancelExpiry(removed);
+            presence.sessionClosed(removed.getUsername(), removed.connected);
+        }
+    }
+
+    /**
+     * Write every session to a state snapshot.
+     *
+     * @param visitor The snapshot visitor
+     */
+    public void writeSnapshot(StateVisitor visitor) {
+        for (UserSession session : userSessions.values()) {
+            visitor.session(session.getSessionId(), session.getUsername(), session.getCurrentRoom());
+        }
+    }
+
+    /**
+     * Get a user session.
+     *
+     * @param sessionId The session id
      * @return The user session, or null if not found
      */
-    public UserSession getSession(String username) {
-        lock.readLock().lock();
-        try {
-            return userSessions.get(username);
-        } finally {
-            lock.readLock().unlock();
+    public UserSession getSession(String sessionId) {
+        return userSessions.get(sessionId);
+    }
+
+    /**
+     * Move an existing session to a new connection, keeping its room, and
+     * start its TTL again.
+     *
+     * @param sessionId The session id
+     * @param handler The client handler of the new connection
+     * @return The session as it was before, or null if there is none
+     */
+    public UserSession attachHandler(String sessionId, ClientHandler handler) {
+        long expiryMillis = System.currentTimeMillis() + SESSION_TTL_MILLIS;
+        while (true) {
+            UserSession current = userSessions.get(sessionId);
+            if (current == null) {
+                return null;
+            }
+            UserSession updated = new UserSession(sessionId, current.getUsername(), current.getCurrentRoom(), handler,
+                    true, expiryMillis, current.expiry);
+            if (userSessions.replace(sessionId, current, updated)) {
+                current.expiry.reschedule(expiryMillis);
+                if (!current.connected) {
+                    presence.connectionChanged(current.getUsername(), true);
+                }
+                return current;
+            }
         }
     }
-    
+
     /**
-     * Remove a user session.
-     * 
+     * Record that the client of a session has disconnected. The session is
+     * kept so it can be resumed. Nothing changes if the session has since
+     * moved to another connection.
+     *
+     * @param sessionId The session id
+     * @param handler The client handler of the closed connection
+     */
+    public void detachHandler(String sessionId, ClientHandler handler) {
+        while (true) {
+            UserSession current = userSessions.get(sessionId);
+            if (current == null || current.getClientHandler() != handler || !current.connected) {
+                return;
+            }
+            UserSession updated = new UserSession(sessionId, current.getUsername(), current.getCurrentRoom(), handler,
+                    false, current.expiryMillis, current.expiry);
+            if (userSessions.replace(sessionId, current, updated)) {
+                presence.connectionChanged(current.getUsername(), false);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Record that a user sent a command, for its presence.
+     *
      * @param username The username
      */
-    public void removeSession(String username) {
-        lock.writeLock().lock();
-        try {
-            userSessions.remove(username);
-        } finally {
-            lock.writeLock().unlock();
+    public void recordActivity(String username) {
+        presence.touch(username);
+    }
+
+    /**
+     * Remove a user session.
+     *
+     * @param sessionId The session id
+     */
+    public void removeSession(String sessionId) {
+        UserSession removed = userSessions.remove(sessionId);
+        if (removed == null) {
+            return;
         }
+        cancelExpiry(removed);
+        presence.sessionClosed(removed.getUsername(), removed.connected);
+        recordRemoval(sessionId);
     }
-    
+
     /**
-     * Check if a user has an active session.
-     * 
+     * Check if a session exists.
+     *
+     * @param sessionId The session id
+     * @return true if the session exists
+     */
+    public boolean hasActiveSession(String sessionId) {
+        return userSessions.containsKey(sessionId);
+    }
+
+    /**
+     * Get the number of sessions.
+     *
+     * @return The number of sessions
+     */
+    public int getSessionCount() {
+        return userSessions.size();
+    }
+
+    /**
+     * Swap in a new record for a session and start its TTL again.
+     *
+     * @param sessionId The session id
      * @param username The username
-     * @return true if the user has an active session
+     * @param currentRoom The current room (can be null)
+     * @param handler The client handler, or null
+     * @param keepHandler Whether to keep the handler of an existing session
+     * instead
      */
-    public boolean hasActiveSession(String username) {
-        lock.readLock().lock();
-        try {
-            return userSessions.containsKey(username);
-        } finally {
-            lock.readLock().unlock();
+    private void update(String sessionId, String username, String currentRoom, ClientHandler handler,
+            boolean keepHandler) {
+        long expiryMillis = System.currentTimeMillis() + SESSION_TTL_MILLIS;
+        while (true) {
+            UserSession current = userSessions.get(sessionId);
+            if (current == null) {
+                TimingWheel.Timeout expiry = timingWheel.schedule(expiryMillis, () -> expireSession(sessionId));
+                UserSession created = new UserSession(sessionId, username, currentRoom, handler, handler != null,
+                        expiryMillis, expiry);
+                if (userSessions.putIfAbsent(sessionId, created) == null) {
+                    presence.sessionOpened(username, created.connected);
+                    return;
+                }
+                expiry.cancel();
+            } else {
+                ClientHandler newHandler = keepHandler ? current.getClientHandler() : handler;
+                boolean connected = newHandler == current.getClientHandler() ? current.connected : newHandler != null;
+                UserSession updated = new UserSession(sessionId, username, currentRoom, newHandler, connected,
+                        expiryMillis, current.expiry);
+                if (userSessions.replace(sessionId, current, updated)) {
+                    current.expiry.reschedule(expiryMillis);
+                    if (connected != current.connected) {
+                        presence.connectionChanged(username, connected);
+                    }
+                    return;
+                }
+            }
         }
     }
-    
+
     /**
-     * Represents a user session.
+     * Remove a session whose TTL has passed, unless its user is connected,
+     * in which case the TTL starts again. Called by the session's timeout.
+     *
+     * @param sessionId The session id
      */
-    public static class UserSession {
+    private void expireSession(String sessionId) {
+        UserSession session = userSessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now < session.expiryMillis) {
+            // Updated since the timeout was moved, possibly by a concurrent
+            // update that moved it first
+            session.expiry.reschedule(session.expiryMillis);
+            return;
+        }
+        ClientHandler handler = session.getClientHandler();
+        if (handler != null && handler.isConnected()) {
+            session.expiry.reschedule(now + SESSION_TTL_MILLIS);
+            return;
+        }
+        if (!userSessions.remove(sessionId, session)) {
+            return;
+        }
+
+        presence.sessionClosed(session.getUsername(), session.connected);
+        recordRemoval(sessionId);
+        Consumer<UserSession> listener = expiryListener;
+        if (listener != null) {
+            listener.accept(session);
+        }
+    }
+
+    /**
+     * Record the removal of a session and pass it on to the change listener.
+     *
+     * @param sessionId The session id
+     */
+    private void recordRemoval(String sessionId) {
+        if (sessionStore != null) {
+            sessionStore.sessionRemoved(sessionId);
+        }
+        StateVisitor listener = changeListener;
+        if (listener != null) {
+            listener.sessionRemoved(sessionId);
+        }
+    }
+
+    /**
+     * Cancel the expiry of a removed session.
+     *
+     * @param session The removed session, or null
+     */
+    private static void cancelExpiry(UserSession session) {
+        if (session != null) {
+            session.expiry.cancel();
+        }
+    }
+
+    /**
+     * An immutable snapshot of a user session. The expiry timeout is shared
+     * by every snapshot of the same session. The client handler is kept
+     * after its client disconnects, so a resumed connection can take its
+     * place in the room.
+     */
+    public static final class UserSession {
+        private final String sessionId;
         private final String username;
-        private String currentRoom;
-        private ClientHandler clientHandler;
-        private final ReentrantReadWriteLock sessionLock;
-        
-        public UserSession(String username) {
+        private final String currentRoom;
+        private final ClientHandler clientHandler;
+        private final boolean connected;
+        private final long expiryMillis;
+        private final TimingWheel.Timeout expiry;
+
+        private UserSession(String sessionId, String username, String currentRoom, ClientHandler clientHandler,
+                boolean connected, long expiryMillis, TimingWheel.Timeout expiry) {
+            this.sessionId = sessionId;
             this.username = username;
-            this.currentRoom = null;
-            this.clientHandler = null;
-            this.sessionLock = new ReentrantReadWriteLock();
+            this.currentRoom = currentRoom;
+            this.clientHandler = clientHandler;
+            this.connected = connected;
+            this.expiryMillis = expiryMillis;
+            this.expiry = expiry;
+        }
+
+        public String getSessionId() {
+            return sessionId;
         }
-        
+
         public String getUsername() {
             return username;
         }
-        
+
         public String getCurrentRoom() {
-            sessionLock.readLock().lock();
-            try {
-                return currentRoom;
-            } finally {
-                sessionLock.readLock().unlock();
-            }
+            return currentRoom;
         }
-        
-        public void setCurrentRoom(String currentRoom) {
-            sessionLock.writeLock().lock();
-            try {
-                this.currentRoom = currentRoom;
-            } finally {
-                sessionLock.writeLock().unlock();
-            }
-        }
-        
+
         public ClientHandler getClientHandler() {
-            sessionLock.readLock().lock();
-            try {
-                return clientHandler;
-            } finally {
-                sessionLock.readLock().unlock();
-            }
-        }
-        
-        public void setClientHandler(ClientHandler clientHandler) {
-            sessionLock.writeLock().lock();
-            try {
-                this.clientHandler = clientHandler;
-            } finally {
-                sessionLock.writeLock().unlock();
-            }
+            return clientHandler;
         }
     }
-}
\ No newline at end of file
+}
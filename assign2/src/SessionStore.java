@@ -0,0 +1,387 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Durable store of session tokens and sessions, so clients can
+ * {@code RECONNECT} after a restart instead of logging in again. Tokens are
+ * stored only as hashes.
+ *
+ * Writes are write-behind: a change replaces any pending change to the same
+ * token or session in memory and returns at once, and a flusher appends the
+ * pending changes every {@value #FLUSH_INTERVAL_MS} ms as one batch of a
+ * {@link WriteAheadLog}. A burst of joins and leaves costs one write per
+ * session per interval rather than one fsync per change, and a crash loses
+ * at most the last interval. The log is compacted in the background into a
+ * single file the same way as the {@link UserStore}.
+ */
+public class SessionStore {
+
+    private static final String DEFAULT_DIRECTORY = System.getProperty("chat.dataDir", "data") + "/sessions";
+    private static final String COMPACTED_FILE = "sessions.dat";
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("chat.sessionFlushMillis", 200);
+    private static final long COMPACTION_CHECK_SECONDS = 60;
+    private static final long MIN_COMPACTION_BYTES = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte TOKEN = 1;
+    private static final byte TOKEN_REVOKED = 2;
+    private static final byte SESSION = 3;
+    private static final byte SESSION_REMOVED = 4;
+    private static final byte HEADER = 5;
+    private static final byte TOKEN_ID_REVOKED = 6;
+
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final ConcurrentMap<String, byte[]> pending;
+    private final ScheduledExecutorService scheduler;
+    private Consumer<StateVisitor> compactionSource;
+    private volatile long compactedBytes;
+    private volatile long replayedLogBytes;
+
+    /**
+     * Create a session store in the default directory.
+     *
+     * @throws IOException If the directory cannot be created
+     */
+    public SessionStore() throws IOException {
+        this(Paths.get(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Create a session store in the given directory.
+     *
+     * @param directory The directory holding the compacted file and the log
+     * @throws IOException If the directory cannot be created
+     */
+    public SessionStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.wal = new WriteAheadLog(directory);
+        this.pending = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-store-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactedBytes = 0;
+        this.replayedLogBytes = 0;
+    }
+
+    /**
+     * Replay the stored tokens and sessions, then open the log for appends
+     * and start flushing and compacting it periodically.
+     *
+     * @param visitor Receives each stored token, revocation and session
+     * @param compactionSource Writes every current token and session to a
+     * visitor when the store is compacted
+     * @throws IOException If the store cannot be read
+     */
+    public void open(StateVisitor visitor, Consumer<StateVisitor> compactionSource)
+            throws IOException {
+        this.compactionSource = compactionSource;
+
+        long[] fromGeneration = {0};
+        Consumer<byte[]> reader = payload -> {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            switch (buffer.get()) {
+                case HEADER -> fromGeneration[0] = buffer.getLong();
+                case TOKEN -> visitor.token(getString(buffer), getString(buffer), buffer.getLong());
+                case TOKEN_REVOKED -> visitor.tokenRevoked(getString(buffer));
+                case TOKEN_ID_REVOKED -> visitor.tokenIdRevoked(buffer.getLong(), buffer.getLong());
+                case SESSION -> {
+                    String sessionId = getString(buffer);
+                    String username = getString(buffer);
+                    String room = getString(buffer);
+                    visitor.session(sessionId, username, room.isEmpty() ? null : room);
+                }
+                case SESSION_REMOVED -> visitor.sessionRemoved(getString(buffer));
+                default -> ServerLog.warn("Skipping unknown session record", "type", payload[0]);
+            }
+        };
+
+        Path compacted = directory.resolve(COMPACTED_FILE);
+        if (Files.exists(compacted)) {
+            compactedBytes = Files.size(compacted);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(compacted), BUFFER_SIZE)) {
+                WriteAheadLog.readRecords(in, reader);
+            }
+        }
+
+        long[] logBytes = {0};
+        wal.replay(fromGeneration[0], payload -> {
+            logBytes[0] += payload.length;
+            reader.accept(payload);
+        });
+        replayedLogBytes = logBytes[0];
+        wal.open();
+
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::compactIfDue, COMPACTION_CHECK_SECONDS, COMPACTION_CHECK_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Record an issued or refreshed token.
+     *
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     */
+    public void tokenIssued(String tokenHash, String username, long expiryMillis) {
+        pending.put("t" + tokenHash, encodeToken(tokenHash, username, expiryMillis));
+    }
+
+    /**
+     * Record a revoked token.
+     *
+     * @param tokenHash The hash of the token
+     */
+    public void tokenRevoked(String tokenHash) {
+        pending.put("t" + tokenHash, encode(TOKEN_REVOKED, tokenHash));
+    }
+
+    /**
+     * Record a revoked signed token by its id, kept until the token expires.
+     *
+     * @param tokenId The id of the token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     */
+    public void tokenIdRevoked(long tokenId, long expiryMillis) {
+        pending.put("i" + tokenId, encodeTokenIdRevoked(tokenId, expiryMillis));
+    }
+
+    /**
+     * Record the current state of a session.
+     *
+     * @param sessionId The session id
+     * @param username The username
+     * @param currentRoom The current room, or null if not in a room
+     */
+    public void sessionUpdated(String sessionId, String username, String currentRoom) {
+        pending.put("s" + sessionId, encode(SESSION, sessionId, username, currentRoom != null ? currentRoom : ""));
+    }
+
+    /**
+     * Record a removed session.
+     *
+     * @param sessionId The session id
+     */
+    public void sessionRemoved(String sessionId) {
+        pending.put("s" + sessionId, encode(SESSION_REMOVED, sessionId));
+    }
+
+    /**
+     * Append every pending change to the log as one batch and wait until it
+     * is durable.
+     */
+    public void flush() {
+        CompletableFuture<Boolean> last = null;
+        Iterator<Map.Entry<String, byte[]>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, byte[]> entry = entries.next();
+            byte[] payload = entry.getValue();
+            if (pending.remove(entry.getKey(), payload)) {
+                last = wal.appendAsync(payload);
+            }
+        }
+        if (last != null && !last.join()) {
+            ServerLog.error("Error persisting sessions");
+        }
+    }
+
+    /**
+     * Rewrite the store as one file holding every current token and session
+     * and drop the log generations it covers.
+     */
+    public synchronized void compact() {
+        if (compactionSource == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Path temp = directory.resolve(COMPACTED_FILE + ".tmp");
+        try {
+            long generation = wal.rotate();
+
+            int[] count = {0};
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+                WriteAheadLog.writeRecord(out, ByteBuffer.allocate(9).put(HEADER).putLong(generation).array());
+                compactionSource.accept(new CompactionWriter(out, count));
+                out.flush();
+                channel.force(true);
+                compactedBytes = channel.size();
+            }
+
+            Files.move(temp, directory.resolve(COMPACTED_FILE), StandardCopyOption.ATOMIC_MOVE);
+            wal.deleteBefore(generation);
+            replayedLogBytes = 0;
+            ServerLog.info("Compacted session store", "records", count[0], "bytes", compactedBytes,
+                    "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | UncheckedIOException e) {
+            ServerLog.error("Error compacting session store", "error", e);
+        }
+    }
+
+    /**
+     * Flush the pending changes, stop the background tasks and close the
+     * log.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        flush();
+        wal.close();
+    }
+
+    /**
+     * Compact the store if the log, including what earlier runs left of it,
+     * has grown to half the size of the compacted file.
+     */
+    private void compactIfDue() {
+        if (replayedLogBytes + wal.getBytesWritten() >= Math.max(MIN_COMPACTION_BYTES, compactedBytes / 2)) {
+            compact();
+        }
+    }
+
+    /**
+     * Encode a token record.
+     *
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     * @return The encoded record
+     */
+    private static byte[] encodeToken(String tokenHash, String username, long expiryMillis) {
+        byte[] hash = tokenHash.getBytes(StandardCharsets.UTF_8);
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(13 + hash.length + name.length)
+                .put(TOKEN)
+                .putShort((short) hash.length).put(hash)
+                .putShort((short) name.length).put(name)
+                .putLong(expiryMillis)
+                .array();
+    }
+
+    /**
+     * Encode the revocation of a signed token.
+     *
+     * @param tokenId The id of the token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     * @return The encoded record
+     */
+    private static byte[] encodeTokenIdRevoked(long tokenId, long expiryMillis) {
+        return ByteBuffer.allocate(17).put(TOKEN_ID_REVOKED).putLong(tokenId).putLong(expiryMillis).array();
+    }
+
+    /**
+     * Encode a record as its type followed by length-prefixed strings.
+     *
+     * @param type The record type
+     * @param fields The fields
+     * @return The encoded record
+     */
+    private static byte[] encode(byte type, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int size = 1;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            size += 2 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size).put(type);
+        for (byte[] field : encoded) {
+            buffer.putShort((short) field.length).put(field);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Read a length-prefixed string from a record.
+     *
+     * @param buffer The record, positioned at the string
+     * @return The string
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Visitor that writes the tokens and sessions passed to it to the
+     * compacted file.
+     */
+    private static class CompactionWriter implements StateVisitor {
+        private final OutputStream out;
+        private final int[] count;
+
+        CompactionWriter(OutputStream out, int[] count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        private void write(byte[] payload) {
+            try {
+                WriteAheadLog.writeRecord(out, payload);
+                count[0]++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void user(String username, String passwordHash) {
+        }
+
+        @Override
+        public void room(String name, String prompt) {
+        }
+
+        @Override
+        public void token(String tokenHash, String username, long expiryMillis) {
+            write(encodeToken(tokenHash, username, expiryMillis));
+        }
+
+        @Override
+        public void tokenRevoked(String tokenHash) {
+            write(encode(TOKEN_REVOKED, tokenHash));
+        }
+
+        @Override
+        public void tokenIdRevoked(long tokenId, long expiryMillis) {
+            write(encodeTokenIdRevoked(tokenId, expiryMillis));
+        }
+
+        @Override
+        public void session(String sessionId, String username, String currentRoom) {
+            write(encode(SESSION, sessionId, username, currentRoom != null ? currentRoom : ""));
+        }
+
+        @Override
+        public void sessionRemoved(String sessionId) {
+            write(encode(SESSION_REMOVED, sessionId));
+        }
+    }
+}
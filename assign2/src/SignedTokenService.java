@@ -0,0 +1,445 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Token service issuing self-contained tokens. A token carries the username,
+ * its expiry, a random id and the id of the key it is signed with, followed
+ * by an HMAC-SHA256 signature, so validating it needs no lookup in shared
+ * state and it stays valid across restarts and on every node that has the
+ * key.
+ *
+ * Signing keys are read from a keyring file with one {@code <id> <Base64 key>}
+ * line per key. Every listed key is accepted and the last one signs new
+ * tokens, so a key is rotated by appending a new line and removing the old
+ * one once the tokens it signed have expired. The file is created with one
+ * random key if it does not exist, and re-read by {@link #reloadKeys()} when
+ * it changes.
+ *
+ * Each key keeps an initialized {@link Mac} that is cloned for every
+ * signature, so checking a token does not look up the algorithm provider or
+ * set up the key again.
+ *
+ * A token cannot be changed once issued: refreshing it does not extend its
+ * expiry, and logging in again does not revoke the previous token. Revoked
+ * tokens are kept in a deny-list as their id and expiry only, until they
+ * expire, and are recorded in the session store and passed to other cluster
+ * nodes in the same form, so the tokens themselves are never stored.
+ */
+public class SignedTokenService implements TokenService {
+
+    private static final String DEFAULT_KEYRING = System.getProperty("chat.dataDir", "data") + "/token-keys";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 21;
+    private static final int KEY_BYTES = 32;
+
+    private final Path keyringPath;
+    private final SessionStore sessionStore;
+    private final SecureRandom random;
+    private final TimingWheel timingWheel;
+    private final ConcurrentMap<Long, Long> denied;
+    private volatile Keyring keyring;
+    private volatile StateVisitor changeListener;
+
+    /**
+     * Create a signed token service using the default keyring file.
+     *
+     * @param sessionStore The session store recording revoked tokens, or null
+     * @param timingWheel The timing wheel dropping expired revocations
+     * @throws IOException If the keyring cannot be read or created
+     */
+    public SignedTokenService(SessionStore sessionStore, TimingWheel timingWheel) throws IOException {
+        this(sessionStore, timingWheel, Paths.get(System.getProperty("chat.tokenKeyring", DEFAULT_KEYRING)));
+    }
+
+    /**
+     * Create a signed token service.
+     *
+     * @param sessionStore The session store recording revoked tokens, or null
+     * @param timingWheel The timing wheel dropping expired revocations
+     * @param keyringPath The keyring file
+     * @throws IOException If the keyring cannot be read or created
+     */
+    public SignedTokenService(SessionStore sessionStore, TimingWheel timingWheel, Path keyringPath)
+            throws IOException {
+        this.keyringPath = keyringPath;
+        this.sessionStore = sessionStore;
+        this.timingWheel = timingWheel;
+        this.random = new SecureRandom();
+        this.denied = new ConcurrentHashMap<>();
+        if (!Files.exists(keyringPath)) {
+            createKeyring();
+        }
+        this.keyring = loadKeyring();
+    }
+
+    /**
+     * Issue a token for a user, signed with the newest key.
+     *
+     * @param username The username
+     * @return The token
+     */
+    @Override
+    public String generateToken(String username) {
+        Keyring current = keyring;
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(HEADER_SIZE + name.length)
+                .put(VERSION)
+                .putInt(current.activeId)
+                .putLong(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(TOKEN_EXPIRY_HOURS))
+                .putLong(random.nextLong())
+                .put(name)
+                .array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "."
+                + encoder.encodeToString(current.keys.get(current.activeId).sign(payload));
+    }
+
+    /**
+     * Check a token's signature, expiry and the deny-list.
+     *
+     * @param token The token to check
+     * @return The username if valid, null otherwise
+     */
+    @Override
+    public String lookupToken(String token) {
+        Claims claims = parse(token);
+        if (claims == null || claims.isExpired() || denied.containsKey(claims.id)) {
+            return null;
+        }
+        return claims.username;
+    }
+
+    /**
+     * Check that a token is still valid. Signed tokens keep the expiry they
+     * were issued with.
+     *
+     * @param token The token
+     * @return true if the token is valid
+     */
+    @Override
+    public boolean refreshToken(String token) {
+        return lookupToken(token) != null;
+    }
+
+    /**
+     * Revoke a token by adding it to the deny-list.
+     *
+     * @param token The token to revoke
+     */
+    @Override
+    public void invalidateToken(String token) {
+        Claims claims = parse(token);
+        if (claims == null || !deny(claims.id, claims.expiryMillis)) {
+            return;
+        }
+        if (sessionStore != null) {
+            sessionStore.tokenIdRevoked(claims.id, claims.expiryMillis);
+        }
+        StateVisitor listener = changeListener;
+        if (listener != null) {
+            listener.tokenIdRevoked(claims.id, claims.expiryMillis);
+        }
+    }
+
+    @Override
+    public void setChangeListener(StateVisitor listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Ignore a stored token: signed tokens carry everything needed to
+     * validate them, and stored tokens are not accepted.
+     *
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     */
+    @Override
+    public void restoreToken(String tokenHash, String username, long expiryMillis) {
+    }
+
+    /**
+     * Ignore the revocation of a stored token.
+     *
+     * @param tokenHash The hash of the revoked token
+     */
+    @Override
+    public void restoreRevocation(String tokenHash) {
+    }
+
+    /**
+     * Restore a revocation recovered from the session store or sent by
+     * another cluster node.
+     *
+     * @param tokenId The id of the revoked token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     */
+    @Override
+    public void restoreRevocation(long tokenId, long expiryMillis) {
+        deny(tokenId, expiryMillis);
+    }
+
+    /**
+     * Write every revoked token that has not expired to a state snapshot.
+     *
+     * @param visitor The snapshot visitor
+     */
+    @Override
+    public void writeSnapshot(StateVisitor visitor) {
+        long now = System.currentTimeMillis();
+        denied.forEach((id, expiryMillis) -> {
+            if (expiryMillis > now) {
+                visitor.tokenIdRevoked(id, expiryMillis);
+            }
+        });
+    }
+
+    /**
+     * Get the number of revoked tokens in the deny-list.
+     *
+     * @return The deny-list size
+     */
+    public int getDeniedCount() {
+        return denied.size();
+    }
+
+    /**
+     * Re-read the keyring file if it has changed since it was last read. The
+     * current keys are kept if the file cannot be read.
+     */
+    public void reloadKeys() {
+        try {
+            if (Files.getLastModifiedTime(keyringPath).equals(keyring.modified)) {
+                return;
+            }
+            Keyring reloaded = loadKeyring();
+            keyring = reloaded;
+            ServerLog.info("Reloaded token keyring", "keys", reloaded.keys.size(), "activeKey", reloaded.activeId);
+        } catch (IOException e) {
+            ServerLog.error("Error reloading token keyring", "path", keyringPath, "error", e);
+        }
+    }
+
+    /**
+     * Add an unexpired token to the deny-list until it expires.
+     *
+     * @param tokenId The id of the token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     * @return true if the token was added, false if it has expired or is
+     * already revoked
+     */
+    private boolean deny(long tokenId, long expiryMillis) {
+        if (System.currentTimeMillis() >= expiryMillis || denied.putIfAbsent(tokenId, expiryMillis) != null) {
+            return false;
+        }
+        timingWheel.schedule(expiryMillis, () -> denied.remove(tokenId, expiryMillis));
+        return true;
+    }
+
+    /**
+     * Decode a token and check its signature.
+     *
+     * @param token The token
+     * @return The claims of the token, or null if it is malformed or not
+     * signed by a known key
+     */
+    private Claims parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+
+        byte[] payload;
+        byte[] signature;
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (payload.length <= HEADER_SIZE || payload[0] != VERSION) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 1, HEADER_SIZE - 1);
+        SigningKey key = keyring.keys.get(buffer.getInt());
+        if (key == null || !MessageDigest.isEqual(key.sign(payload), signature)) {
+            return null;
+        }
+        long expiryMillis = buffer.getLong();
+        long id = buffer.getLong();
+        String username = new String(payload, HEADER_SIZE, payload.length - HEADER_SIZE, StandardCharsets.UTF_8);
+        return new Claims(username, expiryMillis, id);
+    }
+
+    /**
+     * Read the keyring file.
+     *
+     * @return The keyring
+     * @throws IOException If the file cannot be read or holds no valid key
+     */
+    private Keyring loadKeyring() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(keyringPath);
+        List<String> lines = Files.readAllLines(keyringPath);
+        Map<Integer, SigningKey> keys = new HashMap<>();
+        int activeId = 0;
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                int id = Integer.parseInt(parts[0]);
+                keys.put(id, new SigningKey(new SecretKeySpec(Base64.getDecoder().decode(parts[1]), ALGORITHM)));
+                activeId = id;
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException("Invalid line in token keyring " + keyringPath + ": " + parts[0]);
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new IOException("No keys in token keyring " + keyringPath);
+        }
+        return new Keyring(Map.copyOf(keys), activeId, modified);
+    }
+
+    /**
+     * Create a keyring file holding one random key. The key is written to a
+     * temporary file that is created readable only by the owner and then
+     * moved into place, so the key is never readable by others. On a file
+     * system without POSIX permissions the file is created with the default
+     * permissions and an error is logged, since access to it must then be
+     * restricted by hand.
+     *
+     * @throws IOException If the file cannot be written
+     */
+    private void createKeyring() throws IOException {
+        byte[] key = new byte[KEY_BYTES];
+        random.nextBytes(key);
+        if (keyringPath.getParent() != null) {
+            Files.createDirectories(keyringPath.getParent());
+        }
+
+        Path temp = keyringPath.resolveSibling(keyringPath.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        if (keyringPath.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(temp);
+            ServerLog.error("Token keyring created without owner-only permissions, restrict access to it",
+                    "path", keyringPath);
+        }
+        Files.writeString(temp, "1 " + Base64.getEncoder().encodeToString(key) + "\n");
+        Files.move(temp, keyringPath, StandardCopyOption.ATOMIC_MOVE);
+        ServerLog.info("Created token keyring", "path", keyringPath);
+    }
+
+    /**
+     * The signing keys by id, the id of the key signing new tokens, and when
+     * the file they were read from was last modified.
+     */
+    private static final class Keyring {
+        private final Map<Integer, SigningKey> keys;
+        private final int activeId;
+        private final FileTime modified;
+
+        Keyring(Map<Integer, SigningKey> keys, int activeId, FileTime modified) {
+            this.keys = keys;
+            this.activeId = activeId;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * A signing key with a {@link Mac} initialized with it, cloned for each
+     * signature since a Mac cannot be shared between threads.
+     */
+    private static final class SigningKey {
+        private final SecretKeySpec key;
+        private final Mac prototype;
+
+        SigningKey(SecretKeySpec key) {
+            this.key = key;
+            this.prototype = newMac(key);
+        }
+
+        /**
+         * Compute the HMAC-SHA256 of a token payload.
+         *
+         * @param payload The payload
+         * @return The signature
+         */
+        byte[] sign(byte[] payload) {
+            Mac mac;
+            try {
+                mac = (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                mac = newMac(key);
+            }
+            return mac.doFinal(payload);
+        }
+
+        /**
+         * Create a Mac initialized with a key.
+         *
+         * @param key The key
+         * @return The Mac
+         * @throws IllegalArgumentException If the key cannot be used
+         */
+        private static Mac newMac(SecretKeySpec key) {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (InvalidKeyException e) {
+                throw new IllegalArgumentException("Invalid signing key", e);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC-SHA256 not available", e);
+            }
+        }
+    }
+
+    /**
+     * The contents of a token with a valid signature.
+     */
+    private static final class Claims {
+        private final String username;
+        private final long expiryMillis;
+        private final long id;
+
+        Claims(String username, long expiryMillis, long id) {
+            this.username = username;
+            this.expiryMillis = expiryMillis;
+            this.id = id;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiryMillis;
+        }
+    }
+}
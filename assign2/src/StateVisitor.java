@@ -0,0 +1,56 @@
+/**
+ * Receives the server state shared between stores and cluster nodes: users,
+ * rooms, tokens and sessions. Used to recover tokens and sessions from the
+ * {@link SessionStore}, to write its compacted file, and to catch up and
+ * update cluster peers.
+ */
+public interface StateVisitor extends ServerStateStore.RoomVisitor {
+
+    /**
+     * Receive a user.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     */
+    void user(String username, String passwordHash);
+
+    /**
+     * Receive an issued or refreshed token.
+     *
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     */
+    void token(String tokenHash, String username, long expiryMillis);
+
+    /**
+     * Receive a revoked token.
+     *
+     * @param tokenHash The hash of the revoked token
+     */
+    void tokenRevoked(String tokenHash);
+
+    /**
+     * Receive a revoked signed token.
+     *
+     * @param tokenId The id of the revoked token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     */
+    void tokenIdRevoked(long tokenId, long expiryMillis);
+
+    /**
+     * Receive a session.
+     *
+     * @param sessionId The session id
+     * @param username The username
+     * @param currentRoom The current room, or null if not in a room
+     */
+    void session(String sessionId, String username, String currentRoom);
+
+    /**
+     * Receive the removal of a session.
+     *
+     * @param sessionId The session id
+     */
+    void sessionRemoved(String sessionId);
+}
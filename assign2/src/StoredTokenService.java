@@ -0,0 +1,376 @@
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Token service keeping the tokens it issues. Each login gets its own token,
+ * so a user can stay logged in on several devices at once; once a user has
+ * more than {@code chat.maxSessionsPerUser} tokens, the oldest is revoked.
+ * 
+ * Tokens are random strings. Only their SHA-256 hashes are kept, looked up
+ * in a map, stored and passed to other nodes, so neither the session store
+ * nor a peer holds a usable token. Each token has a timeout on
+ * a shared {@link TimingWheel} that removes it when it expires, and that is
+ * moved when the token is refreshed.
+ */
+public class StoredTokenService implements TokenService {
+    
+    private static final int TOKEN_LENGTH = 32;
+    private static final int MAX_TOKENS_PER_USER = Integer.getInteger("chat.maxSessionsPerUser", 8);
+    
+    private final Map<String, TokenInfo> tokens; 
+    private final Map<String, Set<String>> userTokens; 
+    private final ReentrantReadWriteLock lock;
+    private final SecureRandom random;
+    private final SessionStore sessionStore;
+    private final TimingWheel timingWheel;
+    private volatile StateVisitor changeListener;
+    
+    /**
+     * Create a new token service.
+     * 
+     * @param timingWheel The timing wheel expiring tokens
+     */
+    public StoredTokenService(TimingWheel timingWheel) {
+        this(null, timingWheel);
+    }
+    
+    /**
+     * Create a new token service that records issued and revoked tokens in
+     * the given session store.
+     * 
+     * @param sessionStore The session store, or null to keep tokens in memory only
+     * @param timingWheel The timing wheel expiring tokens
+     */
+    public StoredTokenService(SessionStore sessionStore, TimingWheel timingWheel) {
+        this.tokens = new HashMap<>();
+        this.userTokens = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+        this.random = new SecureRandom();
+        this.sessionStore = sessionStore;
+        this.timingWheel = timingWheel;
+    }
+    
+    /**
+     * Generate a new authentication token for a user.
+     * 
+     * @param username The username
+     * @return The generated token
+     */
+    @Override
+    public String generateToken(String username) {
+        String token;
+        String tokenHash;
+        LocalDateTime expiry;
+        String evicted = null;
+        
+        lock.writeLock().lock();
+        try {
+            byte[] tokenBytes = new byte[TOKEN_LENGTH];
+            random.nextBytes(tokenBytes);
+            token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
+            tokenHash = TokenService.hashToken(token);
+            
+            expiry = LocalDateTime.now().plus(TOKEN_EXPIRY_HOURS, ChronoUnit.HOURS);
+            TokenInfo tokenInfo = new TokenInfo(username, expiry, scheduleExpiry(tokenHash, expiry));
+            
+            tokens.put(tokenHash, tokenInfo);
+            Set<String> hashes = userTokens.computeIfAbsent(username, k -> new LinkedHashSet<>());
+            hashes.add(tokenHash);
+            if (hashes.size() > MAX_TOKENS_PER_USER) {
+                evicted = hashes.iterator().next();
+                removeToken(evicted);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        if (sessionStore != null) {
+            sessionStore.tokenIssued(tokenHash, username, toEpochMillis(expiry));
+            if (evicted != null) {
+                sessionStore.tokenRevoked(evicted);
+            }
+        }
+        StateVisitor listener = changeListener;
+        if (listener != null) {
+            listener.token(tokenHash, username, toEpochMillis(expiry));
+            if (evicted != null) {
+                listener.tokenRevoked(evicted);
+            }
+        }
+        return token;
+    }
+    
+    /**
+     * Look up the owner of a token. Expired tokens are rejected here and
+     * removed by their timeout.
+     * 
+     * @param token The token to look up
+     * @return The username if valid, null otherwise
+     */
+    @Override
+    public String lookupToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        
+        lock.readLock().lock();
+        try {
+            TokenInfo tokenInfo = tokens.get(TokenService.hashToken(token));
+            if (tokenInfo == null || LocalDateTime.now().isAfter(tokenInfo.getExpiryTime())) {
+                return null;
+            }
+            return tokenInfo.getUsername();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Refresh a token's expiry time.
+     * 
+     * @param token The token to refresh
+     * @return true if refreshed, false if token doesn't exist
+     */
+    @Override
+    public boolean refreshToken(String token) {
+        String tokenHash = TokenService.hashToken(token);
+        TokenInfo newTokenInfo;
+        
+        lock.writeLock().lock();
+        try {
+            TokenInfo tokenInfo = tokens.get(tokenHash);
+            if (tokenInfo == null) {
+                return false;
+            }
+            
+            LocalDateTime newExpiry = LocalDateTime.now().plus(TOKEN_EXPIRY_HOURS, ChronoUnit.HOURS);
+            newTokenInfo = new TokenInfo(tokenInfo.getUsername(), newExpiry, tokenInfo.getTimeout());
+            tokens.put(tokenHash, newTokenInfo);
+            newTokenInfo.getTimeout().reschedule(toEpochMillis(newExpiry));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        if (sessionStore != null) {
+            sessionStore.tokenIssued(tokenHash, newTokenInfo.getUsername(), toEpochMillis(newTokenInfo.getExpiryTime()));
+        }
+        StateVisitor listener = changeListener;
+        if (listener != null) {
+            listener.token(tokenHash, newTokenInfo.getUsername(), toEpochMillis(newTokenInfo.getExpiryTime()));
+        }
+        return true;
+    }
+    
+    /**
+     * Invalidate a token.
+     * 
+     * @param token The token to invalidate
+     */
+    @Override
+    public void invalidateToken(String token) {
+        if (token == null) {
+            return;
+        }
+        
+        String tokenHash = TokenService.hashToken(token);
+        TokenInfo tokenInfo;
+        
+        lock.writeLock().lock();
+        try {
+            tokenInfo = removeToken(tokenHash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        if (tokenInfo != null && sessionStore != null) {
+            sessionStore.tokenRevoked(tokenHash);
+        }
+        StateVisitor listener = changeListener;
+        if (tokenInfo != null && listener != null) {
+            listener.tokenRevoked(tokenHash);
+        }
+    }
+    
+    /**
+     * Set a listener told about every token issued, refreshed or revoked
+     * here, used to pass tokens on to other cluster nodes. Tokens restored
+     * through {@link #restoreToken} are not passed on.
+     * 
+     * @param listener The listener, or null for none
+     */
+    @Override
+    public void setChangeListener(StateVisitor listener) {
+        this.changeListener = listener;
+    }
+    
+    /**
+     * Restore a token recovered from the session store or sent by another
+     * cluster node.
+     * 
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     */
+    @Override
+    public void restoreToken(String tokenHash, String username, long expiryMillis) {
+        LocalDateTime expiry = LocalDateTime.ofInstant(Instant.ofEpochMilli(expiryMillis), ZoneId.systemDefault());
+        
+        lock.writeLock().lock();
+        try {
+            if (LocalDateTime.now().isAfter(expiry)) {
+                removeToken(tokenHash);
+                return;
+            }
+            
+            TokenInfo existing = tokens.get(tokenHash);
+            TimingWheel.Timeout timeout;
+            if (existing != null) {
+                timeout = existing.getTimeout();
+                timeout.reschedule(expiryMillis);
+            } else {
+                timeout = scheduleExpiry(tokenHash, expiry);
+            }
+            tokens.put(tokenHash, new TokenInfo(username, expiry, timeout));
+            userTokens.computeIfAbsent(username, k -> new LinkedHashSet<>()).add(tokenHash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Restore a token revocation recovered from the session store or sent
+     * by another cluster node.
+     * 
+     * @param tokenHash The hash of the revoked token
+     */
+    @Override
+    public void restoreRevocation(String tokenHash) {
+        lock.writeLock().lock();
+        try {
+            removeToken(tokenHash);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Ignore the revocation of a signed token, which this service does not
+     * accept.
+     * 
+     * @param tokenId The id of the revoked token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     */
+    @Override
+    public void restoreRevocation(long tokenId, long expiryMillis) {
+    }
+    
+    /**
+     * Write every live token to a state snapshot.
+     * 
+     * @param visitor The snapshot visitor
+     */
+    @Override
+    public void writeSnapshot(StateVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, TokenInfo> entry : tokens.entrySet()) {
+                TokenInfo tokenInfo = entry.getValue();
+                visitor.token(entry.getKey(), tokenInfo.getUsername(), toEpochMillis(tokenInfo.getExpiryTime()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Convert an expiry time to epoch milliseconds.
+     * 
+     * @param time The local time
+     * @return The epoch milliseconds
+     */
+    private static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+    
+    /**
+     * Schedule the removal of a token when it expires.
+     * 
+     * @param tokenHash The hash of the token
+     * @param expiry The expiry time
+     * @return The timeout
+     */
+    private TimingWheel.Timeout scheduleExpiry(String tokenHash, LocalDateTime expiry) {
+        return timingWheel.schedule(toEpochMillis(expiry), () -> expireToken(tokenHash));
+    }
+    
+    /**
+     * Remove a token if it has expired. Called by the token's timeout.
+     * 
+     * @param tokenHash The hash of the token
+     */
+    private void expireToken(String tokenHash) {
+        lock.writeLock().lock();
+        try {
+            TokenInfo tokenInfo = tokens.get(tokenHash);
+            if (tokenInfo != null && LocalDateTime.now().isAfter(tokenInfo.getExpiryTime())) {
+                removeToken(tokenHash);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Remove a token and cancel its timeout. Called with the write lock held.
+     * 
+     * @param tokenHash The hash of the token
+     * @return The removed token information, or null if there was none
+     */
+    private TokenInfo removeToken(String tokenHash) {
+        TokenInfo tokenInfo = tokens.remove(tokenHash);
+        if (tokenInfo != null) {
+            Set<String> hashes = userTokens.get(tokenInfo.getUsername());
+            if (hashes != null && hashes.remove(tokenHash) && hashes.isEmpty()) {
+                userTokens.remove(tokenInfo.getUsername());
+            }
+            tokenInfo.getTimeout().cancel();
+        }
+        return tokenInfo;
+    }
+    
+    /**
+     * Inner class to hold token information.
+     */
+    private static class TokenInfo {
+        private final String username;
+        private final LocalDateTime expiryTime;
+        private final TimingWheel.Timeout timeout;
+        
+        public TokenInfo(String username, LocalDateTime expiryTime, TimingWheel.Timeout timeout) {
+            this.username = username;
+            this.expiryTime = expiryTime;
+            this.timeout = timeout;
+        }
+        
+        public String getUsername() {
+            return username;
+        }
+        
+        public LocalDateTime getExpiryTime() {
+            return expiryTime;
+        }
+        
+        public TimingWheel.Timeout getTimeout() {
+            return timeout;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel running tasks at their deadlines. Scheduling,
+ * rescheduling and cancelling a timeout are constant time, so expiries can
+ * be refreshed on every use.
+ *
+ * The wheel has four levels of 64 slots. A slot of the first level covers
+ * one tick, and a slot of each higher level covers the whole level below,
+ * so with one-second ticks the wheel spans about 194 days; later deadlines
+ * wait in the last slot of the top level. When the clock enters a slot of
+ * a higher level, its timeouts are moved down to the level below, so every
+ * timeout is moved at most three times.
+ *
+ * {@link #advance()} moves the clock to the current time in slices of at
+ * most {@value #SLICE_SIZE} timeouts, releasing the lock between slices and
+ * running the due tasks outside it. Expiring many timeouts at once therefore
+ * never holds up scheduling for long. Tasks never run early, but may run
+ * late, and may run after being rescheduled concurrently, so they check
+ * their own condition.
+ */
+public class TimingWheel {
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+    private static final int SLICE_SIZE = 256;
+
+    private final long tickMillis;
+    private final Slot[][] wheels;
+    private final Slot due;
+    private final ReentrantLock lock;
+    private long currentTick;
+    private int size;
+
+    /**
+     * Create a timing wheel with one-second ticks.
+     */
+    public TimingWheel() {
+        this(TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * Create a timing wheel.
+     *
+     * @param tickMillis The length of a tick, the resolution of deadlines
+     */
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        this.wheels = new Slot[LEVELS][WHEEL_SIZE];
+        for (Slot[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Slot();
+            }
+        }
+        this.due = new Slot();
+        this.lock = new ReentrantLock();
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+        this.size = 0;
+    }
+
+    /**
+     * Get the length of a tick.
+     *
+     * @return The tick length in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param deadlineMillis When to run the task, in epoch milliseconds
+     * @param task The task
+     * @return The timeout, used to reschedule or cancel the task
+     */
+    public Timeout schedule(long deadlineMillis, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        timeout.reschedule(deadlineMillis);
+        return timeout;
+    }
+
+    /**
+     * Get the number of scheduled timeouts, including due ones that have not
+     * run yet.
+     *
+     * @return The number of timeouts
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move the clock to the current time and run every task that is due.
+     *
+     * @return The number of tasks run
+     */
+    public int advance() {
+        long targetTick = System.currentTimeMillis() / tickMillis;
+        int run = 0;
+        boolean done = false;
+        while (!done) {
+            List<Runnable> tasks = new ArrayList<>();
+            lock.lock();
+            try {
+                int budget = SLICE_SIZE;
+                while (budget > 0) {
+                    Timeout timeout = due.sentinel.next;
+                    if (timeout != due.sentinel) {
+                        timeout.unlink();
+                        size--;
+                        tasks.add(timeout.task);
+                        budget--;
+                    } else if (currentTick < targetTick) {
+                        budget -= tick();
+                    } else {
+                        done = true;
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Runnable task : tasks) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.error("Error running timeout", "error", e);
+                }
+            }
+            run += tasks.size();
+        }
+        return run;
+    }
+
+    /**
+     * Advance the clock by one tick: move down the timeouts of the higher
+     * level slots the clock enters, then make the current first level slot
+     * due. Called with the lock held.
+     *
+     * @return The number of timeouts moved down
+     */
+    private int tick() {
+        currentTick++;
+        int moved = 0;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            Slot slot = wheels[level][(int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+            Timeout timeout;
+            while ((timeout = slot.sentinel.next) != slot.sentinel) {
+                timeout.unlink();
+                insert(timeout);
+                moved++;
+            }
+        }
+        due.appendAll(wheels[0][(int) (currentTick & WHEEL_MASK)]);
+        return Math.max(1, moved);
+    }
+
+    /**
+     * Put a timeout in the slot for its deadline, or in the due list if its
+     * tick has passed. Deadlines are rounded up to a tick, so no task runs
+     * before its deadline. Called with the lock held.
+     *
+     * @param timeout The timeout, not in any slot
+     */
+    private void insert(Timeout timeout) {
+        long tick = Math.ceilDiv(timeout.deadlineMillis, tickMillis);
+        long delta = tick - currentTick;
+        if (delta <= 0) {
+            due.append(timeout);
+            return;
+        }
+        if (delta > MAX_DELTA) {
+            delta = MAX_DELTA;
+            tick = currentTick + MAX_DELTA;
+        }
+        int level = 0;
+        while (delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        wheels[level][(int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK)].append(timeout);
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private long deadlineMillis;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Move the task to a new deadline, scheduling it again if it has run
+         * or was cancelled.
+         *
+         * @param deadlineMillis The new deadline, in epoch milliseconds
+         */
+        public void reschedule(long deadlineMillis) {
+            lock.lock();
+            try {
+                if (next != null) {
+                    unlink();
+                } else {
+                    size++;
+                }
+                this.deadlineMillis = deadlineMillis;
+                insert(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Cancel the task if it has not run yet.
+         */
+        public void cancel() {
+            lock.lock();
+            try {
+                if (next != null) {
+                    unlink();
+                    size--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Remove this timeout from its slot. Called with the lock held.
+         */
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    /**
+     * A circular doubly linked list of timeouts with a sentinel node.
+     */
+    private final class Slot {
+        private final Timeout sentinel;
+
+        Slot() {
+            this.sentinel = new Timeout(null);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        /**
+         * Add a timeout at the end of the list.
+         *
+         * @param timeout The timeout, not in any list
+         */
+        void append(Timeout timeout) {
+            timeout.prev = sentinel.prev;
+            timeout.next = sentinel;
+            sentinel.prev.next = timeout;
+            sentinel.prev = timeout;
+        }
+
+        /**
+         * Move every timeout of another list to the end of this one.
+         *
+         * @param other The list to empty
+         */
+        void appendAll(Slot other) {
+            Timeout otherSentinel = other.sentinel;
+            if (otherSentinel.next == otherSentinel) {
+                return;
+            }
+            Timeout first = otherSentinel.next;
+            Timeout last = otherSentinel.prev;
+            first.prev = sentinel.prev;
+            sentinel.prev.next = first;
+            last.next = sentinel;
+            sentinel.prev = last;
+            otherSentinel.next = otherSentinel;
+            otherSentinel.prev = otherSentinel;
+        }
+    }
+}
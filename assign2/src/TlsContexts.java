@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Builds the TLS contexts of the server and the clients from explicit key
+ * and trust stores, instead of the global {@code javax.net.ssl.*} system
+ * properties, and configures their session caches for resumption.
+ *
+ * A full handshake costs the server an RSA signature; a resumed one only
+ * needs the pre-shared key from an earlier session. With TLS 1.3 the server
+ * hands out stateless session tickets (enabled by default since JDK 13), and
+ * the client keeps them in its context's session cache keyed by host and
+ * port. A client therefore resumes only if every connection, reconnects
+ * included, is made through the same context, which is why the client
+ * context is shared.
+ *
+ * Cluster nodes authenticate each other with mutual TLS through a separate
+ * peer context, which presents the node's own certificate and trusts only
+ * the certificates in the peer trust store, on both ends of a connection.
+ *
+ * Stores and cache settings are read from system properties:
+ * {@code chat.keyStore}, {@code chat.keyStorePassword},
+ * {@code chat.trustStore}, {@code chat.trustStorePassword},
+ * {@code chat.peerKeyStore}, {@code chat.peerKeyStorePassword},
+ * {@code chat.peerTrustStore}, {@code chat.peerTrustStorePassword} (the peer
+ * stores default to the server key store and the client trust store),
+ * {@code chat.tlsSessionCacheSize} and {@code chat.tlsSessionTimeoutSeconds}.
+ */
+public final class TlsContexts {
+
+    private static final String PROTOCOL = "TLS";
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("chat.tlsSessionCacheSize", 20000);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chat.tlsSessionTimeoutSeconds", 24 * 3600);
+
+    private static SSLContext clientContext;
+    private static SSLContext peerContext;
+
+    private TlsContexts() {
+    }
+
+    /**
+     * Create the server context from the configured key store.
+     *
+     * @return The server context
+     * @throws IOException If the key store cannot be read
+     */
+    public static SSLContext serverContext() throws IOException {
+        return serverContext(Path.of(System.getProperty("chat.keyStore", "keystore.jks")),
+                System.getProperty("chat.keyStorePassword", "password").toCharArray());
+    }
+
+    /**
+     * Create a server context.
+     *
+     * @param keyStorePath The key store holding the server's key and certificate
+     * @param password The password of the key store and the key
+     * @return The server context
+     * @throws IOException If the key store cannot be read
+     */
+    public static SSLContext serverContext(Path keyStorePath, char[] password) throws IOException {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(loadKeyStore(keyStorePath, password), password);
+
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(keyManagers.getKeyManagers(), null, null);
+            configureSessions(context.getServerSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid key store " + keyStorePath, e);
+        }
+    }
+
+    /**
+     * Get the shared client context, built from the configured trust store
+     * on first use.
+     *
+     * @return The client context
+     * @throws IOException If the trust store cannot be read
+     */
+    public static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            clientContext = clientContext(Path.of(System.getProperty("chat.trustStore", "truststore.jks")),
+                    System.getProperty("chat.trustStorePassword", "password").toCharArray());
+        }
+        return clientContext;
+    }
+
+    /**
+     * Create a client context. Callers that want to resume sessions must
+     * keep using the returned context.
+     *
+     * @param trustStorePath The trust store holding the server certificate
+     * @param password The password of the trust store
+     * @return The client context
+     * @throws IOException If the trust store cannot be read
+     */
+    public static SSLContext clientContext(Path trustStorePath, char[] password) throws IOException {
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(loadKeyStore(trustStorePath, password));
+
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(null, trustManagers.getTrustManagers(), null);
+            configureSessions(context.getClientSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid trust store " + trustStorePath, e);
+        }
+    }
+
+    /**
+     * Get the shared context of cluster peer connections, built from the
+     * configured peer key and trust stores on first use.
+     *
+     * @return The peer context
+     * @throws IOException If a store cannot be read
+     */
+    public static synchronized SSLContext peerContext() throws IOException {
+        if (peerContext == null) {
+            String keyStore = System.getProperty("chat.keyStore", "keystore.jks");
+            String keyStorePassword = System.getProperty("chat.keyStorePassword", "password");
+            String trustStore = System.getProperty("chat.trustStore", "truststore.jks");
+            String trustStorePassword = System.getProperty("chat.trustStorePassword", "password");
+            peerContext = peerContext(Path.of(System.getProperty("chat.peerKeyStore", keyStore)),
+                    System.getProperty("chat.peerKeyStorePassword", keyStorePassword).toCharArray(),
+                    Path.of(System.getProperty("chat.peerTrustStore", trustStore)),
+                    System.getProperty("chat.peerTrustStorePassword", trustStorePassword).toCharArray());
+        }
+        return peerContext;
+    }
+
+    /**
+     * Create a context for cluster peer connections, used both to accept
+     * and to open them. Server sockets made from it must also require
+     * client authentication.
+     *
+     * @param keyStorePath The key store holding the node's key and certificate
+     * @param keyStorePassword The password of the key store and the key
+     * @param trustStorePath The trust store holding the certificates of the
+     * nodes
+     * @param trustStorePassword The password of the trust store
+     * @return The peer context
+     * @throws IOException If a store cannot be read
+     */
+    public static SSLContext peerContext(Path keyStorePath, char[] keyStorePassword, Path trustStorePath,
+            char[] trustStorePassword) throws IOException {
+        try {
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(loadKeyStore(keyStorePath, keyStorePassword), keyStorePassword);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(
+                    TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(loadKeyStore(trustStorePath, trustStorePassword));
+
+            SSLContext context = SSLContext.getInstance(PROTOCOL);
+            context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            configureSessions(context.getServerSessionContext());
+            configureSessions(context.getClientSessionContext());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Invalid peer key store " + keyStorePath + " or trust store " + trustStorePath, e);
+        }
+    }
+
+    /**
+     * Size the session cache and set how long sessions can be resumed.
+     *
+     * @param sessions The session context
+     */
+    private static void configureSessions(SSLSessionContext sessions) {
+        sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Load a key store file.
+     *
+     * @param path The file
+     * @param password The password of the store
+     * @return The key store
+     * @throws IOException If the file cannot be read
+     * @throws GeneralSecurityException If the store is invalid
+     */
+    private static KeyStore loadKeyStore(Path path, char[] password) throws IOException, GeneralSecurityException {
+        try (InputStream in = Files.newInputStream(path)) {
+            KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+            store.load(in, password);
+            return store;
+        }
+    }
+}
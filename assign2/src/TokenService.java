@@ -1,184 +1,138 @@
-import java.security.SecureRandom;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * Service for managing authentication tokens. Tokens are used to maintain
- * user sessions across reconnections without requiring credentials.
+ * Issues and checks the authentication tokens that let a client resume its
+ * session with {@code RECONNECT} without sending its credentials again.
+ * {@link StoredTokenService} keeps every token it issues;
+ * {@link SignedTokenService} issues self-contained signed tokens and only
+ * keeps the revoked ones. The server picks one with {@code chat.tokenMode}.
  */
-public class TokenService {
-    
-    private static final int TOKEN_LENGTH = 32;
-    private static final int TOKEN_EXPIRY_HOURS = 24; // Tokens expire after 24 hours
-    
-    private final Map<String, TokenInfo> tokens; 
-    private final Map<String, String> userTokens; 
-    private final ReentrantReadWriteLock lock;
-    private final SecureRandom random;
-    
+public interface TokenService {
+
     /**
-     * Create a new token service.
+     * How long a token stays valid after it is issued or refreshed.
      */
-    public TokenService() {
-        this.tokens = new HashMap<>();
-        this.userTokens = new HashMap<>();
-        this.lock = new ReentrantReadWriteLock();
-        this.random = new SecureRandom();
-    }
-    
+    int TOKEN_EXPIRY_HOURS = 24;
+
     /**
-     * Generate a new authentication token for a user.
-     * 
+     * Issue a new token for a user.
+     *
      * @param username The username
-     * @return The generated token
+     * @return The token
      */
-    public String generateToken(String username) {
-        lock.writeLock().lock();
-        try {
-            String existingToken = userTokens.get(username);
-            if (existingToken != null) {
-                tokens.remove(existingToken);
-            }
-            
-            byte[] tokenBytes = new byte[TOKEN_LENGTH];
-            random.nextBytes(tokenBytes);
-            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes);
-            
-            LocalDateTime expiry = LocalDateTime.now().plus(TOKEN_EXPIRY_HOURS, ChronoUnit.HOURS);
-            TokenInfo tokenInfo = new TokenInfo(username, expiry);
-            
-            tokens.put(token, tokenInfo);
-            userTokens.put(username, token);
-            
-            return token;
-        } finally {
-            lock.writeLock().unlock();
-        }
-    }
-    
+    String generateToken(String username);
+
     /**
-     * Validate a token and return the associated username.
-     * 
+     * Validate a token, recording the check as a
+     * {@link ChatEvents.TokenValidation} flight recorder event.
+     *
      * @param token The token to validate
      * @return The username if valid, null otherwise
      */
-    public String validateToken(String token) {
-        if (token == null) {
-            return null;
-        }
-        
-        lock.readLock().lock();
-        try {
-            TokenInfo tokenInfo = tokens.get(token);
-            if (tokenInfo == null) {
-                return null;
-            }
-            
-            if (LocalDateTime.now().isAfter(tokenInfo.getExpiryTime())) {
-                lock.readLock().unlock();
-                lock.writeLock().lock();
-                try {
-                    tokens.remove(token);
-                    userTokens.remove(tokenInfo.getUsername());
-                    return null;
-                } finally {
-                    lock.writeLock().unlock();
-                    lock.readLock().lock();
-                }
-            }
-            
-            return tokenInfo.getUsername();
-        } finally {
-            lock.readLock().unlock();
+    default String validateToken(String token) {
+        ChatEvents.TokenValidation event = new ChatEvents.TokenValidation();
+        event.begin();
+        String username = lookupToken(token);
+        event.end();
+        if (event.shouldCommit()) {
+            event.username = username;
+            event.commit();
         }
+        return username;
     }
-    
+
+    /**
+     * Look up the owner of a valid token.
+     *
+     * @param token The token to look up
+     * @return The username if valid, null otherwise
+     */
+    String lookupToken(String token);
+
     /**
-     * Refresh a token's expiry time.
-     * 
+     * Extend a token's expiry, where the token format allows it.
+     *
      * @param token The token to refresh
-     * @return true if refreshed, false if token doesn't exist
+     * @return true if the token is valid
      */
-    public boolean refreshToken(String token) {
-        lock.writeLock().lock();
-        try {
-            TokenInfo tokenInfo = tokens.get(token);
-            if (tokenInfo == null) {
-                return false;
-            }
-            
-            LocalDateTime newExpiry = LocalDateTime.now().plus(TOKEN_EXPIRY_HOURS, ChronoUnit.HOURS);
-            TokenInfo newTokenInfo = new TokenInfo(tokenInfo.getUsername(), newExpiry);
-            tokens.put(token, newTokenInfo);
-            
-            return true;
-        } finally {
-            lock.writeLock().unlock();
-        }
-    }
-    
+    boolean refreshToken(String token);
+
     /**
-     * Invalidate a token.
-     * 
-     * @param token The token to invalidate
+     * Revoke a token.
+     *
+     * @param token The token to revoke
      */
-    public void invalidateToken(String token) {
-        if (token == null) {
-            return;
-        }
-        
-        lock.writeLock().lock();
-        try {
-            TokenInfo tokenInfo = tokens.remove(token);
-            if (tokenInfo != null) {
-                userTokens.remove(tokenInfo.getUsername());
-            }
-        } finally {
-            lock.writeLock().unlock();
-        }
-    }
-    
+    void invalidateToken(String token);
+
     /**
-     * Clean up expired tokens.
+     * Set a listener told about every token issued, refreshed or revoked
+     * here, used to pass tokens on to other cluster nodes. Changes restored
+     * through the {@code restore} methods are not passed on.
+     *
+     * @param listener The listener, or null for none
      */
-    public void cleanupExpiredTokens() {
-        lock.writeLock().lock();
-        try {
-            LocalDateTime now = LocalDateTime.now();
-            tokens.entrySet().removeIf(entry -> {
-                if (now.isAfter(entry.getValue().getExpiryTime())) {
-                    userTokens.remove(entry.getValue().getUsername());
-                    return true;
-                }
-                return false;
-            });
-        } finally {
-            lock.writeLock().unlock();
-        }
+    void setChangeListener(StateVisitor listener);
+
+    /**
+     * Restore a stored token recovered from the session store or sent by
+     * another cluster node.
+     *
+     * @param tokenHash The hash of the token
+     * @param username The user the token belongs to
+     * @param expiryMillis The expiry time in epoch milliseconds
+     */
+    void restoreToken(String tokenHash, String username, long expiryMillis);
+
+    /**
+     * Restore the revocation of a stored token recovered from the session
+     * store or sent by another cluster node.
+     *
+     * @param tokenHash The hash of the revoked token
+     */
+    void restoreRevocation(String tokenHash);
+
+    /**
+     * Restore the revocation of a signed token recovered from the session
+     * store or sent by another cluster node.
+     *
+     * @param tokenId The id of the revoked token
+     * @param expiryMillis The expiry time of the token in epoch milliseconds
+     */
+    void restoreRevocation(long tokenId, long expiryMillis);
+
+    /**
+     * Write every token or revocation this service keeps to a visitor.
+     *
+     * @param visitor The visitor
+     */
+    void writeSnapshot(StateVisitor visitor);
+
+    /**
+     * Get the id of the session a token belongs to: the hash of the token,
+     * which stays the same for as long as the token is valid.
+     *
+     * @param token The token
+     * @return The session id
+     */
+    static String sessionId(String token) {
+        return hashToken(token);
     }
-    
+
     /**
-     * Inner class to hold token information.
+     * Hash a token for storage and lookup.
+     *
+     * @param token The token
+     * @return The Base64 SHA-256 hash of the token
      */
-    private static class TokenInfo {
-        private final String username;
-        private final LocalDateTime expiryTime;
-        
-        public TokenInfo(String username, LocalDateTime expiryTime) {
-            this.username = username;
-            this.expiryTime = expiryTime;
-        }
-        
-        public String getUsername() {
-            return username;
-        }
-        
-        public LocalDateTime getExpiryTime() {
-            return expiryTime;
+    static String hashToken(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
         }
     }
-}
\ No newline at end of file
+}
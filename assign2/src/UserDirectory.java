@@ -0,0 +1,79 @@
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The registered users and their stored password hashes. The
+ * {@link AuthenticationService} reads and writes users only through this
+ * interface, so the backend can be chosen with {@code chat.userDirectory}:
+ * {@link MemoryUserDirectory} keeps every user in a map, and
+ * {@link IndexedUserDirectory} keeps them in a memory-mapped index file and
+ * holds only recent changes in memory.
+ */
+public interface UserDirectory {
+
+    /**
+     * Look up a user's stored password hash.
+     *
+     * @param username The username
+     * @return The stored hash, or null if the user does not exist
+     */
+    String getPasswordHash(String username);
+
+    /**
+     * Add a user that does not exist yet and persist it.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     * @return true if the user was added, false if it already exists or
+     * cannot be stored
+     */
+    boolean addUser(String username, String passwordHash);
+
+    /**
+     * Replace a user's stored hash if it is still the expected one, and
+     * persist the new hash.
+     *
+     * @param username The username
+     * @param expectedHash The hash being replaced
+     * @param passwordHash The new hash
+     * @return true if the hash was replaced
+     */
+    boolean replacePasswordHash(String username, String expectedHash, String passwordHash);
+
+    /**
+     * Add many users that do not exist yet at once, persisting them as one
+     * write rather than one per user.
+     *
+     * @param users The password hash of each username
+     */
+    void importUsers(Map<String, String> users);
+
+    /**
+     * Pass every user to a consumer.
+     *
+     * @param consumer Receives the username and stored hash of each user
+     */
+    void forEachUser(BiConsumer<String, String> consumer);
+
+    /**
+     * Check whether every user is held in memory, so that passing them all
+     * to a consumer is cheap. The {@link AuthenticationService} only keeps
+     * its filter of known usernames in front of such a directory, since
+     * filling the filter means reading every user.
+     *
+     * @return true if the users are held in memory
+     */
+    boolean isHeldInMemory();
+
+    /**
+     * Get the number of users.
+     *
+     * @return The number of users
+     */
+    long getUserCount();
+
+    /**
+     * Stop any background work and release the backend's files.
+     */
+    void close();
+}
@@ -0,0 +1,233 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Durable, append-only store of registered users. A registration appends one
+ * record to a {@link WriteAheadLog}, so its cost does not depend on how many
+ * users exist, and concurrent registrations share one fsync per commit
+ * window.
+ *
+ * The log is compacted in the background into a single file holding every
+ * user once. The log is rotated first, the compacted file is written to a
+ * temporary file, forced and atomically renamed, and the generations it
+ * covers are deleted, so a crash at any point leaves either the old or the
+ * new file next to the log records written since. A compaction is due once
+ * the log has grown to half the size of the compacted file, which keeps the
+ * rewriting cost per registration constant. Startup reads the compacted file
+ * and the log in one streaming pass.
+ */
+public class UserStore {
+
+    private static final String DEFAULT_DIRECTORY = System.getProperty("chat.dataDir", "data") + "/users";
+    private static final String COMPACTED_FILE = "users.dat";
+    private static final long COMPACTION_CHECK_SECONDS = 60;
+    private static final long MIN_COMPACTION_BYTES = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte USER = 1;
+    private static final byte HEADER = 2;
+
+    private final Path directory;
+    private final WriteAheadLog wal;
+    private final ScheduledExecutorService scheduler;
+    private Consumer<BiConsumer<String, String>> compactionSource;
+    private volatile long compactedBytes;
+    private volatile long replayedLogBytes;
+
+    /**
+     * Create a user store in the default directory.
+     *
+     * @throws IOException If the directory cannot be created
+     */
+    public UserStore() throws IOException {
+        this(Paths.get(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Create a user store in the given directory.
+     *
+     * @param directory The directory holding the compacted file and the log
+     * @throws IOException If the directory cannot be created
+     */
+    public UserStore(Path directory) throws IOException {
+        this.directory = directory;
+        this.wal = new WriteAheadLog(directory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactedBytes = 0;
+        this.replayedLogBytes = 0;
+    }
+
+    /**
+     * Load every stored user, then open the log for appends and start
+     * compacting it periodically.
+     *
+     * @param consumer Receives the username and password hash of each user
+     * @param compactionSource Passes every current user to a consumer when
+     * the store is compacted
+     * @return The number of user records read
+     * @throws IOException If the stored users cannot be read
+     */
+    public int open(BiConsumer<String, String> consumer, Consumer<BiConsumer<String, String>> compactionSource)
+            throws IOException {
+        this.compactionSource = compactionSource;
+
+        int[] count = {0};
+        long[] fromGeneration = {0};
+        Consumer<byte[]> reader = payload -> {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte type = buffer.get();
+            if (type == HEADER) {
+                fromGeneration[0] = buffer.getLong();
+            } else if (type == USER) {
+                consumer.accept(getString(buffer), getString(buffer));
+                count[0]++;
+            } else {
+                ServerLog.warn("Skipping unknown user record", "type", type);
+            }
+        };
+
+        Path compacted = directory.resolve(COMPACTED_FILE);
+        if (Files.exists(compacted)) {
+            compactedBytes = Files.size(compacted);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(compacted), BUFFER_SIZE)) {
+                WriteAheadLog.readRecords(in, reader);
+            }
+        }
+
+        long[] logBytes = {0};
+        wal.replay(fromGeneration[0], payload -> {
+            logBytes[0] += payload.length;
+            reader.accept(payload);
+        });
+        replayedLogBytes = logBytes[0];
+        wal.open();
+
+        scheduler.scheduleWithFixedDelay(this::compactIfDue, COMPACTION_CHECK_SECONDS, COMPACTION_CHECK_SECONDS,
+                TimeUnit.SECONDS);
+        return count[0];
+    }
+
+    /**
+     * Append a user and wait until the record is durable.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     * @return true if the user was stored, false if the write failed
+     */
+    public boolean append(String username, String passwordHash) {
+        return wal.append(encode(username, passwordHash));
+    }
+
+    /**
+     * Rewrite the store as one file holding every current user and drop the
+     * log generations it covers.
+     */
+    public synchronized void compact() {
+        if (compactionSource == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Path temp = directory.resolve(COMPACTED_FILE + ".tmp");
+        try {
+            long generation = wal.rotate();
+
+            int[] count = {0};
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+                WriteAheadLog.writeRecord(out, ByteBuffer.allocate(9).put(HEADER).putLong(generation).array());
+                compactionSource.accept((username, passwordHash) -> {
+                    try {
+                        WriteAheadLog.writeRecord(out, encode(username, passwordHash));
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.flush();
+                channel.force(true);
+                compactedBytes = channel.size();
+            }
+
+            Files.move(temp, directory.resolve(COMPACTED_FILE), StandardCopyOption.ATOMIC_MOVE);
+            wal.deleteBefore(generation);
+            replayedLogBytes = 0;
+            ServerLog.info("Compacted user store", "users", count[0], "bytes", compactedBytes,
+                    "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | UncheckedIOException e) {
+            ServerLog.error("Error compacting user store", "error", e);
+        }
+    }
+
+    /**
+     * Stop compacting and close the log.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        wal.close();
+    }
+
+    /**
+     * Compact the store if the log, including what earlier runs left of it,
+     * has grown to half the size of the compacted file.
+     */
+    private void compactIfDue() {
+        if (replayedLogBytes + wal.getBytesWritten() >= Math.max(MIN_COMPACTION_BYTES, compactedBytes / 2)) {
+            compact();
+        }
+    }
+
+    /**
+     * Encode a user record as {@code [byte type][username][password hash]},
+     * with each string as {@code [short length][UTF-8 bytes]}.
+     *
+     * @param username The username
+     * @param passwordHash The stored password hash
+     * @return The encoded record
+     */
+    private static byte[] encode(String username, String passwordHash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = passwordHash.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + name.length + hash.length)
+                .put(USER)
+                .putShort((short) name.length).put(name)
+                .putShort((short) hash.length).put(hash)
+                .array();
+    }
+
+    /**
+     * Read a length-prefixed string from a record.
+     *
+     * @param buffer The record, positioned at the string
+     * @return The string
+     */
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
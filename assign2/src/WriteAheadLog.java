@@ -0,0 +1,470 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log with group commit. Callers hand over an encoded record and
+ * block until it is durable. A single committer thread collects every record
+ * that arrives within a {@value #COMMIT_WINDOW_MS} ms window and writes the
+ * whole batch with one {@link FileChannel#write} followed by one
+ * {@link FileChannel#force}.
+ *
+ * The log is split into generations ({@code wal-<generation>.log}). Rotating
+ * to a new generation lets a snapshot cover everything before it, after which
+ * the older generations can be deleted. Each record is stored as
+ * {@code [int length][int crc32][payload]}.
+ */
+public class WriteAheadLog {
+
+    private static final long COMMIT_WINDOW_MS = 2;
+    private static final int MAX_BATCH_RECORDS = 4096;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final BlockingQueue<PendingRecord> queue;
+    private final ReentrantLock channelLock;
+    private final ReentrantReadWriteLock openLock;
+    private FileChannel channel;
+    private long generation;
+    private long bytesWritten;
+    private Thread committer;
+    private volatile boolean running;
+
+    /**
+     * Create a write-ahead log in the given directory. Existing generations
+     * can be replayed before the log is opened for appends.
+     *
+     * @param directory The directory holding the log files
+     * @throws IOException If the directory cannot be created
+     */
+    public WriteAheadLog(Path directory) throws IOException {
+        this.directory = directory;
+        this.queue = new LinkedBlockingQueue<>();
+        this.channelLock = new ReentrantLock();
+        this.openLock = new ReentrantReadWriteLock();
+        this.generation = -1;
+        this.bytesWritten = 0;
+        this.running = false;
+
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Replay the records of every generation at or after the given one,
+     * streaming each file. A torn or corrupt record ends the replay of its
+     * generation.
+     *
+     * @param fromGeneration The first generation to replay
+     * @param consumer The consumer receiving each record payload
+     * @throws IOException If a log file cannot be read
+     */
+    public void replay(long fromGeneration, Consumer<byte[]> consumer) throws IOException {
+        for (long existing : listGenerations()) {
+            if (existing < fromGeneration) {
+                continue;
+            }
+
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(fileFor(existing)), READ_BUFFER_SIZE)) {
+                readRecords(in, consumer);
+            }
+        }
+    }
+
+    /**
+     * Decode the records of a stream, stopping at the end of the stream or
+     * at the first torn or corrupt record.
+     *
+     * @param in The stream holding the records, ideally buffered
+     * @param consumer The consumer receiving each record payload
+     * @throws IOException If the stream cannot be read
+     */
+    static void readRecords(InputStream in, Consumer<byte[]> consumer) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        while (in.readNBytes(header, 0, HEADER_SIZE) == HEADER_SIZE) {
+            ByteBuffer fields = ByteBuffer.wrap(header);
+            int length = fields.getInt();
+            int expected = fields.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return;
+            }
+
+            byte[] payload = in.readNBytes(length);
+            if (payload.length < length || checksum(payload) != expected) {
+                return;
+            }
+            consumer.accept(payload);
+        }
+    }
+
+    /**
+     * Write a record, framed as in the log, to a stream.
+     *
+     * @param out The stream, ideally buffered
+     * @param payload The record payload
+     * @throws IOException If the stream cannot be written
+     */
+    static void writeRecord(OutputStream out, byte[] payload) throws IOException {
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE).putInt(payload.length).putInt(checksum(payload)).array();
+        out.write(header);
+        out.write(payload);
+    }
+
+    /**
+     * Decode the records in a buffer, stopping at the first torn or corrupt
+     * one.
+     *
+     * @param buffer The buffer holding the records
+     * @param consumer The consumer receiving each record payload
+     */
+    static void readRecords(ByteBuffer buffer, Consumer<byte[]> consumer) {
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum(payload) != expected) {
+                return;
+            }
+            consumer.accept(payload);
+        }
+    }
+
+    /**
+     * Compute the checksum stored in a record header.
+     *
+     * @param payload The record payload
+     * @return The CRC32 of the payload
+     */
+    static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Open a new generation for appends and start the committer thread.
+     *
+     * @throws IOException If the log file cannot be created
+     */
+    public void open() throws IOException {
+        List<Long> existing = listGenerations();
+        long next = existing.isEmpty() ? 0 : existing.get(existing.size() - 1) + 1;
+
+        channelLock.lock();
+        try {
+            switchTo(next);
+        } finally {
+            channelLock.unlock();
+        }
+
+        running = true;
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Append a record and wait until it has been forced to disk.
+     *
+     * @param payload The encoded record
+     * @return true if the record is durable, false if the write failed
+     */
+    public boolean append(byte[] payload) {
+        return appendAsync(payload).join();
+    }
+
+    /**
+     * Append a record without waiting for it. Records appended together
+     * are committed in the same batch. The record is queued under the read
+     * side of the open lock, which {@link #close()} takes before stopping
+     * the committer, so every queued record is either committed or failed.
+     *
+     * @param payload The encoded record
+     * @return Completes with true once the record is durable, or false if
+     * the write failed or the log is closed
+     */
+    public CompletableFuture<Boolean> appendAsync(byte[] payload) {
+        openLock.readLock().lock();
+        try {
+            if (!running) {
+                return CompletableFuture.completedFuture(false);
+            }
+
+            PendingRecord record = new PendingRecord(payload);
+            queue.add(record);
+            return record.done;
+        } finally {
+            openLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switch appends to a new generation.
+     *
+     * @return The new generation; everything before it is in older files
+     * @throws IOException If the new log file cannot be created
+     */
+    public long rotate() throws IOException {
+        channelLock.lock();
+        try {
+            switchTo(generation + 1);
+            return generation;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Delete every generation older than the given one.
+     *
+     * @param keepFrom The oldest generation to keep
+     */
+    public void deleteBefore(long keepFrom) {
+        try {
+            for (long existing : listGenerations()) {
+                if (existing < keepFrom) {
+                    Files.deleteIfExists(fileFor(existing));
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error truncating write-ahead log", "error", e);
+        }
+    }
+
+    /**
+     * Get the number of bytes appended to the current generation.
+     *
+     * @return The size of the current generation
+     */
+    public long getBytesWritten() {
+        channelLock.lock();
+        try {
+            return bytesWritten;
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Commit any queued records and close the log.
+     */
+    public void close() {
+        openLock.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            openLock.writeLock().unlock();
+        }
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        failQueued();
+
+        channelLock.lock();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } catch (IOException e) {
+            ServerLog.error("Error closing write-ahead log", "error", e);
+        } finally {
+            channelLock.unlock();
+        }
+    }
+
+    /**
+     * Fail every record still queued. Used once no committer will take
+     * them, so that no caller of {@link #append} waits forever.
+     */
+    private void failQueued() {
+        PendingRecord abandoned;
+        while ((abandoned = queue.poll()) != null) {
+            abandoned.done.complete(false);
+        }
+    }
+
+    /**
+     * Collect records for one commit window at a time and commit each batch
+     * with a single write and force. Records left when the loop ends are
+     * failed.
+     */
+    private void commitLoop() {
+        try {
+            collectAndCommit();
+        } finally {
+            failQueued();
+        }
+    }
+
+    /**
+     * Commit batches until the log is closed and the queue is empty.
+     */
+    private void collectAndCommit() {
+        List<PendingRecord> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMIT_WINDOW_MS);
+                while (batch.size() < MAX_BATCH_RECORDS) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingRecord next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    commit(batch);
+                } finally {
+                    // No-op for committed records; fails them if the commit threw
+                    for (PendingRecord record : batch) {
+                        record.done.complete(false);
+                    }
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write and force a batch of records, then release their callers.
+     *
+     * @param batch The records to commit
+     */
+    private void commit(List<PendingRecord> batch) {
+        int size = 0;
+        for (PendingRecord record : batch) {
+            size += HEADER_SIZE + record.payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (PendingRecord record : batch) {
+            buffer.putInt(record.payload.length);
+            buffer.putInt(checksum(record.payload));
+            buffer.put(record.payload);
+        }
+        buffer.flip();
+
+        boolean success;
+        channelLock.lock();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            bytesWritten += size;
+            success = true;
+        } catch (IOException e) {
+            ServerLog.error("Error writing to write-ahead log", "error", e);
+            success = false;
+        } finally {
+            channelLock.unlock();
+        }
+
+        for (PendingRecord record : batch) {
+            record.done.complete(success);
+        }
+    }
+
+    /**
+     * Close the current log file and start appending to the given
+     * generation. Must be called with the channel lock held.
+     *
+     * @param next The generation to switch to
+     * @throws IOException If the log file cannot be opened
+     */
+    private void switchTo(long next) throws IOException {
+        FileChannel opened = FileChannel.open(fileFor(next),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        channel = opened;
+        generation = next;
+        bytesWritten = 0;
+    }
+
+    /**
+     * List the generations present on disk, oldest first.
+     *
+     * @return The generations
+     * @throws IOException If the directory cannot be listed
+     */
+    private List<Long> listGenerations() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(PREFIX) && n.endsWith(SUFFIX))
+                    .map(n -> Long.parseLong(n.substring(PREFIX.length(), n.length() - SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Get the file of a generation.
+     *
+     * @param generation The generation
+     * @return The log file
+     */
+    private Path fileFor(long generation) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, generation, SUFFIX));
+    }
+
+    /**
+     * A record waiting to be committed.
+     */
+    private static class PendingRecord {
+        private final byte[] payload;
+        private final CompletableFuture<Boolean> done;
+
+        PendingRecord(byte[] payload) {
+            this.payload = payload;
+            this.done = new CompletableFuture<>();
+        }
+    }
+}
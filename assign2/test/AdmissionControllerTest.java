@@ -0,0 +1,60 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Tests of the {@link AdmissionController} connection limits.
+ */
+public class AdmissionControllerTest {
+
+    /**
+     * Connections beyond the per-address limit are rejected until one from
+     * the same address is released, while other addresses are admitted.
+     *
+     * @throws UnknownHostException Never, the addresses are literal
+     */
+    public static void testPerAddressLimit() throws UnknownHostException {
+        AdmissionController admission = new AdmissionController(10, 2);
+        InetAddress first = InetAddress.getByName("10.0.0.1");
+        InetAddress second = InetAddress.getByName("10.0.0.2");
+
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(first), "first connection");
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(first), "second connection");
+        Check.equal(AdmissionController.Decision.ADDRESS_FULL, admission.tryAdmit(first), "third connection");
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(second), "other address");
+        Check.equal(3, admission.getConnectionCount(), "connections after a rejection");
+
+        admission.release(first);
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(first), "connection after a release");
+    }
+
+    /**
+     * Connections beyond the total limit are rejected, and every release
+     * makes room for one more.
+     *
+     * @throws UnknownHostException Never, the addresses are literal
+     */
+    public static void testTotalLimit() throws UnknownHostException {
+        AdmissionController admission = new AdmissionController(3, 10);
+        InetAddress[] addresses = new InetAddress[4];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = InetAddress.getByName("10.0.1." + i);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(addresses[i]), "connection " + i);
+        }
+        Check.equal(AdmissionController.Decision.SERVER_FULL, admission.tryAdmit(addresses[3]),
+                "connection over the limit");
+        Check.equal(3, admission.getConnectionCount(), "connections after a rejection");
+
+        admission.release(addresses[0]);
+        admission.release(addresses[1]);
+        Check.equal(1, admission.getConnectionCount(), "connections after releases");
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(addresses[3]),
+                "connection after releases");
+        Check.equal(AdmissionController.Decision.ADMITTED, admission.tryAdmit(addresses[3]),
+                "second connection after releases");
+        Check.equal(AdmissionController.Decision.SERVER_FULL, admission.tryAdmit(addresses[0]),
+                "connection over the limit again");
+    }
+}
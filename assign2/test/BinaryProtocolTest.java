@@ -0,0 +1,188 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Round-trip tests of the {@link BinaryProtocol} frame reader and writer:
+ * field splitting, UTF-8 encoding, frame size limits and the mapping
+ * between opcodes and text keywords.
+ */
+public class BinaryProtocolTest {
+
+    /**
+     * String fields, empty ones included, come back as the parts of the
+     * equivalent text command, and fields beyond the maximum are not read.
+     *
+     * @throws IOException If a frame cannot be written or read
+     */
+    public static void testFieldsRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter(out);
+        writer.writeFields(BinaryProtocol.LOGIN, "alice", "");
+        writer.writeFields(BinaryProtocol.CREATE_AI_ROOM, "bots", "be brief, and polite", "extra");
+        writer.writeFields(BinaryProtocol.LIST_ROOMS);
+
+        BinaryProtocol.FrameReader reader = reader(out);
+        Check.equal((int) BinaryProtocol.LOGIN, reader.readFrame(), "opcode");
+        Check.equal(List.of("LOGIN", "alice", ""), Arrays.asList(reader.getParts("LOGIN", 3)), "login parts");
+
+        Check.equal((int) BinaryProtocol.CREATE_AI_ROOM, reader.readFrame(), "opcode");
+        Check.equal(List.of("CREATE_AI_ROOM", "bots", "be brief, and polite"),
+                Arrays.asList(reader.getParts("CREATE_AI_ROOM", 3)), "parts limited to the maximum");
+
+        Check.equal((int) BinaryProtocol.LIST_ROOMS, reader.readFrame(), "opcode");
+        Check.equal(List.of("LIST_ROOMS"), Arrays.asList(reader.getParts("LIST_ROOMS", 1)), "parts without fields");
+        Check.equal(-1, reader.readFrame(), "end of stream");
+    }
+
+    /**
+     * Two-, three- and four-byte characters survive the hand-written
+     * encoder, in fields and in message content, and an unpaired surrogate
+     * is replaced the same way as by {@link String#getBytes}.
+     *
+     * @throws IOException If a frame cannot be written or read
+     */
+    public static void testUtf8RoundTrip() throws IOException {
+        String text = "café über € 中文 😀 end";
+        String unpaired = "a\ud83db";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter(out);
+        writer.writeServerMessage(7, 1L << 40, text, text, true);
+        writer.writeClientMessage(3, unpaired);
+        writer.writeJoined(9, text, true);
+
+        BinaryProtocol.FrameReader reader = reader(out);
+        Check.equal((int) BinaryProtocol.MESSAGE, reader.readFrame(), "opcode");
+        Check.equal(7, reader.getInt(), "room id");
+        Check.equal(1L << 40, reader.getLong(), "sequence number");
+        Check.equal(text, reader.getString(), "sender");
+        Check.equal(text, reader.getRemaining(), "content");
+        Check.isTrue(!reader.hasRemaining(), "payload fully read");
+
+        Check.equal((int) BinaryProtocol.MESSAGE, reader.readFrame(), "opcode");
+        Check.equal(3, reader.getInt(), "room id");
+        Check.equal(new String(unpaired.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                reader.getRemaining(), "content with an unpaired surrogate");
+
+        Check.equal((int) BinaryProtocol.JOINED, reader.readFrame(), "opcode");
+        Check.equal(9, reader.getInt(), "room id");
+        Check.equal(text, reader.getString(), "room name");
+    }
+
+    /**
+     * A frame of exactly the maximum size is written and read, a larger one
+     * is refused by both sides, and a truncated frame is an error.
+     *
+     * @throws IOException If a valid frame cannot be written or read
+     */
+    public static void testFrameSizeLimits() throws IOException {
+        // Opcode, room id and content make up the frame length
+        String largest = "x".repeat(BinaryProtocol.MAX_FRAME_SIZE - 1 - 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryProtocol.FrameWriter writer = new BinaryProtocol.FrameWriter(out);
+        writer.writeClientMessage(1, largest);
+        Check.equal(4 + BinaryProtocol.MAX_FRAME_SIZE, out.size(), "bytes written for the largest frame");
+
+        try {
+            writer.writeClientMessage(1, largest + "x");
+            throw new AssertionError("frame over the maximum was written");
+        } catch (IOException e) {
+            Check.equal(4 + BinaryProtocol.MAX_FRAME_SIZE, out.size(), "bytes written after the refused frame");
+        }
+        writer.writeFields(BinaryProtocol.LOGOUT);
+
+        BinaryProtocol.FrameReader reader = reader(out);
+        Check.equal((int) BinaryProtocol.MESSAGE, reader.readFrame(), "opcode of the largest frame");
+        Check.equal(1, reader.getInt(), "room id");
+        Check.equal(largest.length(), reader.getRemaining().length(), "content length");
+        Check.equal((int) BinaryProtocol.LOGOUT, reader.readFrame(), "frame after the refused one");
+
+        expectFailure(header(BinaryProtocol.MAX_FRAME_SIZE + 1), IOException.class, "frame over the maximum");
+        expectFailure(header(0), IOException.class, "empty frame");
+        expectFailure(new byte[] {0, 0}, EOFException.class, "truncated header");
+        byte[] truncated = Arrays.copyOf(header(10), 8);
+        expectFailure(truncated, EOFException.class, "truncated payload");
+    }
+
+    /**
+     * A field whose declared length runs past the end of its frame is an
+     * error rather than a read of the next frame.
+     *
+     * @throws IOException If the frame cannot be read
+     */
+    public static void testTruncatedField() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + 3);
+        frame.putInt(1 + 2 + 3).put(BinaryProtocol.JOIN_ROOM).putShort((short) 10).put("abc".getBytes(StandardCharsets.UTF_8));
+        BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(new ByteArrayInputStream(frame.array()));
+
+        Check.equal((int) BinaryProtocol.JOIN_ROOM, reader.readFrame(), "opcode");
+        try {
+            reader.getParts("JOIN_ROOM", 2);
+            throw new AssertionError("truncated field was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Every opcode maps to a keyword that maps back to it, and unknown ones
+     * map to nothing.
+     */
+    public static void testOpcodeKeywordMapping() {
+        int defined = 0;
+        for (int opcode = 0; opcode < 64; opcode++) {
+            String keyword = BinaryProtocol.keyword(opcode);
+            if (keyword != null) {
+                Check.equal((byte) opcode, BinaryProtocol.opcode(keyword), "opcode of " + keyword);
+                defined++;
+            }
+        }
+        Check.equal(34, defined, "opcodes with a keyword");
+        Check.equal("MESSAGE", BinaryProtocol.keyword(BinaryProtocol.MESSAGE), "keyword of MESSAGE");
+        Check.equal(null, BinaryProtocol.keyword(-1), "keyword of a negative opcode");
+        Check.equal(null, BinaryProtocol.keyword(200), "keyword of an opcode out of range");
+        Check.equal((byte) -1, BinaryProtocol.opcode("message"), "opcode of a lower-case keyword");
+    }
+
+    /**
+     * Check that reading a frame from the given bytes fails.
+     *
+     * @param bytes The bytes
+     * @param expected The expected exception type
+     * @param what What is wrong with the bytes
+     */
+    private static void expectFailure(byte[] bytes, Class<? extends IOException> expected, String what) {
+        try {
+            new BinaryProtocol.FrameReader(new ByteArrayInputStream(bytes)).readFrame();
+            throw new AssertionError(what + " was read");
+        } catch (IOException e) {
+            Check.isTrue(expected.isInstance(e), what + " fails with " + expected.getSimpleName() + ": " + e);
+        }
+    }
+
+    /**
+     * Create a frame header followed by a single opcode byte.
+     *
+     * @param length The frame length to declare
+     * @return The bytes
+     */
+    private static byte[] header(int length) {
+        return ByteBuffer.allocate(5).putInt(length).put(BinaryProtocol.MESSAGE).array();
+    }
+
+    /**
+     * Create a reader of the frames written to a stream.
+     *
+     * @param out The stream
+     * @return The reader
+     */
+    private static BinaryProtocol.FrameReader reader(ByteArrayOutputStream out) {
+        return new BinaryProtocol.FrameReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of {@link BloomFilter}: no false negatives, including under
+ * concurrent adds, and a false positive rate close to the one requested.
+ */
+public class BloomFilterTest {
+
+    private static final int CAPACITY = 20000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Every string added from several threads at once is found.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testConcurrentAddsAreNeverMissed() throws InterruptedException {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        int threads = 4;
+        List<Thread> adders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            adders.add(Thread.startVirtualThread(() -> {
+                for (int i = thread; i < CAPACITY; i += threads) {
+                    filter.add("user" + i);
+                }
+            }));
+        }
+        for (Thread adder : adders) {
+            adder.join();
+        }
+
+        for (int i = 0; i < CAPACITY; i++) {
+            Check.isTrue(filter.mightContain("user" + i), "user" + i + " is found");
+        }
+    }
+
+    /**
+     * At capacity, strings that were never added are reported at no more
+     * than twice the requested false positive rate.
+     */
+    public static void testFalsePositiveRateAtCapacity() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < CAPACITY; i++) {
+            filter.add("user" + i);
+        }
+
+        int probes = 100000;
+        int falsePositives = 0;
+        for (int i = 0; i < probes; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        Check.isTrue(rate <= 2 * FALSE_POSITIVE_RATE, "false positive rate " + rate);
+    }
+
+    /**
+     * An empty filter contains nothing.
+     */
+    public static void testEmptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(CAPACITY, FALSE_POSITIVE_RATE);
+
+        Check.isTrue(!filter.mightContain("user0"), "empty filter reports nothing");
+        Check.isTrue(!filter.mightContain(""), "empty filter reports nothing");
+    }
+}
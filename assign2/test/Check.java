@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Assertions for the tests run by {@link TestRunner}. A failed check throws
+ * an {@link AssertionError}, which ends the test it is in.
+ */
+public final class Check {
+
+    private Check() {
+    }
+
+    /**
+     * Check that a condition holds.
+     *
+     * @param condition The condition
+     * @param message What was expected
+     */
+    public static void isTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Check that a value is the expected one.
+     *
+     * @param expected The expected value
+     * @param actual The actual value
+     * @param what What the value is
+     */
+    public static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Create an empty temporary directory, deleted when the JVM exits.
+     *
+     * @param prefix The prefix of the directory name
+     * @return The directory
+     * @throws IOException If the directory cannot be created
+     */
+    public static Path tempDirectory(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecursively(directory)));
+        return directory;
+    }
+
+    /**
+     * Delete a directory and everything in it, ignoring errors.
+     *
+     * @param path The directory
+     */
+    private static void deleteRecursively(Path path) {
+        try (var paths = Files.walk(path)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // Left for the system to clean up
+        }
+    }
+}
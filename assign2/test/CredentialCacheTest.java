@@ -0,0 +1,46 @@
+/**
+ * Tests of {@link CredentialCache}: a cached password only matches the same
+ * password against the same stored hash, until it is invalidated.
+ */
+public class CredentialCacheTest {
+
+    /**
+     * A cached password matches only itself, for its own user.
+     */
+    public static void testMatchesOnlyTheCachedPassword() {
+        CredentialCache cache = new CredentialCache();
+        Check.isTrue(!cache.matches("alice", "secret", "hash1"), "nothing cached yet");
+
+        cache.put("alice", "secret", "hash1");
+
+        Check.isTrue(cache.matches("alice", "secret", "hash1"), "cached password matches");
+        Check.isTrue(!cache.matches("alice", "wrong", "hash1"), "wrong password does not match");
+        Check.isTrue(!cache.matches("bob", "secret", "hash1"), "other user does not match");
+    }
+
+    /**
+     * A change of the stored hash makes the entry useless without an
+     * explicit invalidation.
+     */
+    public static void testChangedStoredHashDoesNotMatch() {
+        CredentialCache cache = new CredentialCache();
+        cache.put("alice", "secret", "hash1");
+
+        Check.isTrue(!cache.matches("alice", "secret", "hash2"), "old entry does not match a new stored hash");
+    }
+
+    /**
+     * An invalidated user is no longer cached.
+     */
+    public static void testInvalidate() {
+        CredentialCache cache = new CredentialCache();
+        cache.put("alice", "secret", "hash1");
+        cache.put("bob", "secret", "hash2");
+
+        cache.invalidate("alice");
+
+        Check.isTrue(!cache.matches("alice", "secret", "hash1"), "invalidated entry does not match");
+        Check.isTrue(cache.matches("bob", "secret", "hash2"), "other users stay cached");
+        Check.equal(1, cache.size(), "cached entries");
+    }
+}
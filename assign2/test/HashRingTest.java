@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests of {@link HashRing}: every node computes the same preference lists,
+ * the lists hold distinct nodes, keys spread over the nodes, and adding a
+ * node only moves keys to it.
+ */
+public class HashRingTest {
+
+    private static final int KEYS = 20000;
+    private static final List<String> NODES = List.of("a", "b", "c", "d");
+
+    /**
+     * Rings built from the same nodes listed in different orders give every
+     * key the same preference list, with the owner first.
+     */
+    public static void testSamePreferenceListOnEveryNode() {
+        HashRing ring = new HashRing(NODES);
+        HashRing reordered = new HashRing(List.of("d", "b", "a", "c"));
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room" + i;
+            List<String> owners = ring.ownersOf(key, 3);
+            Check.equal(owners, reordered.ownersOf(key, 3), "preference list of " + key);
+            Check.equal(ring.ownerOf(key), owners.get(0), "owner of " + key);
+        }
+    }
+
+    /**
+     * Preference lists hold distinct nodes, as many as asked for up to the
+     * number of nodes.
+     */
+    public static void testReplicasAreDistinct() {
+        HashRing ring = new HashRing(NODES);
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room" + i;
+            for (int count = 1; count <= NODES.size() + 1; count++) {
+                List<String> owners = ring.ownersOf(key, count);
+                Check.equal(Math.min(count, NODES.size()), owners.size(), "size of the list of " + key);
+                Check.equal(owners.size(), new HashSet<>(owners).size(), "distinct owners of " + key);
+            }
+        }
+        Check.equal(List.of("a"), new HashRing(List.of("a")).ownersOf("room", 3), "list on a single node");
+    }
+
+    /**
+     * Every node owns a fair share of the keys.
+     */
+    public static void testKeysSpreadEvenly() {
+        HashRing ring = new HashRing(NODES);
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            owned.merge(ring.ownerOf("room" + i), 1, Integer::sum);
+        }
+
+        for (String node : NODES) {
+            double share = owned.getOrDefault(node, 0) / (double) KEYS;
+            Check.isTrue(share > 0.15 && share < 0.35, "share of " + node + ": " + share);
+        }
+    }
+
+    /**
+     * A new node takes about its share of the keys, only from the nodes
+     * next to it, and leaves the order of the other nodes in every
+     * preference list as it was.
+     */
+    public static void testAddingNodeOnlyMovesKeysToIt() {
+        HashRing before = new HashRing(NODES);
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("e");
+        HashRing after = new HashRing(grown);
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "room" + i;
+            String owner = after.ownerOf(key);
+            if (!owner.equals(before.ownerOf(key))) {
+                Check.equal("e", owner, "new owner of " + key);
+                moved++;
+            }
+
+            List<String> others = new ArrayList<>(after.ownersOf(key, 3));
+            others.remove("e");
+            Check.equal(before.ownersOf(key, 3).subList(0, others.size()), others,
+                    "other replicas of " + key);
+        }
+        double share = moved / (double) KEYS;
+        Check.isTrue(share > 0.1 && share < 0.3, "share of keys moved: " + share);
+    }
+
+    /**
+     * A ring needs a node.
+     */
+    public static void testEmptyRingIsRejected() {
+        try {
+            new HashRing(List.of());
+            throw new AssertionError("empty ring was built");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests of {@link IndexedUserDirectory}: users survive compaction and a
+ * restart, whether they are in the index or only in the log.
+ */
+public class IndexedUserDirectoryTest {
+
+    /**
+     * Users added before and after a compaction, and a hash replaced in the
+     * index, are all found after reopening.
+     *
+     * @throws IOException If the directory cannot be opened
+     */
+    public static void testUsersSurviveCompactionAndRestart() throws IOException {
+        Path directory = Check.tempDirectory("users");
+        IndexedUserDirectory users = IndexedUserDirectory.open(directory);
+        add(users, 0, 500);
+        users.compact();
+        add(users, 500, 100);
+
+        Check.isTrue(!users.addUser("user0", "other"), "indexed user cannot be added again");
+        Check.isTrue(!users.addUser("user550", "other"), "logged user cannot be added again");
+        Check.isTrue(!users.replacePasswordHash("user0", "wrong", "new0"), "replace with a wrong hash fails");
+        Check.isTrue(users.replacePasswordHash("user0", hash(0), "new0"), "replace of an indexed user");
+        Check.isTrue(users.replacePasswordHash("user550", hash(550), "new550"), "replace of a logged user");
+        users.close();
+
+        users = IndexedUserDirectory.open(directory);
+        Map<String, String> expected = expected(600);
+        expected.put("user0", "new0");
+        expected.put("user550", "new550");
+        check(users, expected);
+        users.close();
+    }
+
+    /**
+     * Users added while compactions run are neither lost nor counted twice.
+     *
+     * @throws Exception If the directory cannot be opened or a thread fails
+     */
+    public static void testAddsDuringCompaction() throws Exception {
+        Path directory = Check.tempDirectory("users");
+        IndexedUserDirectory users = IndexedUserDirectory.open(directory);
+        add(users, 0, 200);
+
+        Thread adder = Thread.startVirtualThread(() -> add(users, 200, 300));
+        while (adder.isAlive()) {
+            users.compact();
+        }
+        adder.join();
+        check(users, expected(500));
+        users.close();
+
+        IndexedUserDirectory reopened = IndexedUserDirectory.open(directory);
+        check(reopened, expected(500));
+        reopened.close();
+    }
+
+    /**
+     * Check that a directory holds exactly the expected users.
+     *
+     * @param users The directory
+     * @param expected The password hash of each expected user
+     */
+    private static void check(IndexedUserDirectory users, Map<String, String> expected) {
+        Check.equal((long) expected.size(), users.getUserCount(), "user count");
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Check.equal(entry.getValue(), users.getPasswordHash(entry.getKey()), "hash of " + entry.getKey());
+        }
+        Map<String, String> listed = new HashMap<>();
+        users.forEachUser((username, hash) ->
+                Check.isTrue(listed.put(username, hash) == null, username + " listed once"));
+        Check.equal(expected, listed, "listed users");
+        Check.equal(null, users.getPasswordHash("missing"), "hash of an unknown user");
+    }
+
+    /**
+     * Add numbered users.
+     *
+     * @param users The directory
+     * @param from The number of the first user
+     * @param count The number of users
+     */
+    private static void add(IndexedUserDirectory users, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            Check.isTrue(users.addUser("user" + i, hash(i)), "user" + i + " added");
+        }
+    }
+
+    /**
+     * Get the users expected after adding numbered users.
+     *
+     * @param count The number of users
+     * @return The password hash of each user
+     */
+    private static Map<String, String> expected(int count) {
+        Map<String, String> users = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            users.put("user" + i, hash(i));
+        }
+        return users;
+    }
+
+    /**
+     * Get the stored hash of a numbered user.
+     *
+     * @param i The number of the user
+     * @return The hash
+     */
+    private static String hash(int i) {
+        return "hash" + i;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Tests of {@link MessageLog}: reading through the sparse index and
+ * recovering from a corrupt record.
+ */
+public class MessageLogTest {
+
+    // Each record is [length][crc][sender length] "u" "mNNN"
+    private static final int RECORD_SIZE = 4 + 4 + 2 + 1 + 4;
+
+    /**
+     * Ranges that start between index entries are read from the right
+     * offset.
+     *
+     * @throws IOException If the log cannot be opened
+     */
+    public static void testReadsRangesThroughIndex() throws IOException {
+        MessageLog log = new MessageLog(Check.tempDirectory("message-log"));
+        append(log, 0, 200);
+
+        List<Message> messages = log.read(130, 5);
+        Check.equal(5, messages.size(), "messages read");
+        for (int i = 0; i < 5; i++) {
+            Check.equal(130L + i, messages.get(i).getSeq(), "sequence number");
+            Check.equal(content(130 + i), messages.get(i).getContent(), "content");
+        }
+        Check.equal(content(199), log.readLast(1).get(0).getContent(), "last message");
+        log.close();
+    }
+
+    /**
+     * A record whose checksum does not match ends the log on recovery, and
+     * new messages are appended in its place.
+     *
+     * @throws IOException If the log cannot be opened or corrupted
+     */
+    public static void testRecoveryStopsAtCorruptRecord() throws IOException {
+        Path directory = Check.tempDirectory("message-log");
+        MessageLog log = new MessageLog(directory);
+        append(log, 0, 10);
+        log.close();
+
+        try (FileChannel segment = FileChannel.open(directory.resolve(String.format("%020d.log", 0)),
+                StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.wrap(new byte[] {'X'}), 7L * RECORD_SIZE + RECORD_SIZE - 1);
+        }
+
+        log = new MessageLog(directory);
+        Check.equal(7L, log.getNextOffset(), "next offset after recovery");
+        Check.equal(7, log.readLast(100).size(), "recovered messages");
+        Check.equal(7L, log.append(new Message("u", "m999")), "offset of the next message");
+        log.close();
+
+        log = new MessageLog(directory);
+        List<Message> messages = log.readLast(100);
+        Check.equal(8, messages.size(), "messages after reopening");
+        Check.equal("m999", messages.get(7).getContent(), "message appended after recovery");
+        log.close();
+    }
+
+    /**
+     * Append numbered messages.
+     *
+     * @param log The log
+     * @param from The number of the first message
+     * @param count The number of messages
+     * @throws IOException If a message cannot be appended
+     */
+    private static void append(MessageLog log, int from, int count) throws IOException {
+        for (int i = from; i < from + count; i++) {
+            log.append(new Message("u", content(i)));
+        }
+    }
+
+    /**
+     * Get the content of a numbered message.
+     *
+     * @param i The number of the message
+     * @return The content, four characters long
+     */
+    private static String content(int i) {
+        return String.format("m%03d", i);
+    }
+}
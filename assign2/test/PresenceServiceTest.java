@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests of {@link PresenceService}: status counts and the coalescing of
+ * status changes between flushes.
+ */
+public class PresenceServiceTest {
+
+    /**
+     * A user who disconnects and reconnects between two flushes is not
+     * announced, while a user whose status really changed is.
+     */
+    public static void testReconnectWithinFlushIsNotAnnounced() {
+        PresenceService presence = new PresenceService(new TimingWheel());
+        List<Map<String, PresenceService.Status>> announced = new ArrayList<>();
+        presence.setChangeListener(announced::add);
+        presence.sessionOpened("alice", true);
+        presence.sessionOpened("bob", true);
+        presence.flush();
+        announced.clear();
+
+        presence.connectionChanged("alice", false);
+        presence.connectionChanged("alice", true);
+        presence.connectionChanged("bob", false);
+        presence.flush();
+
+        Check.equal(List.of(Map.of("bob", PresenceService.Status.AWAY)), announced, "announcements");
+        presence.flush();
+        Check.equal(1, announced.size(), "announcements after a flush with no changes");
+    }
+
+    /**
+     * A user who comes and goes within one flush is not announced at all.
+     */
+    public static void testShortSessionIsNotAnnounced() {
+        PresenceService presence = new PresenceService(new TimingWheel());
+        List<Map<String, PresenceService.Status>> announced = new ArrayList<>();
+        presence.setChangeListener(announced::add);
+
+        presence.sessionOpened("alice", true);
+        presence.sessionClosed("alice", true);
+        presence.flush();
+
+        Check.equal(List.of(), announced, "announcements");
+        Check.equal(PresenceService.Status.OFFLINE, presence.getStatus("alice"), "status");
+    }
+
+    /**
+     * The counts follow the sessions and connections of every user, with a
+     * user online while any of its sessions is connected.
+     */
+    public static void testCounts() {
+        PresenceService presence = new PresenceService(new TimingWheel());
+        presence.sessionOpened("alice", true);
+        presence.sessionOpened("alice", false);
+        presence.sessionOpened("bob", false);
+        presence.sessionOpened("carol", true);
+
+        Check.equal(2, presence.getCount(PresenceService.Status.ONLINE), "users online");
+        Check.equal(1, presence.getCount(PresenceService.Status.AWAY), "users away");
+
+        presence.sessionClosed("alice", true);
+        Check.equal(PresenceService.Status.AWAY, presence.getStatus("alice"), "status with a disconnected session left");
+        presence.connectionChanged("bob", true);
+        presence.sessionClosed("carol", true);
+
+        Check.equal(1, presence.getCount(PresenceService.Status.ONLINE), "users online after changes");
+        Check.equal(1, presence.getCount(PresenceService.Status.AWAY), "users away after changes");
+        Check.equal(PresenceService.Status.OFFLINE, presence.getStatus("carol"), "status without sessions");
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Tests of the {@link RateLimiter} token buckets: bursts, refill, eviction
+ * of refilled buckets and disabled limits. Rates are set through the system
+ * properties the limiter reads when it is created.
+ */
+public class RateLimiterTest {
+
+    /**
+     * A bucket allows its burst at once, then rejects until it refills, and
+     * keys have buckets of their own.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testBurstThenRefill() throws InterruptedException {
+        RateLimiter limiter = limiter(RateLimiter.Limit.USER_MESSAGE, "10", "5");
+
+        for (int i = 0; i < 5; i++) {
+            Check.isTrue(limiter.tryAcquire(RateLimiter.Limit.USER_MESSAGE, "alice"), "message " + i + " of the burst");
+        }
+        Check.isTrue(!limiter.tryAcquire(RateLimiter.Limit.USER_MESSAGE, "alice"), "message over the burst");
+        Check.isTrue(limiter.tryAcquire(RateLimiter.Limit.USER_MESSAGE, "bob"), "message of another user");
+
+        // 10 per second: about 3 tokens after 300 ms, never the full burst
+        Thread.sleep(300);
+        int refilled = 0;
+        while (limiter.tryAcquire(RateLimiter.Limit.USER_MESSAGE, "alice")) {
+            refilled++;
+        }
+        Check.isTrue(refilled >= 2 && refilled < 5, "tokens refilled in 300 ms: " + refilled);
+    }
+
+    /**
+     * A rate of 0 disables a limit.
+     */
+    public static void testZeroRateIsUnlimited() {
+        RateLimiter limiter = limiter(RateLimiter.Limit.ROOM_CREATE, "0", "1");
+
+        for (int i = 0; i < 10000; i++) {
+            Check.isTrue(limiter.tryAcquire(RateLimiter.Limit.ROOM_CREATE, "alice"), "room " + i + " created");
+        }
+        Check.equal(0, limiter.evictIdle(), "buckets kept for a disabled limit");
+    }
+
+    /**
+     * Only buckets that have refilled completely are dropped, and a dropped
+     * bucket starts again with its full burst.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testEvictIdleDropsOnlyRefilledBuckets() throws InterruptedException {
+        RateLimiter limiter = limiter(RateLimiter.Limit.ROOM_MESSAGE, "10", "5");
+        // Full again after 100 ms and after 500 ms
+        limiter.tryAcquire(RateLimiter.Limit.ROOM_MESSAGE, "quiet");
+        for (int i = 0; i < 5; i++) {
+            limiter.tryAcquire(RateLimiter.Limit.ROOM_MESSAGE, "busy");
+        }
+        Check.equal(0, limiter.evictIdle(), "buckets dropped before any refilled");
+
+        Thread.sleep(200);
+        Check.equal(1, limiter.evictIdle(), "buckets dropped once the quiet one refilled");
+
+        Thread.sleep(600);
+        Check.equal(1, limiter.evictIdle(), "buckets dropped once the busy one refilled");
+        for (int i = 0; i < 5; i++) {
+            Check.isTrue(limiter.tryAcquire(RateLimiter.Limit.ROOM_MESSAGE, "busy"), "message " + i + " after eviction");
+        }
+    }
+
+    /**
+     * Create a rate limiter with the given rate and burst for one limit and
+     * the defaults for the others.
+     *
+     * @param limit The limit
+     * @param rate The rate, per second
+     * @param burst The burst
+     * @return The rate limiter
+     */
+    private static RateLimiter limiter(RateLimiter.Limit limit, String rate, String burst) {
+        String rateProperty = "chat." + limit.getLabel() + ".rate";
+        String burstProperty = "chat." + limit.getLabel() + ".burst";
+        System.setProperty(rateProperty, rate);
+        System.setProperty(burstProperty, burst);
+        try {
+            return new RateLimiter();
+        } finally {
+            System.clearProperty(rateProperty);
+            System.clearProperty(burstProperty);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Tests of resuming a user in a {@link RemoteRoom}: the missed messages
+ * fetched from the leader are completed with the ones delivered during the
+ * fetch, and later deliveries reach the resumed connection.
+ */
+public class RemoteRoomResumeTest {
+
+    private static final String ROOM = "general";
+
+    /**
+     * Messages delivered while the missed ones are being fetched are
+     * replayed after them, each once and in order.
+     */
+    public static void testReplayIncludesMessagesDeliveredDuringFetch() {
+        StubCluster cluster = new StubCluster();
+        RemoteRoom room = new RemoteRoom(ROOM, cluster, "a");
+        RecordingHandler previous = new RecordingHandler("alice");
+        room.addUser(previous);
+        deliver(room, 0, 4);
+
+        // The leader has 0 to 3 when asked, and 4 and 5 arrive before the
+        // answer does
+        cluster.onHistoryAfter = seq -> {
+            deliver(room, 4, 2);
+            return messages(2, 2);
+        };
+        RecordingHandler resumed = new RecordingHandler("alice");
+        Check.isTrue(room.resumeUser(previous, resumed, 1, 100), "user resumed");
+
+        Check.equal(List.of(2L, 3L, 4L, 5L), resumed.replayedSeqs, "replayed messages");
+        Check.equal(List.of(), resumed.sentSeqs, "messages broadcast before the replay");
+
+        deliver(room, 6, 1);
+        Check.equal(List.of(6L), resumed.sentSeqs, "messages broadcast after the replay");
+        Check.equal(List.of(0L, 1L, 2L, 3L, 4L, 5L), previous.sentSeqs, "messages sent to the previous connection");
+    }
+
+    /**
+     * When the leader cannot be reached, the buffered messages after the
+     * client's last one are still replayed.
+     */
+    public static void testReplayFallsBackToBufferedMessages() {
+        StubCluster cluster = new StubCluster();
+        RemoteRoom room = new RemoteRoom(ROOM, cluster, "a");
+        RecordingHandler previous = new RecordingHandler("alice");
+        room.addUser(previous);
+        deliver(room, 0, 4);
+
+        cluster.onHistoryAfter = seq -> null;
+        RecordingHandler resumed = new RecordingHandler("alice");
+        Check.isTrue(room.resumeUser(previous, resumed, 1, 100), "user resumed");
+
+        Check.equal(List.of(2L, 3L), resumed.replayedSeqs, "replayed messages");
+    }
+
+    /**
+     * Deliver numbered messages to a room as the leader would.
+     *
+     * @param room The room
+     * @param from The sequence number of the first message
+     * @param count The number of messages
+     */
+    private static void deliver(RemoteRoom room, long from, int count) {
+        for (Message message : messages(from, count)) {
+            room.deliver(message);
+        }
+    }
+
+    /**
+     * Create numbered messages.
+     *
+     * @param from The sequence number of the first message
+     * @param count The number of messages
+     * @return The messages
+     */
+    private static List<Message> messages(long from, int count) {
+        List<Message> messages = new ArrayList<>();
+        for (long seq = from; seq < from + count; seq++) {
+            messages.add(new Message("bob", "message " + seq, seq));
+        }
+        return messages;
+    }
+
+    /**
+     * A cluster member with no connections whose leader answers history
+     * requests with a test function.
+     */
+    private static final class StubCluster extends Cluster {
+        private volatile Function<Long, List<Message>> onHistoryAfter = seq -> List.of();
+
+        StubCluster() {
+            super("b", Map.of("a", new InetSocketAddress("localhost", 0), "b", new InetSocketAddress("localhost", 0)));
+        }
+
+        @Override
+        public void subscribe(String leader, String roomName) {
+        }
+
+        @Override
+        public void unsubscribe(String leader, String roomName) {
+        }
+
+        @Override
+        public boolean forward(String leader, String roomName, Message message) {
+            return true;
+        }
+
+        @Override
+        public List<Message> historyAfter(String leader, String roomName, long seq, int count) {
+            return onHistoryAfter.apply(seq);
+        }
+    }
+
+    /**
+     * A client handler with no connection that records what it is sent.
+     */
+    private static final class RecordingHandler extends ClientHandler {
+        private final String username;
+        private final List<Long> replayedSeqs;
+        private final List<Long> sentSeqs;
+
+        RecordingHandler(String username) {
+            super(null, null, null, null, null, null);
+            this.username = username;
+            this.replayedSeqs = new CopyOnWriteArrayList<>();
+            this.sentSeqs = new CopyOnWriteArrayList<>();
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void sendMessage(Message message, String roomName) {
+            sentSeqs.add(message.getSeq());
+        }
+
+        @Override
+        public void replay(String roomName, List<Message> missed, long lastSeq) {
+            for (Message message : missed) {
+                replayedSeqs.add(message.getSeq());
+            }
+        }
+    }
+}
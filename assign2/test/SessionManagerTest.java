@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of {@link SessionManager}: attaching and detaching connections, and
+ * compare-and-set updates racing on the same sessions.
+ */
+public class SessionManagerTest {
+
+    /**
+     * A detach from a connection the session has moved away from changes
+     * nothing, and the presence follows the current connection.
+     */
+    public static void testDetachIgnoresStaleHandler() {
+        SessionManager sessions = new SessionManager(new TimingWheel());
+        PresenceService presence = sessions.getPresence();
+        ClientHandler first = handler();
+        ClientHandler second = handler();
+
+        sessions.createOrUpdateSession("s1", "alice", "general", first);
+        Check.equal(PresenceService.Status.ONLINE, presence.getStatus("alice"), "status after login");
+
+        SessionManager.UserSession previous = sessions.attachHandler("s1", second);
+        Check.isTrue(previous.getClientHandler() == first, "attach returns the session as it was");
+        Check.isTrue(sessions.getSession("s1").getClientHandler() == second, "session moved to the new connection");
+        Check.equal("general", sessions.getSession("s1").getCurrentRoom(), "room kept on attach");
+
+        sessions.detachHandler("s1", first);
+        Check.equal(PresenceService.Status.ONLINE, presence.getStatus("alice"), "status after a stale detach");
+
+        sessions.detachHandler("s1", second);
+        Check.equal(PresenceService.Status.AWAY, presence.getStatus("alice"), "status after disconnecting");
+        Check.isTrue(sessions.hasActiveSession("s1"), "session kept after disconnecting");
+
+        sessions.removeSession("s1");
+        Check.equal(PresenceService.Status.OFFLINE, presence.getStatus("alice"), "status after removal");
+        Check.equal(0, sessions.getSessionCount(), "sessions after removal");
+        Check.equal(null, sessions.attachHandler("s1", first), "attach to a removed session");
+    }
+
+    /**
+     * Sessions of one user attached and detached from many threads, while
+     * another thread keeps changing their rooms, end with the right handler,
+     * one of the rooms and a connection count that matches.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testConcurrentUpdatesAreNotLost() throws InterruptedException {
+        SessionManager sessions = new SessionManager(new TimingWheel());
+        PresenceService presence = sessions.getPresence();
+        int devices = 8;
+        List<ClientHandler> handlers = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            handlers.add(handler());
+            sessions.createOrUpdateSession("s" + d, "alice", "room0", handlers.get(d));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            String sessionId = "s" + d;
+            ClientHandler handler = handlers.get(d);
+            threads.add(Thread.startVirtualThread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    sessions.detachHandler(sessionId, handler);
+                    sessions.attachHandler(sessionId, handler);
+                }
+                sessions.detachHandler(sessionId, handler);
+            }));
+        }
+        threads.add(Thread.startVirtualThread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                sessions.restoreSession("s" + (i % devices), "alice", "room" + (i % 3));
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int d = 0; d < devices; d++) {
+            SessionManager.UserSession session = sessions.getSession("s" + d);
+            Check.isTrue(session.getClientHandler() == handlers.get(d), "s" + d + " keeps its handler");
+            Check.isTrue(session.getCurrentRoom().startsWith("room"), "s" + d + " has a room");
+        }
+        Check.equal(PresenceService.Status.AWAY, presence.getStatus("alice"), "status with every device detached");
+
+        sessions.attachHandler("s0", handlers.get(0));
+        Check.equal(PresenceService.Status.ONLINE, presence.getStatus("alice"), "status with one device attached");
+        Check.equal(1, presence.getCount(PresenceService.Status.ONLINE), "users online");
+        Check.equal(0, presence.getCount(PresenceService.Status.AWAY), "users away");
+    }
+
+    /**
+     * Create a client handler with no connection.
+     *
+     * @return The handler
+     */
+    private static ClientHandler handler() {
+        return new ClientHandler(null, null, null, null, null, null);
+    }
+}
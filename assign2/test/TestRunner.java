@@ -0,0 +1,74 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+/**
+ * Runs the behaviour tests. Every public static method whose name starts
+ * with {@code test} in the listed classes is a test; it passes unless it
+ * throws.
+ */
+public class TestRunner {
+
+    private static final List<Class<?>> TESTS = List.of(
+            MessageLogTest.class,
+            WriteAheadLogTest.class,
+            TimingWheelTest.class,
+            BloomFilterTest.class,
+            CredentialCacheTest.class,
+            IndexedUserDirectoryTest.class,
+            SessionManagerTest.class,
+            PresenceServiceTest.class,
+            RemoteRoomResumeTest.class,
+            BinaryProtocolTest.class,
+            RateLimiterTest.class,
+            AdmissionControllerTest.class,
+            HashRingTest.class
+    );
+
+    /**
+     * Main entry point for the tests.
+     *
+     * @param args The simple names of the test classes to run, or none to
+     * run them all
+     * @throws IllegalAccessException If a test method cannot be called
+     */
+    public static void main(String[] args) throws IllegalAccessException {
+        // java TestRunner [<test class>...]
+
+        // Keep the server log off the console and out of logs/, so only the
+        // results are printed; set before any class under test logs
+        if (System.getProperty("chat.logConsole") == null) {
+            System.setProperty("chat.logConsole", "false");
+        }
+        if (System.getProperty("chat.logFile") == null) {
+            System.setProperty("chat.logFile", "");
+        }
+
+        List<String> selected = List.of(args);
+        int passed = 0;
+        int failed = 0;
+        for (Class<?> test : TESTS) {
+            if (!selected.isEmpty() && !selected.contains(test.getSimpleName())) {
+                continue;
+            }
+            for (Method method : test.getMethods()) {
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                String name = test.getSimpleName() + "." + method.getName();
+                try {
+                    method.invoke(null);
+                    System.out.println("PASS " + name);
+                    passed++;
+                } catch (InvocationTargetException e) {
+                    System.out.println("FAIL " + name + ": " + e.getCause());
+                    failed++;
+                }
+            }
+        }
+
+        System.out.println(passed + " passed, " + failed + " failed");
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
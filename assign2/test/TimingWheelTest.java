@@ -0,0 +1,90 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of {@link TimingWheel}, with one-millisecond ticks so that
+ * deadlines in the higher levels come up within a few seconds.
+ */
+public class TimingWheelTest {
+
+    /**
+     * Timeouts in every level fire once, no earlier than their deadline,
+     * after being moved down from the higher levels.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testTimeoutsCascadeAndNeverFireEarly() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1);
+        long start = System.currentTimeMillis();
+        // Level 0, level 1 (64 ticks and up) and level 2 (4096 ticks and up)
+        List<Long> delays = List.of(5L, 63L, 64L, 200L, 1000L, 4200L);
+        Map<Long, Long> fired = new ConcurrentHashMap<>();
+        AtomicInteger runs = new AtomicInteger();
+        for (long delay : delays) {
+            long deadline = start + delay;
+            wheel.schedule(deadline, () -> {
+                runs.incrementAndGet();
+                fired.put(deadline, System.currentTimeMillis());
+            });
+        }
+        Check.equal(delays.size(), wheel.size(), "scheduled timeouts");
+
+        advanceUntil(wheel, start + delays.get(delays.size() - 1) + 100);
+
+        Check.equal(delays.size(), runs.get(), "tasks run");
+        Check.equal(0, wheel.size(), "timeouts left");
+        for (long delay : delays) {
+            Long at = fired.get(start + delay);
+            Check.isTrue(at != null && at >= start + delay, "timeout after " + delay + " ms fired on time: " + at);
+        }
+    }
+
+    /**
+     * Cancelled timeouts do not fire, and rescheduled ones fire only at
+     * their new deadline, or again after they have run.
+     *
+     * @throws InterruptedException If the test is interrupted
+     */
+    public static void testCancelAndReschedule() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(1);
+        long start = System.currentTimeMillis();
+        AtomicInteger cancelledRuns = new AtomicInteger();
+        AtomicInteger movedRuns = new AtomicInteger();
+
+        TimingWheel.Timeout cancelled = wheel.schedule(start + 50, cancelledRuns::incrementAndGet);
+        TimingWheel.Timeout moved = wheel.schedule(start + 50, movedRuns::incrementAndGet);
+        cancelled.cancel();
+        moved.reschedule(start + 300);
+        Check.equal(1, wheel.size(), "timeouts after cancelling one");
+
+        advanceUntil(wheel, start + 150);
+        Check.equal(0, cancelledRuns.get(), "runs of the cancelled task");
+        Check.equal(0, movedRuns.get(), "runs of the rescheduled task before its new deadline");
+
+        advanceUntil(wheel, start + 400);
+        Check.equal(1, movedRuns.get(), "runs of the rescheduled task");
+
+        moved.reschedule(System.currentTimeMillis() + 20);
+        Check.equal(1, wheel.size(), "timeouts after rescheduling a task that ran");
+        advanceUntil(wheel, System.currentTimeMillis() + 100);
+        Check.equal(2, movedRuns.get(), "runs after rescheduling a task that ran");
+        Check.equal(0, cancelledRuns.get(), "runs of the cancelled task");
+    }
+
+    /**
+     * Advance a wheel every millisecond until a given time.
+     *
+     * @param wheel The wheel
+     * @param untilMillis When to stop, in epoch milliseconds
+     * @throws InterruptedException If the test is interrupted
+     */
+    private static void advanceUntil(TimingWheel wheel, long untilMillis) throws InterruptedException {
+        while (System.currentTimeMillis() < untilMillis) {
+            wheel.advance();
+            Thread.sleep(1);
+        }
+        wheel.advance();
+    }
+}
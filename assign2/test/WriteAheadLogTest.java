@@ -0,0 +1,120 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tests of {@link WriteAheadLog}: group commit under concurrent appends,
+ * generations and closing.
+ */
+public class WriteAheadLogTest {
+
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 200;
+
+    /**
+     * Records appended concurrently from many threads are all committed and
+     * all replayed after the log is closed.
+     *
+     * @throws Exception If the log cannot be used or a thread fails
+     */
+    public static void testConcurrentAppendsAreAllCommitted() throws Exception {
+        Path directory = Check.tempDirectory("wal");
+        WriteAheadLog log = new WriteAheadLog(directory);
+        log.open();
+
+        List<CompletableFuture<Boolean>> commits = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads.add(Thread.startVirtualThread(() -> {
+                for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                    CompletableFuture<Boolean> commit = log.appendAsync(record(thread, i));
+                    synchronized (commits) {
+                        commits.add(commit);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (CompletableFuture<Boolean> commit : commits) {
+            Check.isTrue(commit.join(), "every record is committed");
+        }
+        log.close();
+
+        Set<String> replayed = replay(directory, 0);
+        Check.equal(THREADS * RECORDS_PER_THREAD, replayed.size(), "records replayed");
+        Check.isTrue(replayed.contains(new String(record(THREADS - 1, RECORDS_PER_THREAD - 1), StandardCharsets.UTF_8)),
+                "last record of the last thread is replayed");
+    }
+
+    /**
+     * Replaying from a generation skips the records of older ones, and a
+     * reopened log starts a new generation.
+     *
+     * @throws IOException If the log cannot be used
+     */
+    public static void testReplayFromGeneration() throws IOException {
+        Path directory = Check.tempDirectory("wal");
+        WriteAheadLog log = new WriteAheadLog(directory);
+        log.open();
+        Check.isTrue(log.append(record(0, 0)), "record before rotating is committed");
+        long generation = log.rotate();
+        Check.isTrue(log.append(record(0, 1)), "record after rotating is committed");
+        log.close();
+
+        Check.equal(Set.of("0:0", "0:1"), replay(directory, 0), "records of every generation");
+        Check.equal(Set.of("0:1"), replay(directory, generation), "records of the rotated generation");
+
+        log = new WriteAheadLog(directory);
+        log.open();
+        Check.isTrue(log.append(record(0, 2)), "record after reopening is committed");
+        log.close();
+        Check.equal(Set.of("0:1", "0:2"), replay(directory, generation), "records after reopening");
+    }
+
+    /**
+     * Appends to a closed log fail instead of blocking.
+     *
+     * @throws IOException If the log cannot be opened
+     */
+    public static void testAppendAfterCloseFails() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(Check.tempDirectory("wal"));
+        log.open();
+        log.close();
+
+        Check.isTrue(!log.append(record(0, 0)), "append after close fails");
+    }
+
+    /**
+     * Replay a log directory into a set of records.
+     *
+     * @param directory The directory holding the log
+     * @param fromGeneration The first generation to replay
+     * @return The records, decoded as strings
+     * @throws IOException If the log cannot be read
+     */
+    private static Set<String> replay(Path directory, long fromGeneration) throws IOException {
+        Set<String> records = new HashSet<>();
+        new WriteAheadLog(directory).replay(fromGeneration,
+                payload -> records.add(new String(payload, StandardCharsets.UTF_8)));
+        return records;
+    }
+
+    /**
+     * Encode a record naming the thread that wrote it.
+     *
+     * @param thread The thread number
+     * @param i The record number within the thread
+     * @return The record payload
+     */
+    private static byte[] record(int thread, int i) {
+        return (thread + ":" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}